@@ -0,0 +1,46 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine;
+
+/**
+ * Result of StateMachineInstance.tryFireEvent(). The constants are shared, a
+ * failure cause is kept by the instance instead.
+ */
+public enum FireOutcome {
+
+	/**
+	 * The state changed and every listener returned normally.
+	 */
+	ACCEPTED,
+
+	/**
+	 * The current state has no transition for the event, nothing happened.
+	 */
+	NO_TRANSITION,
+
+	/**
+	 * Called from an OnStateChangedListener of the same instance, nothing
+	 * happened.
+	 */
+	REENTRANT,
+
+	/**
+	 * The state changed but a listener threw an exception, which is returned by
+	 * StateMachineInstance.getFailureCause().
+	 */
+	LISTENER_FAILED;
+
+}
@@ -0,0 +1,743 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Runs instances on a fixed set of single-threaded partitions, in the style of
+ * a thread-per-core server. Every instance id hashes to one of a fixed number
+ * of slots, and every slot is owned by exactly one partition worker. The worker
+ * creates an instance on its first event and is the only thread that ever
+ * touches it, so events are fired without taking the instance monitor.
+ *
+ * Events reach a worker through a bounded lock-free ring that any number of
+ * threads may publish into. Each ring entry is a preallocated set of array
+ * cells, so submitting an event allocates nothing.
+ *
+ * Slots can be moved between partitions while events are flowing, either one
+ * at a time with moveSlot() or with rebalance(), which moves the busiest slots
+ * from the busiest partition to the idlest one. Events for an id that are
+ * submitted from one thread are handled in that order, including across a
+ * move. A single id is never split, so one very hot id still runs on one
+ * thread.
+ *
+ * Instances owned by an engine must only be reached through it. Do not add
+ * them to a StateTimeoutManager or fire events at them directly; use query()
+ * to look at one and remove() to release one that is finished, instances are
+ * kept until then. Listeners run on the worker thread. They may call offer(),
+ * but should not call fireEvent(), which waits for room in a ring that may be
+ * the worker's own.
+ *
+ * @param <K> The instance id class
+ * @param <S> The state class
+ * @param <E> The event class
+ * @param <C> The context class
+ */
+public class PartitionedEngine<K, S, E, C> implements AutoCloseable {
+
+	private static final int EVENT = 0;
+	private static final int QUERY = 1;
+	private static final int FLUSH = 2;
+	private static final int EXPECT = 3;
+	private static final int HANDOFF = 4;
+	private static final int REMOVE = 5;
+	private static final int STOP = 6;
+
+	private static final int SLOTS_PER_PARTITION = 64;
+	private static final int MOVING = Integer.MIN_VALUE;
+	private static final long PARK_NANOS = 1000000L;
+
+	private final StateMachineGraph<S, E, C> graph;
+	private final Function<? super K, ? extends C> contextFactory;
+	private final Partition[] partitions;
+	private final int slotMask;
+
+	/**
+	 * Per slot: the number of producers between reading the route and
+	 * publishing, with MOVING set while the slot changes owner.
+	 */
+	private final AtomicIntegerArray gates;
+	private final int[] routes;
+	private final HashMap<K, StateMachineInstance<S, E, C>>[] slotInstances;
+	private final long[] slotLoad;
+	private final long[] slotLoadSeen;
+	private volatile boolean closed;
+
+	/**
+	 * Constructor with one partition per available processor.
+	 *
+	 * @param graph          the graph of every instance
+	 * @param contextFactory creates the context of an instance from its id
+	 */
+	public PartitionedEngine(StateMachineGraph<S, E, C> graph, Function<? super K, ? extends C> contextFactory) {
+		this(graph, contextFactory, Runtime.getRuntime().availableProcessors(), 4096);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param graph          the graph of every instance
+	 * @param contextFactory creates the context of an instance from its id
+	 * @param partitions     the number of worker threads
+	 * @param ringCapacity   the number of events each worker can have queued,
+	 *                       rounded up to a power of two
+	 */
+	public PartitionedEngine(StateMachineGraph<S, E, C> graph, Function<? super K, ? extends C> contextFactory,
+			int partitions, int ringCapacity) {
+		if (partitions < 1) {
+			throw new IllegalArgumentException("partitions must be positive");
+		}
+		if (ringCapacity < 1) {
+			throw new IllegalArgumentException("ringCapacity must be positive");
+		}
+		this.graph = graph;
+		this.contextFactory = contextFactory;
+
+		int slots = powerOfTwo(partitions * SLOTS_PER_PARTITION);
+		this.slotMask = slots - 1;
+		this.gates = new AtomicIntegerArray(slots);
+		this.routes = new int[slots];
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		HashMap<K, StateMachineInstance<S, E, C>>[] instances = new HashMap[slots];
+		this.slotInstances = instances;
+		this.slotLoad = new long[slots];
+		this.slotLoadSeen = new long[slots];
+		for (int slot = 0; slot < slots; slot++) {
+			routes[slot] = slot % partitions;
+		}
+
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		Partition[] workers = new PartitionedEngine.Partition[partitions];
+		int capacity = powerOfTwo(ringCapacity);
+		for (int i = 0; i < partitions; i++) {
+			workers[i] = new Partition(i, capacity);
+		}
+		this.partitions = workers;
+		for (Partition partition : this.partitions) {
+			partition.thread.start();
+		}
+	}
+
+	private static int powerOfTwo(int n) {
+		int p = 1;
+		while (p < n) {
+			p <<= 1;
+		}
+		return p;
+	}
+
+	/**
+	 * Returns the slot an id hashes to.
+	 *
+	 * @param id the instance id
+	 * @return the slot
+	 */
+	public int slotOf(K id) {
+		int h = id.hashCode();
+		return (h ^ (h >>> 16)) & slotMask;
+	}
+
+	/**
+	 * Returns the partition that currently owns an id.
+	 *
+	 * @param id the instance id
+	 * @return the partition index
+	 */
+	public int partitionOf(K id) {
+		return routes[slotOf(id)];
+	}
+
+	/**
+	 * Returns the number of worker threads.
+	 *
+	 * @return the number of partitions
+	 */
+	public int getPartitionCount() {
+		return partitions.length;
+	}
+
+	/**
+	 * Returns the number of slots ids are hashed into.
+	 *
+	 * @return the number of slots
+	 */
+	public int getSlotCount() {
+		return slotMask + 1;
+	}
+
+	/**
+	 * Queues an event for an instance, waiting while the owning partition's ring
+	 * is full.
+	 *
+	 * @param id    the instance id
+	 * @param event the event to fire
+	 */
+	public void fireEvent(K id, E event) {
+		fireEvent(id, event, null);
+	}
+
+	/**
+	 * Queues an event carrying a payload for an instance, waiting while the
+	 * owning partition's ring is full.
+	 *
+	 * @param id      the instance id
+	 * @param event   the event to fire
+	 * @param payload the data to pass to the listeners, may be null
+	 */
+	public void fireEvent(K id, E event, Object payload) {
+		submit(EVENT, id, event, payload, true);
+	}
+
+	/**
+	 * Queues an event for an instance unless the owning partition's ring is
+	 * full.
+	 *
+	 * @param id      the instance id
+	 * @param event   the event to fire
+	 * @param payload the data to pass to the listeners, may be null
+	 * @return false if the ring was full and the event was not queued
+	 */
+	public boolean offer(K id, E event, Object payload) {
+		return submit(EVENT, id, event, payload, false);
+	}
+
+	/**
+	 * Runs a function against an instance on its owning worker, after every
+	 * event already queued for it. The instance is created if it does not exist
+	 * yet.
+	 *
+	 * @param          <T> The result class
+	 * @param id       the instance id
+	 * @param function called with the instance
+	 * @return the result of the function
+	 */
+	public <T> CompletableFuture<T> query(K id, Function<? super StateMachineInstance<S, E, C>, ? extends T> function) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		submit(QUERY, id, null, new Query<S, E, C, T>(function, future), true);
+		return future;
+	}
+
+	/**
+	 * Removes an instance from its owning worker, after every event already
+	 * queued for it. A later event for the id creates a new instance.
+	 *
+	 * @param id the instance id
+	 * @return the removed instance, which the engine no longer touches, or null
+	 *         if there was none
+	 */
+	public CompletableFuture<StateMachineInstance<S, E, C>> remove(K id) {
+		CompletableFuture<StateMachineInstance<S, E, C>> future = new CompletableFuture<StateMachineInstance<S, E, C>>();
+		submit(REMOVE, id, null, future, true);
+		return future;
+	}
+
+	/**
+	 * Returns a future that completes once every partition has handled all the
+	 * events queued before this call, including those held back for a slot that
+	 * is being moved. The counters are exact once it has completed.
+	 *
+	 * @return the future
+	 */
+	public CompletableFuture<Void> flush() {
+		checkOpen();
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[partitions.length];
+		for (int i = 0; i < partitions.length; i++) {
+			CompletableFuture<Void> future = new CompletableFuture<Void>();
+			futures[i] = future;
+			partitions[i].put(FLUSH, null, null, future, 0);
+		}
+		return CompletableFuture.allOf(futures);
+	}
+
+	private boolean submit(int kind, K id, E event, Object payload, boolean wait) {
+		checkOpen();
+		int slot = slotOf(id);
+		for (;;) {
+			if (gates.getAndIncrement(slot) >= 0) {
+				break;
+			}
+			gates.getAndDecrement(slot);
+			while (gates.get(slot) < 0) {
+				Thread.onSpinWait();
+			}
+		}
+		try {
+			Partition partition = partitions[routes[slot]];
+			if (wait) {
+				partition.put(kind, id, event, payload, slot);
+				return true;
+			}
+			return partition.offer(kind, id, event, payload, slot);
+		} finally {
+			gates.getAndDecrement(slot);
+		}
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("Engine is closed.");
+		}
+	}
+
+	/**
+	 * Moves a slot, and with it every instance hashing to it, to another
+	 * partition. Producers of ids in the slot wait while the move is being
+	 * queued. The old owner handles everything queued before the move and then
+	 * hands the instances over; the new owner holds back events for the slot
+	 * until then.
+	 *
+	 * @param slot      the slot
+	 * @param partition the new owner
+	 */
+	public synchronized void moveSlot(int slot, int partition) {
+		checkOpen();
+		if (slot < 0 || slot > slotMask) {
+			throw new IllegalArgumentException("Invalid slot " + slot);
+		}
+		if (partition < 0 || partition >= partitions.length) {
+			throw new IllegalArgumentException("Invalid partition " + partition);
+		}
+		int from = routes[slot];
+		if (from == partition) {
+			return;
+		}
+		gates.getAndAdd(slot, MOVING);
+		try {
+			while ((gates.get(slot) & ~MOVING) != 0) {
+				Thread.onSpinWait();
+			}
+			partitions[partition].put(EXPECT, null, null, null, slot);
+			partitions[from].put(HANDOFF, null, null, partitions[partition], slot);
+			routes[slot] = partition;
+		} finally {
+			gates.getAndAdd(slot, MOVING);
+		}
+	}
+
+	/**
+	 * Moves slots from the partition that handled the most events since the
+	 * previous call to the one that handled the fewest, until the two would be
+	 * roughly even. Call it periodically to follow shifting load.
+	 *
+	 * @return the number of slots moved
+	 */
+	public synchronized int rebalance() {
+		checkOpen();
+		int slots = slotMask + 1;
+		long[] delta = new long[slots];
+		long[] load = new long[partitions.length];
+		for (int slot = 0; slot < slots; slot++) {
+			long now = slotLoad[slot];
+			delta[slot] = now - slotLoadSeen[slot];
+			slotLoadSeen[slot] = now;
+			load[routes[slot]] += delta[slot];
+		}
+
+		int hot = 0;
+		int cold = 0;
+		for (int i = 1; i < partitions.length; i++) {
+			if (load[i] > load[hot]) {
+				hot = i;
+			}
+			if (load[i] < load[cold]) {
+				cold = i;
+			}
+		}
+		long excess = (load[hot] - load[cold]) / 2;
+		if (hot == cold || excess <= 0) {
+			return 0;
+		}
+
+		List<Integer> candidates = new ArrayList<Integer>();
+		for (int slot = 0; slot < slots; slot++) {
+			if (routes[slot] == hot && delta[slot] > 0) {
+				candidates.add(slot);
+			}
+		}
+		candidates.sort((a, b) -> Long.compare(delta[b], delta[a]));
+
+		int moved = 0;
+		for (int slot : candidates) {
+			if (delta[slot] <= excess) {
+				moveSlot(slot, cold);
+				excess -= delta[slot];
+				moved++;
+			}
+		}
+		return moved;
+	}
+
+	/**
+	 * Returns the number of events that changed state.
+	 *
+	 * @return the count
+	 */
+	public long getAccepted() {
+		long n = 0;
+		for (Partition partition : partitions) {
+			n += partition.accepted;
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the number of events that had no transition from the current
+	 * state.
+	 *
+	 * @return the count
+	 */
+	public long getRejected() {
+		long n = 0;
+		for (Partition partition : partitions) {
+			n += partition.rejected;
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the number of events where a listener or the context factory
+	 * threw.
+	 *
+	 * @return the count
+	 */
+	public long getFailed() {
+		long n = 0;
+		for (Partition partition : partitions) {
+			n += partition.failed;
+		}
+		return n;
+	}
+
+	/**
+	 * Handles everything already queued and stops the workers. Events submitted
+	 * while closing may be dropped.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		for (Partition partition : partitions) {
+			partition.put(STOP, null, null, null, 0);
+		}
+		boolean interrupted = false;
+		for (Partition partition : partitions) {
+			for (;;) {
+				try {
+					partition.thread.join();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static final class Query<S, E, C, T> {
+		private final Function<? super StateMachineInstance<S, E, C>, ? extends T> function;
+		private final CompletableFuture<T> future;
+
+		private Query(Function<? super StateMachineInstance<S, E, C>, ? extends T> function,
+				CompletableFuture<T> future) {
+			this.function = function;
+			this.future = future;
+		}
+
+		private void run(StateMachineInstance<S, E, C> instance) {
+			try {
+				future.complete(function.apply(instance));
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			}
+		}
+	}
+
+	/**
+	 * One worker and its ring. The ring is Vyukov's bounded queue: a cell is
+	 * free for the producer claiming position p when its sequence is p, and
+	 * ready for the consumer when it is p + 1.
+	 */
+	private final class Partition implements Runnable {
+
+		private final Thread thread;
+		private final int mask;
+		private final AtomicLongArray sequences;
+		private final int[] kinds;
+		private final int[] slots;
+		private final Object[] ids;
+		private final Object[] events;
+		private final Object[] payloads;
+		private final AtomicLong tail = new AtomicLong();
+		private long head;
+		private volatile boolean parked;
+
+		/**
+		 * Slots handed over by another partition, checked between events.
+		 */
+		private final ConcurrentLinkedQueue<Integer> adopted = new ConcurrentLinkedQueue<Integer>();
+
+		/**
+		 * Entries held back per slot until the previous owner hands it over.
+		 */
+		private final HashMap<Integer, ArrayDeque<Object[]>> pending = new HashMap<Integer, ArrayDeque<Object[]>>();
+
+		/**
+		 * Slots handed over before their EXPECT was read from the ring.
+		 */
+		private final HashSet<Integer> early = new HashSet<Integer>();
+
+		/**
+		 * Flushes waiting for the held back entries to be handled.
+		 */
+		private final ArrayList<CompletableFuture<Void>> flushes = new ArrayList<CompletableFuture<Void>>();
+
+		private long accepted;
+		private long rejected;
+		private long failed;
+
+		private Partition(int index, int capacity) {
+			this.mask = capacity - 1;
+			this.sequences = new AtomicLongArray(capacity);
+			for (int i = 0; i < capacity; i++) {
+				sequences.set(i, i);
+			}
+			this.kinds = new int[capacity];
+			this.slots = new int[capacity];
+			this.ids = new Object[capacity];
+			this.events = new Object[capacity];
+			this.payloads = new Object[capacity];
+			this.thread = new Thread(this, "state-machine-partition-" + index);
+			this.thread.setDaemon(true);
+		}
+
+		private boolean offer(int kind, Object id, Object event, Object payload, int slot) {
+			for (;;) {
+				long t = tail.get();
+				int i = (int) t & mask;
+				long s = sequences.get(i);
+				if (s == t) {
+					if (tail.compareAndSet(t, t + 1)) {
+						kinds[i] = kind;
+						slots[i] = slot;
+						ids[i] = id;
+						events[i] = event;
+						payloads[i] = payload;
+						sequences.lazySet(i, t + 1);
+						if (parked) {
+							LockSupport.unpark(thread);
+						}
+						return true;
+					}
+				} else if (s < t) {
+					return false;
+				}
+			}
+		}
+
+		private void put(int kind, Object id, Object event, Object payload, int slot) {
+			int spins = 0;
+			while (!offer(kind, id, event, payload, slot)) {
+				if (++spins < 100) {
+					Thread.onSpinWait();
+				} else if (closed && !thread.isAlive()) {
+					// nobody will ever make room
+					throw new IllegalStateException("Engine is closed.");
+				} else {
+					Thread.yield();
+				}
+			}
+		}
+
+		private void adopt(int slot) {
+			adopted.add(slot);
+			LockSupport.unpark(thread);
+		}
+
+		@Override
+		public void run() {
+			int idle = 0;
+			boolean stopping = false;
+			for (;;) {
+				if (!adopted.isEmpty()) {
+					Integer slot;
+					while ((slot = adopted.poll()) != null) {
+						ArrayDeque<Object[]> held = pending.remove(slot);
+						if (held == null) {
+							early.add(slot);
+							continue;
+						}
+						for (Object[] entry : held) {
+							handle((Integer) entry[0], slot, entry[1], entry[2], entry[3]);
+						}
+					}
+					if (pending.isEmpty() && !flushes.isEmpty()) {
+						for (CompletableFuture<Void> future : flushes) {
+							future.complete(null);
+						}
+						flushes.clear();
+					}
+				}
+
+				// slots still in transit are waited for before stopping
+				if (stopping && pending.isEmpty()) {
+					return;
+				}
+
+				int i = (int) head & mask;
+				if (sequences.get(i) != head + 1) {
+					if (++idle < 100) {
+						Thread.onSpinWait();
+					} else if (idle < 200) {
+						Thread.yield();
+					} else {
+						parked = true;
+						if (sequences.get(i) != head + 1 && adopted.isEmpty()) {
+							LockSupport.parkNanos(this, PARK_NANOS);
+						}
+						parked = false;
+					}
+					continue;
+				}
+				idle = 0;
+
+				int kind = kinds[i];
+				int slot = slots[i];
+				Object id = ids[i];
+				Object event = events[i];
+				Object payload = payloads[i];
+				ids[i] = null;
+				events[i] = null;
+				payloads[i] = null;
+				sequences.lazySet(i, head + mask + 1);
+				head++;
+
+				if (kind == STOP) {
+					stopping = true;
+					continue;
+				}
+				handle(kind, slot, id, event, payload);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private void handle(int kind, int slot, Object id, Object event, Object payload) {
+			if (kind == FLUSH) {
+				if (pending.isEmpty()) {
+					((CompletableFuture<Void>) payload).complete(null);
+				} else {
+					flushes.add((CompletableFuture<Void>) payload);
+				}
+				return;
+			}
+
+			ArrayDeque<Object[]> held = pending.get(slot);
+			if (held != null) {
+				held.add(new Object[] { kind, id, event, payload });
+				return;
+			}
+
+			switch (kind) {
+			case EXPECT:
+				if (!early.remove(slot)) {
+					pending.put(slot, new ArrayDeque<Object[]>());
+				}
+				break;
+			case HANDOFF:
+				((Partition) payload).adopt(slot);
+				break;
+			case QUERY:
+				StateMachineInstance<S, E, C> instance = instance(slot, (K) id);
+				if (instance != null) {
+					((Query<S, E, C, ?>) payload).run(instance);
+				} else {
+					((Query<S, E, C, ?>) payload).future
+							.completeExceptionally(new IllegalStateException("Unable to create instance " + id));
+				}
+				break;
+			case REMOVE:
+				HashMap<K, StateMachineInstance<S, E, C>> map = slotInstances[slot];
+				StateMachineInstance<S, E, C> removed = (map == null) ? null : map.remove(id);
+				if (map != null && map.isEmpty()) {
+					slotInstances[slot] = null;
+				}
+				((CompletableFuture<StateMachineInstance<S, E, C>>) payload).complete(removed);
+				break;
+			default:
+				fire(slot, (K) id, (E) event, payload);
+				break;
+			}
+		}
+
+		private StateMachineInstance<S, E, C> instance(int slot, K id) {
+			HashMap<K, StateMachineInstance<S, E, C>> map = slotInstances[slot];
+			if (map == null) {
+				map = new HashMap<K, StateMachineInstance<S, E, C>>();
+				slotInstances[slot] = map;
+			}
+			StateMachineInstance<S, E, C> instance = map.get(id);
+			if (instance == null) {
+				C context;
+				try {
+					context = contextFactory.apply(id);
+				} catch (Throwable t) {
+					return null;
+				}
+				instance = new StateMachineInstance<S, E, C>(graph, context);
+				map.put(id, instance);
+			}
+			return instance;
+		}
+
+		private void fire(int slot, K id, E event, Object payload) {
+			slotLoad[slot]++;
+			StateMachineInstance<S, E, C> instance = instance(slot, id);
+			if (instance == null) {
+				failed++;
+				return;
+			}
+			switch (instance.tryFireEventOwned(event, payload)) {
+			case ACCEPTED:
+				accepted++;
+				break;
+			case NO_TRANSITION:
+				rejected++;
+				break;
+			default:
+				failed++;
+				break;
+			}
+		}
+	}
+
+}
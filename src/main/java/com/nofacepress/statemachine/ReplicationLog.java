@@ -0,0 +1,253 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine;
+
+import java.lang.invoke.VarHandle;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+
+import com.nofacepress.statemachine.exceptions.StateMachineException;
+
+/**
+ * Primary side of state replication: a numbered stream of (instance id, new
+ * state) deltas for a fleet of instances, kept in a ring of the most recent
+ * ones. A follower reads the deltas after the last sequence it applied, its
+ * checkpoint, and falls back to a snapshot of every current state when the
+ * ring no longer holds them.
+ *
+ * Instances that are added append a delta on every state change, forced or
+ * not, while holding the monitor they already hold to change state. Appending
+ * claims a sequence with one atomic increment and stores two references into
+ * preallocated arrays. Reading is lock free; deltas overwritten while being
+ * read are detected and reported as lost.
+ *
+ * An instance can belong to one log at a time. See the replication package
+ * for the transport and follower.
+ *
+ * @param <K> The instance id class
+ * @param <S> The state class
+ * @param <E> The event class
+ * @param <C> The context class
+ */
+public class ReplicationLog<K, S, E, C> {
+
+	/**
+	 * Receives deltas read from the log.
+	 *
+	 * @param <K> The instance id class
+	 * @param <S> The state class
+	 */
+	@FunctionalInterface
+	public interface Sink<K, S> {
+
+		/**
+		 * Called for each delta, in sequence order.
+		 *
+		 * @param sequence the sequence of the delta
+		 * @param id       the instance id
+		 * @param state    the new state, null if the instance was removed
+		 */
+		void delta(long sequence, K id, S state);
+	}
+
+	private final int mask;
+	private final Object[] ids;
+	private final Object[] states;
+
+	/**
+	 * Per slot the sequence stored in it, or its complement while it is being
+	 * written.
+	 */
+	private final AtomicLongArray published;
+	private final AtomicLong next = new AtomicLong();
+	private final ConcurrentHashMap<K, StateMachineInstance<S, E, C>> instances = new ConcurrentHashMap<K, StateMachineInstance<S, E, C>>();
+
+	/**
+	 * Creates a log.
+	 *
+	 * @param capacity the number of deltas to keep, rounded up to a power of
+	 *                 two
+	 */
+	public ReplicationLog(int capacity) {
+		if (capacity < 1 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		mask = size - 1;
+		ids = new Object[size];
+		states = new Object[size];
+		published = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			published.set(i, -1);
+		}
+	}
+
+	/**
+	 * Adds an instance, appending a delta with its current state.
+	 *
+	 * @param instance the instance to replicate
+	 * @param id       the id followers know it by
+	 * @throws StateMachineException if the instance already belongs to another
+	 *                               log
+	 */
+	public void add(StateMachineInstance<S, E, C> instance, K id) throws StateMachineException {
+		synchronized (instance) {
+			if (instance.replicationLog == this) {
+				return;
+			}
+			if (instance.replicationLog != null) {
+				throw new StateMachineException("Instance already belongs to another log.");
+			}
+			instance.replicationLog = this;
+			instance.replicationId = id;
+			instances.put(id, instance);
+			append(id, instance.getCurrentState().getId());
+		}
+	}
+
+	/**
+	 * Removes an instance, appending a delta that removes it from followers.
+	 *
+	 * @param instance the instance to stop replicating
+	 */
+	@SuppressWarnings("unchecked")
+	public void remove(StateMachineInstance<S, E, C> instance) {
+		synchronized (instance) {
+			if (instance.replicationLog != this) {
+				return;
+			}
+			K id = (K) instance.replicationId;
+			instance.replicationLog = null;
+			instance.replicationId = null;
+			instances.remove(id, instance);
+			append(id, null);
+		}
+	}
+
+	/**
+	 * Called by the instance while holding its monitor.
+	 */
+	void changed(Object id, S state) {
+		append(id, state);
+	}
+
+	private void append(Object id, S state) {
+		long sequence = next.getAndIncrement();
+		int i = (int) sequence & mask;
+		published.set(i, ~sequence);
+		VarHandle.releaseFence();
+		ids[i] = id;
+		states[i] = state;
+		published.lazySet(i, sequence);
+	}
+
+	/**
+	 * Returns the number of deltas appended so far, which is also the sequence
+	 * of the next one.
+	 *
+	 * @return the count
+	 */
+	public long getCount() {
+		return next.get();
+	}
+
+	/**
+	 * Returns the number of deltas kept.
+	 *
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Returns the number of instances being replicated.
+	 *
+	 * @return the count
+	 */
+	public int size() {
+		return instances.size();
+	}
+
+	/**
+	 * Reads the deltas following a checkpoint, stopping at the first one that
+	 * is still being appended.
+	 *
+	 * @param checkpoint the last sequence already applied, -1 for none
+	 * @param max        the most deltas to read
+	 * @param sink       receives the deltas
+	 * @return the number of deltas read, or -1 if some of them are no longer
+	 *         kept and a snapshot is needed; the sink may have been called
+	 *         before that was found out
+	 */
+	@SuppressWarnings("unchecked")
+	public int read(long checkpoint, int max, Sink<K, S> sink) {
+		long first = checkpoint + 1;
+		if (first < next.get() - (mask + 1)) {
+			return -1;
+		}
+		int n = 0;
+		for (long sequence = first; n < max; sequence++, n++) {
+			int i = (int) sequence & mask;
+			long p = published.get(i);
+			if (p != sequence) {
+				if ((p >= 0 && p > sequence) || (p < 0 && ~p > sequence)) {
+					return -1;
+				}
+				break;
+			}
+			Object id = ids[i];
+			Object state = states[i];
+			VarHandle.acquireFence();
+			if (published.get(i) != sequence) {
+				return -1;
+			}
+			sink.delta(sequence, (K) id, (S) state);
+		}
+		return n;
+	}
+
+	/**
+	 * Passes the current state of every instance to a sink. Applying the
+	 * deltas after the returned checkpoint on top of the snapshot gives the
+	 * current states.
+	 *
+	 * @param sink receives the id and state of each instance
+	 * @return the checkpoint of the snapshot
+	 */
+	public long snapshot(BiConsumer<? super K, ? super S> sink) {
+		long checkpoint = next.get() - 1;
+		for (Map.Entry<K, StateMachineInstance<S, E, C>> entry : instances.entrySet()) {
+			StateMachineInstance<S, E, C> instance = entry.getValue();
+			S state;
+			synchronized (instance) {
+				if (instance.replicationLog != this) {
+					continue;
+				}
+				state = instance.getCurrentState().getId();
+			}
+			sink.accept(entry.getKey(), state);
+		}
+		return checkpoint;
+	}
+
+}
@@ -16,7 +16,9 @@
 package com.nofacepress.statemachine;
 
 import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 
+import com.nofacepress.statemachine.exceptions.StateMachineException;
 import com.nofacepress.statemachine.listener.ListenerManager;
 
 /**
@@ -84,6 +86,35 @@ public interface StateMachineGraph<S, E, C> {
 	 */
 	StateType<S, E, C> getStateType(S state);
 
+	/**
+	 * Returns the listener manager of a transition, creating it if needed. Its
+	 * listeners are only called when the event takes this transition, after the
+	 * exit listeners of the source state and before the listeners of the target
+	 * state. They are not called by forced state changes.
+	 * 
+	 * @param source the source state of the transition
+	 * @param event  the event of the transition
+	 * @return the listener manager
+	 * @throws StateMachineException         if there is no such transition
+	 * @throws UnsupportedOperationException if the graph does not support
+	 *                                       transition listeners
+	 */
+	default ListenerManager<S, E, C> getTransitionListenerManager(S source, E event) throws StateMachineException {
+		throw new UnsupportedOperationException("Transition listeners are not supported");
+	}
+
+	/**
+	 * Returns the modification counter of the graph. It changes whenever states,
+	 * transitions, the initial state or timeouts change, but not when listeners
+	 * do, so results derived from the structure can be cached per version.
+	 * Graphs that do not track changes return -1 and are never cached.
+	 * 
+	 * @return the version or -1 if unknown
+	 */
+	default long getVersion() {
+		return -1;
+	}
+
 	/**
 	 * Returns a read-only list of all states.
 	 * 
@@ -98,4 +129,57 @@ public interface StateMachineGraph<S, E, C> {
 	 */
 	void setInitialState(S state);
 
-}
\ No newline at end of file
+	/**
+	 * Declares a timeout for a state, adding it if needed. Instances attached to
+	 * a StateTimeoutManager fire the event if they are still in the state after
+	 * the duration. Passing a null event removes the timeout.
+	 * 
+	 * @param state    the state
+	 * @param duration how long an instance may stay in the state
+	 * @param unit     the unit of duration
+	 * @param event    the event to fire on expiry
+	 * @throws UnsupportedOperationException if the graph does not support
+	 *                                       timeouts
+	 */
+	default void setTimeout(S state, long duration, TimeUnit unit, E event) {
+		throw new UnsupportedOperationException("Timeouts are not supported");
+	}
+
+	/**
+	 * Fires an event for a state that is stored elsewhere, such as a database
+	 * column, without creating a StateMachineInstance. The graph and state
+	 * listeners are called exactly as fireEvent() calls them. The instance they
+	 * receive is a per-thread scratch instance that is only valid during the
+	 * call, it must not be kept.
+	 * 
+	 * @param current the current state
+	 * @param event   the event to fire
+	 * @param context the context passed to listeners
+	 * @return the new state, which is the state an AfterStateChangedListener
+	 *         moved on to if any did, or null if the event is not valid in the
+	 *         current state
+	 * @throws StateMachineException if the current state is not in the graph or
+	 *                               if a listener threw an exception
+	 */
+	default S transition(S current, E event, C context) throws StateMachineException {
+		return StateMachineInstance.transition(this, current, event, context, null);
+	}
+
+	/**
+	 * Same as transition(S, E, C) with a payload for the payload aware listeners,
+	 * see StateMachineInstance.fireEvent(E, Object).
+	 * 
+	 * @param current the current state
+	 * @param event   the event to fire
+	 * @param context the context passed to listeners
+	 * @param payload the data to pass to the listeners, may be null
+	 * @return the new state or null if the event is not valid in the current
+	 *         state
+	 * @throws StateMachineException if the current state is not in the graph or
+	 *                               if a listener threw an exception
+	 */
+	default S transition(S current, E event, C context, Object payload) throws StateMachineException {
+		return StateMachineInstance.transition(this, current, event, context, payload);
+	}
+
+}
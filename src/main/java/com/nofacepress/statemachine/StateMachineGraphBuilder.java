@@ -16,6 +16,7 @@
 package com.nofacepress.statemachine;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import com.nofacepress.statemachine.impl.StateMachineGraphImpl;
 import com.nofacepress.statemachine.listener.AfterStateChangedListener;
@@ -37,7 +38,23 @@ public class StateMachineGraphBuilder {
 	 */
 	public static class StateMachineGraphBuild<S, E, C> {
 
-		protected StateMachineGraphImpl<S, E, C> graph = new StateMachineGraphImpl<S, E, C>();
+		protected final StateMachineGraph<S, E, C> graph;
+
+		/**
+		 * Constructor for configuring a new StateMachineGraphImpl.
+		 */
+		public StateMachineGraphBuild() {
+			this(new StateMachineGraphImpl<S, E, C>());
+		}
+
+		/**
+		 * Constructor for configuring an existing graph.
+		 * 
+		 * @param graph the graph to configure
+		 */
+		public StateMachineGraphBuild(StateMachineGraph<S, E, C> graph) {
+			this.graph = graph;
+		}
 
 		/**
 		 * Generates the final StateMachineGraph
@@ -48,6 +65,16 @@ public class StateMachineGraphBuilder {
 			return graph;
 		}
 
+		/**
+		 * Generates the final StateMachineGraph compiled into read-only dispatch
+		 * tables, see StateMachineGraphCompiler.
+		 * 
+		 * @return the compiled StateMachineGraph
+		 */
+		public StateMachineGraph<S, E, C> compile() {
+			return StateMachineGraphCompiler.compile(graph);
+		}
+
 		/**
 		 * Sets the default initial state.
 		 * 
@@ -81,6 +108,30 @@ public class StateMachineGraphBuilder {
 			return this;
 		}
 
+		/**
+		 * Adds an AfterStateChangedListener called when a specific state is left.
+		 * 
+		 * @param state    state to add to.
+		 * @param listener the listener
+		 * @return the builder for chaining
+		 */
+		public StateMachineGraphBuild<S, E, C> exitListener(S state, AfterStateChangedListener<S, E, C> listener) {
+			graph.addState(state).getExitListenerManager().addListener(listener);
+			return this;
+		}
+
+		/**
+		 * Adds an OnStateChangedListener called when a specific state is left.
+		 * 
+		 * @param state    state to add to.
+		 * @param listener the listener
+		 * @return the builder for chaining
+		 */
+		public StateMachineGraphBuild<S, E, C> exitListener(S state, OnStateChangedListener<S, E, C> listener) {
+			graph.addState(state).getExitListenerManager().addListener(listener);
+			return this;
+		}
+
 		/**
 		 * Adds an AfterStateChangedListener for a specific state.
 		 * 
@@ -142,6 +193,22 @@ public class StateMachineGraphBuilder {
 			return this;
 		}
 
+		/**
+		 * Declares a timeout for a state. If an instance attached to a
+		 * StateTimeoutManager is still in the state after the duration, the event is
+		 * fired on it.
+		 * 
+		 * @param state    the state
+		 * @param duration how long an instance may stay in the state
+		 * @param unit     the unit of duration
+		 * @param event    the event to fire on expiry
+		 * @return the builder for chaining
+		 */
+		public StateMachineGraphBuild<S, E, C> timeout(S state, long duration, TimeUnit unit, E event) {
+			graph.setTimeout(state, duration, unit, event);
+			return this;
+		}
+
 		/**
 		 * Adds a transition to the graph.
 		 * 
@@ -154,6 +221,36 @@ public class StateMachineGraphBuilder {
 			graph.addTransition(source, target, event);
 			return this;
 		}
+
+		/**
+		 * Adds an AfterStateChangedListener called only when an event takes a
+		 * specific transition. The transition must already be defined.
+		 * 
+		 * @param source   the source state of the transition
+		 * @param event    the event of the transition
+		 * @param listener the listener
+		 * @return the builder for chaining
+		 */
+		public StateMachineGraphBuild<S, E, C> transitionListener(S source, E event,
+				AfterStateChangedListener<S, E, C> listener) {
+			graph.getTransitionListenerManager(source, event).addListener(listener);
+			return this;
+		}
+
+		/**
+		 * Adds an OnStateChangedListener called only when an event takes a specific
+		 * transition. The transition must already be defined.
+		 * 
+		 * @param source   the source state of the transition
+		 * @param event    the event of the transition
+		 * @param listener the listener
+		 * @return the builder for chaining
+		 */
+		public StateMachineGraphBuild<S, E, C> transitionListener(S source, E event,
+				OnStateChangedListener<S, E, C> listener) {
+			graph.getTransitionListenerManager(source, event).addListener(listener);
+			return this;
+		}
 	}
 
 	/**
@@ -168,4 +265,18 @@ public class StateMachineGraphBuilder {
 		return new StateMachineGraphBuild<S, E, C>();
 	}
 
+	/**
+	 * Static method to create a builder that configures an existing graph, for
+	 * example a PersistentStateMachineGraph.
+	 * 
+	 * @param       <S> The state class
+	 * @param       <E> The event class
+	 * @param       <C> The context class
+	 * @param graph the graph to configure
+	 * @return the builder
+	 */
+	public static <S, E, C> StateMachineGraphBuild<S, E, C> builder(StateMachineGraph<S, E, C> graph) {
+		return new StateMachineGraphBuild<S, E, C>(graph);
+	}
+
 }
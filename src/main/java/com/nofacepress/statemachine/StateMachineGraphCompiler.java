@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine;
+
+import com.nofacepress.statemachine.impl.CompiledStateMachineGraph;
+
+/**
+ * Compiles a finished StateMachineGraph into a read-only graph backed by dense
+ * dispatch tables. Transitions of enum graphs are found by ordinal with no
+ * hashing, and listeners are called from plain arrays, which keeps the path
+ * through fireEvent() short enough for the JIT to inline.
+ *
+ * Compile once configuration is complete. Listeners may still be added to the
+ * compiled graph, but states and transitions may not.
+ */
+public class StateMachineGraphCompiler {
+
+	/**
+	 * Compiles a graph including its listeners.
+	 *
+	 * @param       <S> The state class
+	 * @param       <E> The event class
+	 * @param       <C> The context class
+	 * @param graph the graph to compile
+	 * @return the compiled graph
+	 */
+	public static <S, E, C> StateMachineGraph<S, E, C> compile(StateMachineGraph<S, E, C> graph) {
+		return compile(graph, true);
+	}
+
+	/**
+	 * Compiles a graph.
+	 *
+	 * @param                  <S> The state class
+	 * @param                  <E> The event class
+	 * @param                  <C> The context class
+	 * @param graph            the graph to compile
+	 * @param includeListeners if true, listeners are copied to the compiled graph.
+	 * @return the compiled graph
+	 */
+	public static <S, E, C> StateMachineGraph<S, E, C> compile(StateMachineGraph<S, E, C> graph,
+			boolean includeListeners) {
+		return new CompiledStateMachineGraph<S, E, C>(graph, includeListeners);
+	}
+
+}
@@ -16,6 +16,9 @@
 package com.nofacepress.statemachine;
 
 import com.nofacepress.statemachine.exceptions.StateMachineException;
+import com.nofacepress.statemachine.listener.ListenerManager;
+import com.nofacepress.statemachine.timer.HierarchicalTimingWheel;
+import java.lang.ref.WeakReference;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -28,11 +31,23 @@ import java.util.Map;
  */
 public class StateMachineInstance<S, E, C> {
 
+	// reused by StateMachineGraph.transition(), one per thread, held weakly so
+	// pool threads do not keep the last graph they used alive
+	private static final ThreadLocal<WeakReference<StateMachineInstance<?, ?, ?>>> SCRATCH = new ThreadLocal<WeakReference<StateMachineInstance<?, ?, ?>>>();
+
 	private final StateMachineGraph<S, E, C> stateMachineGraph;
 	private StateType<S, E, C> currentState;
 	private boolean changeInProcess = false;
 	private C context;
 	private Map<String, Object> properties = null;
+	StateMachineInstanceIndex<S, E, C> stateIndex = null;
+	StateTimeoutManager<S, E, C> timeoutManager = null;
+	HierarchicalTimingWheel.Timeout stateTimer = null;
+	private boolean borrowed = false;
+	private Throwable failureCause = null;
+	private volatile TransitionHistory<S, E> history = null;
+	ReplicationLog<?, S, E, C> replicationLog = null;
+	Object replicationId = null;
 
 	/**
 	 * Constructor using default initial state from graph configuration.
@@ -59,38 +74,117 @@ public class StateMachineInstance<S, E, C> {
 		this.setContext(context);
 	}
 
-	protected synchronized boolean changeState(StateType<S, E, C> target, E event, boolean notifyListeners)
+	protected boolean changeState(StateType<S, E, C> target, E event, boolean notifyListeners)
 			throws StateMachineException {
+		return changeState(target, event, null, null, notifyListeners);
+	}
+
+	protected synchronized boolean changeState(StateType<S, E, C> target, E event, Object payload,
+			ListenerManager<S, E, C> transitionListeners, boolean notifyListeners) throws StateMachineException {
 
 		if (changeInProcess) {
 			throw new StateMachineException(
 					"Change in process, must use AfterStateChangedListener's to be able to change states.");
 		}
 
-		// BEGIN STATE CHANGED
 		StateType<S, E, C> previous = currentState;
+		Throwable t = enterState(previous, target, event, payload, transitionListeners, notifyListeners);
+		if (t != null) {
+			throw new StateMachineException(t.getMessage(), t);
+		}
+		if (notifyListeners) {
+			callAfterListeners(previous, target, event, payload, transitionListeners);
+		}
+		return true;
+	}
+
+	/**
+	 * Same as changeState() but reports failures as an outcome instead of
+	 * throwing, keeping the cause in failureCause.
+	 */
+	private synchronized FireOutcome tryChangeState(StateType<S, E, C> target, E event, Object payload,
+			ListenerManager<S, E, C> transitionListeners) {
+		return tryChangeStateOwned(target, event, payload, transitionListeners);
+	}
+
+	/**
+	 * Body of tryChangeState() without the monitor, for a caller that is the
+	 * only thread ever touching this instance.
+	 */
+	private FireOutcome tryChangeStateOwned(StateType<S, E, C> target, E event, Object payload,
+			ListenerManager<S, E, C> transitionListeners) {
+
+		if (changeInProcess) {
+			return FireOutcome.REENTRANT;
+		}
+
+		StateType<S, E, C> previous = currentState;
+		Throwable t = enterState(previous, target, event, payload, transitionListeners, true);
+		if (t == null) {
+			try {
+				callAfterListeners(previous, target, event, payload, transitionListeners);
+			} catch (Throwable e) {
+				t = e;
+			}
+		}
+		failureCause = t;
+		return (t == null) ? FireOutcome.ACCEPTED : FireOutcome.LISTENER_FAILED;
+	}
+
+	/**
+	 * Moves to the target and calls the OnStateChangedListener's.
+	 * 
+	 * @return the exception thrown by a listener, or null
+	 */
+	private Throwable enterState(StateType<S, E, C> previous, StateType<S, E, C> target, E event, Object payload,
+			ListenerManager<S, E, C> transitionListeners, boolean notifyListeners) {
+
+		// BEGIN STATE CHANGED
 		currentState = target;
+		if (stateIndex != null) {
+			stateIndex.moved(this, previous, target);
+		}
+		if (timeoutManager != null) {
+			timeoutManager.entered(this, target);
+		}
+		TransitionHistory<S, E> h = history;
+		if (h != null) {
+			h.record(previous.getId(), event, target.getId());
+		}
+		if (replicationLog != null) {
+			replicationLog.changed(replicationId, target.getId());
+		}
 
 		if (!notifyListeners) {
-			return true;
+			return null;
 		}
 
 		try {
 			changeInProcess = true;
-			stateMachineGraph.getListenerManager().callOnStateChangedListeners(this, previous, target, event);
-			target.getListenerManager().callOnStateChangedListeners(this, previous, target, event);
+			stateMachineGraph.getListenerManager().callOnStateChangedListeners(this, previous, target, event, payload);
+			previous.getExitListenerManager().callOnStateChangedListeners(this, previous, target, event, payload);
+			if (transitionListeners != null) {
+				transitionListeners.callOnStateChangedListeners(this, previous, target, event, payload);
+			}
+			target.getListenerManager().callOnStateChangedListeners(this, previous, target, event, payload);
 
 		} catch (Throwable t) {
-			throw new StateMachineException(t.getMessage(), t);
+			return t;
 		} finally {
 			changeInProcess = false;
 		}
 		// END STATE CHANGED
+		return null;
+	}
 
-		stateMachineGraph.getListenerManager().callAfterStateChangedListeners(this, previous, target, event);
-		target.getListenerManager().callAfterStateChangedListeners(this, previous, target, event);
-
-		return true;
+	private void callAfterListeners(StateType<S, E, C> previous, StateType<S, E, C> target, E event, Object payload,
+			ListenerManager<S, E, C> transitionListeners) {
+		stateMachineGraph.getListenerManager().callAfterStateChangedListeners(this, previous, target, event, payload);
+		previous.getExitListenerManager().callAfterStateChangedListeners(this, previous, target, event, payload);
+		if (transitionListeners != null) {
+			transitionListeners.callAfterStateChangedListeners(this, previous, target, event, payload);
+		}
+		target.getListenerManager().callAfterStateChangedListeners(this, previous, target, event, payload);
 	}
 
 	/**
@@ -103,12 +197,151 @@ public class StateMachineInstance<S, E, C> {
 	 */
 	public boolean fireEvent(E event) throws StateMachineException {
 
-		StateType<S, E, C> target = currentState.getTransition(event);
+		StateType<S, E, C> source = currentState;
+		StateType<S, E, C> target = source.getTransition(event);
+		if (target == null) {
+			return false;
+		}
+
+		return changeState(target, event, null, source.getTransitionListenerManager(event), true);
+	}
+
+	/**
+	 * Fires an event carrying a payload. The payload is passed to the
+	 * OnStateChangedPayloadListener's and AfterStateChangedPayloadListener's of
+	 * the transition, other listeners are called as usual.
+	 * 
+	 * @param event   the event to fire
+	 * @param payload the data to pass to the listeners, may be null
+	 * @return true of event was valid, false otherwise
+	 * @throws StateMachineException if called from an OnStateChangeListener or if a
+	 *                               listener through an exception.
+	 */
+	public boolean fireEvent(E event, Object payload) throws StateMachineException {
+
+		StateType<S, E, C> source = currentState;
+		StateType<S, E, C> target = source.getTransition(event);
 		if (target == null) {
 			return false;
 		}
 
-		return changeState(target, event, true);
+		return changeState(target, event, payload, source.getTransitionListenerManager(event), true);
+	}
+
+	/**
+	 * Fires an event without throwing. Every outcome, including a listener
+	 * failure or a call made from an OnStateChangedListener, is reported as one
+	 * of the shared FireOutcome constants, so nothing is allocated on failure. The
+	 * exception thrown by a listener is kept and can be read with
+	 * getFailureCause().
+	 * 
+	 * @param event the event to fire
+	 * @return the outcome
+	 */
+	public FireOutcome tryFireEvent(E event) {
+		return tryFireEvent(event, null);
+	}
+
+	/**
+	 * Fires an event carrying a payload without throwing, see tryFireEvent(E) and
+	 * fireEvent(E, Object).
+	 * 
+	 * @param event   the event to fire
+	 * @param payload the data to pass to the listeners, may be null
+	 * @return the outcome
+	 */
+	public FireOutcome tryFireEvent(E event, Object payload) {
+
+		StateType<S, E, C> source = currentState;
+		StateType<S, E, C> target = source.getTransition(event);
+		if (target == null) {
+			return FireOutcome.NO_TRANSITION;
+		}
+
+		return tryChangeState(target, event, payload, source.getTransitionListenerManager(event));
+	}
+
+	/**
+	 * Same as tryFireEvent(E, Object) but without taking the monitor. Only for
+	 * an owner that confines the instance to a single thread, such as a
+	 * PartitionedEngine worker.
+	 */
+	FireOutcome tryFireEventOwned(E event, Object payload) {
+
+		StateType<S, E, C> source = currentState;
+		StateType<S, E, C> target = source.getTransition(event);
+		if (target == null) {
+			return FireOutcome.NO_TRANSITION;
+		}
+
+		return tryChangeStateOwned(target, event, payload, source.getTransitionListenerManager(event));
+	}
+
+	/**
+	 * Returns the exception thrown by a listener during the last tryFireEvent()
+	 * that returned LISTENER_FAILED. Any later tryFireEvent() that changes state
+	 * clears it.
+	 * 
+	 * @return the exception or null
+	 */
+	public Throwable getFailureCause() {
+		return failureCause;
+	}
+
+	/**
+	 * Implements StateMachineGraph.transition() with a per-thread instance that is
+	 * reused as long as the same graph is used. A nested call, made from a
+	 * listener while the thread's instance is busy, gets a new instance.
+	 */
+	@SuppressWarnings("unchecked")
+	static <S, E, C> S transition(StateMachineGraph<S, E, C> graph, S current, E event, C context, Object payload)
+			throws StateMachineException {
+
+		StateType<S, E, C> source = graph.getStateType(current);
+		if (source == null) {
+			throw new StateMachineException("Invalid state " + String.valueOf(current));
+		}
+		StateType<S, E, C> target = source.getTransition(event);
+		if (target == null) {
+			return null;
+		}
+
+		WeakReference<StateMachineInstance<?, ?, ?>> ref = SCRATCH.get();
+		StateMachineInstance<?, ?, ?> cached = (ref == null) ? null : ref.get();
+		StateMachineInstance<S, E, C> instance;
+		if (cached != null && !cached.borrowed && cached.stateMachineGraph == graph) {
+			instance = (StateMachineInstance<S, E, C>) cached;
+			instance.currentState = source;
+			instance.context = context;
+		} else {
+			instance = new StateMachineInstance<S, E, C>(graph, current, context);
+			if (cached == null || !cached.borrowed) {
+				SCRATCH.set(new WeakReference<StateMachineInstance<?, ?, ?>>(instance));
+			}
+		}
+
+		instance.borrowed = true;
+		try {
+			instance.changeState(target, event, payload, source.getTransitionListenerManager(event), true);
+			// an AfterStateChangedListener may have moved on
+			return instance.currentState.getId();
+		} finally {
+			instance.borrowed = false;
+			instance.context = null;
+			instance.failureCause = null;
+			instance.properties = null;
+		}
+	}
+
+	/**
+	 * Called by the timing wheel, fires the event only if the timer is still the
+	 * one armed for the current state.
+	 */
+	synchronized void timeoutExpired(HierarchicalTimingWheel.Timeout timer, E event) throws StateMachineException {
+		if (stateTimer == timer) {
+			stateTimer = null;
+			fireEvent(event);
+		}
 	}
 
 	/**
@@ -134,6 +367,25 @@ public class StateMachineInstance<S, E, C> {
 
 	}
 
+	/**
+	 * Sets the history that records the state changes of this instance, or null
+	 * to stop recording. A history should only be used by one instance.
+	 * 
+	 * @param history the history
+	 */
+	public void setHistory(TransitionHistory<S, E> history) {
+		this.history = history;
+	}
+
+	/**
+	 * Returns the history recording the state changes of this instance.
+	 * 
+	 * @return the history or null if none was set
+	 */
+	public TransitionHistory<S, E> getHistory() {
+		return history;
+	}
+
 	/**
 	 * Returns the context associated with this state machine instance.
 	 * 
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.nofacepress.statemachine.exceptions.StateMachineException;
+
+/**
+ * Optional secondary index of instances by their current state, for finding
+ * "all instances in state X" without scanning every instance.
+ *
+ * Instances that are added are moved between per-state concurrent sets by the
+ * instance itself on every state change, forced or not. The update happens
+ * under the monitor the instance already holds while changing state, so no
+ * lock is shared between instances. While an instance is moving it is briefly
+ * visible in both its old and new state.
+ *
+ * An instance can belong to one index at a time.
+ *
+ * @param <S> The state class
+ * @param <E> The event class
+ * @param <C> The context class
+ */
+public class StateMachineInstanceIndex<S, E, C> {
+
+	private final ConcurrentHashMap<S, Set<StateMachineInstance<S, E, C>>> byState = new ConcurrentHashMap<S, Set<StateMachineInstance<S, E, C>>>();
+
+	private Set<StateMachineInstance<S, E, C>> bucket(S state) {
+		Set<StateMachineInstance<S, E, C>> set = byState.get(state);
+		if (set == null) {
+			set = byState.computeIfAbsent(state, k -> ConcurrentHashMap.newKeySet());
+		}
+		return set;
+	}
+
+	/**
+	 * Adds an instance to the index.
+	 *
+	 * @param instance the instance to track
+	 * @throws StateMachineException if the instance already belongs to another
+	 *                               index
+	 */
+	public void add(StateMachineInstance<S, E, C> instance) throws StateMachineException {
+		synchronized (instance) {
+			if (instance.stateIndex == this) {
+				return;
+			}
+			if (instance.stateIndex != null) {
+				throw new StateMachineException("Instance already belongs to another index.");
+			}
+			instance.stateIndex = this;
+			bucket(instance.getCurrentState().getId()).add(instance);
+		}
+	}
+
+	/**
+	 * Removes an instance from the index.
+	 *
+	 * @param instance the instance to stop tracking
+	 */
+	public void remove(StateMachineInstance<S, E, C> instance) {
+		synchronized (instance) {
+			if (instance.stateIndex != this) {
+				return;
+			}
+			instance.stateIndex = null;
+			Set<StateMachineInstance<S, E, C>> set = byState.get(instance.getCurrentState().getId());
+			if (set != null) {
+				set.remove(instance);
+			}
+		}
+	}
+
+	/**
+	 * Called by the instance while holding its monitor.
+	 */
+	void moved(StateMachineInstance<S, E, C> instance, StateType<S, E, C> source, StateType<S, E, C> target) {
+		if (source != target) {
+			bucket(target.getId()).add(instance);
+			Set<StateMachineInstance<S, E, C>> set = byState.get(source.getId());
+			if (set != null) {
+				set.remove(instance);
+			}
+		}
+	}
+
+	/**
+	 * Returns a live read-only view of the instances currently in a state.
+	 * Iteration is weakly consistent and never throws
+	 * ConcurrentModificationException. A state that never had an instance gets
+	 * an empty set, which does not show instances entering it later.
+	 *
+	 * @param state the state
+	 * @return the instances in the state
+	 */
+	public Set<StateMachineInstance<S, E, C>> getInstances(S state) {
+		Set<StateMachineInstance<S, E, C>> set = byState.get(state);
+		return (set == null) ? Collections.<StateMachineInstance<S, E, C>>emptySet()
+				: Collections.unmodifiableSet(set);
+	}
+
+	/**
+	 * Returns the number of instances currently in a state.
+	 *
+	 * @param state the state
+	 * @return the count
+	 */
+	public int count(S state) {
+		Set<StateMachineInstance<S, E, C>> set = byState.get(state);
+		return (set == null) ? 0 : set.size();
+	}
+
+	/**
+	 * Returns the states that have, or have had, instances in them.
+	 *
+	 * @return the states
+	 */
+	public Set<S> getStates() {
+		return Collections.unmodifiableSet(byState.keySet());
+	}
+
+}
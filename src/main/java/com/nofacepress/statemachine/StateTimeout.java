@@ -0,0 +1,62 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timeout declared on a state. If an instance is still in the state after the
+ * duration, the event is fired on it.
+ *
+ * @param <E> The event class
+ */
+public final class StateTimeout<E> {
+
+	private final E event;
+	private final long nanos;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param event    the event to fire on expiry
+	 * @param duration how long an instance may stay in the state
+	 * @param unit     the unit of duration
+	 */
+	public StateTimeout(E event, long duration, TimeUnit unit) {
+		this.event = event;
+		this.nanos = unit.toNanos(duration);
+	}
+
+	/**
+	 * Returns the event fired on expiry.
+	 *
+	 * @return the event
+	 */
+	public E getEvent() {
+		return event;
+	}
+
+	/**
+	 * Returns the duration in a given unit.
+	 *
+	 * @param unit the unit
+	 * @return the duration
+	 */
+	public long getDuration(TimeUnit unit) {
+		return unit.convert(nanos, TimeUnit.NANOSECONDS);
+	}
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.nofacepress.statemachine.exceptions.StateMachineException;
+import com.nofacepress.statemachine.timer.HierarchicalTimingWheel;
+
+/**
+ * Arms the timeouts declared on states for attached instances.
+ *
+ * Entering a state with a timeout schedules it on the wheel and leaving the
+ * state cancels it, both O(1). Re-entering a state through a loopback
+ * transition restarts its timeout. On expiry the event is fired through
+ * fireEvent(), so it is subject to the same transitions and listeners as any
+ * other event, and is ignored if the instance has left the state in the
+ * meantime.
+ *
+ * Expired events are fired on the wheel thread unless an executor is given.
+ * Exceptions from listeners go to the wheel thread's uncaught exception
+ * handler.
+ *
+ * An instance can be attached to one manager at a time.
+ *
+ * @param <S> The state class
+ * @param <E> The event class
+ * @param <C> The context class
+ */
+public class StateTimeoutManager<S, E, C> {
+
+	static final class StateTimer<S, E, C> extends HierarchicalTimingWheel.Timeout {
+		private final StateMachineInstance<S, E, C> instance;
+		private final Executor executor;
+		private final E event;
+
+		StateTimer(StateMachineInstance<S, E, C> instance, Executor executor, E event) {
+			this.instance = instance;
+			this.executor = executor;
+			this.event = event;
+		}
+
+		@Override
+		protected void expired() {
+			if (executor == null) {
+				fire();
+			} else {
+				executor.execute(this::fire);
+			}
+		}
+
+		private void fire() {
+			instance.timeoutExpired(this, event);
+		}
+	}
+
+	private final HierarchicalTimingWheel wheel;
+	private final Executor executor;
+
+	/**
+	 * Constructor firing expired events on the wheel thread.
+	 *
+	 * @param wheel the wheel to schedule on, may be shared
+	 */
+	public StateTimeoutManager(HierarchicalTimingWheel wheel) {
+		this(wheel, null);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param wheel    the wheel to schedule on, may be shared
+	 * @param executor executor to fire expired events on, null for the wheel
+	 *                 thread
+	 */
+	public StateTimeoutManager(HierarchicalTimingWheel wheel, Executor executor) {
+		this.wheel = wheel;
+		this.executor = executor;
+	}
+
+	/**
+	 * Attaches an instance, arming the timeout of its current state.
+	 *
+	 * @param instance the instance
+	 * @throws StateMachineException if the instance is attached to another
+	 *                               manager
+	 */
+	public void attach(StateMachineInstance<S, E, C> instance) throws StateMachineException {
+		synchronized (instance) {
+			if (instance.timeoutManager == this) {
+				return;
+			}
+			if (instance.timeoutManager != null) {
+				throw new StateMachineException("Instance already attached to another timeout manager.");
+			}
+			instance.timeoutManager = this;
+			entered(instance, instance.getCurrentState());
+		}
+	}
+
+	/**
+	 * Detaches an instance, cancelling any pending timeout.
+	 *
+	 * @param instance the instance
+	 */
+	public void detach(StateMachineInstance<S, E, C> instance) {
+		synchronized (instance) {
+			if (instance.timeoutManager != this) {
+				return;
+			}
+			instance.timeoutManager = null;
+			if (instance.stateTimer != null) {
+				instance.stateTimer.cancel();
+				instance.stateTimer = null;
+			}
+		}
+	}
+
+	/**
+	 * Called by the instance while holding its monitor.
+	 */
+	void entered(StateMachineInstance<S, E, C> instance, StateType<S, E, C> target) {
+		if (instance.stateTimer != null) {
+			instance.stateTimer.cancel();
+			instance.stateTimer = null;
+		}
+		StateTimeout<E> timeout = target.getTimeout();
+		if (timeout != null) {
+			instance.stateTimer = wheel.schedule(new StateTimer<S, E, C>(instance, executor, timeout.getEvent()),
+					timeout.getDuration(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+		}
+	}
+
+}
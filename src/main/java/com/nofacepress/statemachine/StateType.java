@@ -42,6 +42,31 @@ public interface StateType<S, E, C> {
 	 */
 	ListenerManager<S, E, C> getListenerManager();
 
+	/**
+	 * Returns the listener manager for leaving this state. Its listeners are
+	 * called on every state change out of this state, after the graph listeners
+	 * and before the listeners of the transition and the target state. States
+	 * that do not support exit listeners return ListenerManager.empty(), which
+	 * throws UnsupportedOperationException when a listener is added.
+	 * 
+	 * @return the exit listener manager
+	 */
+	default ListenerManager<S, E, C> getExitListenerManager() {
+		return ListenerManager.empty();
+	}
+
+	/**
+	 * Returns the listener manager of the transition taken by an event from this
+	 * state. Transition listeners are added through
+	 * StateMachineGraph.getTransitionListenerManager().
+	 * 
+	 * @param event the event
+	 * @return the listener manager or null if none was created
+	 */
+	default ListenerManager<S, E, C> getTransitionListenerManager(E event) {
+		return null;
+	}
+
 	/**
 	 * Returns the target state for a given transition event.
 	 * 
@@ -66,6 +91,15 @@ public interface StateType<S, E, C> {
 	 */
 	boolean hasTransition(E event);
 
+	/**
+	 * Returns the timeout declared for this state.
+	 * 
+	 * @return the timeout or null if none
+	 */
+	default StateTimeout<E> getTimeout() {
+		return null;
+	}
+
 	/**
 	 * Checks if there are are any possible transitions.
 	 * 
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Optional ring buffer of the last transitions of one StateMachineInstance,
+ * for finding out how an instance got into a state.
+ *
+ * The instance records every state change, forced or not, while holding its
+ * monitor. A record is three references and a System.nanoTime() stored into
+ * preallocated arrays, so recording allocates nothing and can stay enabled in
+ * production. Only the times are a primitive array. States and events are
+ * arbitrary objects without an ordinal, so they are kept as references to the
+ * values the instance already holds, which for enums are shared constants.
+ * Reading is lock free from any thread: entries the instance overwrites while
+ * they are being read are left out.
+ *
+ * A history belongs to one instance, see StateMachineInstance.setHistory().
+ *
+ * @param <S> The state class
+ * @param <E> The event class
+ */
+public class TransitionHistory<S, E> {
+
+	/**
+	 * One recorded transition.
+	 *
+	 * @param <S> The state class
+	 * @param <E> The event class
+	 */
+	public static final class Entry<S, E> {
+		private final long sequence;
+		private final long nanoTime;
+		private final S source;
+		private final E event;
+		private final S target;
+
+		Entry(long sequence, long nanoTime, S source, E event, S target) {
+			this.sequence = sequence;
+			this.nanoTime = nanoTime;
+			this.source = source;
+			this.event = event;
+			this.target = target;
+		}
+
+		/**
+		 * Returns the position of the transition since the history was created,
+		 * starting at 0.
+		 *
+		 * @return the sequence number
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * Returns the System.nanoTime() of the transition.
+		 *
+		 * @return the time in nanoseconds
+		 */
+		public long getNanoTime() {
+			return nanoTime;
+		}
+
+		/**
+		 * Returns the state that was left.
+		 *
+		 * @return the source state
+		 */
+		public S getSource() {
+			return source;
+		}
+
+		/**
+		 * Returns the event of the transition, null for forced changes without
+		 * one.
+		 *
+		 * @return the event
+		 */
+		public E getEvent() {
+			return event;
+		}
+
+		/**
+		 * Returns the state that was entered.
+		 *
+		 * @return the target state
+		 */
+		public S getTarget() {
+			return target;
+		}
+
+		@Override
+		public String toString() {
+			return sequence + " " + nanoTime + " " + source + " -[" + event + "]-> " + target;
+		}
+	}
+
+	private final int mask;
+	private final Object[] sources;
+	private final Object[] events;
+	private final Object[] targets;
+	private final long[] times;
+
+	// transitions started and completed, a reader uses both to skip slots
+	// overwritten while it copied them
+	private volatile long claimed = 0;
+	private volatile long count = 0;
+
+	/**
+	 * Creates a history.
+	 *
+	 * @param capacity the number of transitions to keep, rounded up to a power
+	 *                 of two
+	 */
+	public TransitionHistory(int capacity) {
+		if (capacity < 1 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		mask = size - 1;
+		sources = new Object[size];
+		events = new Object[size];
+		targets = new Object[size];
+		times = new long[size];
+	}
+
+	/**
+	 * Called by the instance while holding its monitor, so there is a single
+	 * writer.
+	 */
+	void record(S source, E event, S target) {
+		long c = count;
+		claimed = c + 1;
+		// the volatile write only orders the stores before it, keep the slot
+		// stores below from moving above the claim
+		VarHandle.storeStoreFence();
+		int i = (int) c & mask;
+		sources[i] = source;
+		events[i] = event;
+		targets[i] = target;
+		times[i] = System.nanoTime();
+		count = c + 1;
+	}
+
+	/**
+	 * Returns the number of transitions kept.
+	 *
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Returns the number of transitions recorded so far, including those that
+	 * were overwritten.
+	 *
+	 * @return the count
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the kept transitions, oldest first.
+	 *
+	 * @return a copy of the entries
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Entry<S, E>> getEntries() {
+		final int size = mask + 1;
+		long end = count;
+		long start = Math.max(0, end - size);
+		List<Entry<S, E>> entries = new ArrayList<Entry<S, E>>((int) (end - start));
+		for (long seq = start; seq < end; seq++) {
+			int i = (int) seq & mask;
+			entries.add(new Entry<S, E>(seq, times[i], (S) sources[i], (E) events[i], (S) targets[i]));
+		}
+
+		// the oldest entries may have been overwritten while copying, keep the
+		// copying loads above from moving below the read of claimed
+		VarHandle.acquireFence();
+		long valid = claimed - size;
+		if (valid > start) {
+			entries.subList(0, (int) (Math.min(valid, end) - start)).clear();
+		}
+		return entries;
+	}
+
+	/**
+	 * Writes the kept transitions, oldest first and one per line, for
+	 * diagnostics.
+	 *
+	 * @param out where to write
+	 * @throws IOException if out fails
+	 */
+	public void dump(Appendable out) throws IOException {
+		for (Entry<S, E> entry : getEntries()) {
+			out.append(entry.toString()).append('\n');
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		try {
+			dump(sb);
+		} catch (IOException e) {
+			// not thrown by StringBuilder
+		}
+		return sb.toString();
+	}
+
+}
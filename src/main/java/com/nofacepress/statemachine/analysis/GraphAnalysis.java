@@ -0,0 +1,498 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateType;
+
+/**
+ * Structural analysis of a StateMachineGraph: strongly connected components,
+ * longest paths, reachability and state qualifiers.
+ *
+ * Everything is computed iteratively in O(V+E) over flat int arrays, so graphs
+ * with millions of states and long chains are fine. States are numbered by
+ * their position in getStates() and transitions are kept in compressed rows,
+ * which callers such as exporters can walk without any further lookups.
+ *
+ * Components are taken over all transitions. Path lengths ignore transitions
+ * back into the initial state, so a work flow that loops back to the start
+ * still reads top down. The cycles that remain without them are collapsed and
+ * every state of such a cycle gets the same path length, counting each state
+ * of the cycle once.
+ *
+ * The analysis is a snapshot of one graph version. analyze() keeps the last
+ * analysis of every graph and returns it again until the graph version
+ * changes, graphs with a version of -1 are analyzed on every call. An
+ * analysis holds the ids of the states, not their StateTypes, which callers
+ * look up in the graph when they need them.
+ *
+ * @param <S> The state class
+ * @param <E> The event class
+ * @param <C> The context class
+ */
+public class GraphAnalysis<S, E, C> {
+
+	// weak keys, an analysis holds state ids and events only, never the graph or
+	// its StateTypes, which may reference the graph
+	private static final Map<StateMachineGraph<?, ?, ?>, GraphAnalysis<?, ?, ?>> CACHE = Collections
+			.synchronizedMap(new WeakHashMap<StateMachineGraph<?, ?, ?>, GraphAnalysis<?, ?, ?>>());
+
+	private final long version;
+	private final Object[] ids;
+	private final Map<S, Integer> positions;
+	private final int initial;
+
+	// transitions of state i are edgeTarget[edgeStart[i] .. edgeStart[i + 1] - 1]
+	private final int[] edgeStart;
+	private final int[] edgeTarget;
+	private final Object[] edgeEvent;
+
+	private final int[] component;
+	private final int componentCount;
+	private final int[] pathLength;
+	private final boolean[] reachable;
+	private final StateQualifier[] qualifiers;
+
+	/**
+	 * Returns the analysis of a graph, reusing the previous one if the graph
+	 * version has not changed since. Graphs without a version, -1, are not
+	 * cached.
+	 *
+	 * @param       <S> The state class
+	 * @param       <E> The event class
+	 * @param       <C> The context class
+	 * @param graph the graph to analyze
+	 * @return the analysis
+	 */
+	@SuppressWarnings("unchecked")
+	public static <S, E, C> GraphAnalysis<S, E, C> analyze(StateMachineGraph<S, E, C> graph) {
+		if (graph.getVersion() == -1) {
+			return new GraphAnalysis<S, E, C>(graph);
+		}
+		GraphAnalysis<S, E, C> analysis = (GraphAnalysis<S, E, C>) CACHE.get(graph);
+		if (analysis == null || analysis.version != graph.getVersion()) {
+			analysis = new GraphAnalysis<S, E, C>(graph);
+			if (analysis.version != -1) {
+				CACHE.put(graph, analysis);
+			}
+		}
+		return analysis;
+	}
+
+	/**
+	 * Analyzes a graph.
+	 *
+	 * @param graph the graph to analyze
+	 */
+	public GraphAnalysis(StateMachineGraph<S, E, C> graph) {
+
+		// read first, a change made while analyzing only causes a new analysis
+		version = graph.getVersion();
+		List<StateType<S, E, C>> states = new ArrayList<StateType<S, E, C>>(graph.getStates());
+		final int n = states.size();
+		ids = new Object[n];
+		positions = new HashMap<S, Integer>(n + (n >> 1) + 1);
+		edgeStart = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			StateType<S, E, C> state = states.get(i);
+			ids[i] = state.getId();
+			positions.put(state.getId(), i);
+			edgeStart[i + 1] = edgeStart[i] + state.getTransitions().size();
+		}
+
+		edgeTarget = new int[edgeStart[n]];
+		edgeEvent = new Object[edgeStart[n]];
+		boolean[] targeted = new boolean[n];
+		int[] fill = { 0 };
+		for (int i = 0; i < n; i++) {
+			states.get(i).getTransitions().forEach((event, target) -> {
+				int t = positions.get(target.getId());
+				edgeTarget[fill[0]] = t;
+				edgeEvent[fill[0]++] = event;
+				targeted[t] = true;
+			});
+		}
+
+		Integer init = (graph.getInitialState() == null) ? null : positions.get(graph.getInitialState());
+		initial = (init == null) ? -1 : init;
+
+		component = new int[n];
+		componentCount = findComponents(-1, component);
+		int[] pathComponent = new int[n];
+		int pathComponentCount = findComponents(initial, pathComponent);
+		pathLength = new int[n];
+		computePathLengths(pathComponent, pathComponentCount);
+		reachable = new boolean[n];
+		computeReachable();
+
+		qualifiers = new StateQualifier[n];
+		for (int i = 0; i < n; i++) {
+			boolean hasTransitions = edgeStart[i + 1] > edgeStart[i];
+			if (i == initial) {
+				qualifiers[i] = StateQualifier.initial;
+			} else if (!targeted[i] && !hasTransitions) {
+				qualifiers[i] = StateQualifier.orphan;
+			} else if (!hasTransitions) {
+				qualifiers[i] = StateQualifier.done;
+			} else if (!targeted[i]) {
+				qualifiers[i] = StateQualifier.alternate;
+			}
+		}
+	}
+
+	/**
+	 * Iterative Tarjan. Components are numbered in reverse topological order, a
+	 * component only has transitions to itself or to lower numbered components.
+	 *
+	 * @param skip      a state whose incoming transitions are ignored, or -1
+	 * @param component receives the component of every state
+	 * @return the component count
+	 */
+	private int findComponents(int skip, int[] component) {
+		final int n = ids.length;
+		final int[] index = new int[n];
+		final int[] low = new int[n];
+		final int[] next = new int[n];
+		final int[] sccStack = new int[n];
+		final int[] callStack = new int[n];
+		Arrays.fill(index, -1);
+		Arrays.fill(component, -1);
+
+		int counter = 0;
+		int count = 0;
+		int sccTop = 0;
+		for (int root = 0; root < n; root++) {
+			if (index[root] >= 0) {
+				continue;
+			}
+			int callTop = 0;
+			callStack[callTop++] = root;
+			index[root] = low[root] = counter++;
+			next[root] = edgeStart[root];
+			sccStack[sccTop++] = root;
+
+			while (callTop > 0) {
+				int v = callStack[callTop - 1];
+				if (next[v] < edgeStart[v + 1]) {
+					int w = edgeTarget[next[v]++];
+					if (w == skip) {
+						continue;
+					}
+					if (index[w] < 0) {
+						index[w] = low[w] = counter++;
+						next[w] = edgeStart[w];
+						sccStack[sccTop++] = w;
+						callStack[callTop++] = w;
+					} else if (component[w] < 0 && index[w] < low[v]) {
+						low[v] = index[w];
+					}
+				} else {
+					callTop--;
+					if (low[v] == index[v]) {
+						int w;
+						do {
+							w = sccStack[--sccTop];
+							component[w] = count;
+						} while (w != v);
+						count++;
+					}
+					if (callTop > 0) {
+						int u = callStack[callTop - 1];
+						if (low[v] < low[u]) {
+							low[u] = low[v];
+						}
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Longest path over the condensation without the transitions into the
+	 * initial state, visiting components in the order Tarjan numbered them so
+	 * every successor is done first.
+	 */
+	private void computePathLengths(int[] component, int componentCount) {
+		final int n = ids.length;
+
+		// bucket the states by component
+		int[] start = new int[componentCount + 1];
+		for (int i = 0; i < n; i++) {
+			start[component[i] + 1]++;
+		}
+		for (int c = 0; c < componentCount; c++) {
+			start[c + 1] += start[c];
+		}
+		int[] members = new int[n];
+		int[] fill = Arrays.copyOf(start, componentCount);
+		for (int i = 0; i < n; i++) {
+			members[fill[component[i]]++] = i;
+		}
+
+		int[] length = new int[componentCount];
+		for (int c = 0; c < componentCount; c++) {
+			int longest = 0;
+			for (int m = start[c]; m < start[c + 1]; m++) {
+				int v = members[m];
+				for (int e = edgeStart[v]; e < edgeStart[v + 1]; e++) {
+					int w = edgeTarget[e];
+					if (w != initial && component[w] != c && length[component[w]] > longest) {
+						longest = length[component[w]];
+					}
+				}
+			}
+			length[c] = longest + (start[c + 1] - start[c]);
+		}
+		for (int i = 0; i < n; i++) {
+			pathLength[i] = length[component[i]];
+		}
+	}
+
+	private void computeReachable() {
+		if (initial < 0) {
+			return;
+		}
+		int[] queue = new int[ids.length];
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = initial;
+		reachable[initial] = true;
+		while (head < tail) {
+			int v = queue[head++];
+			for (int e = edgeStart[v]; e < edgeStart[v + 1]; e++) {
+				int w = edgeTarget[e];
+				if (!reachable[w]) {
+					reachable[w] = true;
+					queue[tail++] = w;
+				}
+			}
+		}
+	}
+
+	private int position(S state) {
+		Integer i = positions.get(state);
+		if (i == null) {
+			throw new IllegalArgumentException("Unknown state " + String.valueOf(state));
+		}
+		return i;
+	}
+
+	/**
+	 * Returns the version of the graph that was analyzed.
+	 *
+	 * @return the graph version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the number of states.
+	 *
+	 * @return the state count
+	 */
+	public int getStateCount() {
+		return ids.length;
+	}
+
+	/**
+	 * Returns the id of the state at a position. Its StateType is
+	 * graph.getStateType(id).
+	 *
+	 * @param index the position, 0 to getStateCount() - 1
+	 * @return the state id
+	 */
+	@SuppressWarnings("unchecked")
+	public S getStateId(int index) {
+		return (S) ids[index];
+	}
+
+	/**
+	 * Returns the position of a state.
+	 *
+	 * @param state the state
+	 * @return the position or -1 if the state is not in the graph
+	 */
+	public int indexOf(S state) {
+		Integer i = positions.get(state);
+		return (i == null) ? -1 : i;
+	}
+
+	/**
+	 * Returns the position of the initial state.
+	 *
+	 * @return the position or -1 if there is none
+	 */
+	public int getInitialIndex() {
+		return initial;
+	}
+
+	/**
+	 * Returns the total number of transitions.
+	 *
+	 * @return the transition count
+	 */
+	public int getTransitionCount() {
+		return edgeTarget.length;
+	}
+
+	/**
+	 * Returns the first transition of a state. The transitions of state i are
+	 * getTransitionStart(i) to getTransitionStart(i + 1) - 1.
+	 *
+	 * @param index the state position, up to and including getStateCount()
+	 * @return the transition position
+	 */
+	public int getTransitionStart(int index) {
+		return edgeStart[index];
+	}
+
+	/**
+	 * Returns the target state position of a transition.
+	 *
+	 * @param transition the transition position
+	 * @return the target state position
+	 */
+	public int getTransitionTarget(int transition) {
+		return edgeTarget[transition];
+	}
+
+	/**
+	 * Returns the event of a transition.
+	 *
+	 * @param transition the transition position
+	 * @return the event
+	 */
+	@SuppressWarnings("unchecked")
+	public E getTransitionEvent(int transition) {
+		return (E) edgeEvent[transition];
+	}
+
+	/**
+	 * Returns the number of strongly connected components.
+	 *
+	 * @return the component count
+	 */
+	public int getComponentCount() {
+		return componentCount;
+	}
+
+	/**
+	 * Returns the strongly connected component of a state. Components are
+	 * numbered in reverse topological order.
+	 *
+	 * @param index the state position
+	 * @return the component
+	 */
+	public int getComponent(int index) {
+		return component[index];
+	}
+
+	/**
+	 * Returns the strongly connected component of a state.
+	 *
+	 * @param state the state
+	 * @return the component
+	 */
+	public int getComponent(S state) {
+		return component[position(state)];
+	}
+
+	/**
+	 * Returns the length in states of the longest path starting at a state.
+	 *
+	 * @param index the state position
+	 * @return the path length, at least 1
+	 */
+	public int getPathLength(int index) {
+		return pathLength[index];
+	}
+
+	/**
+	 * Returns the length in states of the longest path starting at a state.
+	 *
+	 * @param state the state
+	 * @return the path length, at least 1
+	 */
+	public int getPathLength(S state) {
+		return pathLength[position(state)];
+	}
+
+	/**
+	 * Returns if a state can be reached from the initial state with events.
+	 *
+	 * @param index the state position
+	 * @return true if reachable
+	 */
+	public boolean isReachable(int index) {
+		return reachable[index];
+	}
+
+	/**
+	 * Returns if a state can be reached from the initial state with events.
+	 *
+	 * @param state the state
+	 * @return true if reachable
+	 */
+	public boolean isReachable(S state) {
+		return reachable[position(state)];
+	}
+
+	/**
+	 * Returns the states that cannot be reached from the initial state.
+	 *
+	 * @return the unreachable states, in graph order
+	 */
+	public List<S> getUnreachableStates() {
+		List<S> list = new ArrayList<S>();
+		for (int i = 0; i < reachable.length; i++) {
+			if (!reachable[i]) {
+				list.add(getStateId(i));
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the qualifier of a state.
+	 *
+	 * @param index the state position
+	 * @return the qualifier or null if the state has no particular role
+	 */
+	public StateQualifier getQualifier(int index) {
+		return qualifiers[index];
+	}
+
+	/**
+	 * Returns the qualifier of a state.
+	 *
+	 * @param state the state
+	 * @return the qualifier or null if the state has no particular role
+	 */
+	public StateQualifier getQualifier(S state) {
+		return qualifiers[position(state)];
+	}
+
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateTimeout;
+import com.nofacepress.statemachine.StateType;
+import com.nofacepress.statemachine.impl.StateMachineGraphImpl;
+import com.nofacepress.statemachine.listener.ListenerManager;
+
+/**
+ * Merges equivalent states of a StateMachineGraph using Hopcroft's partition
+ * refinement. Two states are equivalent when they accept the same events,
+ * every event leads to equivalent targets, they have the same timeout and
+ * neither has state, exit or transition listeners. A state with listeners is
+ * only ever equivalent to itself.
+ *
+ * Graphs are partial, a state simply ignores events it has no transition for.
+ * Rather than completing the graph with a sink state, which would add a
+ * transition for every state and event, all initial blocks are queued as
+ * splitters (Valmari and Lehtinen), which keeps the running time at
+ * O(E log V) over the transitions that actually exist.
+ *
+ * Every block of equivalent states is represented by its first state in
+ * getStates() order, so the minimized graph uses existing state values. The
+ * initial state and the global listeners are kept.
+ *
+ * @param <S> The state class
+ * @param <E> The event class
+ * @param <C> The context class
+ */
+public class GraphMinimization<S, E, C> {
+
+	private final StateMachineGraph<S, E, C> graph;
+	private final Map<S, S> mapping;
+
+	// partition of the states, the states of block b are elements[first[b] .. end[b] - 1]
+	private int[] elements;
+	private int[] location;
+	private int[] block;
+	private int[] first;
+	private int[] end;
+	private int[] marked;
+	private int blockCount;
+
+	// blocks waiting to be used as splitters
+	private int[] pending;
+	private int pendingCount;
+
+	/**
+	 * Minimizes a graph. The source graph is not modified.
+	 *
+	 * @param source the graph to minimize
+	 */
+	public GraphMinimization(StateMachineGraph<S, E, C> source) {
+
+		GraphAnalysis<S, E, C> analysis = GraphAnalysis.analyze(source);
+		final int n = analysis.getStateCount();
+		final int m = analysis.getTransitionCount();
+		List<StateType<S, E, C>> states = new ArrayList<StateType<S, E, C>>(n);
+		for (int i = 0; i < n; i++) {
+			states.add(source.getStateType(analysis.getStateId(i)));
+		}
+
+		// number the events and invert the transitions
+		Map<E, Integer> events = new HashMap<E, Integer>();
+		int[] inStart = new int[n + 1];
+		for (int t = 0; t < m; t++) {
+			inStart[analysis.getTransitionTarget(t) + 1]++;
+			if (!events.containsKey(analysis.getTransitionEvent(t))) {
+				events.put(analysis.getTransitionEvent(t), events.size());
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			inStart[i + 1] += inStart[i];
+		}
+		int[] inSource = new int[m];
+		int[] inEvent = new int[m];
+		int[] fill = new int[n];
+		for (int i = 0; i < n; i++) {
+			for (int t = analysis.getTransitionStart(i); t < analysis.getTransitionStart(i + 1); t++) {
+				int target = analysis.getTransitionTarget(t);
+				int at = inStart[target] + fill[target]++;
+				inSource[at] = i;
+				inEvent[at] = events.get(analysis.getTransitionEvent(t));
+			}
+		}
+
+		initialPartition(states);
+		refine(events.size(), inStart, inSource, inEvent);
+
+		// the representative of a block is its lowest numbered state
+		int[] representative = new int[blockCount];
+		for (int b = 0; b < blockCount; b++) {
+			int min = Integer.MAX_VALUE;
+			for (int k = first[b]; k < end[b]; k++) {
+				min = Math.min(min, elements[k]);
+			}
+			representative[b] = min;
+		}
+
+		graph = new StateMachineGraphImpl<S, E, C>();
+		HashMap<S, S> map = new HashMap<S, S>(n + (n >> 1) + 1);
+		for (int i = 0; i < n; i++) {
+			S id = analysis.getStateId(i);
+			S rep = analysis.getStateId(representative[block[i]]);
+			map.put(id, rep);
+			if (representative[block[i]] == i) {
+				StateType<S, E, C> state = states.get(i);
+				graph.addState(id);
+				graph.getStateType(id).getListenerManager().copyListeners(state.getListenerManager());
+				graph.getStateType(id).getExitListenerManager().copyListeners(state.getExitListenerManager());
+				StateTimeout<E> timeout = state.getTimeout();
+				if (timeout != null) {
+					graph.setTimeout(id, timeout.getDuration(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS,
+							timeout.getEvent());
+				}
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			if (representative[block[i]] == i) {
+				S id = analysis.getStateId(i);
+				for (int t = analysis.getTransitionStart(i); t < analysis.getTransitionStart(i + 1); t++) {
+					S target = analysis.getStateId(representative[block[analysis.getTransitionTarget(t)]]);
+					E event = analysis.getTransitionEvent(t);
+					graph.addTransition(id, target, event);
+					ListenerManager<S, E, C> manager = states.get(i).getTransitionListenerManager(event);
+					if (manager != null && !manager.isEmpty()) {
+						graph.getTransitionListenerManager(id, event).copyListeners(manager);
+					}
+				}
+			}
+		}
+		if (source.getInitialState() != null) {
+			graph.setInitialState(map.get(source.getInitialState()));
+		}
+		graph.getListenerManager().copyListeners(source.getListenerManager());
+		mapping = Collections.unmodifiableMap(map);
+
+		elements = location = block = first = end = marked = pending = null;
+	}
+
+	private static <S, E, C> boolean hasListeners(StateType<S, E, C> state) {
+		if (!state.getListenerManager().isEmpty() || !state.getExitListenerManager().isEmpty()) {
+			return true;
+		}
+		for (E event : state.getTransitions().keySet()) {
+			ListenerManager<S, E, C> manager = state.getTransitionListenerManager(event);
+			if (manager != null && !manager.isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Splits the states by the marks that can never be equivalent: state
+	 * listeners and timeouts.
+	 */
+	private void initialPartition(List<StateType<S, E, C>> states) {
+		final int n = states.size();
+		elements = new int[n];
+		location = new int[n];
+		block = new int[n];
+		first = new int[n + 1];
+		end = new int[n + 1];
+		marked = new int[n + 1];
+		pending = new int[n + 1];
+
+		Map<Object, Integer> keys = new HashMap<Object, Integer>();
+		List<Integer> sizes = new ArrayList<Integer>();
+		for (int i = 0; i < n; i++) {
+			StateType<S, E, C> state = states.get(i);
+			Object key;
+			if (hasListeners(state)) {
+				key = state;
+			} else if (state.getTimeout() != null) {
+				key = new TimeoutKey(state.getTimeout());
+			} else {
+				key = TimeoutKey.NONE;
+			}
+			Integer b = keys.get(key);
+			if (b == null) {
+				b = keys.size();
+				keys.put(key, b);
+				sizes.add(0);
+			}
+			block[i] = b;
+			sizes.set(b, sizes.get(b) + 1);
+		}
+
+		blockCount = sizes.size();
+		int at = 0;
+		for (int b = 0; b < blockCount; b++) {
+			first[b] = marked[b] = end[b] = at;
+			at += sizes.get(b);
+			// all initial blocks are splitters, the graph is partial
+			pending[pendingCount++] = b;
+		}
+		for (int i = 0; i < n; i++) {
+			int b = block[i];
+			location[i] = end[b];
+			elements[end[b]++] = i;
+		}
+	}
+
+	private void refine(int eventCount, int[] inStart, int[] inSource, int[] inEvent) {
+		final int m = inSource.length;
+
+		// incoming transitions of the splitter grouped by event as linked lists
+		int[] eventHead = new int[eventCount];
+		Arrays.fill(eventHead, -1);
+		int[] next = new int[m];
+		int[] touchedEvents = new int[eventCount];
+		int[] touchedBlocks = new int[elements.length + 1];
+
+		while (pendingCount > 0) {
+			int splitter = pending[--pendingCount];
+
+			// snapshot the splitter before any block is split
+			int touchedEventCount = 0;
+			for (int k = first[splitter]; k < end[splitter]; k++) {
+				int target = elements[k];
+				for (int t = inStart[target]; t < inStart[target + 1]; t++) {
+					int e = inEvent[t];
+					if (eventHead[e] < 0) {
+						touchedEvents[touchedEventCount++] = e;
+					}
+					next[t] = eventHead[e];
+					eventHead[e] = t;
+				}
+			}
+
+			for (int j = 0; j < touchedEventCount; j++) {
+				int e = touchedEvents[j];
+				int touchedBlockCount = 0;
+				for (int t = eventHead[e]; t >= 0; t = next[t]) {
+					int s = inSource[t];
+					int b = block[s];
+					if (location[s] < marked[b]) {
+						continue;
+					}
+					if (marked[b] == first[b]) {
+						touchedBlocks[touchedBlockCount++] = b;
+					}
+					// swap s to the end of the marked prefix
+					int other = elements[marked[b]];
+					elements[location[s]] = other;
+					location[other] = location[s];
+					elements[marked[b]] = s;
+					location[s] = marked[b]++;
+				}
+				eventHead[e] = -1;
+
+				for (int k = 0; k < touchedBlockCount; k++) {
+					split(touchedBlocks[k]);
+				}
+			}
+		}
+	}
+
+	private void split(int b) {
+		int mid = marked[b];
+		marked[b] = first[b];
+		if (mid == end[b]) {
+			return;
+		}
+
+		// the smaller part becomes the new block
+		int c = blockCount++;
+		if (mid - first[b] <= end[b] - mid) {
+			first[c] = first[b];
+			end[c] = mid;
+			first[b] = mid;
+		} else {
+			first[c] = mid;
+			end[c] = end[b];
+			end[b] = mid;
+		}
+		marked[b] = first[b];
+		marked[c] = first[c];
+		for (int k = first[c]; k < end[c]; k++) {
+			block[elements[k]] = c;
+		}
+
+		// if b is still pending both parts are, otherwise the smaller one is enough
+		pending[pendingCount++] = c;
+	}
+
+	/**
+	 * Returns the minimized graph.
+	 *
+	 * @return the graph
+	 */
+	public StateMachineGraph<S, E, C> getGraph() {
+		return graph;
+	}
+
+	/**
+	 * Returns a read-only map from every state of the source graph to the state
+	 * representing it in the minimized graph.
+	 *
+	 * @return the mapping
+	 */
+	public Map<S, S> getMapping() {
+		return mapping;
+	}
+
+	/**
+	 * Returns the state of the minimized graph representing a source state.
+	 *
+	 * @param state a state of the source graph
+	 * @return the representing state or null if the state is unknown
+	 */
+	public S map(S state) {
+		return mapping.get(state);
+	}
+
+	private static final class TimeoutKey {
+
+		static final TimeoutKey NONE = new TimeoutKey(null);
+
+		private final Object event;
+		private final long nanos;
+
+		TimeoutKey(StateTimeout<?> timeout) {
+			event = (timeout == null) ? null : timeout.getEvent();
+			nanos = (timeout == null) ? 0 : timeout.getDuration(TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int hashCode() {
+			return (event == null ? 0 : event.hashCode()) * 31 + Long.hashCode(nanos);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof TimeoutKey)) {
+				return false;
+			}
+			TimeoutKey other = (TimeoutKey) obj;
+			return nanos == other.nanos && (event == null ? other.event == null : event.equals(other.event));
+		}
+	}
+
+}
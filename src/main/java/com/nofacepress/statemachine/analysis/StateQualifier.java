@@ -0,0 +1,31 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.analysis;
+
+/**
+ * Role of a state in the expected flow of a graph, as determined by
+ * GraphAnalysis. States with no particular role have no qualifier.
+ */
+public enum StateQualifier {
+	/// the starting state
+	initial,
+	/// not reachable in the expected flow, but can be jumped to explicitly
+	alternate,
+	/// a state that is not reachable nor connected to anything else
+	orphan,
+	/// end of state machine
+	done;
+}
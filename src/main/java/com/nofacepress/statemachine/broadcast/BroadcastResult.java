@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.broadcast;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.nofacepress.statemachine.StateMachineInstance;
+
+/**
+ * Aggregated outcome of firing one event at many instances.
+ *
+ * @param <S> The state class
+ * @param <E> The event class
+ * @param <C> The context class
+ */
+public class BroadcastResult<S, E, C> {
+
+	/**
+	 * A listener failure for one instance. Failures of OnStateChanged listeners
+	 * arrive wrapped in a StateMachineException, those of After listeners,
+	 * errors included, as thrown.
+	 *
+	 * @param <S> The state class
+	 * @param <E> The event class
+	 * @param <C> The context class
+	 */
+	public static class Failure<S, E, C> {
+		private final StateMachineInstance<S, E, C> instance;
+		private final Throwable exception;
+
+		Failure(StateMachineInstance<S, E, C> instance, Throwable exception) {
+			this.instance = instance;
+			this.exception = exception;
+		}
+
+		/**
+		 * Returns the instance the event was fired at.
+		 *
+		 * @return the instance
+		 */
+		public StateMachineInstance<S, E, C> getInstance() {
+			return instance;
+		}
+
+		/**
+		 * Returns the exception thrown by fireEvent().
+		 *
+		 * @return the exception
+		 */
+		public Throwable getException() {
+			return exception;
+		}
+	}
+
+	private final long accepted;
+	private final long rejected;
+	private final List<Failure<S, E, C>> failures;
+
+	BroadcastResult(long accepted, long rejected, List<Failure<S, E, C>> failures) {
+		this.accepted = accepted;
+		this.rejected = rejected;
+		this.failures = Collections.unmodifiableList(failures);
+	}
+
+	/**
+	 * Returns the number of instances that changed state.
+	 *
+	 * @return the accepted count
+	 */
+	public long getAccepted() {
+		return accepted;
+	}
+
+	/**
+	 * Returns the number of instances that had no transition for the event.
+	 *
+	 * @return the rejected count
+	 */
+	public long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * Returns the instances whose listeners threw an exception. Those instances
+	 * are not counted as accepted or rejected.
+	 *
+	 * @return the failures
+	 */
+	public List<Failure<S, E, C>> getFailures() {
+		return failures;
+	}
+
+}
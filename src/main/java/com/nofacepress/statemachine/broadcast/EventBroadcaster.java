@@ -0,0 +1,172 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.broadcast;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.StateMachineInstanceIndex;
+import com.nofacepress.statemachine.broadcast.BroadcastResult.Failure;
+
+/**
+ * Fires one event at a large number of instances, splitting the work across a
+ * fork-join pool. Instances whose current state has no transition for the
+ * event are counted as rejected without calling fireEvent(), so they never
+ * enter the instance monitor.
+ */
+public class EventBroadcaster {
+
+	/**
+	 * Default number of instances handled by one task before it is split.
+	 */
+	public static final int DEFAULT_THRESHOLD = 1024;
+
+	private final ForkJoinPool pool;
+	private final int threshold;
+
+	/**
+	 * Creates a broadcaster using the common pool.
+	 */
+	public EventBroadcaster() {
+		this(ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param pool      the pool to run on
+	 * @param threshold number of instances handled by one task before it is split
+	 */
+	public EventBroadcaster(ForkJoinPool pool, int threshold) {
+		this.pool = pool;
+		this.threshold = Math.max(1, threshold);
+	}
+
+	/**
+	 * Fires an event at every instance of a collection.
+	 *
+	 * @param           <S> The state class
+	 * @param           <E> The event class
+	 * @param           <C> The context class
+	 * @param instances the instances
+	 * @param event     the event to fire
+	 * @return the aggregated result
+	 */
+	public <S, E, C> BroadcastResult<S, E, C> broadcast(Collection<? extends StateMachineInstance<S, E, C>> instances,
+			E event) {
+		Object[] array = instances.toArray();
+		return pool.invoke(new BroadcastTask<S, E, C>(array, 0, array.length, event, threshold)).result();
+	}
+
+	/**
+	 * Fires an event at every instance currently in a state.
+	 *
+	 * @param       <S> The state class
+	 * @param       <E> The event class
+	 * @param       <C> The context class
+	 * @param index the index to take the instances from
+	 * @param state the state the instances are in
+	 * @param event the event to fire
+	 * @return the aggregated result
+	 */
+	public <S, E, C> BroadcastResult<S, E, C> broadcast(StateMachineInstanceIndex<S, E, C> index, S state, E event) {
+		return broadcast(index.getInstances(state), event);
+	}
+
+	private static final class Partial<S, E, C> {
+		long accepted = 0;
+		long rejected = 0;
+		List<Failure<S, E, C>> failures = null;
+
+		Partial<S, E, C> merge(Partial<S, E, C> other) {
+			accepted += other.accepted;
+			rejected += other.rejected;
+			if (other.failures != null) {
+				if (failures == null) {
+					failures = other.failures;
+				} else {
+					failures.addAll(other.failures);
+				}
+			}
+			return this;
+		}
+
+		BroadcastResult<S, E, C> result() {
+			List<Failure<S, E, C>> f = failures;
+			if (f == null) {
+				f = Collections.emptyList();
+			}
+			return new BroadcastResult<S, E, C>(accepted, rejected, f);
+		}
+	}
+
+	private static final class BroadcastTask<S, E, C> extends RecursiveTask<Partial<S, E, C>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Object[] instances;
+		private final int from;
+		private final int to;
+		private final E event;
+		private final int threshold;
+
+		BroadcastTask(Object[] instances, int from, int to, E event, int threshold) {
+			this.instances = instances;
+			this.from = from;
+			this.to = to;
+			this.event = event;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected Partial<S, E, C> compute() {
+			if (to - from > threshold) {
+				int mid = (from + to) >>> 1;
+				BroadcastTask<S, E, C> left = new BroadcastTask<S, E, C>(instances, from, mid, event, threshold);
+				left.fork();
+				Partial<S, E, C> right = new BroadcastTask<S, E, C>(instances, mid, to, event, threshold).compute();
+				return left.join().merge(right);
+			}
+
+			Partial<S, E, C> partial = new Partial<S, E, C>();
+			for (int i = from; i < to; i++) {
+				@SuppressWarnings("unchecked")
+				StateMachineInstance<S, E, C> instance = (StateMachineInstance<S, E, C>) instances[i];
+				if (!instance.getCurrentState().hasTransition(event)) {
+					partial.rejected++;
+					continue;
+				}
+				try {
+					if (instance.fireEvent(event)) {
+						partial.accepted++;
+					} else {
+						partial.rejected++;
+					}
+				} catch (Throwable e) {
+					if (partial.failures == null) {
+						partial.failures = new ArrayList<Failure<S, E, C>>();
+					}
+					partial.failures.add(new Failure<S, E, C>(instance, e));
+				}
+			}
+			return partial;
+		}
+	}
+
+}
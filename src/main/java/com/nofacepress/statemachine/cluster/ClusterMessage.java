@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.cluster;
+
+/**
+ * A message between ClusterNode's, sent in batches by a ClusterTransport. A
+ * transport that crosses process boundaries has to be able to serialize the
+ * ids, events, states, payloads and contexts of its workflows.
+ */
+public final class ClusterMessage {
+
+	/**
+	 * The kinds of messages.
+	 */
+	public enum Kind {
+		/**
+		 * An event for an instance the receiver is thought to own.
+		 */
+		EVENT,
+		/**
+		 * An instance moving to the receiver after a membership change.
+		 */
+		TRANSFER,
+		/**
+		 * The sender has transferred everything the receiver gained from it.
+		 */
+		HANDOFF
+	}
+
+	private final Kind kind;
+	private final String workflow;
+	private final Object instanceId;
+	private final Object value;
+	private final Object data;
+
+	/**
+	 * @param kind       the kind of message
+	 * @param workflow   the workflow name, null for HANDOFF
+	 * @param instanceId the id of the instance, null for HANDOFF
+	 * @param value      the event for EVENT, the current state id for TRANSFER
+	 * @param data       the payload for EVENT, the context for TRANSFER
+	 */
+	public ClusterMessage(Kind kind, String workflow, Object instanceId, Object value, Object data) {
+		this.kind = kind;
+		this.workflow = workflow;
+		this.instanceId = instanceId;
+		this.value = value;
+		this.data = data;
+	}
+
+	/**
+	 * Returns the kind of message.
+	 *
+	 * @return the kind
+	 */
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * Returns the name of the workflow.
+	 *
+	 * @return the workflow name, null for HANDOFF
+	 */
+	public String getWorkflow() {
+		return workflow;
+	}
+
+	/**
+	 * Returns the id of the instance.
+	 *
+	 * @return the instance id, null for HANDOFF
+	 */
+	public Object getInstanceId() {
+		return instanceId;
+	}
+
+	/**
+	 * Returns the event for EVENT or the current state id for TRANSFER.
+	 *
+	 * @return the value
+	 */
+	public Object getValue() {
+		return value;
+	}
+
+	/**
+	 * Returns the payload for EVENT or the context for TRANSFER.
+	 *
+	 * @return the data, may be null
+	 */
+	public Object getData() {
+		return data;
+	}
+
+	@Override
+	public String toString() {
+		return kind + " " + workflow + ":" + instanceId + ":" + value;
+	}
+
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.cluster;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineInstance;
+
+/**
+ * One member of a cluster of state machine services. Instance ids are assigned
+ * to members with a ConsistentHash, an event fired at any node is forwarded to
+ * the owner, and events for the same node are sent together in batches of up
+ * to maxBatchSize, or after lingerMillis at the latest.
+ *
+ * Membership comes from outside, e.g. a service registry, and every member is
+ * given the same list with setMembers(). When it changes, each node sends the
+ * instances it no longer owns, with their current state and context, to their
+ * new owners, followed by a HANDOFF to every other member. A node holds back
+ * events for ids it gained from a surviving member until that member's HANDOFF
+ * arrives, so the transferred instance sees them in order. Ids owned by a
+ * member that disappeared are not waited for and start over.
+ *
+ * Events from one thread for one id arrive in order while membership is
+ * stable. Every node must register the same workflows by name.
+ */
+public class ClusterNode implements AutoCloseable {
+
+	/**
+	 * Default number of messages sent in one batch.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	/**
+	 * Default longest time a message waits for its batch to fill.
+	 */
+	public static final long DEFAULT_LINGER_MILLIS = 2;
+
+	/**
+	 * Number of points each node has on the hash ring.
+	 */
+	public static final int VIRTUAL_NODES = 128;
+
+	private final String nodeId;
+	private final ClusterTransport transport;
+	private final int maxBatchSize;
+	private final ScheduledExecutorService flusher;
+	private final ConcurrentHashMap<String, ClusterWorkflow<?, ?, ?, ?>> workflows = new ConcurrentHashMap<String, ClusterWorkflow<?, ?, ?, ?>>();
+	private final AtomicLong unrouted = new AtomicLong();
+
+	/**
+	 * Routing is read locked, membership changes and handoffs are write locked.
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private volatile ConsistentHash ring;
+	private ConsistentHash previousRing;
+	private final Set<String> awaiting = new HashSet<String>();
+
+	/**
+	 * HANDOFF's and TRANSFER's that arrived before the membership change they
+	 * belong to was applied here, guarded by the write lock.
+	 */
+	private final Map<String, Set<String>> earlyHandoffs = new HashMap<String, Set<String>>();
+	private final List<ClusterMessage> earlyTransfers = new ArrayList<ClusterMessage>();
+
+	/**
+	 * Events held back per member whose HANDOFF is awaited, guarded by itself.
+	 */
+	private final Map<String, List<ClusterMessage>> held = new HashMap<String, List<ClusterMessage>>();
+
+	/**
+	 * Batches being filled per destination, guarded by itself.
+	 */
+	private final Map<String, List<ClusterMessage>> outbound = new HashMap<String, List<ClusterMessage>>();
+
+	/**
+	 * Constructor with the default batching. The node starts as the only
+	 * member.
+	 *
+	 * @param nodeId    the id of this node, unique in the cluster
+	 * @param transport the transport shared with the other nodes
+	 */
+	public ClusterNode(String nodeId, ClusterTransport transport) {
+		this(nodeId, transport, DEFAULT_BATCH_SIZE, DEFAULT_LINGER_MILLIS);
+	}
+
+	/**
+	 * Constructor. The node starts as the only member.
+	 *
+	 * @param nodeId       the id of this node, unique in the cluster
+	 * @param transport    the transport shared with the other nodes
+	 * @param maxBatchSize the number of messages that makes a batch be sent
+	 * @param lingerMillis the longest time a message waits for its batch to
+	 *                     fill, 0 to send only when full or on flush()
+	 */
+	public ClusterNode(String nodeId, ClusterTransport transport, int maxBatchSize, long lingerMillis) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize must be positive");
+		}
+		this.nodeId = nodeId;
+		this.transport = transport;
+		this.maxBatchSize = maxBatchSize;
+		this.ring = new ConsistentHash(Collections.singleton(nodeId), VIRTUAL_NODES);
+		this.previousRing = ring;
+		if (lingerMillis > 0) {
+			this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "state-machine-cluster-" + nodeId);
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.flusher.scheduleWithFixedDelay(this::flush, lingerMillis, lingerMillis, TimeUnit.MILLISECONDS);
+		} else {
+			this.flusher = null;
+		}
+		transport.bind(nodeId, this::receive);
+	}
+
+	/**
+	 * Registers a workflow. Every node registers it under the same name.
+	 *
+	 * @param                <K> The instance id class
+	 * @param                <S> The state class
+	 * @param                <E> The event class
+	 * @param                <C> The context class
+	 * @param name           the name of the workflow
+	 * @param graph          the graph shared by its instances
+	 * @param contextFactory creates the context of a new instance from its id
+	 * @return the workflow
+	 */
+	public <K, S, E, C> ClusterWorkflow<K, S, E, C> register(String name, StateMachineGraph<S, E, C> graph,
+			Function<? super K, ? extends C> contextFactory) {
+		ClusterWorkflow<K, S, E, C> workflow = new ClusterWorkflow<K, S, E, C>(this, name, graph, contextFactory);
+		if (workflows.putIfAbsent(name, workflow) != null) {
+			throw new IllegalArgumentException("Workflow " + name + " is already registered");
+		}
+		return workflow;
+	}
+
+	/**
+	 * Returns the id of this node.
+	 *
+	 * @return the node id
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Returns the current members.
+	 *
+	 * @return the node ids
+	 */
+	public Set<String> getMembers() {
+		return ring.getNodes();
+	}
+
+	/**
+	 * Returns the member owning an id.
+	 *
+	 * @param id the instance id
+	 * @return the node id
+	 */
+	public String ownerOf(Object id) {
+		return ring.nodeFor(id);
+	}
+
+	/**
+	 * Returns the number of received messages for workflows that are not
+	 * registered here.
+	 *
+	 * @return the count
+	 */
+	public long getUnrouted() {
+		return unrouted.get();
+	}
+
+	/**
+	 * Changes the members and moves the instances this node no longer owns to
+	 * their new owners.
+	 *
+	 * @param members the node ids of all members, which may leave out this node
+	 *                when it is leaving the cluster
+	 */
+	public void setMembers(Collection<String> members) {
+		ConsistentHash next = new ConsistentHash(members, VIRTUAL_NODES);
+		lock.writeLock().lock();
+		try {
+			ConsistentHash current = ring;
+			if (current.getNodes().equals(next.getNodes())) {
+				return;
+			}
+			previousRing = current;
+			ring = next;
+
+			// wait for survivors; handoffs still awaited from earlier changes stay
+			awaiting.retainAll(next.getNodes());
+			for (String member : current.getNodes()) {
+				if (!member.equals(nodeId) && next.getNodes().contains(member)) {
+					awaiting.add(member);
+				}
+			}
+
+			for (ClusterWorkflow<?, ?, ?, ?> workflow : workflows.values()) {
+				transferOut(workflow, next);
+			}
+			List<String> handoff = new ArrayList<String>(next.getNodes());
+			for (String member : next.getNodes()) {
+				if (!member.equals(nodeId)) {
+					send(member, new ClusterMessage(ClusterMessage.Kind.HANDOFF, null, null, handoff, null));
+				}
+			}
+
+			// members that were quicker than this node
+			Map<String, Set<String>> early = new HashMap<String, Set<String>>(earlyHandoffs);
+			earlyHandoffs.clear();
+			for (Map.Entry<String, Set<String>> entry : early.entrySet()) {
+				handoff(entry.getKey(), entry.getValue());
+			}
+			List<ClusterMessage> transfers = new ArrayList<ClusterMessage>(earlyTransfers);
+			earlyTransfers.clear();
+			for (ClusterMessage message : transfers) {
+				adopt(null, message);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		flush();
+	}
+
+	private <K, S, E, C> void transferOut(ClusterWorkflow<K, S, E, C> workflow, ConsistentHash next) {
+		Iterator<Map.Entry<K, StateMachineInstance<S, E, C>>> it = workflow.instances().entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<K, StateMachineInstance<S, E, C>> entry = it.next();
+			String owner = next.nodeFor(entry.getKey());
+			if (!owner.equals(nodeId)) {
+				StateMachineInstance<S, E, C> instance = entry.getValue();
+				send(owner, new ClusterMessage(ClusterMessage.Kind.TRANSFER, workflow.getName(), entry.getKey(),
+						instance.getCurrentState().getId(), instance.getContext()));
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Fires locally, holds back or forwards an event.
+	 */
+	void route(ClusterWorkflow<?, ?, ?, ?> workflow, Object id, Object event, Object payload) {
+		lock.readLock().lock();
+		try {
+			String owner = ring.nodeFor(id);
+			if (!owner.equals(nodeId)) {
+				send(owner, new ClusterMessage(ClusterMessage.Kind.EVENT, workflow.getName(), id, event, payload));
+				return;
+			}
+			if (!awaiting.isEmpty()) {
+				String previous = previousRing.nodeFor(id);
+				if (awaiting.contains(previous)) {
+					synchronized (held) {
+						held.computeIfAbsent(previous, k -> new ArrayList<ClusterMessage>()).add(
+								new ClusterMessage(ClusterMessage.Kind.EVENT, workflow.getName(), id, event, payload));
+					}
+					return;
+				}
+			}
+			workflow.fireLocal(id, event, payload);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void receive(String from, List<ClusterMessage> batch) {
+		for (ClusterMessage message : batch) {
+			if (message.getKind() == ClusterMessage.Kind.HANDOFF) {
+				@SuppressWarnings("unchecked")
+				Collection<String> members = (Collection<String>) message.getValue();
+				lock.writeLock().lock();
+				try {
+					handoff(from, new HashSet<String>(members));
+				} finally {
+					lock.writeLock().unlock();
+				}
+				continue;
+			}
+			ClusterWorkflow<?, ?, ?, ?> workflow = workflows.get(message.getWorkflow());
+			if (workflow == null) {
+				unrouted.incrementAndGet();
+				continue;
+			}
+			if (message.getKind() == ClusterMessage.Kind.EVENT) {
+				route(workflow, message.getInstanceId(), message.getValue(), message.getData());
+				continue;
+			}
+			lock.writeLock().lock();
+			try {
+				adopt(from, message);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Takes over a transferred instance or passes it on, called with the write
+	 * lock held.
+	 */
+	private void adopt(String from, ClusterMessage message) {
+		String owner = ring.nodeFor(message.getInstanceId());
+		if (owner.equals(nodeId)) {
+			workflows.get(message.getWorkflow()).adopt(message.getInstanceId(), message.getValue(),
+					message.getData());
+		} else if (owner.equals(from)) {
+			// the sender already applied a membership change this node has not
+			earlyTransfers.add(message);
+		} else {
+			send(owner, message);
+		}
+	}
+
+	/**
+	 * Releases the events held back for a member once it has handed over
+	 * everything for the current members, called with the write lock held.
+	 */
+	private void handoff(String from, Set<String> members) {
+		if (!members.equals(ring.getNodes())) {
+			earlyHandoffs.put(from, members);
+			return;
+		}
+		awaiting.remove(from);
+		List<ClusterMessage> events;
+		synchronized (held) {
+			events = held.remove(from);
+		}
+		if (events != null) {
+			for (ClusterMessage message : events) {
+				route(workflows.get(message.getWorkflow()), message.getInstanceId(), message.getValue(),
+						message.getData());
+			}
+		}
+	}
+
+	private void send(String to, ClusterMessage message) {
+		synchronized (outbound) {
+			List<ClusterMessage> batch = outbound.get(to);
+			if (batch == null) {
+				batch = new ArrayList<ClusterMessage>();
+				outbound.put(to, batch);
+			}
+			batch.add(message);
+			if (batch.size() >= maxBatchSize) {
+				outbound.remove(to);
+				transport.send(nodeId, to, batch);
+			}
+		}
+	}
+
+	/**
+	 * Sends every partly filled batch now.
+	 */
+	public void flush() {
+		synchronized (outbound) {
+			for (Map.Entry<String, List<ClusterMessage>> entry : outbound.entrySet()) {
+				transport.send(nodeId, entry.getKey(), entry.getValue());
+			}
+			outbound.clear();
+		}
+	}
+
+	/**
+	 * Sends what is queued and leaves the transport. Call setMembers() on the
+	 * remaining nodes first to keep the instances of this node.
+	 */
+	@Override
+	public void close() {
+		if (flusher != null) {
+			flusher.shutdown();
+		}
+		flush();
+		transport.unbind(nodeId);
+	}
+
+}
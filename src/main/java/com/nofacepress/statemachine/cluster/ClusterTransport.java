@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.cluster;
+
+import java.util.List;
+
+/**
+ * Carries batches of ClusterMessage's between nodes. Implementations must
+ * deliver the batches sent from one node to another in the order they were
+ * sent, and send() should hand the batch off rather than wait for the network,
+ * since it is called while the sender holds its outbound lock. Batches for
+ * nodes that are not bound may be dropped.
+ */
+public interface ClusterTransport {
+
+	/**
+	 * Receives the batches sent to a node.
+	 */
+	@FunctionalInterface
+	interface Receiver {
+
+		/**
+		 * Handles a batch.
+		 *
+		 * @param from  the sending node id
+		 * @param batch the messages, owned by the receiver
+		 */
+		void receive(String from, List<ClusterMessage> batch);
+	}
+
+	/**
+	 * Starts delivering the batches sent to a node.
+	 *
+	 * @param nodeId   the node id
+	 * @param receiver called with each batch
+	 */
+	void bind(String nodeId, Receiver receiver);
+
+	/**
+	 * Stops delivering to a node.
+	 *
+	 * @param nodeId the node id
+	 */
+	void unbind(String nodeId);
+
+	/**
+	 * Sends a batch.
+	 *
+	 * @param from  the sending node id
+	 * @param to    the receiving node id
+	 * @param batch the messages, owned by the transport from now on
+	 */
+	void send(String from, String to, List<ClusterMessage> batch);
+
+}
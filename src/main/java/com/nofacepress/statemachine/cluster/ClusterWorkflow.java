@@ -0,0 +1,182 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.cluster;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineInstance;
+
+/**
+ * A workflow registered with a ClusterNode: one shared graph and the instances
+ * of it that the node currently owns. Events fired here are routed to the
+ * owning node, which creates the instance on its first event. Every node of
+ * the cluster registers the workflow under the same name.
+ *
+ * @param <K> The instance id class
+ * @param <S> The state class
+ * @param <E> The event class
+ * @param <C> The context class
+ */
+public class ClusterWorkflow<K, S, E, C> {
+
+	private final ClusterNode node;
+	private final String name;
+	private final StateMachineGraph<S, E, C> graph;
+	private final Function<? super K, ? extends C> contextFactory;
+	private final ConcurrentHashMap<K, StateMachineInstance<S, E, C>> instances = new ConcurrentHashMap<K, StateMachineInstance<S, E, C>>();
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	ClusterWorkflow(ClusterNode node, String name, StateMachineGraph<S, E, C> graph,
+			Function<? super K, ? extends C> contextFactory) {
+		this.node = node;
+		this.name = name;
+		this.graph = graph;
+		this.contextFactory = contextFactory;
+	}
+
+	/**
+	 * Fires an event at an instance, wherever it lives.
+	 *
+	 * @param id    the instance id
+	 * @param event the event to fire
+	 */
+	public void fireEvent(K id, E event) {
+		fireEvent(id, event, null);
+	}
+
+	/**
+	 * Fires an event carrying a payload at an instance, wherever it lives.
+	 * Events for another node are queued and sent in batches.
+	 *
+	 * @param id      the instance id
+	 * @param event   the event to fire
+	 * @param payload the data to pass to the listeners, may be null
+	 */
+	public void fireEvent(K id, E event, Object payload) {
+		node.route(this, id, event, payload);
+	}
+
+	@SuppressWarnings("unchecked")
+	void fireLocal(Object id, Object event, Object payload) {
+		StateMachineInstance<S, E, C> instance = instances.get(id);
+		if (instance == null) {
+			try {
+				instance = instances.computeIfAbsent((K) id,
+						k -> new StateMachineInstance<S, E, C>(graph, contextFactory.apply(k)));
+			} catch (RuntimeException e) {
+				failed.incrementAndGet();
+				return;
+			}
+		}
+		switch (instance.tryFireEvent((E) event, payload)) {
+		case ACCEPTED:
+			accepted.incrementAndGet();
+			break;
+		case NO_TRANSITION:
+			rejected.incrementAndGet();
+			break;
+		default:
+			failed.incrementAndGet();
+			break;
+		}
+	}
+
+	/**
+	 * Takes over an instance transferred from another node. The transferred
+	 * copy wins over one created here in the meantime.
+	 */
+	@SuppressWarnings("unchecked")
+	void adopt(Object id, Object state, Object context) {
+		instances.put((K) id, new StateMachineInstance<S, E, C>(graph, (S) state, (C) context));
+	}
+
+	ConcurrentHashMap<K, StateMachineInstance<S, E, C>> instances() {
+		return instances;
+	}
+
+	/**
+	 * Returns the name the workflow is registered under.
+	 *
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the graph shared by the instances.
+	 *
+	 * @return the graph
+	 */
+	public StateMachineGraph<S, E, C> getGraph() {
+		return graph;
+	}
+
+	/**
+	 * Returns an instance owned by this node.
+	 *
+	 * @param id the instance id
+	 * @return the instance or null if it is not here
+	 */
+	public StateMachineInstance<S, E, C> getLocalInstance(K id) {
+		return instances.get(id);
+	}
+
+	/**
+	 * Returns the ids of the instances owned by this node.
+	 *
+	 * @return a live read-only view of the ids
+	 */
+	public Set<K> getLocalIds() {
+		return Collections.unmodifiableSet(instances.keySet());
+	}
+
+	/**
+	 * Returns the number of events handled here that changed state.
+	 *
+	 * @return the count
+	 */
+	public long getAccepted() {
+		return accepted.get();
+	}
+
+	/**
+	 * Returns the number of events handled here that had no transition.
+	 *
+	 * @return the count
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Returns the number of events handled here where a listener or the
+	 * context factory threw.
+	 *
+	 * @return the count
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+}
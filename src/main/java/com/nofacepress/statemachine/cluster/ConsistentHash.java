@@ -0,0 +1,108 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.cluster;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Immutable consistent hash ring assigning ids to nodes. Each node is placed
+ * on the ring at a number of virtual points and owns the ids hashing up to
+ * each of them, so adding or removing a node only moves the ids of the ranges
+ * next to its points. Nodes that build a ring from the same members agree on
+ * every owner.
+ */
+public class ConsistentHash {
+
+	private final Set<String> nodes;
+	private final int[] points;
+	private final String[] owners;
+
+	/**
+	 * @param nodes        the member node ids
+	 * @param virtualNodes the number of points per node
+	 */
+	public ConsistentHash(Collection<String> nodes, int virtualNodes) {
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("At least one node is required");
+		}
+		if (virtualNodes < 1) {
+			throw new IllegalArgumentException("virtualNodes must be positive");
+		}
+		TreeSet<String> sorted = new TreeSet<String>(nodes);
+		this.nodes = Collections.unmodifiableSet(sorted);
+
+		long[] entries = new long[sorted.size() * virtualNodes];
+		String[] byIndex = sorted.toArray(new String[0]);
+		int n = 0;
+		for (int node = 0; node < byIndex.length; node++) {
+			int base = byIndex[node].hashCode();
+			for (int i = 0; i < virtualNodes; i++) {
+				long point = mix(base ^ mix(i + 1));
+				// sort by point, ties by node index
+				entries[n++] = (point << 32) | node;
+			}
+		}
+		Arrays.sort(entries);
+
+		this.points = new int[entries.length];
+		this.owners = new String[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			points[i] = (int) (entries[i] >> 32);
+			owners[i] = byIndex[(int) entries[i]];
+		}
+	}
+
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * Returns the node owning an id.
+	 *
+	 * @param id the id
+	 * @return the node id
+	 */
+	public String nodeFor(Object id) {
+		int h = mix(id.hashCode());
+		int i = Arrays.binarySearch(points, h);
+		if (i < 0) {
+			i = -i - 1;
+			if (i == points.length) {
+				i = 0;
+			}
+		}
+		return owners[i];
+	}
+
+	/**
+	 * Returns the member node ids.
+	 *
+	 * @return the node ids
+	 */
+	public Set<String> getNodes() {
+		return nodes;
+	}
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.cluster;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process ClusterTransport for running a whole cluster in one JVM. Every
+ * bound node gets its own delivery thread, so batches arrive asynchronously
+ * and in order, as they would over a connection. Messages are passed by
+ * reference.
+ */
+public class LoopbackTransport implements ClusterTransport, AutoCloseable {
+
+	private final ConcurrentHashMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong inFlight = new AtomicLong();
+
+	private static final class Endpoint {
+		private final ExecutorService executor;
+		private final Receiver receiver;
+
+		private Endpoint(ExecutorService executor, Receiver receiver) {
+			this.executor = executor;
+			this.receiver = receiver;
+		}
+	}
+
+	@Override
+	public void bind(String nodeId, Receiver receiver) {
+		ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "state-machine-loopback-" + nodeId);
+			thread.setDaemon(true);
+			return thread;
+		});
+		Endpoint previous = endpoints.put(nodeId, new Endpoint(executor, receiver));
+		if (previous != null) {
+			previous.executor.shutdown();
+		}
+	}
+
+	@Override
+	public void unbind(String nodeId) {
+		Endpoint endpoint = endpoints.remove(nodeId);
+		if (endpoint != null) {
+			endpoint.executor.shutdown();
+		}
+	}
+
+	@Override
+	public void send(String from, String to, List<ClusterMessage> batch) {
+		Endpoint endpoint = endpoints.get(to);
+		if (endpoint == null) {
+			dropped.addAndGet(batch.size());
+			return;
+		}
+		batches.incrementAndGet();
+		messages.addAndGet(batch.size());
+		inFlight.incrementAndGet();
+		try {
+			endpoint.executor.execute(() -> {
+				try {
+					endpoint.receiver.receive(from, batch);
+				} finally {
+					inFlight.decrementAndGet();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			inFlight.decrementAndGet();
+			dropped.addAndGet(batch.size());
+		}
+	}
+
+	/**
+	 * Waits until every batch sent so far has been handled by its receiver.
+	 *
+	 * @param timeout the maximum time to wait
+	 * @param unit    the unit of the timeout
+	 * @return false if the time ran out
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (inFlight.get() != 0) {
+			if (System.nanoTime() - deadline > 0) {
+				return false;
+			}
+			TimeUnit.MILLISECONDS.sleep(1);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of batches delivered or being delivered.
+	 *
+	 * @return the count
+	 */
+	public long getBatchCount() {
+		return batches.get();
+	}
+
+	/**
+	 * Returns the number of messages in those batches.
+	 *
+	 * @return the count
+	 */
+	public long getMessageCount() {
+		return messages.get();
+	}
+
+	/**
+	 * Returns the number of messages sent to nodes that were not bound.
+	 *
+	 * @return the count
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Stops every delivery thread.
+	 */
+	@Override
+	public void close() {
+		for (String nodeId : endpoints.keySet()) {
+			unbind(nodeId);
+		}
+	}
+
+}
@@ -15,6 +15,13 @@
  */
 package com.nofacepress.statemachine.exceptions;
 
+/**
+ * Runtime exception of the state machine. Stack traces can be turned off with
+ * setStackTraceEnabled(false) for flows where failures are frequent and the
+ * cost of filling in the stack matters more than the trace. The setting
+ * applies to exceptions created afterwards, except through the constructor
+ * that takes writableStackTrace explicitly.
+ */
 public class StateMachineException extends RuntimeException {
 
 	/**
@@ -22,12 +29,32 @@ public class StateMachineException extends RuntimeException {
 	 */
 	private static final long serialVersionUID = -1649635297692769820L;
 
+	private static volatile boolean stackTraceEnabled = true;
+
+	/**
+	 * Turns stack traces of new exceptions on or off, they are on by default.
+	 * 
+	 * @param enabled false to create exceptions without a stack trace
+	 */
+	public static void setStackTraceEnabled(boolean enabled) {
+		stackTraceEnabled = enabled;
+	}
+
+	/**
+	 * Returns if new exceptions fill in their stack trace.
+	 * 
+	 * @return true if stack traces are enabled
+	 */
+	public static boolean isStackTraceEnabled() {
+		return stackTraceEnabled;
+	}
+
 	public StateMachineException(String message) {
-		super(message);
+		super(message, null, true, stackTraceEnabled);
 	}
 
 	public StateMachineException(String message, Throwable cause) {
-		super(message, cause);
+		super(message, cause, true, stackTraceEnabled);
 	}
 
 	public StateMachineException(String message, Throwable cause, boolean enableSuppression,
@@ -36,7 +63,7 @@ public class StateMachineException extends RuntimeException {
 	}
 
 	public StateMachineException(Throwable cause) {
-		super(cause);
+		super((cause == null) ? null : cause.toString(), cause, true, stackTraceEnabled);
 	}
 
 }
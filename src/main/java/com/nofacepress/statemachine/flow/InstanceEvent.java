@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.flow;
+
+/**
+ * An event addressed to one instance, consumed by an InstanceEventSubscriber.
+ *
+ * @param <K> The instance id class
+ * @param <E> The event class
+ */
+public final class InstanceEvent<K, E> {
+
+	private final K instanceId;
+	private final E event;
+	private final Object payload;
+
+	/**
+	 * @param instanceId the id of the instance
+	 * @param event      the event to fire
+	 */
+	public InstanceEvent(K instanceId, E event) {
+		this(instanceId, event, null);
+	}
+
+	/**
+	 * @param instanceId the id of the instance
+	 * @param event      the event to fire
+	 * @param payload    the payload passed to payload listeners, may be null
+	 */
+	public InstanceEvent(K instanceId, E event, Object payload) {
+		this.instanceId = instanceId;
+		this.event = event;
+		this.payload = payload;
+	}
+
+	/**
+	 * Returns the id of the instance.
+	 *
+	 * @return the instance id
+	 */
+	public K getInstanceId() {
+		return instanceId;
+	}
+
+	/**
+	 * Returns the event to fire.
+	 *
+	 * @return the event
+	 */
+	public E getEvent() {
+		return event;
+	}
+
+	/**
+	 * Returns the payload of the event.
+	 *
+	 * @return the payload or null
+	 */
+	public Object getPayload() {
+		return payload;
+	}
+
+	@Override
+	public String toString() {
+		return instanceId + ":" + event;
+	}
+
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.flow;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.nofacepress.statemachine.FireOutcome;
+import com.nofacepress.statemachine.StateMachineInstance;
+
+/**
+ * Flow subscriber that fires a stream of InstanceEvent's at the instances they
+ * are addressed to, with backpressure all the way to the source.
+ *
+ * At most window events are requested ahead. The window is refilled in halves
+ * as events are processed, so the source slows down to the pace of the state
+ * changes instead of piling events up in front of fireEvent().
+ *
+ * Events are spread over lanes by instance id and each lane is drained by one
+ * task at a time, so events of one instance are fired in the order they
+ * arrived. A lane takes the events queued for it in batches and fires the
+ * events of each instance in a batch while holding the instance monitor once,
+ * which makes the monitor of every further changeState() a reentrant
+ * acquisition.
+ *
+ * Events are fired with tryFireEvent() and the outcomes are counted. Events for
+ * ids the resolver returns null for are counted as unrouted, those for ids the
+ * resolver throws an exception for as failed.
+ *
+ * @param <K> The instance id class
+ * @param <S> The state class
+ * @param <E> The event class
+ * @param <C> The context class
+ */
+public class InstanceEventSubscriber<K, S, E, C> implements Flow.Subscriber<InstanceEvent<K, E>> {
+
+	/**
+	 * Default number of events requested ahead.
+	 */
+	public static final int DEFAULT_WINDOW = 1024;
+
+	private final Function<? super K, ? extends StateMachineInstance<S, E, C>> resolver;
+	private final int window;
+	private final Executor executor;
+	private final Lane[] lanes;
+	private final CompletableFuture<Void> completion = new CompletableFuture<Void>();
+
+	private volatile Flow.Subscription subscription;
+	private final AtomicLong unrequested = new AtomicLong();
+	private final AtomicLong processed = new AtomicLong();
+	private volatile long received = 0;
+	private volatile boolean done = false;
+
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder unrouted = new LongAdder();
+
+	/**
+	 * Creates a subscriber with one lane per processor on the common pool.
+	 *
+	 * @param resolver finds the instance of an id, called from the lanes so it
+	 *                 must be thread safe
+	 */
+	public InstanceEventSubscriber(Function<? super K, ? extends StateMachineInstance<S, E, C>> resolver) {
+		this(resolver, DEFAULT_WINDOW, Runtime.getRuntime().availableProcessors(), ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param resolver finds the instance of an id, called from the lanes so it
+	 *                 must be thread safe
+	 * @param window   the maximum number of events requested ahead
+	 * @param lanes    the number of lanes, the maximum parallelism
+	 * @param executor runs the lanes
+	 */
+	public InstanceEventSubscriber(Function<? super K, ? extends StateMachineInstance<S, E, C>> resolver,
+			int window, int lanes, Executor executor) {
+		if (window < 1 || lanes < 1) {
+			throw new IllegalArgumentException("Window and lanes must be positive");
+		}
+		this.resolver = resolver;
+		this.window = window;
+		this.executor = executor;
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		Lane[] array = new InstanceEventSubscriber.Lane[lanes];
+		for (int i = 0; i < lanes; i++) {
+			array[i] = new Lane();
+		}
+		this.lanes = array;
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		if (this.subscription != null) {
+			subscription.cancel();
+			return;
+		}
+		this.subscription = subscription;
+		synchronized (this) {
+			subscription.request(window);
+		}
+	}
+
+	@Override
+	public void onNext(InstanceEvent<K, E> item) {
+		received++;
+		int h = (item.getInstanceId() == null) ? 0 : item.getInstanceId().hashCode();
+		h ^= h >>> 16;
+		lanes[(h & 0x7fffffff) % lanes.length].add(item);
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		done = true;
+		completion.completeExceptionally(throwable);
+	}
+
+	@Override
+	public void onComplete() {
+		done = true;
+		checkCompleted();
+	}
+
+	/**
+	 * Cancels the subscription. Events already received are still fired.
+	 */
+	public void cancel() {
+		Flow.Subscription s = subscription;
+		if (s != null) {
+			synchronized (this) {
+				s.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Returns a future completed once the source completed and every received
+	 * event was fired, or completed exceptionally as soon as the source fails.
+	 *
+	 * @return the completion
+	 */
+	public CompletableFuture<Void> getCompletion() {
+		return completion;
+	}
+
+	/**
+	 * Returns the number of events that changed the state of their instance.
+	 *
+	 * @return the accepted count
+	 */
+	public long getAccepted() {
+		return accepted.sum();
+	}
+
+	/**
+	 * Returns the number of events their instance had no transition for.
+	 *
+	 * @return the rejected count
+	 */
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	/**
+	 * Returns the number of events whose state change failed in a listener.
+	 *
+	 * @return the failed count
+	 */
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	/**
+	 * Returns the number of events addressed to ids without an instance.
+	 *
+	 * @return the unrouted count
+	 */
+	public long getUnrouted() {
+		return unrouted.sum();
+	}
+
+	private void processed(int count) {
+		processed.addAndGet(count);
+		long pending = unrequested.addAndGet(count);
+		long threshold = Math.max(1, window >> 1);
+		while (pending >= threshold) {
+			if (unrequested.compareAndSet(pending, 0)) {
+				// calls on a subscription must be serial
+				synchronized (this) {
+					subscription.request(pending);
+				}
+				break;
+			}
+			pending = unrequested.get();
+		}
+		checkCompleted();
+	}
+
+	private void checkCompleted() {
+		// received is final once done is set
+		if (done && processed.get() == received) {
+			completion.complete(null);
+		}
+	}
+
+	/**
+	 * Queue of events drained by one task at a time.
+	 */
+	private final class Lane implements Runnable {
+
+		private final ConcurrentLinkedQueue<InstanceEvent<K, E>> queue = new ConcurrentLinkedQueue<InstanceEvent<K, E>>();
+		private final AtomicInteger wip = new AtomicInteger();
+
+		void add(InstanceEvent<K, E> item) {
+			queue.offer(item);
+			if (wip.getAndIncrement() == 0) {
+				executor.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			for (;;) {
+				int missed = wip.get();
+				drain();
+				if (!queue.isEmpty()) {
+					// let other lanes run, this one stays scheduled
+					executor.execute(this);
+					return;
+				}
+				if (wip.addAndGet(-missed) == 0) {
+					return;
+				}
+			}
+		}
+
+		private void drain() {
+			List<InstanceEvent<K, E>> batch = new ArrayList<InstanceEvent<K, E>>();
+			Map<K, List<InstanceEvent<K, E>>> byInstance = new LinkedHashMap<K, List<InstanceEvent<K, E>>>();
+			InstanceEvent<K, E> item;
+			while ((item = queue.poll()) != null) {
+				batch.add(item);
+				byInstance.computeIfAbsent(item.getInstanceId(), k -> new ArrayList<InstanceEvent<K, E>>())
+						.add(item);
+				if (batch.size() >= window) {
+					break;
+				}
+			}
+			if (batch.isEmpty()) {
+				return;
+			}
+
+			try {
+				for (Map.Entry<K, List<InstanceEvent<K, E>>> entry : byInstance.entrySet()) {
+					StateMachineInstance<S, E, C> instance;
+					try {
+						instance = resolver.apply(entry.getKey());
+					} catch (RuntimeException e) {
+						failed.add(entry.getValue().size());
+						continue;
+					}
+					if (instance == null) {
+						unrouted.add(entry.getValue().size());
+						continue;
+					}
+					synchronized (instance) {
+						for (InstanceEvent<K, E> event : entry.getValue()) {
+							FireOutcome outcome = instance.tryFireEvent(event.getEvent(), event.getPayload());
+							if (outcome == FireOutcome.ACCEPTED) {
+								accepted.increment();
+							} else if (outcome == FireOutcome.NO_TRANSITION) {
+								rejected.increment();
+							} else {
+								failed.increment();
+							}
+						}
+					}
+				}
+			} finally {
+				// the window must be refilled even if a batch was cut short
+				processed(batch.size());
+			}
+		}
+	}
+
+}
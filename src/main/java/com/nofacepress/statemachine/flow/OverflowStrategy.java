@@ -0,0 +1,44 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.flow;
+
+/**
+ * What a TransitionPublisher does with a new transition when the buffer of a
+ * subscriber is full.
+ */
+public enum OverflowStrategy {
+
+	/**
+	 * The thread changing state waits until the subscriber has taken records
+	 * from the buffer. This slows producers down to the pace of the slowest
+	 * subscriber. The wait holds the monitor of the instance changing state.
+	 */
+	BLOCK,
+
+	/**
+	 * The new transition is dropped for that subscriber and counted.
+	 */
+	DROP,
+
+	/**
+	 * Records are buffered in order like with DROP. Once the buffer is full, a
+	 * new transition of an instance that is already buffered is merged into the
+	 * latest record of that instance, keeping its source state. A transition of
+	 * any other instance is dropped and counted.
+	 */
+	COALESCE;
+
+}
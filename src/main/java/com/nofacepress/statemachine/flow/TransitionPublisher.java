@@ -0,0 +1,424 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.flow;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.StateType;
+import com.nofacepress.statemachine.listener.AfterStateChangedListener;
+
+/**
+ * Publishes the state changes of one or more graphs to Flow subscribers with
+ * backpressure. The publisher is an AfterStateChangedListener, attach() adds
+ * it to a graph. Records carry the id of the instance, returned by the idOf
+ * function, and never the instance itself.
+ *
+ * Every subscriber has its own bounded buffer, and the OverflowStrategy decides
+ * what happens when it is full. Subscribers receive lists of up to
+ * maxBatchSize records, and each list counts as one item of demand. Signals to a
+ * subscriber are made one at a time on the executor, never on the thread
+ * changing state unless the executor runs tasks in place.
+ *
+ * close() completes every subscriber once its buffer is drained.
+ *
+ * @param <K> The instance id class
+ * @param <S> The state class
+ * @param <E> The event class
+ * @param <C> The context class
+ */
+public class TransitionPublisher<K, S, E, C>
+		implements Flow.Publisher<List<TransitionRecord<K, S, E>>>, AfterStateChangedListener<S, E, C>, AutoCloseable {
+
+	/**
+	 * Default number of records in one delivered batch.
+	 */
+	public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+	private final Function<? super StateMachineInstance<S, E, C>, ? extends K> idOf;
+	private final int bufferCapacity;
+	private final int maxBatchSize;
+	private final OverflowStrategy strategy;
+	private final Executor executor;
+	private final CopyOnWriteArrayList<TransitionSubscription> subscriptions = new CopyOnWriteArrayList<TransitionSubscription>();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a publisher delivering on the common pool.
+	 *
+	 * @param idOf           returns the id of an instance
+	 * @param bufferCapacity the number of records buffered per subscriber
+	 * @param strategy       what to do when a buffer is full
+	 */
+	public TransitionPublisher(Function<? super StateMachineInstance<S, E, C>, ? extends K> idOf, int bufferCapacity,
+			OverflowStrategy strategy) {
+		this(idOf, bufferCapacity, DEFAULT_MAX_BATCH_SIZE, strategy, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param idOf           returns the id of an instance
+	 * @param bufferCapacity the number of records buffered per subscriber
+	 * @param maxBatchSize   the maximum number of records in one onNext()
+	 * @param strategy       what to do when a buffer is full
+	 * @param executor       runs the deliveries to subscribers
+	 */
+	public TransitionPublisher(Function<? super StateMachineInstance<S, E, C>, ? extends K> idOf, int bufferCapacity,
+			int maxBatchSize, OverflowStrategy strategy, Executor executor) {
+		if (bufferCapacity < 1 || maxBatchSize < 1) {
+			throw new IllegalArgumentException("Capacity and batch size must be positive");
+		}
+		this.idOf = idOf;
+		this.bufferCapacity = bufferCapacity;
+		this.maxBatchSize = maxBatchSize;
+		this.strategy = strategy;
+		this.executor = executor;
+	}
+
+	/**
+	 * Starts publishing the state changes of a graph.
+	 *
+	 * @param graph the graph
+	 */
+	public void attach(StateMachineGraph<S, E, C> graph) {
+		graph.getListenerManager().addListener(this);
+	}
+
+	/**
+	 * Stops publishing the state changes of a graph.
+	 *
+	 * @param graph the graph
+	 */
+	public void detach(StateMachineGraph<S, E, C> graph) {
+		graph.getListenerManager().removeAfterStateChangedListener(this);
+	}
+
+	@Override
+	public void afterStateChanged(StateMachineInstance<S, E, C> instance, StateType<S, E, C> source,
+			StateType<S, E, C> target, E event) {
+		if (closed || subscriptions.isEmpty()) {
+			return;
+		}
+		TransitionRecord<K, S, E> record = new TransitionRecord<K, S, E>(idOf.apply(instance), source.getId(),
+				event, target.getId(), System.nanoTime());
+		for (TransitionSubscription subscription : subscriptions) {
+			subscription.offer(record);
+		}
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super List<TransitionRecord<K, S, E>>> subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException("subscriber");
+		}
+		TransitionSubscription subscription = new TransitionSubscription(subscriber);
+		synchronized (subscriptions) {
+			for (TransitionSubscription existing : subscriptions) {
+				if (existing.subscriber.equals(subscriber)) {
+					subscription.error = new IllegalStateException("Already subscribed");
+					subscription.signal();
+					return;
+				}
+			}
+			if (closed) {
+				subscription.done = true;
+			} else {
+				subscriptions.add(subscription);
+			}
+		}
+		subscription.signal();
+	}
+
+	/**
+	 * Stops publishing and completes every subscriber after its buffered
+	 * records were delivered.
+	 */
+	@Override
+	public void close() {
+		synchronized (subscriptions) {
+			closed = true;
+		}
+		for (TransitionSubscription subscription : subscriptions) {
+			subscription.complete(null);
+		}
+	}
+
+	/**
+	 * Stops publishing and signals an error to every subscriber, dropping the
+	 * buffered records.
+	 *
+	 * @param error the error to signal
+	 */
+	public void closeExceptionally(Throwable error) {
+		synchronized (subscriptions) {
+			closed = true;
+		}
+		for (TransitionSubscription subscription : subscriptions) {
+			subscription.complete(error);
+		}
+	}
+
+	/**
+	 * Returns the number of records dropped by the DROP and COALESCE strategies,
+	 * or by an interrupted BLOCK, summed over all subscribers.
+	 *
+	 * @return the dropped count
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the number of current subscribers.
+	 *
+	 * @return the subscriber count
+	 */
+	public int getSubscriberCount() {
+		return subscriptions.size();
+	}
+
+	/**
+	 * A buffered record, replaced in place when COALESCE merges into it.
+	 */
+	private final class Buffered {
+		TransitionRecord<K, S, E> record;
+
+		Buffered(TransitionRecord<K, S, E> record) {
+			this.record = record;
+		}
+	}
+
+	/**
+	 * Buffer and demand of one subscriber. The buffer, demand and flags are
+	 * guarded by lock, the signals are made by one drain at a time.
+	 */
+	private final class TransitionSubscription implements Flow.Subscription, Runnable {
+
+		final Flow.Subscriber<? super List<TransitionRecord<K, S, E>>> subscriber;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition notFull = lock.newCondition();
+		private final ArrayDeque<Buffered> queue = new ArrayDeque<Buffered>(Math.min(bufferCapacity, 1024));
+		// the latest buffered record of each id, COALESCE only
+		private final HashMap<K, Buffered> latest;
+		private final AtomicInteger wip = new AtomicInteger();
+		private long demand = 0;
+		private boolean cancelled = false;
+		boolean done = false;
+		Throwable error = null;
+
+		// only touched by the drain
+		private boolean subscribed = false;
+		private boolean terminated = false;
+
+		TransitionSubscription(Flow.Subscriber<? super List<TransitionRecord<K, S, E>>> subscriber) {
+			this.subscriber = subscriber;
+			latest = (strategy == OverflowStrategy.COALESCE) ? new HashMap<K, Buffered>() : null;
+		}
+
+		private void clear() {
+			queue.clear();
+			if (latest != null) {
+				latest.clear();
+			}
+		}
+
+		void offer(TransitionRecord<K, S, E> record) {
+			lock.lock();
+			try {
+				if (cancelled || done) {
+					return;
+				}
+				while (queue.size() >= bufferCapacity) {
+					if (strategy == OverflowStrategy.COALESCE) {
+						Buffered previous = latest.get(record.getId());
+						if (previous == null) {
+							dropped.incrementAndGet();
+						} else {
+							// keeps its position in the buffer
+							previous.record = previous.record.coalesce(record);
+						}
+						return;
+					}
+					if (strategy == OverflowStrategy.DROP) {
+						dropped.incrementAndGet();
+						return;
+					}
+					try {
+						notFull.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						dropped.incrementAndGet();
+						return;
+					}
+					if (cancelled || done) {
+						return;
+					}
+				}
+				Buffered buffered = new Buffered(record);
+				queue.add(buffered);
+				if (latest != null) {
+					latest.put(record.getId(), buffered);
+				}
+			} finally {
+				lock.unlock();
+			}
+			signal();
+		}
+
+		void complete(Throwable cause) {
+			lock.lock();
+			try {
+				done = true;
+				if (cause != null && error == null) {
+					error = cause;
+				}
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			signal();
+		}
+
+		@Override
+		public void request(long n) {
+			lock.lock();
+			try {
+				if (n <= 0) {
+					if (error == null) {
+						error = new IllegalArgumentException("Non-positive request " + n);
+					}
+				} else {
+					demand = (demand + n < 0) ? Long.MAX_VALUE : demand + n;
+				}
+			} finally {
+				lock.unlock();
+			}
+			signal();
+		}
+
+		@Override
+		public void cancel() {
+			lock.lock();
+			try {
+				cancelled = true;
+				clear();
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			subscriptions.remove(this);
+		}
+
+		void signal() {
+			if (wip.getAndIncrement() == 0) {
+				executor.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			int missed = 1;
+			do {
+				drain();
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		private void drain() {
+			if (!subscribed) {
+				subscribed = true;
+				try {
+					subscriber.onSubscribe(this);
+				} catch (Throwable t) {
+					cancel();
+					terminated = true;
+				}
+			}
+			while (!terminated) {
+				List<TransitionRecord<K, S, E>> batch = null;
+				Throwable failure = null;
+				lock.lock();
+				try {
+					if (cancelled) {
+						terminated = true;
+						return;
+					}
+					if (error != null) {
+						failure = error;
+						clear();
+						terminated = true;
+					} else if (queue.isEmpty()) {
+						if (!done) {
+							return;
+						}
+						terminated = true;
+					} else if (demand == 0) {
+						return;
+					} else {
+						batch = take();
+						demand--;
+						notFull.signalAll();
+					}
+				} finally {
+					lock.unlock();
+				}
+
+				if (batch != null) {
+					try {
+						subscriber.onNext(batch);
+					} catch (Throwable t) {
+						cancel();
+						terminated = true;
+					}
+				} else {
+					subscriptions.remove(this);
+					if (failure != null) {
+						subscriber.onError(failure);
+					} else {
+						subscriber.onComplete();
+					}
+				}
+			}
+		}
+
+		private List<TransitionRecord<K, S, E>> take() {
+			int count = Math.min(queue.size(), maxBatchSize);
+			List<TransitionRecord<K, S, E>> batch = new ArrayList<TransitionRecord<K, S, E>>(count);
+			for (int i = 0; i < count; i++) {
+				Buffered buffered = queue.poll();
+				if (latest != null) {
+					latest.remove(buffered.record.getId(), buffered);
+				}
+				batch.add(buffered.record);
+			}
+			return batch;
+		}
+	}
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.flow;
+
+/**
+ * One state change published by a TransitionPublisher. Only the id of the
+ * instance and the state and event values are kept, neither the instance nor
+ * the StateType wrappers.
+ *
+ * @param <K> The instance id class
+ * @param <S> The state class
+ * @param <E> The event class
+ */
+public final class TransitionRecord<K, S, E> {
+
+	private final K id;
+	private final S source;
+	private final E event;
+	private final S target;
+	private final long nanoTime;
+
+	/**
+	 * @param id       the id of the instance that changed state
+	 * @param source   the state that was left
+	 * @param event    the event, may be null for forced changes
+	 * @param target   the state that was entered
+	 * @param nanoTime the System.nanoTime() of the change
+	 */
+	public TransitionRecord(K id, S source, E event, S target, long nanoTime) {
+		this.id = id;
+		this.source = source;
+		this.event = event;
+		this.target = target;
+		this.nanoTime = nanoTime;
+	}
+
+	/**
+	 * Merges a later change of the same instance into this one, keeping this
+	 * source.
+	 */
+	TransitionRecord<K, S, E> coalesce(TransitionRecord<K, S, E> later) {
+		return new TransitionRecord<K, S, E>(id, source, later.event, later.target, later.nanoTime);
+	}
+
+	/**
+	 * Returns the id of the instance that changed state.
+	 *
+	 * @return the instance id
+	 */
+	public K getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the state that was left. For coalesced records this is the state
+	 * before the first of the merged changes.
+	 *
+	 * @return the source state
+	 */
+	public S getSource() {
+		return source;
+	}
+
+	/**
+	 * Returns the event of the change, for coalesced records the last one.
+	 *
+	 * @return the event or null for a forced change without one
+	 */
+	public E getEvent() {
+		return event;
+	}
+
+	/**
+	 * Returns the state that was entered.
+	 *
+	 * @return the target state
+	 */
+	public S getTarget() {
+		return target;
+	}
+
+	/**
+	 * Returns the System.nanoTime() of the change.
+	 *
+	 * @return the time in nanoseconds
+	 */
+	public long getNanoTime() {
+		return nanoTime;
+	}
+
+	@Override
+	public String toString() {
+		return id + ": " + source + " -[" + event + "]-> " + target;
+	}
+
+}
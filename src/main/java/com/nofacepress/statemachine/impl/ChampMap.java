@@ -0,0 +1,351 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.impl;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+
+/**
+ * Persistent hash map, a compressed hash-array mapped prefix tree (CHAMP).
+ * put() never changes the map, it returns a new map that shares everything but
+ * the path to the changed entry, which is at most 7 nodes of up to 32 slots.
+ * Iteration order follows the hashes of the keys.
+ *
+ * Null keys and values are not supported.
+ */
+final class ChampMap<K, V> {
+
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+
+	private abstract static class Node {
+		abstract Object get(Object key, int hash, int shift);
+
+		abstract Node put(Object key, Object value, int hash, int shift, boolean[] added);
+
+		abstract void forEach(BiConsumer<Object, Object> action);
+
+		abstract int payloadCount();
+
+		abstract Object keyAt(int i);
+
+		abstract Object valueAt(int i);
+
+		abstract int nodeCount();
+
+		abstract Node nodeAt(int i);
+	}
+
+	/**
+	 * Entries for the present bits of dataMap are stored first as key/value
+	 * pairs, followed by the sub nodes for the present bits of nodeMap.
+	 */
+	private static final class BitmapNode extends Node {
+		static final BitmapNode EMPTY = new BitmapNode(0, 0, new Object[0]);
+
+		final int dataMap;
+		final int nodeMap;
+		final Object[] content;
+
+		BitmapNode(int dataMap, int nodeMap, Object[] content) {
+			this.dataMap = dataMap;
+			this.nodeMap = nodeMap;
+			this.content = content;
+		}
+
+		@Override
+		Object get(Object key, int hash, int shift) {
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if ((dataMap & bit) != 0) {
+				int i = 2 * Integer.bitCount(dataMap & (bit - 1));
+				return key.equals(content[i]) ? content[i + 1] : null;
+			}
+			if ((nodeMap & bit) != 0) {
+				return nodeAt(Integer.bitCount(nodeMap & (bit - 1))).get(key, hash, shift + BITS);
+			}
+			return null;
+		}
+
+		@Override
+		Node put(Object key, Object value, int hash, int shift, boolean[] added) {
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if ((dataMap & bit) != 0) {
+				int i = 2 * Integer.bitCount(dataMap & (bit - 1));
+				Object existing = content[i];
+				if (key.equals(existing)) {
+					if (content[i + 1] == value) {
+						return this;
+					}
+					Object[] copy = content.clone();
+					copy[i + 1] = value;
+					return new BitmapNode(dataMap, nodeMap, copy);
+				}
+				// push both entries one level down
+				added[0] = true;
+				Node sub = merge(existing, content[i + 1], hash(existing), key, value, hash, shift + BITS);
+				int dataCount = Integer.bitCount(dataMap);
+				int n = 2 * (dataCount - 1) + Integer.bitCount(nodeMap & (bit - 1));
+				Object[] copy = new Object[content.length - 1];
+				System.arraycopy(content, 0, copy, 0, i);
+				System.arraycopy(content, i + 2, copy, i, n - i);
+				copy[n] = sub;
+				System.arraycopy(content, n + 2, copy, n + 1, content.length - n - 2);
+				return new BitmapNode(dataMap ^ bit, nodeMap | bit, copy);
+			}
+			if ((nodeMap & bit) != 0) {
+				int n = 2 * Integer.bitCount(dataMap) + Integer.bitCount(nodeMap & (bit - 1));
+				Node child = (Node) content[n];
+				Node updated = child.put(key, value, hash, shift + BITS, added);
+				if (updated == child) {
+					return this;
+				}
+				Object[] copy = content.clone();
+				copy[n] = updated;
+				return new BitmapNode(dataMap, nodeMap, copy);
+			}
+			added[0] = true;
+			int i = 2 * Integer.bitCount(dataMap & (bit - 1));
+			Object[] copy = new Object[content.length + 2];
+			System.arraycopy(content, 0, copy, 0, i);
+			copy[i] = key;
+			copy[i + 1] = value;
+			System.arraycopy(content, i, copy, i + 2, content.length - i);
+			return new BitmapNode(dataMap | bit, nodeMap, copy);
+		}
+
+		@Override
+		void forEach(BiConsumer<Object, Object> action) {
+			int data = 2 * Integer.bitCount(dataMap);
+			for (int i = 0; i < data; i += 2) {
+				action.accept(content[i], content[i + 1]);
+			}
+			for (int i = data; i < content.length; i++) {
+				((Node) content[i]).forEach(action);
+			}
+		}
+
+		@Override
+		int payloadCount() {
+			return Integer.bitCount(dataMap);
+		}
+
+		@Override
+		Object keyAt(int i) {
+			return content[2 * i];
+		}
+
+		@Override
+		Object valueAt(int i) {
+			return content[2 * i + 1];
+		}
+
+		@Override
+		int nodeCount() {
+			return Integer.bitCount(nodeMap);
+		}
+
+		@Override
+		Node nodeAt(int i) {
+			return (Node) content[2 * Integer.bitCount(dataMap) + i];
+		}
+	}
+
+	/**
+	 * Keys with identical hashes, below the last level of bitmap nodes.
+	 */
+	private static final class CollisionNode extends Node {
+		final Object[] keys;
+		final Object[] values;
+
+		CollisionNode(Object[] keys, Object[] values) {
+			this.keys = keys;
+			this.values = values;
+		}
+
+		@Override
+		Object get(Object key, int hash, int shift) {
+			for (int i = 0; i < keys.length; i++) {
+				if (key.equals(keys[i])) {
+					return values[i];
+				}
+			}
+			return null;
+		}
+
+		@Override
+		Node put(Object key, Object value, int hash, int shift, boolean[] added) {
+			for (int i = 0; i < keys.length; i++) {
+				if (key.equals(keys[i])) {
+					if (values[i] == value) {
+						return this;
+					}
+					Object[] copy = values.clone();
+					copy[i] = value;
+					return new CollisionNode(keys, copy);
+				}
+			}
+			added[0] = true;
+			Object[] k = Arrays.copyOf(keys, keys.length + 1);
+			Object[] v = Arrays.copyOf(values, values.length + 1);
+			k[keys.length] = key;
+			v[values.length] = value;
+			return new CollisionNode(k, v);
+		}
+
+		@Override
+		void forEach(BiConsumer<Object, Object> action) {
+			for (int i = 0; i < keys.length; i++) {
+				action.accept(keys[i], values[i]);
+			}
+		}
+
+		@Override
+		int payloadCount() {
+			return keys.length;
+		}
+
+		@Override
+		Object keyAt(int i) {
+			return keys[i];
+		}
+
+		@Override
+		Object valueAt(int i) {
+			return values[i];
+		}
+
+		@Override
+		int nodeCount() {
+			return 0;
+		}
+
+		@Override
+		Node nodeAt(int i) {
+			throw new IndexOutOfBoundsException();
+		}
+	}
+
+	private static Node merge(Object k1, Object v1, int h1, Object k2, Object v2, int h2, int shift) {
+		if (shift >= 32) {
+			return new CollisionNode(new Object[] { k1, k2 }, new Object[] { v1, v2 });
+		}
+		int b1 = (h1 >>> shift) & MASK;
+		int b2 = (h2 >>> shift) & MASK;
+		if (b1 == b2) {
+			return new BitmapNode(0, 1 << b1, new Object[] { merge(k1, v1, h1, k2, v2, h2, shift + BITS) });
+		}
+		Object[] content = (b1 < b2) ? new Object[] { k1, v1, k2, v2 } : new Object[] { k2, v2, k1, v1 };
+		return new BitmapNode((1 << b1) | (1 << b2), 0, content);
+	}
+
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static final ChampMap EMPTY = new ChampMap(BitmapNode.EMPTY, 0);
+
+	/**
+	 * Returns the empty map.
+	 */
+	@SuppressWarnings("unchecked")
+	static <K, V> ChampMap<K, V> empty() {
+		return EMPTY;
+	}
+
+	private final Node root;
+	private final int size;
+
+	private ChampMap(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	int size() {
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(Object key) {
+		return (V) root.get(key, hash(key), 0);
+	}
+
+	/**
+	 * Returns a map with the entry added or replaced.
+	 */
+	ChampMap<K, V> put(K key, V value) {
+		boolean[] added = { false };
+		Node updated = root.put(key, value, hash(key), 0, added);
+		return (updated == root) ? this : new ChampMap<K, V>(updated, added[0] ? size + 1 : size);
+	}
+
+	@SuppressWarnings("unchecked")
+	void forEach(BiConsumer<? super K, ? super V> action) {
+		root.forEach((k, v) -> action.accept((K) k, (V) v));
+	}
+
+	/**
+	 * Iterates the entries depth first with an explicit stack.
+	 */
+	Iterator<Map.Entry<K, V>> iterator() {
+		return new Iterator<Map.Entry<K, V>>() {
+			private final Node[] nodes = new Node[8];
+			private final int[] payload = new int[8];
+			private final int[] children = new int[8];
+			private int depth = 0;
+
+			{
+				nodes[0] = root;
+			}
+
+			@Override
+			public boolean hasNext() {
+				while (depth >= 0) {
+					Node node = nodes[depth];
+					if (payload[depth] < node.payloadCount()) {
+						return true;
+					}
+					if (children[depth] < node.nodeCount()) {
+						Node child = node.nodeAt(children[depth]++);
+						depth++;
+						nodes[depth] = child;
+						payload[depth] = 0;
+						children[depth] = 0;
+					} else {
+						depth--;
+					}
+				}
+				return false;
+			}
+
+			@SuppressWarnings("unchecked")
+			@Override
+			public Map.Entry<K, V> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				int i = payload[depth]++;
+				return new SimpleImmutableEntry<K, V>((K) nodes[depth].keyAt(i), (V) nodes[depth].valueAt(i));
+			}
+		};
+	}
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateType;
+import com.nofacepress.statemachine.exceptions.StateMachineException;
+import com.nofacepress.statemachine.listener.ListenerManager;
+
+/**
+ * Read-only snapshot of a graph compiled into dense dispatch tables. Every
+ * state holds a row of targets indexed by event position, where the position
+ * of an enum event is its ordinal. Looking up a transition is one array load
+ * with no hashing for enum graphs.
+ *
+ * Listeners can still be added and removed, the structure cannot change.
+ */
+public class CompiledStateMachineGraph<S, E, C> implements StateMachineGraph<S, E, C> {
+
+	private final DenseIndex<S> stateIndex;
+	private final CompiledStateType<S, E, C>[] stateTable;
+	private final Collection<CompiledStateType<S, E, C>> statesRO;
+	private final ListenerManager<S, E, C> listenerManager = new ListenerManager<S, E, C>();
+	private final S initialState;
+
+	/**
+	 * Compiles a graph.
+	 *
+	 * @param graph            the graph to compile
+	 * @param includeListeners if true, listeners are copied from the graph.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public CompiledStateMachineGraph(StateMachineGraph<S, E, C> graph, boolean includeListeners) {
+
+		List<S> ids = new ArrayList<S>();
+		Set<E> events = new LinkedHashSet<E>();
+		for (StateType<S, E, C> state : graph.getStates()) {
+			ids.add(state.getId());
+			events.addAll(state.getTransitions().keySet());
+		}
+
+		stateIndex = DenseIndex.of(ids);
+		DenseIndex<E> eventIndex = DenseIndex.of(events);
+
+		HashMap<S, CompiledStateType<S, E, C>> created = new HashMap<S, CompiledStateType<S, E, C>>();
+		List<CompiledStateType<S, E, C>> states = new ArrayList<CompiledStateType<S, E, C>>();
+		stateTable = new CompiledStateType[stateIndex.size()];
+		for (S id : ids) {
+			CompiledStateType<S, E, C> state = new CompiledStateType<S, E, C>(id, eventIndex);
+			created.put(id, state);
+			states.add(state);
+			stateTable[stateIndex.indexOf(id)] = state;
+		}
+
+		for (StateType<S, E, C> state : graph.getStates()) {
+			CompiledStateType<S, E, C> source = created.get(state.getId());
+			for (Entry<E, ? extends StateType<S, E, C>> entry : state.getTransitions().entrySet()) {
+				source.addTransition(created.get(entry.getValue().getId()), entry.getKey());
+			}
+			source.setTimeout(state.getTimeout());
+		}
+
+		initialState = graph.getInitialState();
+		if (includeListeners) {
+			for (StateType<S, E, C> state : graph.getStates()) {
+				StateMachineGraphImpl.copyStateListeners(state, this);
+			}
+		}
+
+		if (includeListeners) {
+			listenerManager.copyListeners(graph.getListenerManager());
+		}
+		statesRO = Collections.unmodifiableCollection(states);
+	}
+
+	@Override
+	public StateType<S, E, C> addState(S state) {
+		StateType<S, E, C> existing = getStateType(state);
+		if (existing == null) {
+			throw new UnsupportedOperationException("Compiled graphs are read-only");
+		}
+		return existing;
+	}
+
+	@Override
+	public void addTransition(S source, S target, E event) {
+		throw new UnsupportedOperationException("Compiled graphs are read-only");
+	}
+
+	@Override
+	public StateMachineGraph<S, E, C> dup(boolean includeListeners) {
+		return new CompiledStateMachineGraph<S, E, C>(this, includeListeners);
+	}
+
+	@Override
+	public S getInitialState() {
+		return initialState;
+	}
+
+	@Override
+	public ListenerManager<S, E, C> getListenerManager() {
+		return listenerManager;
+	}
+
+	@Override
+	public long getVersion() {
+		// never changes
+		return 0;
+	}
+
+	@Override
+	public StateType<S, E, C> getStateType(S state) {
+		int i = stateIndex.indexOf(state);
+		return (i < 0) ? null : stateTable[i];
+	}
+
+	@Override
+	public ListenerManager<S, E, C> getTransitionListenerManager(S source, E event) throws StateMachineException {
+		int i = stateIndex.indexOf(source);
+		ListenerManager<S, E, C> manager = (i < 0) ? null : stateTable[i].createTransitionListenerManager(event);
+		if (manager == null) {
+			throw new StateMachineException(
+					"Invalid transition " + String.valueOf(event) + " from " + String.valueOf(source));
+		}
+		return manager;
+	}
+
+	@Override
+	public Collection<? extends StateType<S, E, C>> getStates() {
+		return statesRO;
+	}
+
+	@Override
+	public void setInitialState(S state) {
+		throw new UnsupportedOperationException("Compiled graphs are read-only");
+	}
+
+	@Override
+	public void setTimeout(S state, long duration, TimeUnit unit, E event) {
+		throw new UnsupportedOperationException("Compiled graphs are read-only");
+	}
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.impl;
+
+import java.util.Map;
+
+import com.nofacepress.statemachine.StateTimeout;
+import com.nofacepress.statemachine.StateType;
+import com.nofacepress.statemachine.listener.ListenerManager;
+
+/**
+ * State of a CompiledStateMachineGraph. Transitions are a row of targets
+ * indexed by the dense event position.
+ */
+class CompiledStateType<S, E, C> implements StateType<S, E, C> {
+
+	private final S id;
+
+	private final DenseIndex<E> events;
+
+	private final CompiledStateType<S, E, C>[] targets;
+
+	private final TransitionTable<E, CompiledStateType<S, E, C>> transitionMap = new TransitionTable<E, CompiledStateType<S, E, C>>();
+
+	private final ListenerManager<S, E, C> listenerManager = new ListenerManager<S, E, C>();
+
+	private final ListenerManager<S, E, C> exitListenerManager = new ListenerManager<S, E, C>();
+
+	// indexed like targets, copied on write and null until one is created
+	private volatile ListenerManager<S, E, C>[] transitionListeners = null;
+
+	private StateTimeout<E> timeout = null;
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	CompiledStateType(S state, DenseIndex<E> events) {
+		this.id = state;
+		this.events = events;
+		this.targets = new CompiledStateType[events.size()];
+	}
+
+	void addTransition(CompiledStateType<S, E, C> target, E event) {
+		targets[events.indexOf(event)] = target;
+		transitionMap.add(event, target);
+	}
+
+	@Override
+	public S getId() {
+		return id;
+	}
+
+	@Override
+	public ListenerManager<S, E, C> getListenerManager() {
+		return listenerManager;
+	}
+
+	@Override
+	public ListenerManager<S, E, C> getExitListenerManager() {
+		return exitListenerManager;
+	}
+
+	@Override
+	public ListenerManager<S, E, C> getTransitionListenerManager(E event) {
+		ListenerManager<S, E, C>[] managers = transitionListeners;
+		if (managers == null) {
+			return null;
+		}
+		int i = events.indexOf(event);
+		return (i < 0) ? null : managers[i];
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	synchronized ListenerManager<S, E, C> createTransitionListenerManager(E event) {
+		int i = events.indexOf(event);
+		if (i < 0 || targets[i] == null) {
+			return null;
+		}
+		ListenerManager<S, E, C>[] managers = transitionListeners;
+		if (managers != null && managers[i] != null) {
+			return managers[i];
+		}
+		managers = (managers == null) ? new ListenerManager[targets.length] : managers.clone();
+		managers[i] = new ListenerManager<S, E, C>();
+		transitionListeners = managers;
+		return managers[i];
+	}
+
+	@Override
+	public StateType<S, E, C> getTransition(E event) {
+		int i = events.indexOf(event);
+		return (i < 0) ? null : targets[i];
+	}
+
+	@Override
+	public Map<E, ? extends StateType<S, E, C>> getTransitions() {
+		return transitionMap;
+	}
+
+	@Override
+	public boolean hasTransition(E event) {
+		int i = events.indexOf(event);
+		return i >= 0 && targets[i] != null;
+	}
+
+	@Override
+	public StateTimeout<E> getTimeout() {
+		return timeout;
+	}
+
+	void setTimeout(StateTimeout<E> timeout) {
+		this.timeout = timeout;
+	}
+
+	@Override
+	public boolean isEnd() {
+		return transitionMap.isEmpty();
+	}
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.impl;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Maps a fixed set of keys to dense int positions used to index the compiled
+ * dispatch tables.
+ *
+ * When every key is a constant of the same enum the position is the ordinal,
+ * so no hashing is done at all. Other keys are numbered in iteration order
+ * and found with a HashMap.
+ *
+ * @param <K> the key class
+ */
+final class DenseIndex<K> {
+
+	private final Class<?> enumClass;
+	private final HashMap<Object, Integer> positions;
+	private final int size;
+
+	private DenseIndex(Class<?> enumClass, HashMap<Object, Integer> positions, int size) {
+		this.enumClass = enumClass;
+		this.positions = positions;
+		this.size = size;
+	}
+
+	static <K> DenseIndex<K> of(Collection<K> keys) {
+		Class<?> enumClass = null;
+		for (K key : keys) {
+			if (!(key instanceof Enum)) {
+				enumClass = null;
+				break;
+			}
+			Class<?> clazz = ((Enum<?>) key).getDeclaringClass();
+			if (enumClass != null && enumClass != clazz) {
+				enumClass = null;
+				break;
+			}
+			enumClass = clazz;
+		}
+		if (enumClass != null) {
+			return new DenseIndex<K>(enumClass, null, enumClass.getEnumConstants().length);
+		}
+		HashMap<Object, Integer> positions = new HashMap<Object, Integer>();
+		for (K key : keys) {
+			if (!positions.containsKey(key)) {
+				positions.put(key, positions.size());
+			}
+		}
+		return new DenseIndex<K>(null, positions, positions.size());
+	}
+
+	/**
+	 * Returns the position of a key.
+	 *
+	 * @param key the key
+	 * @return the position or -1 if the key is not part of the index
+	 */
+	int indexOf(Object key) {
+		if (enumClass != null) {
+			return enumClass.isInstance(key) ? ((Enum<?>) key).ordinal() : -1;
+		}
+		Integer position = positions.get(key);
+		return (position == null) ? -1 : position.intValue();
+	}
+
+	/**
+	 * Returns the number of positions, which is the width of a table row.
+	 *
+	 * @return the number of positions
+	 */
+	int size() {
+		return size;
+	}
+
+}
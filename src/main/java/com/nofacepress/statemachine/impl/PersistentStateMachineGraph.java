@@ -0,0 +1,387 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.impl;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateTimeout;
+import com.nofacepress.statemachine.StateType;
+import com.nofacepress.statemachine.exceptions.StateMachineException;
+import com.nofacepress.statemachine.listener.ListenerManager;
+
+/**
+ * Graph whose structure is kept in persistent hash maps, so dup() is O(1) and
+ * every change copies only the path to what changed. Variants made with dup()
+ * share all untouched states and transitions with their base, which allows
+ * thousands of slightly different graphs to be held for little more than one.
+ *
+ * Listeners are not shared, every graph has its own. dup(true) copies the
+ * listeners of the states that have any. The StateType views of a graph are
+ * created lazily and always reflect the current structure of their graph.
+ * States and transitions are iterated in hash order.
+ *
+ * @param <S> The state class
+ * @param <E> The event class
+ * @param <C> The context class
+ */
+public class PersistentStateMachineGraph<S, E, C> implements StateMachineGraph<S, E, C> {
+
+	/**
+	 * Immutable state, shared between graphs.
+	 */
+	private static final class StateNode<S, E> {
+		final ChampMap<E, S> transitions;
+		final StateTimeout<E> timeout;
+
+		StateNode(ChampMap<E, S> transitions, StateTimeout<E> timeout) {
+			this.transitions = transitions;
+			this.timeout = timeout;
+		}
+	}
+
+	private ChampMap<S, StateNode<S, E>> states;
+	private S initialState;
+	private volatile long version;
+	private final ListenerManager<S, E, C> listenerManager = new ListenerManager<S, E, C>();
+	private final ConcurrentHashMap<S, View> views = new ConcurrentHashMap<S, View>();
+	private volatile List<View> statesRO = null;
+
+	/**
+	 * Creates an empty graph.
+	 */
+	public PersistentStateMachineGraph() {
+		this.states = ChampMap.empty();
+		this.initialState = null;
+		this.version = 0;
+	}
+
+	/**
+	 * Creates a persistent copy of another graph.
+	 *
+	 * @param graph            the graph to copy
+	 * @param includeListeners if true, listeners are included in the copy.
+	 */
+	public PersistentStateMachineGraph(StateMachineGraph<S, E, C> graph, boolean includeListeners) {
+		this();
+		for (StateType<S, E, C> state : graph.getStates()) {
+			addState(state.getId());
+			for (Entry<E, ? extends StateType<S, E, C>> entry : state.getTransitions().entrySet()) {
+				addTransition(state.getId(), entry.getValue().getId(), entry.getKey());
+			}
+			StateTimeout<E> timeout = state.getTimeout();
+			if (timeout != null) {
+				StateNode<S, E> node = states.get(state.getId());
+				states = states.put(state.getId(), new StateNode<S, E>(node.transitions, timeout));
+			}
+			if (includeListeners) {
+				StateMachineGraphImpl.copyStateListeners(state, this);
+			}
+		}
+		if (graph.getInitialState() != null) {
+			setInitialState(graph.getInitialState());
+		}
+		if (includeListeners) {
+			listenerManager.copyListeners(graph.getListenerManager());
+		}
+	}
+
+	private PersistentStateMachineGraph(PersistentStateMachineGraph<S, E, C> base, boolean includeListeners) {
+		this.states = base.states;
+		this.initialState = base.initialState;
+		this.version = base.version;
+		if (includeListeners) {
+			listenerManager.copyListeners(base.listenerManager);
+			for (View view : base.views.values()) {
+				if (view.hasListeners()) {
+					StateMachineGraphImpl.copyStateListeners(view, this);
+				}
+			}
+		}
+	}
+
+	private View getView(S state) {
+		View view = views.get(state);
+		if (view == null) {
+			view = views.computeIfAbsent(state, View::new);
+		}
+		return view;
+	}
+
+	private void changed() {
+		version++;
+		statesRO = null;
+	}
+
+	@Override
+	public StateType<S, E, C> addState(S state) {
+		if (states.get(state) == null) {
+			states = states.put(state, new StateNode<S, E>(ChampMap.<E, S>empty(), null));
+			if (initialState == null) {
+				initialState = state;
+			}
+			changed();
+		}
+		return getView(state);
+	}
+
+	@Override
+	public void addTransition(S source, S target, E event) {
+		addState(source);
+		addState(target);
+		StateNode<S, E> node = states.get(source);
+		ChampMap<E, S> transitions = node.transitions.put(event, target);
+		if (transitions != node.transitions) {
+			states = states.put(source, new StateNode<S, E>(transitions, node.timeout));
+			changed();
+		}
+	}
+
+	/**
+	 * Returns a copy sharing the structure of this graph, in O(1) plus the number
+	 * of states with listeners if they are included.
+	 */
+	@Override
+	public StateMachineGraph<S, E, C> dup(boolean includeListeners) {
+		return new PersistentStateMachineGraph<S, E, C>(this, includeListeners);
+	}
+
+	@Override
+	public S getInitialState() {
+		return initialState;
+	}
+
+	@Override
+	public ListenerManager<S, E, C> getListenerManager() {
+		return listenerManager;
+	}
+
+	@Override
+	public StateType<S, E, C> getStateType(S state) {
+		View view = views.get(state);
+		if (view != null) {
+			return view;
+		}
+		return (states.get(state) == null) ? null : getView(state);
+	}
+
+	@Override
+	public ListenerManager<S, E, C> getTransitionListenerManager(S source, E event) throws StateMachineException {
+		StateNode<S, E> node = states.get(source);
+		if (node == null || node.transitions.get(event) == null) {
+			throw new StateMachineException(
+					"Invalid transition " + String.valueOf(event) + " from " + String.valueOf(source));
+		}
+		return getView(source).createTransitionListenerManager(event);
+	}
+
+	@Override
+	public Collection<? extends StateType<S, E, C>> getStates() {
+		List<View> list = statesRO;
+		if (list == null) {
+			List<View> all = new ArrayList<View>(states.size());
+			states.forEach((id, node) -> all.add(getView(id)));
+			statesRO = list = Collections.unmodifiableList(all);
+		}
+		return list;
+	}
+
+	@Override
+	public long getVersion() {
+		return version;
+	}
+
+	@Override
+	public void setInitialState(S state) {
+		addState(state);
+		initialState = state;
+		changed();
+	}
+
+	@Override
+	public void setTimeout(S state, long duration, TimeUnit unit, E event) {
+		addState(state);
+		StateNode<S, E> node = states.get(state);
+		StateTimeout<E> timeout = (event == null) ? null : new StateTimeout<E>(event, duration, unit);
+		states = states.put(state, new StateNode<S, E>(node.transitions, timeout));
+		changed();
+	}
+
+	/**
+	 * State of this graph, reading the current node of the state on every call.
+	 */
+	private final class View implements StateType<S, E, C> {
+
+		final S id;
+		volatile ListenerManager<S, E, C> listenerManager = null;
+		volatile ListenerManager<S, E, C> exitListenerManager = null;
+		volatile Map<E, ListenerManager<S, E, C>> transitionListeners = null;
+		private final Map<E, StateType<S, E, C>> transitionsRO = new AbstractMap<E, StateType<S, E, C>>() {
+
+			@Override
+			public StateType<S, E, C> get(Object event) {
+				S target = node().transitions.get(event);
+				return (target == null) ? null : getView(target);
+			}
+
+			@Override
+			public boolean containsKey(Object event) {
+				return node().transitions.get(event) != null;
+			}
+
+			@Override
+			public int size() {
+				return node().transitions.size();
+			}
+
+			@Override
+			public Set<Entry<E, StateType<S, E, C>>> entrySet() {
+				final ChampMap<E, S> transitions = node().transitions;
+				return new AbstractSet<Entry<E, StateType<S, E, C>>>() {
+					@Override
+					public Iterator<Entry<E, StateType<S, E, C>>> iterator() {
+						final Iterator<Entry<E, S>> it = transitions.iterator();
+						return new Iterator<Entry<E, StateType<S, E, C>>>() {
+							@Override
+							public boolean hasNext() {
+								return it.hasNext();
+							}
+
+							@Override
+							public Entry<E, StateType<S, E, C>> next() {
+								Entry<E, S> entry = it.next();
+								return new SimpleImmutableEntry<E, StateType<S, E, C>>(entry.getKey(),
+										getView(entry.getValue()));
+							}
+						};
+					}
+
+					@Override
+					public int size() {
+						return transitions.size();
+					}
+				};
+			}
+		};
+
+		View(S id) {
+			this.id = id;
+		}
+
+		private StateNode<S, E> node() {
+			return states.get(id);
+		}
+
+		@Override
+		public S getId() {
+			return id;
+		}
+
+		@Override
+		public ListenerManager<S, E, C> getListenerManager() {
+			ListenerManager<S, E, C> manager = listenerManager;
+			if (manager == null) {
+				synchronized (this) {
+					manager = listenerManager;
+					if (manager == null) {
+						listenerManager = manager = new ListenerManager<S, E, C>();
+					}
+				}
+			}
+			return manager;
+		}
+
+		@Override
+		public ListenerManager<S, E, C> getExitListenerManager() {
+			ListenerManager<S, E, C> manager = exitListenerManager;
+			if (manager == null) {
+				synchronized (this) {
+					manager = exitListenerManager;
+					if (manager == null) {
+						exitListenerManager = manager = new ListenerManager<S, E, C>();
+					}
+				}
+			}
+			return manager;
+		}
+
+		@Override
+		public ListenerManager<S, E, C> getTransitionListenerManager(E event) {
+			Map<E, ListenerManager<S, E, C>> managers = transitionListeners;
+			return (managers == null) ? null : managers.get(event);
+		}
+
+		synchronized ListenerManager<S, E, C> createTransitionListenerManager(E event) {
+			if (transitionListeners == null) {
+				transitionListeners = new ConcurrentHashMap<E, ListenerManager<S, E, C>>();
+			}
+			return transitionListeners.computeIfAbsent(event, e -> new ListenerManager<S, E, C>());
+		}
+
+		boolean hasListeners() {
+			if ((listenerManager != null && !listenerManager.isEmpty())
+					|| (exitListenerManager != null && !exitListenerManager.isEmpty())) {
+				return true;
+			}
+			if (transitionListeners != null) {
+				for (ListenerManager<S, E, C> manager : transitionListeners.values()) {
+					if (!manager.isEmpty()) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public StateType<S, E, C> getTransition(E event) {
+			S target = node().transitions.get(event);
+			return (target == null) ? null : getView(target);
+		}
+
+		@Override
+		public Map<E, ? extends StateType<S, E, C>> getTransitions() {
+			return transitionsRO;
+		}
+
+		@Override
+		public boolean hasTransition(E event) {
+			return node().transitions.get(event) != null;
+		}
+
+		@Override
+		public StateTimeout<E> getTimeout() {
+			return node().timeout;
+		}
+
+		@Override
+		public boolean isEnd() {
+			return node().transitions.size() == 0;
+		}
+	}
+
+}
@@ -17,18 +17,22 @@ package com.nofacepress.statemachine.impl;
 
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
 
 import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateTimeout;
 import com.nofacepress.statemachine.StateType;
+import com.nofacepress.statemachine.exceptions.StateMachineException;
 import com.nofacepress.statemachine.listener.ListenerManager;
 
 public class StateMachineGraphImpl<S, E, C> implements StateMachineGraph<S, E, C> {
-	private final HashMap<S, StateTypeImpl<S, E, C>> states = new HashMap<S, StateTypeImpl<S, E, C>>();
+	private final LinkedHashMap<S, StateTypeImpl<S, E, C>> states = new LinkedHashMap<S, StateTypeImpl<S, E, C>>();
 	private Collection<StateTypeImpl<S, E, C>> statesRO = null;
 	private ListenerManager<S, E, C> listenerManager = new ListenerManager<S, E, C>();
 	private S initialState = null;
+	private volatile long version = 0;
 
 	@Override
 	public StateType<S, E, C> addState(S state) {
@@ -40,6 +44,7 @@ public class StateMachineGraphImpl<S, E, C> implements StateMachineGraph<S, E, C
 		StateTypeImpl<S, E, C> source = getOrCreateState(sourceState);
 		StateTypeImpl<S, E, C> target = getOrCreateState(targetState);
 		source.addTransition(target, event);
+		version++;
 	}
 
 	@Override
@@ -53,19 +58,36 @@ public class StateMachineGraphImpl<S, E, C> implements StateMachineGraph<S, E, C
 		for (Entry<S, StateTypeImpl<S, E, C>> entry : states.entrySet()) {
 			StateTypeImpl<S, E, C> myState = entry.getValue();
 			StateTypeImpl<S, E, C> copyState = copy.getOrCreateState(myState.getId());
-			copy.states.put(entry.getKey(), copyState);
 			for (Entry<E, ? extends StateTypeImpl<S, E, C>> sEntry : myState.getTransitions().entrySet()) {
 				StateTypeImpl<S, E, C> copyTarget = copy.getOrCreateState(sEntry.getValue().getId());
 				copyState.addTransition(copyTarget, sEntry.getKey());
 			}
+			copyState.setTimeout(myState.getTimeout());
 			if (includeListeners) {
-				copyState.getListenerManager().copyListeners(copyState.getListenerManager());
+				copyStateListeners(myState, copy);
 			}
 		}
-		return this;
+		copy.version = version;
+		return copy;
 
 	}
 
+	/**
+	 * Copies the state, exit and transition listeners of a state to the state with
+	 * the same id in another graph, which must already have its transitions.
+	 */
+	static <S, E, C> void copyStateListeners(StateType<S, E, C> from, StateMachineGraph<S, E, C> to) {
+		StateType<S, E, C> state = to.getStateType(from.getId());
+		state.getListenerManager().copyListeners(from.getListenerManager());
+		state.getExitListenerManager().copyListeners(from.getExitListenerManager());
+		for (E event : from.getTransitions().keySet()) {
+			ListenerManager<S, E, C> manager = from.getTransitionListenerManager(event);
+			if (manager != null && !manager.isEmpty()) {
+				to.getTransitionListenerManager(from.getId(), event).copyListeners(manager);
+			}
+		}
+	}
+
 	@Override
 	public S getInitialState() {
 		return initialState;
@@ -82,6 +104,7 @@ public class StateMachineGraphImpl<S, E, C> implements StateMachineGraph<S, E, C
 			info = new StateTypeImpl<S, E, C>(state);
 			states.put(state, info);
 			statesRO = null;
+			version++;
 			if (initialState == null) {
 				initialState = state;
 			}
@@ -89,11 +112,26 @@ public class StateMachineGraphImpl<S, E, C> implements StateMachineGraph<S, E, C
 		return info;
 	}
 
+	@Override
+	public long getVersion() {
+		return version;
+	}
+
 	@Override
 	public StateType<S, E, C> getStateType(S state) {
 		return states.get(state);
 	}
 
+	@Override
+	public ListenerManager<S, E, C> getTransitionListenerManager(S source, E event) throws StateMachineException {
+		StateTypeImpl<S, E, C> state = states.get(source);
+		if (state == null || !state.hasTransition(event)) {
+			throw new StateMachineException(
+					"Invalid transition " + String.valueOf(event) + " from " + String.valueOf(source));
+		}
+		return state.createTransitionListenerManager(event);
+	}
+
 	@Override
 	public Collection<? extends StateType<S, E, C>> getStates() {
 		if (statesRO == null) {
@@ -106,6 +144,13 @@ public class StateMachineGraphImpl<S, E, C> implements StateMachineGraph<S, E, C
 	public void setInitialState(S state) {
 		getOrCreateState(state);
 		initialState = state;
+		version++;
+	}
+
+	@Override
+	public void setTimeout(S state, long duration, TimeUnit unit, E event) {
+		getOrCreateState(state).setTimeout((event == null) ? null : new StateTimeout<E>(event, duration, unit));
+		version++;
 	}
 
 }
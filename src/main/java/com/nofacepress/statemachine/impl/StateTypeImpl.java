@@ -15,10 +15,9 @@
  */
 package com.nofacepress.statemachine.impl;
 
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 
+import com.nofacepress.statemachine.StateTimeout;
 import com.nofacepress.statemachine.StateType;
 import com.nofacepress.statemachine.listener.ListenerManager;
 
@@ -26,19 +25,23 @@ class StateTypeImpl<S, E, C> implements StateType<S, E, C> {
 
 	private final S id;
 
-	private Map<E, StateTypeImpl<S, E, C>> transitionMapRO = null;
-
-	private final Map<E, StateTypeImpl<S, E, C>> transitionMap = new HashMap<E, StateTypeImpl<S, E, C>>();
+	private final TransitionTable<E, StateTypeImpl<S, E, C>> transitionMap = new TransitionTable<E, StateTypeImpl<S, E, C>>();
 
 	private ListenerManager<S, E, C> listenerManager = new ListenerManager<S, E, C>();
 
+	private final ListenerManager<S, E, C> exitListenerManager = new ListenerManager<S, E, C>();
+
+	// copied on write, null until a transition listener manager is created
+	private volatile TransitionTable<E, ListenerManager<S, E, C>> transitionListeners = null;
+
+	private StateTimeout<E> timeout = null;
+
 	StateTypeImpl(S state) {
 		this.id = state;
 	}
 
 	void addTransition(StateTypeImpl<S, E, C> target, E event) {
-		transitionMap.put(event, target);
-		transitionMapRO = null;
+		transitionMap.add(event, target);
 	}
 
 	@Override
@@ -51,6 +54,32 @@ class StateTypeImpl<S, E, C> implements StateType<S, E, C> {
 		return listenerManager;
 	}
 
+	@Override
+	public ListenerManager<S, E, C> getExitListenerManager() {
+		return exitListenerManager;
+	}
+
+	@Override
+	public ListenerManager<S, E, C> getTransitionListenerManager(E event) {
+		TransitionTable<E, ListenerManager<S, E, C>> table = transitionListeners;
+		return (table == null) ? null : table.get(event);
+	}
+
+	synchronized ListenerManager<S, E, C> createTransitionListenerManager(E event) {
+		TransitionTable<E, ListenerManager<S, E, C>> table = transitionListeners;
+		ListenerManager<S, E, C> manager = (table == null) ? null : table.get(event);
+		if (manager == null) {
+			TransitionTable<E, ListenerManager<S, E, C>> copy = new TransitionTable<E, ListenerManager<S, E, C>>();
+			if (table != null) {
+				table.forEach(copy::add);
+			}
+			manager = new ListenerManager<S, E, C>();
+			copy.add(event, manager);
+			transitionListeners = copy;
+		}
+		return manager;
+	}
+
 	@Override
 	public StateType<S, E, C> getTransition(E event) {
 		return transitionMap.get(event);
@@ -58,10 +87,7 @@ class StateTypeImpl<S, E, C> implements StateType<S, E, C> {
 
 	@Override
 	public Map<E, ? extends StateTypeImpl<S, E, C>> getTransitions() {
-		if (transitionMapRO == null) {
-			transitionMapRO = Collections.unmodifiableMap(transitionMap);
-		}
-		return transitionMapRO;
+		return transitionMap;
 	}
 
 	@Override
@@ -69,6 +95,15 @@ class StateTypeImpl<S, E, C> implements StateType<S, E, C> {
 		return transitionMap.containsKey(event);
 	}
 
+	@Override
+	public StateTimeout<E> getTimeout() {
+		return timeout;
+	}
+
+	void setTimeout(StateTimeout<E> timeout) {
+		this.timeout = timeout;
+	}
+
 	@Override
 	public boolean isEnd() {
 		return transitionMap.isEmpty();
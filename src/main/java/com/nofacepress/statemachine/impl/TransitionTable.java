@@ -0,0 +1,204 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.impl;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Read-only map of events to targets sized for the typical state with only a
+ * few outgoing transitions.
+ *
+ * Entries are kept in insertion order in two parallel arrays. Up to
+ * LINEAR_THRESHOLD entries lookups scan the keys, which beats hashing for
+ * small fan-out. Above that, an open addressed index of the key positions is
+ * built and lookups switch to hashing.
+ *
+ * The table is its own read-only view, so it can be handed out directly by
+ * getTransitions() without a wrapper. Only add() modifies it.
+ *
+ * @param <E> The event class
+ * @param <T> The target class
+ */
+class TransitionTable<E, T> extends AbstractMap<E, T> {
+
+	static final int LINEAR_THRESHOLD = 8;
+
+	private static final Object[] EMPTY = {};
+
+	private Object[] keys = EMPTY;
+	private Object[] values = EMPTY;
+	private int size = 0;
+
+	// positions + 1 of the keys, 0 marks a free slot, null while linear
+	private int[] index = null;
+
+	private static int hash(Object key) {
+		int h = (key == null) ? 0 : key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private int indexOf(Object key) {
+		final Object[] k = keys;
+		final int[] idx = index;
+		if (idx == null) {
+			for (int i = 0; i < size; i++) {
+				Object o = k[i];
+				if (o == key || (key != null && key.equals(o))) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		final int mask = idx.length - 1;
+		for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+			int i = idx[slot] - 1;
+			if (i < 0) {
+				return -1;
+			}
+			Object o = k[i];
+			if (o == key || (key != null && key.equals(o))) {
+				return i;
+			}
+		}
+	}
+
+	private void rehash(int capacity) {
+		int[] idx = new int[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < size; i++) {
+			int slot = hash(keys[i]) & mask;
+			while (idx[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			idx[slot] = i + 1;
+		}
+		index = idx;
+	}
+
+	/**
+	 * Adds or replaces a transition.
+	 *
+	 * @param event  the event
+	 * @param target the target
+	 */
+	void add(E event, T target) {
+		int i = indexOf(event);
+		if (i >= 0) {
+			values[i] = target;
+			return;
+		}
+		if (size == keys.length) {
+			int capacity = (size == 0) ? 2 : size * 2;
+			keys = Arrays.copyOf(keys, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+		keys[size] = event;
+		values[size] = target;
+		size++;
+		if (size > LINEAR_THRESHOLD) {
+			// keep the load factor at or below 0.5
+			if (index == null || size * 2 > index.length) {
+				rehash(Integer.highestOneBit(size) << 2);
+			} else {
+				int mask = index.length - 1;
+				int slot = hash(event) & mask;
+				while (index[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				index[slot] = size;
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	E keyAt(int i) {
+		return (E) keys[i];
+	}
+
+	@SuppressWarnings("unchecked")
+	T valueAt(int i) {
+		return (T) values[i];
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T get(Object key) {
+		int i = indexOf(key);
+		return (i < 0) ? null : (T) values[i];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public void forEach(BiConsumer<? super E, ? super T> action) {
+		for (int i = 0; i < size; i++) {
+			action.accept(keyAt(i), valueAt(i));
+		}
+	}
+
+	@Override
+	public Set<Map.Entry<E, T>> entrySet() {
+		return new AbstractSet<Map.Entry<E, T>>() {
+
+			@Override
+			public Iterator<Map.Entry<E, T>> iterator() {
+				return new Iterator<Map.Entry<E, T>>() {
+					private int next = 0;
+
+					@Override
+					public boolean hasNext() {
+						return next < size;
+					}
+
+					@Override
+					public Map.Entry<E, T> next() {
+						if (next >= size) {
+							throw new NoSuchElementException();
+						}
+						int i = next++;
+						return new SimpleImmutableEntry<E, T>(keyAt(i), valueAt(i));
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+}
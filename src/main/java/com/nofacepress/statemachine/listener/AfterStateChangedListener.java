@@ -22,6 +22,10 @@ import com.nofacepress.statemachine.StateType;
  * Listens for notification that a state change has happened. It is safe to
  * change the state from here.
  * 
+ * The instance passed by StateMachineGraph.transition() is a scratch instance
+ * that is reused once the call returns, listeners must not keep it. Keep its
+ * context or an id taken from it instead.
+ * 
  * @param <S> The state class
  * @param <E> The event class
  * @param <C> The context class
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.listener;
+
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.StateType;
+
+/**
+ * Variant of AfterStateChangedListener that also receives the payload passed to
+ * StateMachineInstance.fireEvent(E, Object). It is registered with the same
+ * addListener() and the payload is handed over on the stack, so no instance
+ * properties are needed to pass per event data.
+ * 
+ * Transitions without a payload, such as fireEvent(E) or a forced state
+ * change, pass null.
+ * 
+ * @param <S> The state class
+ * @param <E> The event class
+ * @param <C> The context class
+ */
+public interface AfterStateChangedPayloadListener<S, E, C> extends AfterStateChangedListener<S, E, C> {
+
+	/**
+	 * Called after a state change has occurred, like
+	 * AfterStateChangedListener.afterStateChanged(), with the payload given to
+	 * fireEvent().
+	 * 
+	 * @param instance the instance of the state machine.
+	 * @param source   the original state.
+	 * @param target   the new state.
+	 * @param event    the event that cause the transition.
+	 * @param payload  the payload of the event, may be null.
+	 */
+	void afterStateChanged(StateMachineInstance<S, E, C> instance, StateType<S, E, C> source, StateType<S, E, C> target, E event,
+			Object payload);
+
+	@Override
+	default void afterStateChanged(StateMachineInstance<S, E, C> instance, StateType<S, E, C> source,
+			StateType<S, E, C> target, E event) {
+		afterStateChanged(instance, source, target, event, null);
+	}
+
+}
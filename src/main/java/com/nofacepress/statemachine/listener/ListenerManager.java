@@ -15,9 +15,7 @@
  */
 package com.nofacepress.statemachine.listener;
 
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.Arrays;
 
 import com.nofacepress.statemachine.StateMachineInstance;
 import com.nofacepress.statemachine.StateType;
@@ -25,23 +23,89 @@ import com.nofacepress.statemachine.StateType;
 /**
  * Container to track the various callback listeners.
  * 
+ * Listeners are held in copy-on-write arrays so the calls made on every state
+ * change are a plain loop, and listeners may be added or removed from within a
+ * listener.
+ * 
  * @param <S> The state class
  * @param <E> The event class
  * @param <C> The context class
  */
 public class ListenerManager<S, E, C> {
 
-	private final Set<OnStateChangedListener<S, E, C>> onStateChangedListeners = new HashSet<OnStateChangedListener<S, E, C>>();
+	private static final Object[] NONE = {};
+
+	private volatile Object[] onStateChangedListeners = NONE;
+
+	private volatile Object[] afterStateChangedListeners = NONE;
+
+	private static final ListenerManager<?, ?, ?> EMPTY = new ListenerManager<Object, Object, Object>() {
+
+		@Override
+		public void addListener(AfterStateChangedListener<Object, Object, Object> listener) {
+			throw new UnsupportedOperationException("Listeners are not supported here");
+		}
+
+		@Override
+		public void addListener(OnStateChangedListener<Object, Object, Object> listener) {
+			throw new UnsupportedOperationException("Listeners are not supported here");
+		}
 
-	private final Set<AfterStateChangedListener<S, E, C>> afterStateChangedListeners = new HashSet<AfterStateChangedListener<S, E, C>>();
+		@Override
+		public void copyListeners(ListenerManager<Object, Object, Object> listenerManager) {
+			if (!listenerManager.isEmpty()) {
+				throw new UnsupportedOperationException("Listeners are not supported here");
+			}
+		}
+	};
+
+	/**
+	 * Returns the shared listener manager that never has listeners. Adding a
+	 * listener to it throws UnsupportedOperationException.
+	 * 
+	 * @param <S> The state class
+	 * @param <E> The event class
+	 * @param <C> The context class
+	 * @return the empty listener manager
+	 */
+	@SuppressWarnings("unchecked")
+	public static <S, E, C> ListenerManager<S, E, C> empty() {
+		return (ListenerManager<S, E, C>) EMPTY;
+	}
+
+	private static Object[] add(Object[] listeners, Object listener) {
+		for (Object l : listeners) {
+			if (l.equals(listener)) {
+				return listeners;
+			}
+		}
+		Object[] copy = Arrays.copyOf(listeners, listeners.length + 1);
+		copy[listeners.length] = listener;
+		return copy;
+	}
+
+	private static Object[] remove(Object[] listeners, Object listener) {
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i].equals(listener)) {
+				if (listeners.length == 1) {
+					return NONE;
+				}
+				Object[] copy = new Object[listeners.length - 1];
+				System.arraycopy(listeners, 0, copy, 0, i);
+				System.arraycopy(listeners, i + 1, copy, i, copy.length - i);
+				return copy;
+			}
+		}
+		return listeners;
+	}
 
 	/**
 	 * Adds a new AfterStateChangedListener.
 	 * 
 	 * @param listener the listener
 	 */
-	public void addListener(AfterStateChangedListener<S, E, C> listener) {
-		afterStateChangedListeners.add(listener);
+	public synchronized void addListener(AfterStateChangedListener<S, E, C> listener) {
+		afterStateChangedListeners = add(afterStateChangedListeners, listener);
 	}
 
 	/**
@@ -49,8 +113,8 @@ public class ListenerManager<S, E, C> {
 	 * 
 	 * @param listener the listener
 	 */
-	public void addListener(OnStateChangedListener<S, E, C> listener) {
-		onStateChangedListeners.add(listener);
+	public synchronized void addListener(OnStateChangedListener<S, E, C> listener) {
+		onStateChangedListeners = add(onStateChangedListeners, listener);
 	}
 
 	/**
@@ -63,13 +127,33 @@ public class ListenerManager<S, E, C> {
 	 */
 	public void callAfterStateChangedListeners(StateMachineInstance<S, E, C> instance, StateType<S, E, C> source,
 			StateType<S, E, C> target, E event) {
-		// iterating in a way to allow removal
-		for (Iterator<AfterStateChangedListener<S, E, C>> iterator = afterStateChangedListeners.iterator(); iterator
-				.hasNext();) {
-			AfterStateChangedListener<S, E, C> listener = iterator.next();
-			listener.afterStateChanged(instance, source, target, event);
-		}
+		callAfterStateChangedListeners(instance, source, target, event, null);
+	}
 
+	/**
+	 * Calls all AfterStateChangedListener listeners, passing the payload to those
+	 * that are AfterStateChangedPayloadListener's.
+	 * 
+	 * @param instance the instance of the state machine.
+	 * @param source   the original state.
+	 * @param target   the new state.
+	 * @param event    the event that cause the transition.
+	 * @param payload  the payload of the event, may be null.
+	 */
+	@SuppressWarnings("unchecked")
+	public void callAfterStateChangedListeners(StateMachineInstance<S, E, C> instance, StateType<S, E, C> source,
+			StateType<S, E, C> target, E event, Object payload) {
+		// iterating over a snapshot to allow removal
+		final Object[] listeners = afterStateChangedListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			final Object listener = listeners[i];
+			if (listener instanceof AfterStateChangedPayloadListener) {
+				((AfterStateChangedPayloadListener<S, E, C>) listener).afterStateChanged(instance, source, target, event,
+						payload);
+			} else {
+				((AfterStateChangedListener<S, E, C>) listener).afterStateChanged(instance, source, target, event);
+			}
+		}
 	}
 
 	/**
@@ -82,11 +166,32 @@ public class ListenerManager<S, E, C> {
 	 */
 	public void callOnStateChangedListeners(StateMachineInstance<S, E, C> instance, StateType<S, E, C> source,
 			StateType<S, E, C> target, E event) {
-		// iterating in a way to allow removal
-		for (Iterator<OnStateChangedListener<S, E, C>> iterator = onStateChangedListeners.iterator(); iterator
-				.hasNext();) {
-			OnStateChangedListener<S, E, C> listener = iterator.next();
-			listener.onStateChanged(instance, source, target, event);
+		callOnStateChangedListeners(instance, source, target, event, null);
+	}
+
+	/**
+	 * Calls all OnStateChangedListener listeners, passing the payload to those
+	 * that are OnStateChangedPayloadListener's.
+	 * 
+	 * @param instance the instance of the state machine.
+	 * @param source   the original state.
+	 * @param target   the new state.
+	 * @param event    the event that cause the transition.
+	 * @param payload  the payload of the event, may be null.
+	 */
+	@SuppressWarnings("unchecked")
+	public void callOnStateChangedListeners(StateMachineInstance<S, E, C> instance, StateType<S, E, C> source,
+			StateType<S, E, C> target, E event, Object payload) {
+		// iterating over a snapshot to allow removal
+		final Object[] listeners = onStateChangedListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			final Object listener = listeners[i];
+			if (listener instanceof OnStateChangedPayloadListener) {
+				((OnStateChangedPayloadListener<S, E, C>) listener).onStateChanged(instance, source, target, event,
+						payload);
+			} else {
+				((OnStateChangedListener<S, E, C>) listener).onStateChanged(instance, source, target, event);
+			}
 		}
 	}
 
@@ -95,26 +200,31 @@ public class ListenerManager<S, E, C> {
 	 * 
 	 * @param listenerManager the instance to copy from.
 	 */
-	public void copyListeners(ListenerManager<S, E, C> listenerManager) {
-		for (Iterator<OnStateChangedListener<S, E, C>> iterator = listenerManager.onStateChangedListeners
-				.iterator(); iterator
-						.hasNext();) {
-			onStateChangedListeners.add(iterator.next());
+	public synchronized void copyListeners(ListenerManager<S, E, C> listenerManager) {
+		for (Object listener : listenerManager.onStateChangedListeners) {
+			onStateChangedListeners = add(onStateChangedListeners, listener);
 		}
-		for (Iterator<AfterStateChangedListener<S, E, C>> iterator = listenerManager.afterStateChangedListeners
-				.iterator(); iterator
-						.hasNext();) {
-			afterStateChangedListeners.add(iterator.next());
+		for (Object listener : listenerManager.afterStateChangedListeners) {
+			afterStateChangedListeners = add(afterStateChangedListeners, listener);
 		}
 	}
 
+	/**
+	 * Checks if any listeners are registered.
+	 * 
+	 * @return true if there are no listeners
+	 */
+	public boolean isEmpty() {
+		return onStateChangedListeners.length == 0 && afterStateChangedListeners.length == 0;
+	}
+
 	/**
 	 * Removes an AfterStateChangedListener
 	 * 
 	 * @param listener the listener
 	 */
-	public void removeAfterStateChangedListener(AfterStateChangedListener<S, E, C> listener) {
-		afterStateChangedListeners.remove(listener);
+	public synchronized void removeAfterStateChangedListener(AfterStateChangedListener<S, E, C> listener) {
+		afterStateChangedListeners = remove(afterStateChangedListeners, listener);
 	}
 
 	/**
@@ -122,8 +232,8 @@ public class ListenerManager<S, E, C> {
 	 * 
 	 * @param listener the listener
 	 */
-	public void removeOnStateChangedListener(OnStateChangedListener<S, E, C> listener) {
-		onStateChangedListeners.remove(listener);
+	public synchronized void removeOnStateChangedListener(OnStateChangedListener<S, E, C> listener) {
+		onStateChangedListeners = remove(onStateChangedListeners, listener);
 	}
 
 }
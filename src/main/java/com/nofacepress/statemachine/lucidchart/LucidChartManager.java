@@ -17,10 +17,9 @@ package com.nofacepress.statemachine.lucidchart;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.util.List;
 
-import com.nofacepress.csv4180.CSVWriter;
 import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.plantxml.ChartBuffer;
 import com.nofacepress.statemachine.plantxml.BaseManager;
 import com.nofacepress.statemachine.typeconverters.ToStringConverter;
 
@@ -46,91 +45,45 @@ public class LucidChartManager extends BaseManager {
 	@Override
 	public <S, E, C> void saveGraph(StateMachineGraph<S, E, C> graph, String title, Writer outputWriter,
 			ToStringConverter<S> Sconv, ToStringConverter<E> Econv) throws IOException {
+		writeChart(graph, title, outputWriter, Sconv, Econv, this::renderChart);
+	}
 
-		List<StateInfo> lstates = analyzeStateMachine(graph, Sconv, Econv);
-
-		@SuppressWarnings("resource")
-		CSVWriter writer = new CSVWriter(outputWriter);
-
+	private void renderChart(ChartModel model, String title, ChartBuffer writer) throws IOException {
 		// header row
-		writer.writeField("Id");
-		writer.writeField("Name");
-		writer.writeField("Shape Library");
-		writer.writeField("Page ID");
-		writer.writeField("Contained B");
-		writer.writeField("Line Source");
-		writer.writeField("Line Destination");
-		writer.writeField("Source Arrow");
-		writer.writeField("Destination Arrow");
-		writer.writeField("Text Area 1");
-		writer.writeField("Text Area 2");
-		writer.writeField("Text Area 3");
-		writer.newLine();
+		writer.append("Id,Name,Shape Library,Page ID,Contained B,Line Source,Line Destination,"
+				+ "Source Arrow,Destination Arrow,Text Area 1,Text Area 2,Text Area 3\r\n");
 
-		// header row
-		writer.writeField("1");
-		writer.writeField("Page");
-		writer.writeField("");
-		writer.writeField("");
-		writer.writeField("");
-		writer.writeField("");
-		writer.writeField("");
-		writer.writeField("");
-		writer.writeField("");
-		writer.writeField(title == null ? "State Chart" : title);
-		writer.writeField("");
-		writer.writeField("");
-		writer.newLine();
+		// page row
+		writer.append("1,Page,,,,,,,,").appendCsv(title == null ? "State Chart" : title).append(",,\r\n");
 
 		final int INDEX_OFFSET = 2;
 
 		// write out the states
-		for (StateInfo source : lstates) {
-			String label = source.name;
-			if (source.qualifier != null) {
-				label = String.format("%s\n<%s>", source.name, source.qualifier.name());
+		render(model, writer, (buffer, from, to) -> {
+			for (int r = from; r < to; r++) {
+				buffer.append(r + INDEX_OFFSET).append(",State Name,UML,1,,,,,,");
+				if (model.qualifiers[r] == null) {
+					buffer.appendCsv(model.names[r]);
+				} else {
+					// the line break always needs quoting
+					buffer.append('"').append(model.names[r].replace("\"", "\"\"")).append("\n<")
+							.append(model.qualifiers[r].name()).append(">\"");
+				}
+				buffer.append(",,\r\n");
 			}
+		});
 
-			writer.writeField("" + (source.index + INDEX_OFFSET));
-			writer.writeField("State Name");
-			writer.writeField("UML");
-			writer.writeField("1");
-			writer.writeField("");
-			writer.writeField("");
-			writer.writeField("");
-			writer.writeField("");
-			writer.writeField("");
-			writer.writeField(label);
-			writer.writeField("");
-			writer.writeField("");
-			writer.newLine();
-
-		}
-
-		int lineCounter = INDEX_OFFSET + lstates.size();
 		// write out the transitions
-		for (StateInfo source : lstates) {
-
-			for (TransitionInfo t : source.transitions) {
-
-				writer.writeField("" + (lineCounter++));
-				writer.writeField("Line");
-				writer.writeField("");
-				writer.writeField("1");
-				writer.writeField("");
-				writer.writeField("" + (source.index + INDEX_OFFSET));
-				writer.writeField("" + (t.target.index + INDEX_OFFSET));
-				writer.writeField("None");
-				writer.writeField("Arrow");
-				writer.writeField(t.event);
-				writer.writeField("");
-				writer.writeField("");
-				writer.newLine();
-
+		final int lineOffset = INDEX_OFFSET + model.stateCount;
+		render(model, writer, (buffer, from, to) -> {
+			for (int r = from; r < to; r++) {
+				for (int t = model.transitionStart[r]; t < model.transitionStart[r + 1]; t++) {
+					buffer.append(t + lineOffset).append(",Line,,1,,").append(r + INDEX_OFFSET).append(',')
+							.append(model.transitionTarget[t] + INDEX_OFFSET).append(",None,Arrow,")
+							.appendCsv(model.transitionEvent[t]).append(",,\r\n");
+				}
 			}
-
-		}
-		writer.flush();
+		});
 	}
 
 }
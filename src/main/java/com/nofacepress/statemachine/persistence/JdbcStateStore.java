@@ -0,0 +1,154 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.persistence;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import com.nofacepress.statemachine.typeconverters.FromStringConverter;
+import com.nofacepress.statemachine.typeconverters.ToStringConverter;
+
+/**
+ * StateStore keeping one row per instance in a two column table, id and
+ * state, both as text. A batch is written in one transaction as a JDBC batch
+ * of updates followed by a batch of inserts for the ids that had no row, which
+ * works on any SQL database. Drivers that report a batched update as
+ * {@link Statement#SUCCESS_NO_INFO} get those rows updated again one at a time
+ * to learn whether they exist.
+ *
+ * @param <K> The instance id class
+ * @param <S> The state class
+ */
+public class JdbcStateStore<K, S> implements StateStore<K, S> {
+
+	private final DataSource dataSource;
+	private final String table;
+	private final ToStringConverter<K> idConverter;
+	private final ToStringConverter<S> stateToString;
+	private final FromStringConverter<S> stateFromString;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param dataSource      where to get connections
+	 * @param table           the table name
+	 * @param idConverter     converts ids to the text stored
+	 * @param stateToString   converts states to the text stored
+	 * @param stateFromString converts the stored text back to states
+	 */
+	public JdbcStateStore(DataSource dataSource, String table, ToStringConverter<K> idConverter,
+			ToStringConverter<S> stateToString, FromStringConverter<S> stateFromString) {
+		if (!table.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+			throw new IllegalArgumentException("Invalid table name " + table);
+		}
+		this.dataSource = dataSource;
+		this.table = table;
+		this.idConverter = idConverter;
+		this.stateToString = stateToString;
+		this.stateFromString = stateFromString;
+	}
+
+	/**
+	 * Creates the table if it does not exist.
+	 *
+	 * @throws SQLException on failure
+	 */
+	public void createTable() throws SQLException {
+		try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+			statement.execute("CREATE TABLE IF NOT EXISTS " + table
+					+ " (id VARCHAR(255) NOT NULL PRIMARY KEY, state VARCHAR(255) NOT NULL)");
+		}
+	}
+
+	@Override
+	public void write(Map<K, S> states) throws SQLException {
+		if (states.isEmpty()) {
+			return;
+		}
+		List<String> ids = new ArrayList<String>(states.size());
+		List<String> values = new ArrayList<String>(states.size());
+		for (Map.Entry<K, S> entry : states.entrySet()) {
+			ids.add(idConverter.convertToString(entry.getKey()));
+			values.add(stateToString.convertToString(entry.getValue()));
+		}
+
+		try (Connection connection = dataSource.getConnection()) {
+			boolean autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+			try {
+				int[] updated;
+				try (PreparedStatement update = connection
+						.prepareStatement("UPDATE " + table + " SET state = ? WHERE id = ?")) {
+					for (int i = 0; i < ids.size(); i++) {
+						update.setString(1, values.get(i));
+						update.setString(2, ids.get(i));
+						update.addBatch();
+					}
+					updated = update.executeBatch();
+					for (int i = 0; i < ids.size(); i++) {
+						if (updated[i] == Statement.SUCCESS_NO_INFO) {
+							// the driver did not say whether the row exists, so ask again
+							update.setString(1, values.get(i));
+							update.setString(2, ids.get(i));
+							updated[i] = update.executeUpdate();
+						}
+					}
+				}
+				boolean inserts = false;
+				try (PreparedStatement insert = connection
+						.prepareStatement("INSERT INTO " + table + " (id, state) VALUES (?, ?)")) {
+					for (int i = 0; i < ids.size(); i++) {
+						if (updated[i] == 0) {
+							insert.setString(1, ids.get(i));
+							insert.setString(2, values.get(i));
+							insert.addBatch();
+							inserts = true;
+						}
+					}
+					if (inserts) {
+						insert.executeBatch();
+					}
+				}
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(autoCommit);
+			}
+		}
+	}
+
+	@Override
+	public S read(K id) throws SQLException {
+		try (Connection connection = dataSource.getConnection();
+				PreparedStatement select = connection.prepareStatement("SELECT state FROM " + table + " WHERE id = ?")) {
+			select.setString(1, idConverter.convertToString(id));
+			try (ResultSet rs = select.executeQuery()) {
+				return rs.next() ? stateFromString.convertFromString(rs.getString(1)) : null;
+			}
+		}
+	}
+
+}
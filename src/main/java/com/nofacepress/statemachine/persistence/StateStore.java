@@ -0,0 +1,47 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.persistence;
+
+import java.util.Map;
+
+/**
+ * Where a WriteBehindPersister keeps the current state of each instance.
+ *
+ * @param <K> The instance id class
+ * @param <S> The state class
+ */
+public interface StateStore<K, S> {
+
+	/**
+	 * Stores the latest state of a batch of instances, replacing what is stored
+	 * for them. The batch should be written all or nothing; if this throws, the
+	 * whole batch is written again later.
+	 *
+	 * @param states the state of each instance
+	 * @throws Exception if the batch could not be stored
+	 */
+	void write(Map<K, S> states) throws Exception;
+
+	/**
+	 * Reads the stored state of an instance.
+	 *
+	 * @param id the instance id
+	 * @return the state, or null if none is stored
+	 * @throws Exception if the store could not be read
+	 */
+	S read(K id) throws Exception;
+
+}
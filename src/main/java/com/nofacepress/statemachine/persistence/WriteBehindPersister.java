@@ -0,0 +1,392 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.persistence;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.StateType;
+import com.nofacepress.statemachine.listener.AfterStateChangedListener;
+
+/**
+ * Persists instance states behind the state changes instead of during them.
+ * Attached to a graph, it records the new state of every instance that
+ * changes state in a buffer keyed by instance id. Later changes of an instance
+ * that is still buffered replace its entry, so a burst of transitions costs
+ * one write. A background thread writes the buffer to a StateStore in batches
+ * of up to maxBatchSize, as soon as a batch is full or flushInterval after the
+ * first buffered change.
+ *
+ * A failed batch goes back into the buffer, behind any newer state of the
+ * same instances, and is retried after flushInterval. Callers that must not go
+ * on before a change is stored use awaitDurable(), which flushes at once and
+ * waits until everything recorded before the call is written.
+ *
+ * The buffer holds at most one entry per instance. Changes that are forced
+ * without notifying listeners are not seen; record() them directly. Only the
+ * id returned by idOf is kept, never the instance, so the scratch instances of
+ * StateMachineGraph.transition() are fine.
+ *
+ * @param <K> The instance id class
+ * @param <S> The state class
+ * @param <E> The event class
+ * @param <C> The context class
+ */
+public class WriteBehindPersister<K, S, E, C> implements AfterStateChangedListener<S, E, C>, AutoCloseable {
+
+	private final StateStore<K, S> store;
+	private final Function<? super StateMachineInstance<S, E, C>, ? extends K> idOf;
+	private final int maxBatchSize;
+	private final long flushIntervalNanos;
+	private final Thread thread;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition work = lock.newCondition();
+	private final Condition stored = lock.newCondition();
+	private final LinkedHashMap<K, S> pending = new LinkedHashMap<K, S>();
+	// the batch being written, read by getState() until the write is over
+	private Map<K, S> inFlight = Collections.emptyMap();
+	private long firstPendingNanos;
+	private long recorded;
+	private long durable;
+	private long flushRequested;
+	private boolean closed;
+
+	private long writes;
+	private long batches;
+	private long coalesced;
+	private long failures;
+	private Exception lastFailure;
+
+	/**
+	 * Constructor flushing batches of up to 1000 at least every 100
+	 * milliseconds.
+	 *
+	 * @param store the store to write to
+	 * @param idOf  returns the id of an instance
+	 */
+	public WriteBehindPersister(StateStore<K, S> store, Function<? super StateMachineInstance<S, E, C>, ? extends K> idOf) {
+		this(store, idOf, 1000, 100, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param store         the store to write to
+	 * @param idOf          returns the id of an instance
+	 * @param maxBatchSize  the most instances written in one batch
+	 * @param flushInterval the longest time a change waits to be written
+	 * @param unit          the unit of flushInterval
+	 */
+	public WriteBehindPersister(StateStore<K, S> store, Function<? super StateMachineInstance<S, E, C>, ? extends K> idOf,
+			int maxBatchSize, long flushInterval, TimeUnit unit) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize must be positive");
+		}
+		if (flushInterval <= 0) {
+			throw new IllegalArgumentException("flushInterval must be positive");
+		}
+		this.store = store;
+		this.idOf = idOf;
+		this.maxBatchSize = maxBatchSize;
+		this.flushIntervalNanos = unit.toNanos(flushInterval);
+		this.thread = new Thread(this::run, "state-machine-write-behind");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Starts persisting the state changes of a graph.
+	 *
+	 * @param graph the graph
+	 */
+	public void attach(StateMachineGraph<S, E, C> graph) {
+		graph.getListenerManager().addListener(this);
+	}
+
+	/**
+	 * Stops persisting the state changes of a graph.
+	 *
+	 * @param graph the graph
+	 */
+	public void detach(StateMachineGraph<S, E, C> graph) {
+		graph.getListenerManager().removeAfterStateChangedListener(this);
+	}
+
+	@Override
+	public void afterStateChanged(StateMachineInstance<S, E, C> instance, StateType<S, E, C> source,
+			StateType<S, E, C> target, E event) {
+		record(idOf.apply(instance), target.getId());
+	}
+
+	/**
+	 * Records the state of an instance to be written.
+	 *
+	 * @param id    the instance id
+	 * @param state the state
+	 * @throws IllegalStateException if closed
+	 */
+	public void record(K id, S state) {
+		lock.lock();
+		try {
+			if (closed) {
+				throw new IllegalStateException("Persister is closed.");
+			}
+			if (pending.isEmpty()) {
+				firstPendingNanos = System.nanoTime();
+				work.signal();
+			}
+			if (pending.put(id, state) != null) {
+				coalesced++;
+			} else if (pending.size() == maxBatchSize) {
+				work.signal();
+			}
+			recorded++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the latest state of an instance, buffered, being written or
+	 * stored.
+	 *
+	 * @param id the instance id
+	 * @return the state, or null if none was recorded
+	 * @throws Exception if the store could not be read
+	 */
+	public S getState(K id) throws Exception {
+		lock.lock();
+		try {
+			S state = pending.get(id);
+			if (state == null) {
+				state = inFlight.get(id);
+			}
+			if (state != null) {
+				return state;
+			}
+		} finally {
+			lock.unlock();
+		}
+		return store.read(id);
+	}
+
+	/**
+	 * Flushes at once and waits until every state recorded before the call has
+	 * been written, or the time runs out. While the store keeps failing the
+	 * wait lasts until the timeout.
+	 *
+	 * @param timeout the maximum time to wait
+	 * @param unit    the unit of the timeout
+	 * @return false if the time ran out
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean awaitDurable(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			long target = recorded;
+			if (durable >= target) {
+				return true;
+			}
+			flushRequested = Math.max(flushRequested, target);
+			work.signal();
+			while (durable < target) {
+				if (nanos <= 0 || (closed && !thread.isAlive())) {
+					return false;
+				}
+				nanos = stored.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void run() {
+		lock.lock();
+		try {
+			for (;;) {
+				if (pending.isEmpty()) {
+					if (closed) {
+						return;
+					}
+					work.awaitUninterruptibly();
+					continue;
+				}
+				if (!closed && flushRequested <= durable && pending.size() < maxBatchSize) {
+					long wait = firstPendingNanos + flushIntervalNanos - System.nanoTime();
+					if (wait > 0) {
+						work.awaitNanos(wait);
+						continue;
+					}
+				}
+
+				Map<K, S> batch = new LinkedHashMap<K, S>();
+				Iterator<Map.Entry<K, S>> it = pending.entrySet().iterator();
+				while (it.hasNext() && batch.size() < maxBatchSize) {
+					Map.Entry<K, S> entry = it.next();
+					batch.put(entry.getKey(), entry.getValue());
+					it.remove();
+				}
+				// everything recorded so far is durable once this batch is
+				long mark = pending.isEmpty() ? recorded : durable;
+				firstPendingNanos = System.nanoTime();
+				inFlight = batch;
+
+				Exception failure = null;
+				lock.unlock();
+				try {
+					store.write(batch);
+				} catch (Exception e) {
+					failure = e;
+				} finally {
+					lock.lock();
+				}
+				inFlight = Collections.emptyMap();
+
+				if (failure == null) {
+					writes += batch.size();
+					batches++;
+					if (mark > durable) {
+						durable = mark;
+					}
+					stored.signalAll();
+					continue;
+				}
+
+				failures++;
+				lastFailure = failure;
+				if (closed) {
+					stored.signalAll();
+					return;
+				}
+				for (Map.Entry<K, S> entry : batch.entrySet()) {
+					pending.putIfAbsent(entry.getKey(), entry.getValue());
+				}
+				work.awaitNanos(flushIntervalNanos);
+			}
+		} catch (InterruptedException e) {
+			// never interrupted by this class
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes what is buffered and stops the background thread. If the store
+	 * fails while closing, the states still buffered are lost and the failure
+	 * is available from getLastFailure().
+	 */
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			work.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the number of instance states written.
+	 *
+	 * @return the count
+	 */
+	public long getWriteCount() {
+		lock.lock();
+		try {
+			return writes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of batches written.
+	 *
+	 * @return the count
+	 */
+	public long getBatchCount() {
+		lock.lock();
+		try {
+			return batches;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of recorded states replaced by a later one before
+	 * being written.
+	 *
+	 * @return the count
+	 */
+	public long getCoalescedCount() {
+		lock.lock();
+		try {
+			return coalesced;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of batches the store failed to write.
+	 *
+	 * @return the count
+	 */
+	public long getFailureCount() {
+		lock.lock();
+		try {
+			return failures;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the exception of the last failed batch.
+	 *
+	 * @return the exception or null
+	 */
+	public Exception getLastFailure() {
+		lock.lock();
+		try {
+			return lastFailure;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
@@ -21,14 +21,20 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 import com.nofacepress.statemachine.StateMachineGraph;
-import com.nofacepress.statemachine.StateType;
+import com.nofacepress.statemachine.analysis.GraphAnalysis;
+import com.nofacepress.statemachine.analysis.StateQualifier;
 import com.nofacepress.statemachine.typeconverters.EnumToStringConverter;
 import com.nofacepress.statemachine.typeconverters.StringToStringConverter;
 import com.nofacepress.statemachine.typeconverters.ToStringConverter;
@@ -39,6 +45,84 @@ import com.nofacepress.statemachine.typeconverters.ToStringConverter;
  */
 public abstract class BaseManager {
 
+	/**
+	 * Number of states rendered per chunk when rendering in parallel.
+	 */
+	protected static final int CHUNK_SIZE = 4096;
+
+	/**
+	 * Size of the buffer used when writing charts.
+	 */
+	protected static final int BUFFER_SIZE = 64 * 1024;
+
+	// shared so that charts of the same graph hit the cache
+	private static final ToStringConverter<String> STRING_CONVERTER = new StringToStringConverter();
+	@SuppressWarnings("rawtypes")
+	private static final EnumToStringConverter ENUM_CONVERTER = new EnumToStringConverter();
+
+	private boolean parallel = false;
+	private boolean cacheOutput = false;
+
+	// last chart model, and optionally output, of every graph, by graph version
+	private final Map<StateMachineGraph<?, ?, ?>, CachedChart> cache = Collections
+			.synchronizedMap(new WeakHashMap<StateMachineGraph<?, ?, ?>, CachedChart>());
+
+	private static final class CachedChart {
+		final long version;
+		final ToStringConverter<?> Sconv;
+		final ToStringConverter<?> Econv;
+		final ChartModel model;
+		String title = null;
+		ChartBuffer output = null;
+
+		CachedChart(long version, ToStringConverter<?> Sconv, ToStringConverter<?> Econv, ChartModel model) {
+			this.version = version;
+			this.Sconv = Sconv;
+			this.Econv = Econv;
+			this.model = model;
+		}
+	}
+
+	/**
+	 * Returns if large charts are rendered in parallel.
+	 * 
+	 * @return true if rendering in parallel
+	 */
+	public boolean isParallel() {
+		return parallel;
+	}
+
+	/**
+	 * Sets if large charts are rendered in parallel chunks on the common fork join
+	 * pool. The output is the same either way.
+	 * 
+	 * @param parallel true to render in parallel
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	/**
+	 * Returns if rendered charts are cached.
+	 * 
+	 * @return true if caching output
+	 */
+	public boolean isCacheOutput() {
+		return cacheOutput;
+	}
+
+	/**
+	 * Sets if the last rendered chart of every graph is kept and written again as
+	 * long as the graph version, title and converters are the same. The layout of
+	 * a graph is always cached, this also keeps the output, which costs memory in
+	 * the size of the chart.
+	 * 
+	 * @param cacheOutput true to cache rendered charts
+	 */
+	public void setCacheOutput(boolean cacheOutput) {
+		this.cacheOutput = cacheOutput;
+	}
+
 	/**
 	 * Creates a LucidChart state chart assuming both the states and events are type
 	 * String.
@@ -51,8 +135,7 @@ public abstract class BaseManager {
 	 */
 	public <C> void saveStringGraph(StateMachineGraph<String, String, C> graph, String title, String filename)
 			throws IOException {
-		ToStringConverter<String> conv = new StringToStringConverter();
-		saveGraph(graph, title, filename, conv, conv);
+		saveGraph(graph, title, filename, STRING_CONVERTER, STRING_CONVERTER);
 	}
 
 	/**
@@ -67,8 +150,7 @@ public abstract class BaseManager {
 	 */
 	public <C> void saveStringGraph(StateMachineGraph<String, String, C> graph, String title, Writer writer)
 			throws IOException {
-		ToStringConverter<String> conv = new StringToStringConverter();
-		saveGraph(graph, title, writer, conv, conv);
+		saveGraph(graph, title, writer, STRING_CONVERTER, STRING_CONVERTER);
 	}
 
 	/**
@@ -86,8 +168,10 @@ public abstract class BaseManager {
 	public <S extends Enum<S>, E extends Enum<E>, C> void saveEnumGraph(StateMachineGraph<S, E, C> graph,
 			String title,
 			String filename) throws IOException {
-		ToStringConverter<S> Sconv = new EnumToStringConverter<S>();
-		ToStringConverter<E> Econv = new EnumToStringConverter<E>();
+		@SuppressWarnings("unchecked")
+		ToStringConverter<S> Sconv = ENUM_CONVERTER;
+		@SuppressWarnings("unchecked")
+		ToStringConverter<E> Econv = ENUM_CONVERTER;
 		saveGraph(graph, title, filename, Sconv, Econv);
 	}
 
@@ -106,8 +190,10 @@ public abstract class BaseManager {
 	public <S extends Enum<S>, E extends Enum<E>, C> void saveEnumGraph(StateMachineGraph<S, E, C> graph,
 			String title,
 			Writer writer) throws IOException {
-		ToStringConverter<S> Sconv = new EnumToStringConverter<S>();
-		ToStringConverter<E> Econv = new EnumToStringConverter<E>();
+		@SuppressWarnings("unchecked")
+		ToStringConverter<S> Sconv = ENUM_CONVERTER;
+		@SuppressWarnings("unchecked")
+		ToStringConverter<E> Econv = ENUM_CONVERTER;
 		saveGraph(graph, title, writer, Sconv, Econv);
 	}
 
@@ -150,6 +236,206 @@ public abstract class BaseManager {
 	public abstract <S, E, C> void saveGraph(StateMachineGraph<S, E, C> graph, String title, Writer writer,
 			ToStringConverter<S> Sconv, ToStringConverter<E> Econv) throws IOException;
 
+	/**
+	 * Flat, output ordered view of a graph for the exporters. States are indexed by
+	 * their rank in the output, the transitions of state r are transitionStart[r]
+	 * to transitionStart[r + 1] - 1 and are sorted by the rank of their target.
+	 */
+	protected static final class ChartModel {
+		public final int stateCount;
+		public final String[] names;
+		public final String[] ids;
+		public final StateQualifer[] qualifiers;
+		public final int[] transitionStart;
+		public final int[] transitionTarget;
+		public final String[] transitionEvent;
+
+		private ChartModel(int stateCount, int transitionCount) {
+			this.stateCount = stateCount;
+			names = new String[stateCount];
+			ids = new String[stateCount];
+			qualifiers = new StateQualifer[stateCount];
+			transitionStart = new int[stateCount + 1];
+			transitionTarget = new int[transitionCount];
+			transitionEvent = new String[transitionCount];
+		}
+	}
+
+	/**
+	 * Renders a complete chart from a ChartModel.
+	 */
+	protected interface ChartRenderer {
+		void render(ChartModel model, String title, ChartBuffer out) throws IOException;
+	}
+
+	/**
+	 * Renders the states from (inclusive) to (exclusive) of a ChartModel.
+	 */
+	protected interface ChunkRenderer {
+		void render(ChartBuffer buffer, int from, int to) throws IOException;
+	}
+
+	/**
+	 * Builds the ChartModel of a graph, in the same order as
+	 * analyzeStateMachine().
+	 * 
+	 * @param       <S> the state type
+	 * @param       <E> the event type
+	 * @param       <C> the context type
+	 * @param graph the graph
+	 * @param Sconv the object for converting from a state to a String
+	 * @param Econv the object for converting from an event to a String
+	 * @return the model
+	 */
+	protected static <S, E, C> ChartModel buildChartModel(StateMachineGraph<S, E, C> graph,
+			ToStringConverter<S> Sconv, ToStringConverter<E> Econv) {
+
+		GraphAnalysis<S, E, C> analysis = GraphAnalysis.analyze(graph);
+		final int n = analysis.getStateCount();
+		final int initial = analysis.getInitialIndex();
+		ChartModel model = new ChartModel(n, analysis.getTransitionCount());
+
+		String[] names = new String[n];
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			names[i] = Sconv.convertToString(analysis.getStateId(i));
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> {
+			if (a.intValue() == b.intValue())
+				return 0;
+			if (a == initial)
+				return -1;
+			if (b == initial)
+				return 1;
+			int x = Integer.compare(analysis.getPathLength(b), analysis.getPathLength(a));
+			return x == 0 ? names[a].compareTo(names[b]) : x;
+		});
+
+		int[] rank = new int[n];
+		for (int r = 0; r < n; r++) {
+			rank[order[r]] = r;
+		}
+
+		// sort each row by target rank, keeping graph order for equal targets
+		long[] keys = new long[analysis.getTransitionCount()];
+		int next = 0;
+		for (int r = 0; r < n; r++) {
+			int i = order[r];
+			StateQualifier qualifier = analysis.getQualifier(i);
+			model.names[r] = names[i];
+			model.ids[r] = generateId(names[i], r + 1);
+			model.qualifiers[r] = (qualifier == null) ? null : StateQualifer.valueOf(qualifier.name());
+			model.transitionStart[r] = next;
+			int end = analysis.getTransitionStart(i + 1);
+			for (int t = analysis.getTransitionStart(i); t < end; t++) {
+				keys[next++] = ((long) rank[analysis.getTransitionTarget(t)] << 32) | t;
+			}
+			Arrays.sort(keys, model.transitionStart[r], next);
+		}
+		model.transitionStart[n] = next;
+		for (int k = 0; k < next; k++) {
+			int t = (int) keys[k];
+			model.transitionTarget[k] = (int) (keys[k] >>> 32);
+			model.transitionEvent[k] = Econv.convertToString(analysis.getTransitionEvent(t));
+		}
+		return model;
+	}
+
+	/**
+	 * Writes a chart, reusing the cached chart model of the graph, and the cached
+	 * output if enabled, as long as the graph version and the converters are the
+	 * same. Converters are compared by identity, so callers with their own
+	 * converters should reuse the same instances.
+	 * 
+	 * @param          <S> the state type
+	 * @param          <E> the event type
+	 * @param          <C> the context type
+	 * @param graph    the graph
+	 * @param title    the title to put on the chart, null is ok for no title.
+	 * @param writer   the output to write to
+	 * @param Sconv    the object for converting from a state to a String
+	 * @param Econv    the object for converting from an event to a String
+	 * @param renderer the renderer of the chart format
+	 * @throws IOException on file I/O errors
+	 */
+	protected <S, E, C> void writeChart(StateMachineGraph<S, E, C> graph, String title, Writer writer,
+			ToStringConverter<S> Sconv, ToStringConverter<E> Econv, ChartRenderer renderer) throws IOException {
+
+		long version = graph.getVersion();
+		CachedChart cached = (version == -1) ? null : cache.get(graph);
+		if (cached == null || cached.version != version || cached.Sconv != Sconv || cached.Econv != Econv) {
+			cached = new CachedChart(version, Sconv, Econv, buildChartModel(graph, Sconv, Econv));
+			if (version != -1) {
+				cache.put(graph, cached);
+			}
+		}
+
+		ChartBuffer out = new ChartBuffer(writer, BUFFER_SIZE);
+		if (cacheOutput) {
+			ChartBuffer output;
+			synchronized (cached) {
+				if (cached.output == null || !Objects.equals(cached.title, title)) {
+					ChartBuffer buffer = new ChartBuffer(BUFFER_SIZE);
+					renderer.render(cached.model, title, buffer);
+					cached.title = title;
+					cached.output = buffer;
+				}
+				output = cached.output;
+			}
+			out.append(output);
+		} else {
+			renderer.render(cached.model, title, out);
+		}
+		out.flush();
+		writer.flush();
+	}
+
+	/**
+	 * Renders all states of a model in order, in parallel chunks if enabled and
+	 * the model is large enough. Chunks are rendered a pool's worth at a time and
+	 * appended in order, so memory use is bounded by the chunks in flight.
+	 * 
+	 * @param model    the model
+	 * @param out      the buffer to render to
+	 * @param renderer the renderer
+	 * @throws IOException on file I/O errors
+	 */
+	protected void render(ChartModel model, ChartBuffer out, ChunkRenderer renderer) throws IOException {
+		final int n = model.stateCount;
+		if (!parallel || n <= CHUNK_SIZE) {
+			renderer.render(out, 0, n);
+			return;
+		}
+		final int chunks = (n + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		final int window = Math.max(2, ForkJoinPool.getCommonPoolParallelism() * 2);
+		final ChartBuffer[] buffers = new ChartBuffer[Math.min(window, chunks)];
+		for (int first = 0; first < chunks; first += window) {
+			final int base = first;
+			final int count = Math.min(window, chunks - first);
+			try {
+				IntStream.range(0, count).parallel().forEach(c -> {
+					ChartBuffer buffer = buffers[c];
+					if (buffer == null) {
+						buffer = buffers[c] = new ChartBuffer(BUFFER_SIZE);
+					}
+					buffer.clear();
+					int from = (base + c) * CHUNK_SIZE;
+					try {
+						renderer.render(buffer, from, Math.min(n, from + CHUNK_SIZE));
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			for (int c = 0; c < count; c++) {
+				out.append(buffers[c]);
+			}
+		}
+	}
+
 	protected static class StateInfo extends StateInfoBase {
 		public List<TransitionInfo> transitions = new ArrayList<TransitionInfo>();
 
@@ -167,7 +453,6 @@ public abstract class BaseManager {
 		public String id;
 		public String name;
 		public StateQualifer qualifier = null;
-		boolean targeted = false;
 		int pathlength = -1;
 
 		public static int compare(StateInfoBase a, StateInfoBase b) {
@@ -200,67 +485,30 @@ public abstract class BaseManager {
 
 	}
 
-	private static <S, E> int getPathLength(StateInfo info) {
-		if (info.pathlength < 0) {
-
-			info.pathlength = 0; // handles circular paths
-
-			int length = 0;
-			for (TransitionInfo t : info.transitions) {
-				if (t.target.qualifier != StateQualifer.initial) {
-					int l = getPathLength(StateInfo.class.cast(t.target));
-					length = (l > length) ? l : length;
-				}
-			}
-			info.pathlength = length + 1;
-
-		}
-		return info.pathlength;
-	}
-
 	protected static <S, E, C> List<StateInfo> analyzeStateMachine(StateMachineGraph<S, E, C> graph,
 			ToStringConverter<S> Sconv, ToStringConverter<E> Econv) {
 
-		S initialState = graph.getInitialState();
-		List<StateInfo> stateList = new ArrayList<StateInfo>();
-		Map<S, StateInfo> stateMAP = new HashMap<S, StateInfo>();
-		StateInfo initial = null;
+		GraphAnalysis<S, E, C> analysis = GraphAnalysis.analyze(graph);
+		final int n = analysis.getStateCount();
+		StateInfo[] infos = new StateInfo[n];
+		List<StateInfo> stateList = new ArrayList<StateInfo>(n);
 
-		// go through all the states first as some of them may be missing from the
-		// transitions
-
-		for (StateType<S, E, C> s : graph.getStates()) {
+		for (int i = 0; i < n; i++) {
 			StateInfo info = new StateInfo();
-			info.name = Sconv.convertToString(s.getId());
-			stateMAP.put(s.getId(), info);
+			info.name = Sconv.convertToString(analysis.getStateId(i));
+			info.pathlength = analysis.getPathLength(i);
+			StateQualifier qualifier = analysis.getQualifier(i);
+			info.qualifier = (qualifier == null) ? null : StateQualifer.valueOf(qualifier.name());
+			infos[i] = info;
 			stateList.add(info);
-			if (s.getId() == initialState) {
-				initial = info;
-			}
-
-//			for (Entry<E, ? extends StateType<S, E, C>> entry : state.getTransitions().entrySet()) {
-//			}
-
 		}
 
 		// walk all the transitions
-		for (StateType<S, E, C> sourceState : graph.getStates()) {
-			for (Entry<E, ? extends StateType<S, E, C>> entry : sourceState.getTransitions().entrySet()) {
-				StateInfo source = stateMAP.get(sourceState.getId());
-				StateType<S, E, C> targetState = entry.getValue();
-				StateInfo target = stateMAP.get(targetState.getId());
-				String event = Econv.convertToString(entry.getKey());
-				source.addTransition(target, event);
-				target.targeted = true; // help of determine if this node is reachable in the normal flow
-			}
-		}
-
-		// compute path lengths, starting with the initial
-		initial.qualifier = StateQualifer.initial;
-		getPathLength(initial);
-		for (StateInfo s : stateList) {
-			if (s.pathlength < 0) {
-				getPathLength(s);
+		for (int i = 0; i < n; i++) {
+			StateInfo source = infos[i];
+			for (int t = analysis.getTransitionStart(i); t < analysis.getTransitionStart(i + 1); t++) {
+				source.addTransition(infos[analysis.getTransitionTarget(t)],
+						Econv.convertToString(analysis.getTransitionEvent(t)));
 			}
 		}
 
@@ -270,16 +518,6 @@ public abstract class BaseManager {
 			StateInfo state = stateList.get(i);
 			state.index = i;
 			state.id = generateId(state.name, i + 1);
-
-			if (state == initial) {
-				state.qualifier = StateQualifer.initial;
-			} else if (!state.targeted && state.transitions.isEmpty()) {
-				state.qualifier = StateQualifer.orphan;
-			} else if (state.transitions.isEmpty()) {
-				state.qualifier = StateQualifer.done;
-			} else if (!state.targeted) {
-				state.qualifier = StateQualifer.alternate;
-			}
 			// sort for a predictable output
 			state.transitions.sort((a, b) -> StateInfoBase.compare(a.target, b.target));
 		}
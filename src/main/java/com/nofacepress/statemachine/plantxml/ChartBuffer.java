@@ -0,0 +1,219 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.plantxml;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Reusable character buffer the chart exporters render into. Strings and
+ * numbers are copied straight into a char array with no formatting or
+ * intermediate strings.
+ *
+ * A buffer created with a Writer is flushed to it whenever it fills up, a
+ * buffer created without one grows instead, which is used for rendering chunks
+ * in parallel.
+ */
+public class ChartBuffer {
+
+	private final Writer out;
+	private char[] buf;
+	private int len = 0;
+
+	/**
+	 * Creates a buffer that flushes to a writer when full.
+	 *
+	 * @param out      the writer
+	 * @param capacity the buffer size
+	 */
+	public ChartBuffer(Writer out, int capacity) {
+		this.out = out;
+		this.buf = new char[Math.max(64, capacity)];
+	}
+
+	/**
+	 * Creates a buffer that grows as needed.
+	 *
+	 * @param capacity the initial buffer size
+	 */
+	public ChartBuffer(int capacity) {
+		this(null, capacity);
+	}
+
+	private void reserve(int n) throws IOException {
+		if (len + n <= buf.length) {
+			return;
+		}
+		if (out != null) {
+			flush();
+			if (n <= buf.length) {
+				return;
+			}
+		}
+		char[] bigger = new char[Math.max(buf.length * 2, len + n)];
+		System.arraycopy(buf, 0, bigger, 0, len);
+		buf = bigger;
+	}
+
+	/**
+	 * Appends a character.
+	 *
+	 * @param ch the character
+	 * @return this buffer for chaining
+	 * @throws IOException on I/O error while flushing
+	 */
+	public ChartBuffer append(char ch) throws IOException {
+		if (len == buf.length) {
+			reserve(1);
+		}
+		buf[len++] = ch;
+		return this;
+	}
+
+	/**
+	 * Appends a string.
+	 *
+	 * @param s the string
+	 * @return this buffer for chaining
+	 * @throws IOException on I/O error while flushing
+	 */
+	public ChartBuffer append(String s) throws IOException {
+		int n = s.length();
+		reserve(n);
+		s.getChars(0, n, buf, len);
+		len += n;
+		return this;
+	}
+
+	/**
+	 * Appends a number in decimal.
+	 *
+	 * @param value the number
+	 * @return this buffer for chaining
+	 * @throws IOException on I/O error while flushing
+	 */
+	public ChartBuffer append(int value) throws IOException {
+		reserve(11);
+		long v = value;
+		if (v < 0) {
+			buf[len++] = '-';
+			v = -v;
+		}
+		int digits = 1;
+		for (long p = 10; p <= v; p *= 10) {
+			digits++;
+		}
+		for (int i = len + digits - 1; i >= len; i--) {
+			buf[i] = (char) ('0' + (v % 10));
+			v /= 10;
+		}
+		len += digits;
+		return this;
+	}
+
+	/**
+	 * Appends the contents of another buffer.
+	 *
+	 * @param other the buffer to copy from
+	 * @return this buffer for chaining
+	 * @throws IOException on I/O error while flushing
+	 */
+	public ChartBuffer append(ChartBuffer other) throws IOException {
+		if (out != null && other.len > buf.length) {
+			flush();
+			out.write(other.buf, 0, other.len);
+			return this;
+		}
+		reserve(other.len);
+		System.arraycopy(other.buf, 0, buf, len, other.len);
+		len += other.len;
+		return this;
+	}
+
+	/**
+	 * Appends a CSV field as defined by RFC 4180. Fields containing a quote, comma
+	 * or line break are quoted and embedded quotes are doubled, everything else is
+	 * copied as is.
+	 *
+	 * @param s the field, null is written as an empty field
+	 * @return this buffer for chaining
+	 * @throws IOException on I/O error while flushing
+	 */
+	public ChartBuffer appendCsv(String s) throws IOException {
+		if (s == null) {
+			return this;
+		}
+		final int n = s.length();
+		int quotes = 0;
+		boolean special = false;
+		for (int i = 0; i < n; i++) {
+			char ch = s.charAt(i);
+			if (ch == '"') {
+				quotes++;
+			} else if (ch == ',' || ch == '\r' || ch == '\n') {
+				special = true;
+			}
+		}
+		if (quotes == 0 && !special) {
+			return append(s);
+		}
+		reserve(n + quotes + 2);
+		buf[len++] = '"';
+		for (int i = 0; i < n; i++) {
+			char ch = s.charAt(i);
+			if (ch == '"') {
+				buf[len++] = '"';
+			}
+			buf[len++] = ch;
+		}
+		buf[len++] = '"';
+		return this;
+	}
+
+	/**
+	 * Writes out anything buffered, if created with a writer.
+	 *
+	 * @throws IOException on I/O error
+	 */
+	public void flush() throws IOException {
+		if (out != null && len > 0) {
+			out.write(buf, 0, len);
+			len = 0;
+		}
+	}
+
+	/**
+	 * Returns the number of buffered characters.
+	 *
+	 * @return the length
+	 */
+	public int length() {
+		return len;
+	}
+
+	/**
+	 * Discards the buffered characters, keeping the allocated buffer.
+	 */
+	public void clear() {
+		len = 0;
+	}
+
+	@Override
+	public String toString() {
+		return new String(buf, 0, len);
+	}
+
+}
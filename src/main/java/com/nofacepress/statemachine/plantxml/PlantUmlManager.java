@@ -17,7 +17,6 @@ package com.nofacepress.statemachine.plantxml;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.util.List;
 
 import com.nofacepress.statemachine.StateMachineGraph;
 import com.nofacepress.statemachine.typeconverters.ToStringConverter;
@@ -60,59 +59,61 @@ public class PlantUmlManager extends BaseManager {
 	@Override
 	public <S, E, C> void saveGraph(StateMachineGraph<S, E, C> graph, String title, Writer writer,
 			ToStringConverter<S> Sconv, ToStringConverter<E> Econv) throws IOException {
+		writeChart(graph, title, writer, Sconv, Econv, this::renderChart);
+	}
 
-		List<StateInfo> lstates = analyzeStateMachine(graph, Sconv, Econv);
-
+	private void renderChart(ChartModel model, String title, ChartBuffer out) throws IOException {
 		final String[] arrowsFromAbove = { PlanetUMLConstants.DOWN_ARROW, PlanetUMLConstants.RIGHT_ARROW,
 				PlanetUMLConstants.LEFT_ARROW };
 		final String[] arrowsFromBelow = { PlanetUMLConstants.UP_ARROW, PlanetUMLConstants.LEFT_ARROW,
 				PlanetUMLConstants.RIGHT_ARROW };
 
-		writer.append(PlanetUMLConstants.START_UML + "\n");
-		writer.append(PlanetUMLConstants.MONOCHROME + "\n");
+		out.append(PlanetUMLConstants.START_UML).append('\n');
+		out.append(PlanetUMLConstants.MONOCHROME).append('\n');
 
 		if (title != null && !title.isEmpty()) {
-			writer.append(String.format("%s %s\n", PlanetUMLConstants.TITLE_PARAM, title));
+			out.append(PlanetUMLConstants.TITLE_PARAM).append(' ').append(title).append('\n');
 		}
 
-		for (StateInfo state : lstates) {
-			String label = "";
-			String clazz = "";
-			if (state.qualifier != null) {
-				label = String.format("\\n[<i>%s</i>]", state.qualifier.name());
-				clazz = String.format(" <<%s>>", state.qualifier.name());
+		render(model, out, (buffer, from, to) -> {
+			for (int r = from; r < to; r++) {
+				StateQualifer qualifier = model.qualifiers[r];
+				buffer.append(PlanetUMLConstants.STATE_PARAM).append(" \"").append(model.names[r]);
+				if (qualifier != null) {
+					buffer.append("\\n[<i>").append(qualifier.name()).append("</i>]");
+				}
+				buffer.append("\" ").append(PlanetUMLConstants.AS).append(' ').append(model.ids[r]);
+				if (qualifier != null) {
+					buffer.append(" <<").append(qualifier.name()).append(">>");
+				}
+				buffer.append('\n');
 			}
-			writer.append(String.format("%s \"%s%s\" %s %s%s\n", PlanetUMLConstants.STATE_PARAM, state.name, label,
-					PlanetUMLConstants.AS, state.id, clazz));
-		}
+		});
 
-		for (StateInfo source : lstates) {
-			if (source.qualifier == StateQualifer.initial) {
-				writer.append(String.format("%s %s %s\n", PlanetUMLConstants.BEGIN_STATE,
-						PlanetUMLConstants.RIGHT_ARROW, source.id));
-			}
-			if (source.qualifier == StateQualifer.done) {
-				writer.append(String.format("%s %s %s\n", source.id, PlanetUMLConstants.DOWN_ARROW,
-						PlanetUMLConstants.END_STATE));
-			} else {
-				int aboveN = 0;
-				int belowN = 0;
-				for (TransitionInfo t : source.transitions) {
-					if (t.target.index >= source.index) {
-						writer.append(String.format("%s %s %s : %s\n", source.id, arrowsFromAbove[aboveN++ % 3],
-								t.target.id, t.event));
-					} else {
-						writer.append(String.format("%s %s %s : %s\n", source.id, arrowsFromBelow[belowN++ % 3],
-								t.target.id, t.event));
+		render(model, out, (buffer, from, to) -> {
+			for (int r = from; r < to; r++) {
+				String id = model.ids[r];
+				if (model.qualifiers[r] == StateQualifer.initial) {
+					buffer.append(PlanetUMLConstants.BEGIN_STATE).append(' ').append(PlanetUMLConstants.RIGHT_ARROW)
+							.append(' ').append(id).append('\n');
+				}
+				if (model.qualifiers[r] == StateQualifer.done) {
+					buffer.append(id).append(' ').append(PlanetUMLConstants.DOWN_ARROW).append(' ')
+							.append(PlanetUMLConstants.END_STATE).append('\n');
+				} else {
+					int aboveN = 0;
+					int belowN = 0;
+					for (int t = model.transitionStart[r]; t < model.transitionStart[r + 1]; t++) {
+						int target = model.transitionTarget[t];
+						String arrow = (target >= r) ? arrowsFromAbove[aboveN++ % 3] : arrowsFromBelow[belowN++ % 3];
+						buffer.append(id).append(' ').append(arrow).append(' ').append(model.ids[target]).append(" : ")
+								.append(model.transitionEvent[t]).append('\n');
 					}
 				}
 			}
-		}
-
-		writer.append(PlanetUMLConstants.END_UML + "\n");
-
-		writer.flush();
+		});
 
+		out.append(PlanetUMLConstants.END_UML).append('\n');
 	}
 	
 }
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.replication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateType;
+
+/**
+ * Encodes batches of replication deltas as compact, deflated frames. A state
+ * is sent as its ordinal: the enum ordinal for enum states, otherwise its
+ * position in the graph, so the primary and followers must build their graphs
+ * the same way.
+ *
+ * A frame holds a kind byte (deltas or snapshot), the checkpoint it brings the
+ * follower to, the number of entries and then per entry the id followed by
+ * the state ordinal plus one as a variable length int, 0 meaning removed.
+ *
+ * @param <K> The instance id class
+ * @param <S> The state class
+ */
+public class DeltaCodec<K, S> {
+
+	private static final int DELTAS = 0;
+	private static final int SNAPSHOT = 1;
+
+	/**
+	 * A decoded frame.
+	 *
+	 * @param <K> The instance id class
+	 * @param <S> The state class
+	 */
+	public static final class Frame<K, S> {
+		private final boolean snapshot;
+		private final long checkpoint;
+		private final List<K> ids;
+		private final List<S> states;
+
+		Frame(boolean snapshot, long checkpoint, List<K> ids, List<S> states) {
+			this.snapshot = snapshot;
+			this.checkpoint = checkpoint;
+			this.ids = ids;
+			this.states = states;
+		}
+
+		/**
+		 * Returns true if the frame replaces every state instead of updating
+		 * some.
+		 *
+		 * @return true for a snapshot
+		 */
+		public boolean isSnapshot() {
+			return snapshot;
+		}
+
+		/**
+		 * Returns the last sequence covered by the frame.
+		 *
+		 * @return the checkpoint
+		 */
+		public long getCheckpoint() {
+			return checkpoint;
+		}
+
+		/**
+		 * Returns the instance ids.
+		 *
+		 * @return the ids
+		 */
+		public List<K> getIds() {
+			return ids;
+		}
+
+		/**
+		 * Returns the states, in the order of the ids, null where removed.
+		 *
+		 * @return the states
+		 */
+		public List<S> getStates() {
+			return states;
+		}
+	}
+
+	private final IdCodec<K> ids;
+	private final List<S> byOrdinal = new ArrayList<S>();
+	private final Map<S, Integer> ordinals = new HashMap<S, Integer>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param graph the graph of the instances
+	 * @param ids   the codec of the instance ids
+	 */
+	@SuppressWarnings("unchecked")
+	public DeltaCodec(StateMachineGraph<S, ?, ?> graph, IdCodec<K> ids) {
+		this.ids = ids;
+		S initial = graph.getInitialState();
+		if (initial instanceof Enum) {
+			for (Object state : ((Enum<?>) initial).getDeclaringClass().getEnumConstants()) {
+				byOrdinal.add((S) state);
+			}
+		} else {
+			for (StateType<S, ?, ?> state : graph.getStates()) {
+				byOrdinal.add(state.getId());
+			}
+		}
+		for (int i = 0; i < byOrdinal.size(); i++) {
+			ordinals.put(byOrdinal.get(i), i);
+		}
+	}
+
+	/**
+	 * Encodes a frame.
+	 *
+	 * @param snapshot   true if the frame replaces every state
+	 * @param checkpoint the last sequence covered by the frame
+	 * @param entries    the state of each id, null where removed
+	 * @return the frame
+	 * @throws IOException if an id could not be written
+	 */
+	public byte[] encode(boolean snapshot, long checkpoint, Map<K, S> entries) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater))) {
+			out.writeByte(snapshot ? SNAPSHOT : DELTAS);
+			out.writeLong(checkpoint);
+			writeVarInt(out, entries.size());
+			for (Map.Entry<K, S> entry : entries.entrySet()) {
+				ids.write(out, entry.getKey());
+				S state = entry.getValue();
+				if (state == null) {
+					writeVarInt(out, 0);
+				} else {
+					Integer ordinal = ordinals.get(state);
+					if (ordinal == null) {
+						throw new IOException("Unknown state " + state);
+					}
+					writeVarInt(out, ordinal + 1);
+				}
+			}
+		} finally {
+			deflater.end();
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a frame.
+	 *
+	 * @param frame the frame
+	 * @return the decoded frame
+	 * @throws IOException if the frame is corrupt
+	 */
+	public Frame<K, S> decode(byte[] frame) throws IOException {
+		try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(frame)))) {
+			boolean snapshot = in.readByte() == SNAPSHOT;
+			long checkpoint = in.readLong();
+			int count = readVarInt(in);
+			if (count < 0) {
+				throw new IOException("Invalid entry count " + count);
+			}
+			// not sized by the count, a corrupt count ends at the end of the frame
+			List<K> frameIds = new ArrayList<K>();
+			List<S> frameStates = new ArrayList<S>();
+			for (int i = 0; i < count; i++) {
+				frameIds.add(ids.read(in));
+				int ordinal = readVarInt(in) - 1;
+				if (ordinal < -1 || ordinal >= byOrdinal.size()) {
+					throw new IOException("Unknown state ordinal " + ordinal);
+				}
+				frameStates.add(ordinal < 0 ? null : byOrdinal.get(ordinal));
+			}
+			return new Frame<K, S>(snapshot, checkpoint, frameIds, frameStates);
+		}
+	}
+
+	private static void writeVarInt(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInput in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed variable length int");
+	}
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.replication;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes and reads instance ids in replication frames.
+ *
+ * @param <K> The instance id class
+ */
+public interface IdCodec<K> {
+
+	/**
+	 * Writes an id.
+	 *
+	 * @param out where to write
+	 * @param id  the id
+	 * @throws IOException if out fails
+	 */
+	void write(DataOutput out, K id) throws IOException;
+
+	/**
+	 * Reads an id.
+	 *
+	 * @param in where to read from
+	 * @return the id
+	 * @throws IOException if in fails
+	 */
+	K read(DataInput in) throws IOException;
+
+	/**
+	 * Returns a codec for Long ids.
+	 *
+	 * @return the codec
+	 */
+	static IdCodec<Long> longs() {
+		return new IdCodec<Long>() {
+			@Override
+			public void write(DataOutput out, Long id) throws IOException {
+				out.writeLong(id);
+			}
+
+			@Override
+			public Long read(DataInput in) throws IOException {
+				return in.readLong();
+			}
+		};
+	}
+
+	/**
+	 * Returns a codec for Integer ids.
+	 *
+	 * @return the codec
+	 */
+	static IdCodec<Integer> integers() {
+		return new IdCodec<Integer>() {
+			@Override
+			public void write(DataOutput out, Integer id) throws IOException {
+				out.writeInt(id);
+			}
+
+			@Override
+			public Integer read(DataInput in) throws IOException {
+				return in.readInt();
+			}
+		};
+	}
+
+	/**
+	 * Returns a codec for String ids.
+	 *
+	 * @return the codec
+	 */
+	static IdCodec<String> strings() {
+		return new IdCodec<String>() {
+			@Override
+			public void write(DataOutput out, String id) throws IOException {
+				out.writeUTF(id);
+			}
+
+			@Override
+			public String read(DataInput in) throws IOException {
+				return in.readUTF();
+			}
+		};
+	}
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.replication;
+
+import java.io.IOException;
+
+/**
+ * ReplicationChannel that calls a ReplicationSource in the same JVM. It can be
+ * disconnected to test catch-up.
+ */
+public class InMemoryChannel implements ReplicationChannel {
+
+	private final ReplicationSource<?, ?> source;
+	private volatile boolean connected = true;
+
+	/**
+	 * @param source the source to fetch from
+	 */
+	public InMemoryChannel(ReplicationSource<?, ?> source) {
+		this.source = source;
+	}
+
+	/**
+	 * Connects or disconnects the channel. Fetches fail while disconnected.
+	 *
+	 * @param connected true to connect
+	 */
+	public void setConnected(boolean connected) {
+		this.connected = connected;
+	}
+
+	@Override
+	public byte[] fetch(long checkpoint) throws IOException {
+		if (!connected) {
+			throw new IOException("Disconnected");
+		}
+		return source.fetch(checkpoint);
+	}
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.replication;
+
+import java.io.IOException;
+
+/**
+ * The follower's connection to a ReplicationSource. An implementation that
+ * loses its connection throws and reconnects on the next fetch; the follower
+ * then continues from its checkpoint.
+ */
+public interface ReplicationChannel {
+
+	/**
+	 * Fetches the frame that follows a checkpoint, see
+	 * ReplicationSource.fetch().
+	 *
+	 * @param checkpoint the last sequence applied, -1 for none
+	 * @return the encoded frame
+	 * @throws IOException if the source could not be reached
+	 */
+	byte[] fetch(long checkpoint) throws IOException;
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.replication;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineInstance;
+
+/**
+ * Keeps a hot copy of the instance states of a primary. Frames fetched through
+ * a ReplicationChannel are applied like forceStateChange() without notifying
+ * listeners, creating instances the first time an id is seen and dropping
+ * removed ones, so on failover the copies can take over where the primary
+ * left off. Contexts are not replicated; new instances get theirs from the
+ * context factory.
+ *
+ * The follower remembers the checkpoint of the last frame it applied. After a
+ * failed fetch it asks again from there, catching up from the primary's log or
+ * from a snapshot if the log has moved on.
+ *
+ * @param <K> The instance id class
+ * @param <S> The state class
+ * @param <E> The event class
+ * @param <C> The context class
+ */
+public class ReplicationFollower<K, S, E, C> implements AutoCloseable {
+
+	private final StateMachineGraph<S, E, C> graph;
+	private final DeltaCodec<K, S> codec;
+	private final ReplicationChannel channel;
+	private final Function<? super K, ? extends C> contextFactory;
+	private final ConcurrentHashMap<K, StateMachineInstance<S, E, C>> instances = new ConcurrentHashMap<K, StateMachineInstance<S, E, C>>();
+	private final AtomicLong failures = new AtomicLong();
+	private volatile long checkpoint = -1;
+	private volatile Thread thread;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param graph          the graph of the instances, built like the primary's
+	 * @param codec          the frame codec
+	 * @param channel        the connection to the primary
+	 * @param contextFactory creates the context of a new copy from its id
+	 */
+	public ReplicationFollower(StateMachineGraph<S, E, C> graph, DeltaCodec<K, S> codec, ReplicationChannel channel,
+			Function<? super K, ? extends C> contextFactory) {
+		this.graph = graph;
+		this.codec = codec;
+		this.channel = channel;
+		this.contextFactory = contextFactory;
+	}
+
+	/**
+	 * Fetches and applies one frame.
+	 *
+	 * @return true if the frame changed anything
+	 * @throws IOException if the fetch failed or the frame was corrupt
+	 */
+	public synchronized boolean poll() throws IOException {
+		DeltaCodec.Frame<K, S> frame = codec.decode(channel.fetch(checkpoint));
+		List<K> ids = frame.getIds();
+		List<S> states = frame.getStates();
+
+		if (frame.isSnapshot()) {
+			Set<K> keep = new HashSet<K>(ids);
+			instances.keySet().retainAll(keep);
+		}
+		for (int i = 0; i < ids.size(); i++) {
+			K id = ids.get(i);
+			S state = states.get(i);
+			if (state == null) {
+				instances.remove(id);
+				continue;
+			}
+			StateMachineInstance<S, E, C> instance = instances.get(id);
+			if (instance == null) {
+				instances.put(id, new StateMachineInstance<S, E, C>(graph, state, contextFactory.apply(id)));
+			} else if (!state.equals(instance.getCurrentState().getId())) {
+				instance.forceStateChange(state, null, false);
+			}
+		}
+		boolean changed = frame.isSnapshot() || frame.getCheckpoint() != checkpoint;
+		checkpoint = frame.getCheckpoint();
+		return changed;
+	}
+
+	/**
+	 * Polls until up to date.
+	 *
+	 * @throws IOException if a fetch failed or a frame was corrupt
+	 */
+	public void catchUp() throws IOException {
+		while (poll()) {
+			// keep going
+		}
+	}
+
+	/**
+	 * Starts polling on a background thread, waiting between polls once up to
+	 * date and after failures.
+	 *
+	 * @param interval the wait
+	 * @param unit     the unit of the wait
+	 */
+	public synchronized void start(long interval, TimeUnit unit) {
+		if (thread != null) {
+			return;
+		}
+		long millis = Math.max(1, unit.toMillis(interval));
+		Thread t = new Thread(() -> {
+			while (thread == Thread.currentThread()) {
+				boolean changed;
+				try {
+					changed = poll();
+				} catch (IOException | RuntimeException e) {
+					failures.incrementAndGet();
+					changed = false;
+				}
+				if (!changed) {
+					try {
+						Thread.sleep(millis);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "state-machine-follower");
+		t.setDaemon(true);
+		thread = t;
+		t.start();
+	}
+
+	/**
+	 * Stops the background thread.
+	 */
+	@Override
+	public void close() {
+		Thread t;
+		synchronized (this) {
+			t = thread;
+			thread = null;
+		}
+		if (t != null) {
+			t.interrupt();
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Returns the last sequence applied.
+	 *
+	 * @return the checkpoint, -1 before the first frame
+	 */
+	public long getCheckpoint() {
+		return checkpoint;
+	}
+
+	/**
+	 * Returns the number of failed background polls.
+	 *
+	 * @return the count
+	 */
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	/**
+	 * Returns the copy of an instance.
+	 *
+	 * @param id the instance id
+	 * @return the copy or null if the primary has no such instance
+	 */
+	public StateMachineInstance<S, E, C> getInstance(K id) {
+		return instances.get(id);
+	}
+
+	/**
+	 * Returns the ids of the copies.
+	 *
+	 * @return a live read-only view of the ids
+	 */
+	public Set<K> getIds() {
+		return Collections.unmodifiableSet(instances.keySet());
+	}
+
+}
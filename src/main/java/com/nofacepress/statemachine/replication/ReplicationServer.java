@@ -0,0 +1,125 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.replication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves a ReplicationSource over TCP to SocketReplicationChannel's, one
+ * thread per connection. A request is the follower's checkpoint as a long, the
+ * response the frame length as an int followed by the frame.
+ */
+public class ReplicationServer implements AutoCloseable {
+
+	private final ReplicationSource<?, ?> source;
+	private final ServerSocket serverSocket;
+	private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+	private final Thread acceptor;
+
+	/**
+	 * Starts serving on the loopback interface.
+	 *
+	 * @param source the source to serve
+	 * @param port   the port, 0 for any free one
+	 * @throws IOException if the port could not be bound
+	 */
+	public ReplicationServer(ReplicationSource<?, ?> source, int port) throws IOException {
+		this(source, new ServerSocket(port, 50, InetAddress.getLoopbackAddress()));
+	}
+
+	/**
+	 * Starts serving on a bound server socket.
+	 *
+	 * @param source       the source to serve
+	 * @param serverSocket the socket to accept connections on
+	 */
+	public ReplicationServer(ReplicationSource<?, ?> source, ServerSocket serverSocket) {
+		this.source = source;
+		this.serverSocket = serverSocket;
+		this.acceptor = new Thread(this::accept, "state-machine-replication-" + serverSocket.getLocalPort());
+		this.acceptor.setDaemon(true);
+		this.acceptor.start();
+	}
+
+	/**
+	 * Returns the port being served.
+	 *
+	 * @return the port
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	private void accept() {
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				connections.add(socket);
+				Thread thread = new Thread(() -> serve(socket), acceptor.getName() + "-" + socket.getPort());
+				thread.setDaemon(true);
+				thread.start();
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		try (Socket s = socket;
+				DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+			for (;;) {
+				byte[] frame = source.fetch(in.readLong());
+				out.writeInt(frame.length);
+				out.write(frame);
+				out.flush();
+			}
+		} catch (IOException e) {
+			// the follower went away, it reconnects from its checkpoint
+		} finally {
+			connections.remove(socket);
+		}
+	}
+
+	/**
+	 * Stops accepting and drops every connection.
+	 */
+	@Override
+	public void close() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// ignored
+		}
+		for (Socket socket : connections) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignored
+			}
+		}
+	}
+
+}
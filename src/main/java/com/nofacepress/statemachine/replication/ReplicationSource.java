@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.replication;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.nofacepress.statemachine.ReplicationLog;
+
+/**
+ * Serves replication frames from a ReplicationLog to followers. Each fetch
+ * returns the deltas after the follower's checkpoint, up to a batch size, with
+ * the deltas of one instance coalesced into its latest state. A follower whose
+ * checkpoint is no longer in the log gets a snapshot instead.
+ *
+ * @param <K> The instance id class
+ * @param <S> The state class
+ */
+public class ReplicationSource<K, S> {
+
+	private final ReplicationLog<K, S, ?, ?> log;
+	private final DeltaCodec<K, S> codec;
+	private final int maxBatchSize;
+	private final AtomicLong snapshots = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param log          the log of the primary
+	 * @param codec        the frame codec
+	 * @param maxBatchSize the most deltas read for one frame
+	 */
+	public ReplicationSource(ReplicationLog<K, S, ?, ?> log, DeltaCodec<K, S> codec, int maxBatchSize) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize must be positive");
+		}
+		this.log = log;
+		this.codec = codec;
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Returns the frame that follows a checkpoint. A frame with no entries and
+	 * the same checkpoint means the follower is up to date.
+	 *
+	 * @param checkpoint the last sequence the follower applied, -1 for none
+	 * @return the encoded frame
+	 * @throws IOException if the frame could not be encoded
+	 */
+	public byte[] fetch(long checkpoint) throws IOException {
+		LinkedHashMap<K, S> entries = new LinkedHashMap<K, S>();
+		int read = log.read(checkpoint, maxBatchSize, (sequence, id, state) -> {
+			// latest state last
+			entries.remove(id);
+			entries.put(id, state);
+		});
+		if (read >= 0) {
+			return codec.encode(false, checkpoint + read, entries);
+		}
+		entries.clear();
+		long at = log.snapshot(entries::put);
+		snapshots.incrementAndGet();
+		return codec.encode(true, at, entries);
+	}
+
+	/**
+	 * Returns the number of snapshots served.
+	 *
+	 * @return the count
+	 */
+	public long getSnapshotCount() {
+		return snapshots.get();
+	}
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.replication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * ReplicationChannel to a ReplicationServer. The connection is opened on the
+ * first fetch and again on the first fetch after a failure.
+ */
+public class SocketReplicationChannel implements ReplicationChannel, AutoCloseable {
+
+	private final String host;
+	private final int port;
+	private Socket socket;
+	private DataInputStream in;
+	private DataOutputStream out;
+
+	/**
+	 * @param host the host of the server
+	 * @param port the port of the server
+	 */
+	public SocketReplicationChannel(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	@Override
+	public synchronized byte[] fetch(long checkpoint) throws IOException {
+		if (socket == null) {
+			socket = new Socket(host, port);
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+		try {
+			out.writeLong(checkpoint);
+			out.flush();
+			byte[] frame = new byte[in.readInt()];
+			in.readFully(frame);
+			return frame;
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the connection, a later fetch opens a new one.
+	 */
+	@Override
+	public synchronized void close() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignored
+			}
+			socket = null;
+			in = null;
+			out = null;
+		}
+	}
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.ring;
+
+/**
+ * One stage of an EventPipeline. A stage is called from its own thread, in
+ * sequence order, and only after every earlier stage is done with the slot.
+ *
+ * @param <K> The instance id class
+ * @param <E> The event class
+ */
+@FunctionalInterface
+public interface EventHandler<K, E> {
+
+	/**
+	 * Handles one slot. An exception rejects the slot and is counted by the
+	 * pipeline; it does not stop the stage.
+	 *
+	 * @param slot       the slot
+	 * @param sequence   the sequence of the slot
+	 * @param endOfBatch true if no further slot is ready for this stage right
+	 *                   now, a good moment to flush work batched across slots
+	 * @throws Exception on failure
+	 */
+	void onEvent(EventSlot<K, E> slot, long sequence, boolean endOfBatch) throws Exception;
+
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.ring;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A ring of preallocated EventSlot's consumed by a chain of stages, in the
+ * style of the LMAX Disruptor. A typical chain is validate, then a
+ * TransitionHandler, then persist.
+ *
+ * Producers claim a sequence, fill in the slot for it and publish it. Each
+ * stage runs on its own thread and handles every slot in sequence order once
+ * the stage before it is done with the slot; the first stage waits for
+ * publication. A sequence can only be claimed again after the last stage has
+ * passed it, so a full ring holds the producers back. In steady state nothing
+ * is allocated between a producer and the last stage other than by the
+ * handlers themselves.
+ *
+ * @param <K> The instance id class
+ * @param <E> The event class
+ */
+public class EventPipeline<K, E> implements AutoCloseable {
+
+	private static final long PARK_NANOS = 1000000L;
+
+	private final EventSlot<K, E>[] slots;
+	private final int mask;
+	private final int shift;
+	private final AtomicLong claimed = new AtomicLong(-1);
+
+	/**
+	 * Per slot, the round (sequence / capacity) it was last published for.
+	 */
+	private final AtomicIntegerArray published;
+	private final Stage[] stages;
+	private final Stage last;
+	private final AtomicLong errors = new AtomicLong();
+	private volatile long gatingCache = -1;
+	private volatile boolean closed;
+
+	/**
+	 * Constructor, starting one thread per stage.
+	 *
+	 * @param bufferSize the number of slots, rounded up to a power of two
+	 * @param handlers   the stages in the order they see each slot
+	 */
+	@SafeVarargs
+	public EventPipeline(int bufferSize, EventHandler<K, E>... handlers) {
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException("bufferSize must be positive");
+		}
+		if (handlers.length == 0) {
+			throw new IllegalArgumentException("At least one stage is required");
+		}
+		int size = 1;
+		while (size < bufferSize) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.shift = Integer.numberOfTrailingZeros(size);
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		EventSlot<K, E>[] array = new EventSlot[size];
+		this.slots = array;
+		this.published = new AtomicIntegerArray(size);
+		for (int i = 0; i < size; i++) {
+			slots[i] = new EventSlot<K, E>();
+			published.set(i, -1);
+		}
+
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		Stage[] workers = new EventPipeline.Stage[handlers.length];
+		this.stages = workers;
+		Stage previous = null;
+		for (int i = 0; i < handlers.length; i++) {
+			stages[i] = new Stage(i, handlers[i], previous);
+			previous = stages[i];
+		}
+		this.last = previous;
+		for (Stage stage : stages) {
+			stage.thread.start();
+		}
+	}
+
+	/**
+	 * Returns the number of slots.
+	 *
+	 * @return the capacity
+	 */
+	public int getBufferSize() {
+		return slots.length;
+	}
+
+	/**
+	 * Claims the next sequence, waiting while the ring is full. The slot must be
+	 * filled in with get() and then published, even if the producer changes its
+	 * mind, since every later sequence waits for it.
+	 *
+	 * @return the sequence
+	 */
+	public long next() {
+		checkOpen();
+		long sequence = claimed.incrementAndGet();
+		long wrap = sequence - slots.length;
+		if (wrap > gatingCache) {
+			int spins = 0;
+			long gate;
+			while (wrap > (gate = last.sequence.get())) {
+				if (!last.thread.isAlive()) {
+					throw new IllegalStateException("Pipeline is closed.");
+				}
+				spins = backoff(spins);
+			}
+			gatingCache = gate;
+		}
+		return sequence;
+	}
+
+	/**
+	 * Claims the next sequence unless the ring is full.
+	 *
+	 * @return the sequence, or -1 if the ring is full
+	 */
+	public long tryNext() {
+		checkOpen();
+		for (;;) {
+			long current = claimed.get();
+			long sequence = current + 1;
+			long wrap = sequence - slots.length;
+			if (wrap > gatingCache) {
+				long gate = last.sequence.get();
+				gatingCache = gate;
+				if (wrap > gate) {
+					return -1;
+				}
+			}
+			if (claimed.compareAndSet(current, sequence)) {
+				return sequence;
+			}
+		}
+	}
+
+	/**
+	 * Returns the slot of a claimed sequence.
+	 *
+	 * @param sequence the sequence
+	 * @return the slot
+	 */
+	public EventSlot<K, E> get(long sequence) {
+		return slots[(int) sequence & mask];
+	}
+
+	/**
+	 * Makes a claimed and filled in slot visible to the first stage.
+	 *
+	 * @param sequence the sequence
+	 */
+	public void publish(long sequence) {
+		published.lazySet((int) sequence & mask, (int) (sequence >>> shift));
+		stages[0].wake();
+	}
+
+	/**
+	 * Claims, fills in and publishes a slot, waiting while the ring is full.
+	 *
+	 * @param instanceId the id of the instance
+	 * @param event      the event to fire
+	 * @param payload    the payload passed to payload listeners, may be null
+	 */
+	public void publish(K instanceId, E event, Object payload) {
+		long sequence = next();
+		get(sequence).set(instanceId, event, payload);
+		publish(sequence);
+	}
+
+	/**
+	 * Claims, fills in and publishes a slot unless the ring is full.
+	 *
+	 * @param instanceId the id of the instance
+	 * @param event      the event to fire
+	 * @param payload    the payload passed to payload listeners, may be null
+	 * @return false if the ring was full and nothing was published
+	 */
+	public boolean tryPublish(K instanceId, E event, Object payload) {
+		long sequence = tryNext();
+		if (sequence < 0) {
+			return false;
+		}
+		get(sequence).set(instanceId, event, payload);
+		publish(sequence);
+		return true;
+	}
+
+	/**
+	 * Returns the last sequence a stage is done with.
+	 *
+	 * @param stage the index of the stage
+	 * @return the sequence, -1 before the first
+	 */
+	public long getSequence(int stage) {
+		return stages[stage].sequence.get();
+	}
+
+	/**
+	 * Returns the number of exceptions thrown by handlers.
+	 *
+	 * @return the count
+	 */
+	public long getErrors() {
+		return errors.get();
+	}
+
+	/**
+	 * Waits for every stage to finish the claimed sequences and stops the
+	 * threads. Slots claimed while closing may be dropped.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		long end = claimed.get();
+		int spins = 0;
+		while (last.sequence.get() < end && last.thread.isAlive()) {
+			spins = backoff(spins);
+		}
+		boolean interrupted = false;
+		for (Stage stage : stages) {
+			stage.running = false;
+			LockSupport.unpark(stage.thread);
+			for (;;) {
+				try {
+					stage.thread.join();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("Pipeline is closed.");
+		}
+	}
+
+	private static int backoff(int spins) {
+		if (spins < 100) {
+			Thread.onSpinWait();
+		} else if (spins < 200) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(PARK_NANOS / 10);
+		}
+		return spins + 1;
+	}
+
+	private final class Stage implements Runnable {
+
+		private final EventHandler<K, E> handler;
+		private final Stage previous;
+		private Stage following;
+		private final AtomicLong sequence = new AtomicLong(-1);
+		private final Thread thread;
+		private volatile boolean parked;
+		private volatile boolean running = true;
+
+		private Stage(int index, EventHandler<K, E> handler, Stage previous) {
+			this.handler = handler;
+			this.previous = previous;
+			if (previous != null) {
+				previous.following = this;
+			}
+			this.thread = new Thread(this, "state-machine-pipeline-" + index);
+			this.thread.setDaemon(true);
+		}
+
+		private void wake() {
+			if (parked) {
+				LockSupport.unpark(thread);
+			}
+		}
+
+		/**
+		 * Returns the highest sequence this stage may handle.
+		 */
+		private long available(long next) {
+			if (previous != null) {
+				return previous.sequence.get();
+			}
+			long high = claimed.get();
+			long s = next;
+			while (s <= high && published.get((int) s & mask) == (int) (s >>> shift)) {
+				s++;
+			}
+			return s - 1;
+		}
+
+		@Override
+		public void run() {
+			long next = 0;
+			int idle = 0;
+			for (;;) {
+				long available = available(next);
+				if (available < next) {
+					if (!running) {
+						return;
+					}
+					if (++idle < 100) {
+						Thread.onSpinWait();
+					} else if (idle < 200) {
+						Thread.yield();
+					} else {
+						parked = true;
+						if (available(next) < next && running) {
+							LockSupport.parkNanos(this, PARK_NANOS);
+						}
+						parked = false;
+					}
+					continue;
+				}
+				idle = 0;
+
+				for (long s = next; s <= available; s++) {
+					EventSlot<K, E> slot = slots[(int) s & mask];
+					try {
+						handler.onEvent(slot, s, s == available);
+					} catch (Throwable t) {
+						slot.reject();
+						errors.incrementAndGet();
+					}
+					if (following == null) {
+						slot.clear();
+					}
+				}
+				sequence.lazySet(available);
+				next = available + 1;
+				if (following != null) {
+					following.wake();
+				}
+			}
+		}
+	}
+
+}
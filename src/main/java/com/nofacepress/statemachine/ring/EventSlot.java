@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.ring;
+
+import com.nofacepress.statemachine.FireOutcome;
+
+/**
+ * A preallocated, reusable entry of an EventPipeline. A producer fills it in
+ * after claiming a sequence, and every stage then sees the same object in
+ * turn, so nothing is allocated per event.
+ *
+ * Stages may reject a slot to tell later stages to skip it, and the
+ * TransitionHandler records the outcome of firing the event. The slot is
+ * cleared once the last stage is done with it.
+ *
+ * @param <K> The instance id class
+ * @param <E> The event class
+ */
+public final class EventSlot<K, E> {
+
+	private K instanceId;
+	private E event;
+	private Object payload;
+	private FireOutcome outcome;
+	private boolean rejected;
+
+	EventSlot() {
+	}
+
+	/**
+	 * Fills in the slot, resetting what the stages recorded.
+	 *
+	 * @param instanceId the id of the instance
+	 * @param event      the event to fire
+	 * @param payload    the payload passed to payload listeners, may be null
+	 */
+	public void set(K instanceId, E event, Object payload) {
+		this.instanceId = instanceId;
+		this.event = event;
+		this.payload = payload;
+		this.outcome = null;
+		this.rejected = false;
+	}
+
+	void clear() {
+		set(null, null, null);
+	}
+
+	/**
+	 * Returns the id of the instance.
+	 *
+	 * @return the instance id
+	 */
+	public K getInstanceId() {
+		return instanceId;
+	}
+
+	/**
+	 * Returns the event to fire.
+	 *
+	 * @return the event
+	 */
+	public E getEvent() {
+		return event;
+	}
+
+	/**
+	 * Returns the payload of the event.
+	 *
+	 * @return the payload or null
+	 */
+	public Object getPayload() {
+		return payload;
+	}
+
+	/**
+	 * Returns the outcome of firing the event.
+	 *
+	 * @return the outcome, or null if the event was not fired
+	 */
+	public FireOutcome getOutcome() {
+		return outcome;
+	}
+
+	/**
+	 * Records the outcome of firing the event.
+	 *
+	 * @param outcome the outcome
+	 */
+	public void setOutcome(FireOutcome outcome) {
+		this.outcome = outcome;
+	}
+
+	/**
+	 * Marks the slot so later stages skip it.
+	 */
+	public void reject() {
+		this.rejected = true;
+	}
+
+	/**
+	 * Returns true if a stage rejected the slot or threw while handling it.
+	 *
+	 * @return true if rejected
+	 */
+	public boolean isRejected() {
+		return rejected;
+	}
+
+	@Override
+	public String toString() {
+		return instanceId + ":" + event;
+	}
+
+}
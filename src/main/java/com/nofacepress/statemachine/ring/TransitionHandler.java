@@ -0,0 +1,58 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.ring;
+
+import java.util.function.Function;
+
+import com.nofacepress.statemachine.StateMachineInstance;
+
+/**
+ * Pipeline stage that fires the event of each slot at the instance it
+ * addresses with tryFireEvent() and records the outcome in the slot. Rejected
+ * slots and ids the resolver does not know are skipped, the latter being
+ * rejected.
+ *
+ * @param <K> The instance id class
+ * @param <S> The state class
+ * @param <E> The event class
+ * @param <C> The context class
+ */
+public class TransitionHandler<K, S, E, C> implements EventHandler<K, E> {
+
+	private final Function<? super K, ? extends StateMachineInstance<S, E, C>> resolver;
+
+	/**
+	 * @param resolver finds the instance for an id, returning null if there is
+	 *                 none
+	 */
+	public TransitionHandler(Function<? super K, ? extends StateMachineInstance<S, E, C>> resolver) {
+		this.resolver = resolver;
+	}
+
+	@Override
+	public void onEvent(EventSlot<K, E> slot, long sequence, boolean endOfBatch) {
+		if (slot.isRejected()) {
+			return;
+		}
+		StateMachineInstance<S, E, C> instance = resolver.apply(slot.getInstanceId());
+		if (instance == null) {
+			slot.reject();
+			return;
+		}
+		slot.setOutcome(instance.tryFireEvent(slot.getEvent(), slot.getPayload()));
+	}
+
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.scxml;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamException;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateType;
+import com.nofacepress.statemachine.exceptions.StateMachineException;
+
+/**
+ * Generates Java sources from an SCXML graph so a service can start without
+ * parsing XML. Three classes are written for a base name such as "Order":
+ *
+ * <ul>
+ * <li>OrderState, an enum of the states in document order</li>
+ * <li>OrderEvent, an enum of the events in document order</li>
+ * <li>OrderGraph, whose build() method returns a compiled graph from constant
+ * transition tables</li>
+ * </ul>
+ *
+ * State and event ids must be valid Java identifiers, the same requirement
+ * SCXMLManager.loadEnumGraph() has.
+ */
+public class SCXMLCodeGenerator {
+
+	// transitions are 3 chars each, keeping each constant well under the 64k
+	// class file limit
+	private static final int TRANSITIONS_PER_CONSTANT = 6000;
+
+	private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList("abstract", "assert", "boolean",
+			"break", "byte", "case", "catch", "char", "class", "const", "continue", "default", "do", "double", "else",
+			"enum", "extends", "false", "final", "finally", "float", "for", "goto", "if", "implements", "import",
+			"instanceof", "int", "interface", "long", "native", "new", "null", "package", "private", "protected",
+			"public", "return", "short", "static", "strictfp", "super", "switch", "synchronized", "this", "throw",
+			"throws", "transient", "true", "try", "void", "volatile", "while", "_"));
+
+	private final String packageName;
+	private final String baseName;
+
+	/**
+	 * @param packageName the package of the generated classes, empty for the
+	 *                    default package
+	 * @param baseName    the prefix of the generated class names
+	 */
+	public SCXMLCodeGenerator(String packageName, String baseName) {
+		this.packageName = packageName == null ? "" : packageName;
+		this.baseName = baseName;
+		if (!this.packageName.isEmpty()) {
+			for (String part : this.packageName.split("\\.", -1)) {
+				checkIdentifier(part, "package name");
+			}
+		}
+		checkIdentifier(baseName, "base name");
+	}
+
+	/**
+	 * Returns the name of the generated state enum.
+	 *
+	 * @return the simple class name
+	 */
+	public String getStateClassName() {
+		return baseName + "State";
+	}
+
+	/**
+	 * Returns the name of the generated event enum.
+	 *
+	 * @return the simple class name
+	 */
+	public String getEventClassName() {
+		return baseName + "Event";
+	}
+
+	/**
+	 * Returns the name of the generated graph class.
+	 *
+	 * @return the simple class name
+	 */
+	public String getGraphClassName() {
+		return baseName + "Graph";
+	}
+
+	/**
+	 * Reads an SCXML file and writes the generated sources below a source root.
+	 *
+	 * @param scxmlFile  the SCXML file to read
+	 * @param sourceRoot the source root, package directories are created as needed
+	 * @return the files written
+	 * @throws XMLStreamException    on XML error
+	 * @throws FileNotFoundException if the SCXML file is not found
+	 * @throws IOException           on IO error
+	 */
+	public List<File> generate(String scxmlFile, File sourceRoot)
+			throws XMLStreamException, FileNotFoundException, IOException {
+		StateMachineGraph<String, String, Object> graph = SCXMLManager.loadStringGraph(scxmlFile);
+		return generate(graph, new File(scxmlFile).getName(), sourceRoot);
+	}
+
+	/**
+	 * Writes the generated sources below a source root.
+	 *
+	 * @param          <C> the context type
+	 * @param graph      the graph to generate from
+	 * @param origin     where the graph came from, noted in the generated comments
+	 * @param sourceRoot the source root, package directories are created as needed
+	 * @return the files written
+	 * @throws IOException on IO error
+	 */
+	public <C> List<File> generate(StateMachineGraph<String, String, C> graph, String origin, File sourceRoot)
+			throws IOException {
+		File dir = packageName.isEmpty() ? sourceRoot : new File(sourceRoot, packageName.replace('.', '/'));
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create " + dir);
+		}
+
+		List<File> files = new ArrayList<File>();
+		File file = new File(dir, getStateClassName() + ".java");
+		try (Writer writer = open(file)) {
+			writeStateEnum(graph, origin, writer);
+		}
+		files.add(file);
+
+		file = new File(dir, getEventClassName() + ".java");
+		try (Writer writer = open(file)) {
+			writeEventEnum(graph, origin, writer);
+		}
+		files.add(file);
+
+		file = new File(dir, getGraphClassName() + ".java");
+		try (Writer writer = open(file)) {
+			writeGraphClass(graph, origin, writer);
+		}
+		files.add(file);
+
+		return files;
+	}
+
+	/**
+	 * Writes the state enum source.
+	 *
+	 * @param        <C> the context type
+	 * @param graph  the graph to generate from
+	 * @param origin where the graph came from, noted in the generated comments
+	 * @param writer the output to write to
+	 * @throws IOException on IO error
+	 */
+	public <C> void writeStateEnum(StateMachineGraph<String, String, C> graph, String origin, Writer writer)
+			throws IOException {
+		writeEnum(getStateClassName(), "States", getStates(graph), origin, writer);
+	}
+
+	/**
+	 * Writes the event enum source.
+	 *
+	 * @param        <C> the context type
+	 * @param graph  the graph to generate from
+	 * @param origin where the graph came from, noted in the generated comments
+	 * @param writer the output to write to
+	 * @throws IOException on IO error
+	 */
+	public <C> void writeEventEnum(StateMachineGraph<String, String, C> graph, String origin, Writer writer)
+			throws IOException {
+		writeEnum(getEventClassName(), "Events", getEvents(graph), origin, writer);
+	}
+
+	/**
+	 * Writes the graph class source.
+	 *
+	 * @param        <C> the context type
+	 * @param graph  the graph to generate from
+	 * @param origin where the graph came from, noted in the generated comments
+	 * @param writer the output to write to
+	 * @throws IOException on IO error
+	 */
+	public <C> void writeGraphClass(StateMachineGraph<String, String, C> graph, String origin, Writer writer)
+			throws IOException {
+
+		List<String> states = getStates(graph);
+		List<String> events = getEvents(graph);
+		Map<String, Integer> stateOrdinals = ordinals(states);
+		Map<String, Integer> eventOrdinals = ordinals(events);
+		String S = getStateClassName();
+		String E = getEventClassName();
+
+		writePackage(writer);
+		writer.write("import com.nofacepress.statemachine.StateMachineGraph;\n");
+		writer.write("import com.nofacepress.statemachine.StateMachineGraphBuilder;\n");
+		writer.write("import com.nofacepress.statemachine.StateMachineGraphBuilder.StateMachineGraphBuild;\n\n");
+		writeComment("Prebuilt graph", origin, writer);
+		writer.write("public final class " + getGraphClassName() + " {\n\n");
+
+		writer.write("\tpublic static final " + S + " INITIAL = ");
+		writer.write(graph.getInitialState() == null ? "null" : S + "." + graph.getInitialState());
+		writer.write(";\n\n");
+
+		// (source, event, target) ordinals, 3 chars per transition
+		writer.write("\tprivate static final String[] TRANSITIONS = {");
+		int count = 0;
+		for (String source : states) {
+			for (Entry<String, ? extends StateType<String, String, C>> entry : graph.getStateType(source)
+					.getTransitions().entrySet()) {
+				if (count % TRANSITIONS_PER_CONSTANT == 0) {
+					writer.write(count == 0 ? "\n\t\t\t\"" : "\",\n\t\t\t\"");
+				}
+				writeChar(stateOrdinals.get(source), writer);
+				writeChar(eventOrdinals.get(entry.getKey()), writer);
+				writeChar(stateOrdinals.get(entry.getValue().getId()), writer);
+				count++;
+			}
+		}
+		writer.write(count == 0 ? "};\n\n" : "\" };\n\n");
+
+		writer.write("\tprivate " + getGraphClassName() + "() {\n\t}\n\n");
+
+		writer.write("\t/**\n");
+		writer.write("\t * Builds the graph without parsing any XML.\n");
+		writer.write("\t * \n");
+		writer.write("\t * @param <C> The context class\n");
+		writer.write("\t * @return a compiled graph\n");
+		writer.write("\t */\n");
+		writer.write("\tpublic static <C> StateMachineGraph<" + S + ", " + E + ", C> build() {\n");
+		writer.write("\t\t" + S + "[] states = " + S + ".values();\n");
+		writer.write("\t\t" + E + "[] events = " + E + ".values();\n");
+		writer.write("\t\tStateMachineGraphBuild<" + S + ", " + E + ", C> build = StateMachineGraphBuilder.builder();\n");
+		writer.write("\t\tif (INITIAL != null) {\n");
+		writer.write("\t\t\tbuild.initial(INITIAL);\n");
+		writer.write("\t\t}\n");
+		writer.write("\t\tbuild.states(states);\n");
+		writer.write("\t\tfor (String table : TRANSITIONS) {\n");
+		writer.write("\t\t\tfor (int i = 0; i < table.length(); i += 3) {\n");
+		writer.write("\t\t\t\tbuild.transition(states[table.charAt(i)], states[table.charAt(i + 2)],"
+				+ " events[table.charAt(i + 1)]);\n");
+		writer.write("\t\t\t}\n");
+		writer.write("\t\t}\n");
+		writer.write("\t\treturn build.compile();\n");
+		writer.write("\t}\n\n");
+		writer.write("}\n");
+		writer.flush();
+	}
+
+	private void writeEnum(String className, String what, List<String> constants, String origin, Writer writer)
+			throws IOException {
+		writePackage(writer);
+		writeComment(what, origin, writer);
+		writer.write("public enum " + className + " {\n");
+		for (int i = 0; i < constants.size(); i++) {
+			writer.write("\t" + constants.get(i) + (i + 1 < constants.size() ? ",\n" : ";\n"));
+		}
+		writer.write("}\n");
+		writer.flush();
+	}
+
+	private void writePackage(Writer writer) throws IOException {
+		if (!packageName.isEmpty()) {
+			writer.write("package " + packageName + ";\n\n");
+		}
+	}
+
+	private static void writeComment(String what, String origin, Writer writer) throws IOException {
+		writer.write("/**\n");
+		writer.write(" * " + what + " generated by SCXMLCodeGenerator");
+		if (origin != null) {
+			writer.write(" from " + origin.replace("*/", "* /"));
+		}
+		writer.write(", do not edit.\n");
+		writer.write(" */\n");
+	}
+
+	private static void writeChar(int value, Writer writer) throws IOException {
+		if (value > 0xffff) {
+			throw new StateMachineException("Too many states or events to generate: " + value);
+		}
+		// unicode escapes are translated before the source is parsed, so octal is
+		// used for anything that could be a quote, backslash or line break
+		if (value < 256) {
+			writer.write('\\');
+			writer.write(Integer.toOctalString(value));
+		} else {
+			writer.write(String.format("\\u%04x", value));
+		}
+	}
+
+	private static <C> List<String> getStates(StateMachineGraph<String, String, C> graph) {
+		List<String> states = new ArrayList<String>();
+		for (StateType<String, String, C> state : graph.getStates()) {
+			states.add(checkIdentifier(state.getId(), "state"));
+		}
+		return states;
+	}
+
+	private static <C> List<String> getEvents(StateMachineGraph<String, String, C> graph) {
+		Set<String> events = new LinkedHashSet<String>();
+		for (StateType<String, String, C> state : graph.getStates()) {
+			for (String event : state.getTransitions().keySet()) {
+				events.add(checkIdentifier(event, "event"));
+			}
+		}
+		return new ArrayList<String>(events);
+	}
+
+	private static Map<String, Integer> ordinals(List<String> names) {
+		Map<String, Integer> ordinals = new HashMap<String, Integer>();
+		for (String name : names) {
+			ordinals.put(name, ordinals.size());
+		}
+		return ordinals;
+	}
+
+	private static String checkIdentifier(String name, String what) {
+		boolean ok = name != null && !name.isEmpty() && !KEYWORDS.contains(name)
+				&& Character.isJavaIdentifierStart(name.charAt(0));
+		for (int i = 1; ok && i < name.length(); i++) {
+			ok = Character.isJavaIdentifierPart(name.charAt(i));
+		}
+		if (!ok) {
+			throw new StateMachineException("The " + what + " \"" + name + "\" is not a valid Java identifier");
+		}
+		return name;
+	}
+
+	private static Writer open(File file) throws FileNotFoundException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+	}
+
+}
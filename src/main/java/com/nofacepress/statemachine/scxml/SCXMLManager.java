@@ -16,32 +16,27 @@
 package com.nofacepress.statemachine.scxml;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-
-import java.util.Map.Entry;
+import java.nio.file.Paths;
 
 import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
-import javax.xml.stream.XMLStreamWriter;
 
 import com.nofacepress.statemachine.StateMachineGraph;
 import com.nofacepress.statemachine.StateMachineGraphBuilder;
 import com.nofacepress.statemachine.StateMachineGraphBuilder.StateMachineGraphBuild;
-import com.nofacepress.statemachine.StateType;
 
 import com.nofacepress.statemachine.typeconverters.EnumFromStringConverter;
 import com.nofacepress.statemachine.typeconverters.EnumToStringConverter;
 import com.nofacepress.statemachine.typeconverters.FromStringConverter;
-import com.nofacepress.statemachine.typeconverters.StringFromStringConverter;
+import com.nofacepress.statemachine.typeconverters.InterningFromStringConverter;
 import com.nofacepress.statemachine.typeconverters.StringToStringConverter;
+import com.nofacepress.statemachine.typeconverters.SymbolTable;
 import com.nofacepress.statemachine.typeconverters.ToStringConverter;
 
 /**
@@ -58,6 +53,9 @@ public class SCXMLManager {
 	private static final String XML_ATTRIBUTE_TRANSITION_EVENT = "event";
 	private static final String XML_ATTRIBUTE_TRANSITION_TARGET = "target";
 
+	// factories are expensive to look up and safe to share once configured
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
 	/**
 	 * Creates a StateMachineGraph assuming both the states and events are type
 	 * String.
@@ -70,7 +68,24 @@ public class SCXMLManager {
 	 */
 	public static <C> StateMachineGraph<String, String, C> loadStringGraph(String filename)
 			throws XMLStreamException, FileNotFoundException {
-		FromStringConverter<String> conv = new StringFromStringConverter();
+		return loadStringGraph(filename, new SymbolTable());
+	}
+
+	/**
+	 * Creates a StateMachineGraph assuming both the states and events are type
+	 * String. Every state and event name is interned into the symbol table so the
+	 * graph only holds canonical instances.
+	 * 
+	 * @param          <C> the context type
+	 * @param filename file to read SCXML from.
+	 * @param symbols  the table to intern state and event names into
+	 * @return the resulting graph
+	 * @throws XMLStreamException    on XML error
+	 * @throws FileNotFoundException if file is not found
+	 */
+	public static <C> StateMachineGraph<String, String, C> loadStringGraph(String filename, SymbolTable symbols)
+			throws XMLStreamException, FileNotFoundException {
+		FromStringConverter<String> conv = new InterningFromStringConverter(symbols);
 		return loadGraph(filename, conv, conv);
 	}
 
@@ -85,7 +100,23 @@ public class SCXMLManager {
 	 */
 	public static <C> StateMachineGraph<String, String, C> loadStringGraph(InputStream stream)
 			throws XMLStreamException {
-		FromStringConverter<String> conv = new StringFromStringConverter();
+		return loadStringGraph(stream, new SymbolTable());
+	}
+
+	/**
+	 * Creates a StateMachineGraph assuming both the states and events are type
+	 * String. Every state and event name is interned into the symbol table so the
+	 * graph only holds canonical instances.
+	 * 
+	 * @param         <C> the context type
+	 * @param stream  the input stream
+	 * @param symbols the table to intern state and event names into
+	 * @return the resulting graph
+	 * @throws XMLStreamException on XML error
+	 */
+	public static <C> StateMachineGraph<String, String, C> loadStringGraph(InputStream stream, SymbolTable symbols)
+			throws XMLStreamException {
+		FromStringConverter<String> conv = new InterningFromStringConverter(symbols);
 		return loadGraph(stream, conv, conv);
 	}
 
@@ -173,8 +204,7 @@ public class SCXMLManager {
 
 		StateMachineGraphBuild<S, E, C> build = StateMachineGraphBuilder.builder();
 
-		XMLInputFactory xif = XMLInputFactory.newInstance();
-		XMLStreamReader xsr = xif.createXMLStreamReader(stream);
+		XMLStreamReader xsr = INPUT_FACTORY.createXMLStreamReader(stream);
 
 		boolean inScxml = false;
 		S currentState = null;
@@ -310,15 +340,7 @@ public class SCXMLManager {
 	public static <S, E, C> void saveGraph(StateMachineGraph<S, E, C> graph, String filename,
 			ToStringConverter<S> Sconv,
 			ToStringConverter<E> Econv) throws XMLStreamException, IOException {
-		OutputStream stream = new BufferedOutputStream(new FileOutputStream(filename));
-		try {
-			saveGraph(graph, stream, Sconv, Econv);
-		} finally {
-			try {
-				stream.close();
-			} catch (IOException e) {
-			}
-		}
+		new SCXMLWriter().write(graph, Paths.get(filename), Sconv, Econv);
 	}
 
 	/**
@@ -338,38 +360,7 @@ public class SCXMLManager {
 			ToStringConverter<S> Sconv,
 			ToStringConverter<E> Econv)
 			throws IOException, XMLStreamException {
-
-		XMLOutputFactory factory = XMLOutputFactory.newInstance();
-		XMLStreamWriter writer = factory.createXMLStreamWriter(stream, "UTF-8");
-
-		writer.writeStartDocument("UTF-8", "1.0");
-		writer.writeCharacters("\n");
-		writer.writeStartElement(XML_ELEMENT_SCXML);
-		writer.writeAttribute("xmlns", "http://www.w3.org/2005/07/scxml");
-		writer.writeAttribute("version", "1.0");
-		writer.writeAttribute(XML_ATTRIBUTE_SCXML_INITIAL, Sconv.convertToString(graph.getInitialState()));
-
-		for (StateType<S, E, C> state : graph.getStates()) {
-			writer.writeCharacters("\n  ");
-			writer.writeStartElement(XML_ELEMENT_STATE);
-			writer.writeAttribute(XML_ATTRIBUTE_STATE_ID, Sconv.convertToString(state.getId()));
-
-			for (Entry<E, ? extends StateType<S, E, C>> entry : state.getTransitions().entrySet()) {
-				writer.writeCharacters("\n    ");
-				writer.writeStartElement(XML_ELEMENT_TRANSITION);
-				writer.writeAttribute(XML_ATTRIBUTE_TRANSITION_EVENT, Econv.convertToString(entry.getKey()));
-				writer.writeAttribute(XML_ATTRIBUTE_TRANSITION_TARGET, Sconv.convertToString(entry.getValue().getId()));
-				writer.writeEndElement();
-			}
-
-			writer.writeEndElement();
-		}
-
-		writer.writeEndElement();
-		writer.writeCharacters("\n");
-		writer.writeEndDocument();
-		writer.flush();
-
+		new SCXMLWriter().write(graph, stream, Sconv, Econv);
 	}
 
 }
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.scxml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateType;
+import com.nofacepress.statemachine.typeconverters.ToStringConverter;
+
+/**
+ * Fast SCXML writer. Names are encoded straight to UTF-8 bytes, escaping only
+ * when a name contains a character that needs it, and the document is rendered
+ * in chunks of states into pre-sized byte buffers. Chunks can be rendered in
+ * parallel, in which case the converters must be thread safe, and are written
+ * to files with a single gathering FileChannel write.
+ *
+ * The output is the same as the StAX based writer SCXMLManager used to have,
+ * except that tabs and line breaks inside names are written as character
+ * references so they survive attribute normalization when read back.
+ */
+public class SCXMLWriter {
+
+	/**
+	 * Number of states rendered per chunk.
+	 */
+	public static final int CHUNK_SIZE = 2048;
+
+	private static final byte[] HEADER = ascii(
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<scxml xmlns=\"http://www.w3.org/2005/07/scxml\" version=\"1.0\"");
+	private static final byte[] INITIAL = ascii(" initial=\"");
+	private static final byte[] STATE = ascii("\n  <state id=\"");
+	private static final byte[] TRANSITION_EVENT = ascii("\n    <transition event=\"");
+	private static final byte[] TRANSITION_TARGET = ascii("\" target=\"");
+	private static final byte[] END_TRANSITION = ascii("\"></transition>");
+	private static final byte[] END_START_TAG = ascii("\">");
+	private static final byte[] END_TAG = ascii(">");
+	private static final byte[] END_STATE = ascii("</state>");
+	private static final byte[] FOOTER = ascii("</scxml>\n");
+
+	private static byte[] ascii(String s) {
+		byte[] b = new byte[s.length()];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) s.charAt(i);
+		}
+		return b;
+	}
+
+	/**
+	 * Growable byte buffer a chunk is rendered into.
+	 */
+	private static final class Chunk {
+		byte[] buf;
+		int len = 0;
+
+		Chunk(int capacity) {
+			buf = new byte[Math.max(64, capacity)];
+		}
+
+		void reserve(int n) {
+			if (len + n > buf.length) {
+				byte[] bigger = new byte[Math.max(buf.length * 2, len + n)];
+				System.arraycopy(buf, 0, bigger, 0, len);
+				buf = bigger;
+			}
+		}
+
+		void put(byte[] bytes) {
+			reserve(bytes.length);
+			System.arraycopy(bytes, 0, buf, len, bytes.length);
+			len += bytes.length;
+		}
+
+		void putReference(String entity) {
+			reserve(entity.length());
+			for (int i = 0; i < entity.length(); i++) {
+				buf[len++] = (byte) entity.charAt(i);
+			}
+		}
+
+		/**
+		 * Writes an attribute value as UTF-8, escaping as needed.
+		 */
+		void putAttribute(String s) {
+			final int n = s.length();
+			reserve(n);
+			int i = 0;
+			// plain ASCII, the common case
+			for (; i < n; i++) {
+				char ch = s.charAt(i);
+				if (ch < 0x20 || ch >= 0x80 || ch == '&' || ch == '<' || ch == '>' || ch == '"') {
+					break;
+				}
+				buf[len++] = (byte) ch;
+			}
+			for (; i < n; i++) {
+				char ch = s.charAt(i);
+				switch (ch) {
+				case '&':
+					putReference("&amp;");
+					continue;
+				case '<':
+					putReference("&lt;");
+					continue;
+				case '>':
+					putReference("&gt;");
+					continue;
+				case '"':
+					putReference("&quot;");
+					continue;
+				default:
+					break;
+				}
+				if (ch < 0x20) {
+					putReference("&#" + (int) ch + ";");
+				} else if (ch < 0x80) {
+					reserve(1);
+					buf[len++] = (byte) ch;
+				} else if (ch < 0x800) {
+					reserve(2);
+					buf[len++] = (byte) (0xC0 | (ch >> 6));
+					buf[len++] = (byte) (0x80 | (ch & 0x3F));
+				} else if (Character.isHighSurrogate(ch) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(ch, s.charAt(++i));
+					reserve(4);
+					buf[len++] = (byte) (0xF0 | (cp >> 18));
+					buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					buf[len++] = (byte) (0x80 | (cp & 0x3F));
+				} else if (Character.isSurrogate(ch)) {
+					reserve(1);
+					buf[len++] = '?';
+				} else {
+					reserve(3);
+					buf[len++] = (byte) (0xE0 | (ch >> 12));
+					buf[len++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+					buf[len++] = (byte) (0x80 | (ch & 0x3F));
+				}
+			}
+		}
+
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, len);
+		}
+	}
+
+	private boolean parallel = false;
+
+	/**
+	 * Returns if chunks are rendered in parallel.
+	 *
+	 * @return true if rendering in parallel
+	 */
+	public boolean isParallel() {
+		return parallel;
+	}
+
+	/**
+	 * Sets if chunks are rendered in parallel on the common fork join pool. The
+	 * converters must then be thread safe, the output is the same either way.
+	 *
+	 * @param parallel true to render in parallel
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	/**
+	 * Renders a graph into buffers that, written in order, form the document.
+	 *
+	 * @param       <S> the state type
+	 * @param       <E> the event type
+	 * @param       <C> the context type
+	 * @param graph the graph to render
+	 * @param Sconv the object for converting from a state to a String
+	 * @param Econv the object for converting from an event to a String
+	 * @return the buffers, ready to be written
+	 */
+	public <S, E, C> ByteBuffer[] render(StateMachineGraph<S, E, C> graph, ToStringConverter<S> Sconv,
+			ToStringConverter<E> Econv) {
+
+		final List<StateType<S, E, C>> states = new ArrayList<StateType<S, E, C>>(graph.getStates());
+		final int chunks = (states.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		final ByteBuffer[] buffers = new ByteBuffer[chunks + 2];
+
+		Chunk header = new Chunk(HEADER.length + 64);
+		header.put(HEADER);
+		String initial = (graph.getInitialState() == null) ? null : Sconv.convertToString(graph.getInitialState());
+		if (initial != null) {
+			header.put(INITIAL);
+			header.putAttribute(initial);
+			header.put(END_START_TAG);
+		} else {
+			header.put(END_TAG);
+		}
+		buffers[0] = header.toByteBuffer();
+
+		IntStream range = IntStream.range(0, chunks);
+		(parallel ? range.parallel() : range).forEach(c -> {
+			int from = c * CHUNK_SIZE;
+			int to = Math.min(states.size(), from + CHUNK_SIZE);
+			int transitions = 0;
+			for (int i = from; i < to; i++) {
+				transitions += states.get(i).getTransitions().size();
+			}
+			Chunk chunk = new Chunk((to - from) * 48 + transitions * 72);
+			for (int i = from; i < to; i++) {
+				StateType<S, E, C> state = states.get(i);
+				chunk.put(STATE);
+				chunk.putAttribute(Sconv.convertToString(state.getId()));
+				chunk.put(END_START_TAG);
+				state.getTransitions().forEach((event, target) -> {
+					chunk.put(TRANSITION_EVENT);
+					chunk.putAttribute(Econv.convertToString(event));
+					chunk.put(TRANSITION_TARGET);
+					chunk.putAttribute(Sconv.convertToString(target.getId()));
+					chunk.put(END_TRANSITION);
+				});
+				chunk.put(END_STATE);
+			}
+			buffers[c + 1] = chunk.toByteBuffer();
+		});
+
+		buffers[chunks + 1] = ByteBuffer.wrap(FOOTER);
+		return buffers;
+	}
+
+	/**
+	 * Writes a graph to a stream.
+	 *
+	 * @param        <S> the state type
+	 * @param        <E> the event type
+	 * @param        <C> the context type
+	 * @param graph  the graph to write
+	 * @param stream the output stream
+	 * @param Sconv  the object for converting from a state to a String
+	 * @param Econv  the object for converting from an event to a String
+	 * @throws IOException on IO error
+	 */
+	public <S, E, C> void write(StateMachineGraph<S, E, C> graph, OutputStream stream, ToStringConverter<S> Sconv,
+			ToStringConverter<E> Econv) throws IOException {
+		for (ByteBuffer buffer : render(graph, Sconv, Econv)) {
+			stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		}
+		stream.flush();
+	}
+
+	/**
+	 * Writes a graph to a file with a gathering write, replacing the file if it
+	 * exists.
+	 *
+	 * @param       <S> the state type
+	 * @param       <E> the event type
+	 * @param       <C> the context type
+	 * @param graph the graph to write
+	 * @param file  the output file
+	 * @param Sconv the object for converting from a state to a String
+	 * @param Econv the object for converting from an event to a String
+	 * @throws IOException on IO error
+	 */
+	public <S, E, C> void write(StateMachineGraph<S, E, C> graph, Path file, ToStringConverter<S> Sconv,
+			ToStringConverter<E> Econv) throws IOException {
+		ByteBuffer[] buffers = render(graph, Sconv, Econv);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			int first = 0;
+			while (first < buffers.length) {
+				channel.write(buffers, first, buffers.length - first);
+				while (first < buffers.length && !buffers[first].hasRemaining()) {
+					first++;
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hierarchical timing wheel run by a single thread, built to hold tens of
+ * millions of pending timeouts.
+ *
+ * The first level has 256 buckets of one tick each, every further level has
+ * 64 buckets each spanning a full turn of the level below. Timeouts far in the
+ * future are cascaded down a level when their bucket comes around. Buckets are
+ * intrusive doubly linked lists, so no allocation is made beyond the Timeout
+ * itself.
+ *
+ * Scheduling and cancelling from any thread is O(1): the Timeout is pushed on
+ * a lock free stack that the wheel thread drains on every tick. Expired
+ * timeouts run on the wheel thread, so they should hand long work off to an
+ * executor.
+ */
+public class HierarchicalTimingWheel implements AutoCloseable {
+
+	private static final int LEVEL0_BITS = 8;
+	private static final int LEVEL_BITS = 6;
+	private static final int LEVELS = 5;
+	private static final int LEVEL0_MASK = (1 << LEVEL0_BITS) - 1;
+	private static final int LEVEL_MASK = (1 << LEVEL_BITS) - 1;
+
+	/**
+	 * A pending timeout. Subclass it to avoid allocating a Runnable per timeout.
+	 * A Timeout can only be scheduled once.
+	 */
+	public abstract static class Timeout {
+
+		private static final int NEW = 0;
+		private static final int SCHEDULING = 1;
+		private static final int PENDING = 2;
+		private static final int EXPIRED = 3;
+		private static final int CANCELLED = 4;
+
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater
+				.newUpdater(Timeout.class, "state");
+
+		private volatile int state = NEW;
+		private HierarchicalTimingWheel wheel;
+		private long deadline;
+
+		// owned by the wheel thread
+		private Bucket bucket;
+		private Timeout prev;
+		private Timeout next;
+
+		// lock free stack links
+		private Timeout nextScheduled;
+		private Timeout nextCancelled;
+
+		/**
+		 * Called on the wheel thread when the timeout expires.
+		 */
+		protected abstract void expired();
+
+		/**
+		 * Cancels the timeout.
+		 *
+		 * @return true if the timeout was pending and is now cancelled
+		 */
+		public boolean cancel() {
+			if (STATE.compareAndSet(this, PENDING, CANCELLED)) {
+				wheel.pushCancelled(this);
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @return true if the timeout has expired
+		 */
+		public boolean isExpired() {
+			return state == EXPIRED;
+		}
+
+		/**
+		 * @return true if the timeout was cancelled
+		 */
+		public boolean isCancelled() {
+			return state == CANCELLED;
+		}
+	}
+
+	private static final class Bucket {
+		Timeout head;
+
+		void add(Timeout t) {
+			t.bucket = this;
+			t.prev = null;
+			t.next = head;
+			if (head != null) {
+				head.prev = t;
+			}
+			head = t;
+		}
+
+		void remove(Timeout t) {
+			if (t.prev == null) {
+				head = t.next;
+			} else {
+				t.prev.next = t.next;
+			}
+			if (t.next != null) {
+				t.next.prev = t.prev;
+			}
+			t.bucket = null;
+			t.prev = null;
+			t.next = null;
+		}
+
+		Timeout takeAll() {
+			Timeout list = head;
+			head = null;
+			return list;
+		}
+	}
+
+	private static final class RunnableTimeout extends Timeout {
+		private final Runnable task;
+
+		RunnableTimeout(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		protected void expired() {
+			task.run();
+		}
+	}
+
+	private final long tickNanos;
+	private final long startTime;
+	private final Bucket[][] levels = new Bucket[LEVELS][];
+	private final AtomicReference<Timeout> scheduled = new AtomicReference<Timeout>();
+	private final AtomicReference<Timeout> cancelled = new AtomicReference<Timeout>();
+	private final Thread thread;
+	private volatile boolean running = true;
+	private volatile long pending = 0;
+	private long tick = 0;
+
+	/**
+	 * Creates and starts a wheel.
+	 *
+	 * @param tickDuration the resolution of the wheel
+	 * @param unit         the unit of tickDuration
+	 */
+	public HierarchicalTimingWheel(long tickDuration, TimeUnit unit) {
+		tickNanos = Math.max(1, unit.toNanos(tickDuration));
+		for (int i = 0; i < LEVELS; i++) {
+			Bucket[] buckets = new Bucket[i == 0 ? 1 << LEVEL0_BITS : 1 << LEVEL_BITS];
+			for (int j = 0; j < buckets.length; j++) {
+				buckets[j] = new Bucket();
+			}
+			levels[i] = buckets;
+		}
+		startTime = System.nanoTime();
+		thread = new Thread(this::run, "state-machine-timing-wheel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Schedules a task.
+	 *
+	 * @param task  the task to run on the wheel thread
+	 * @param delay the delay
+	 * @param unit  the unit of delay
+	 * @return the timeout, for cancelling
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		return schedule(new RunnableTimeout(task), delay, unit);
+	}
+
+	/**
+	 * Schedules a timeout.
+	 *
+	 * @param timeout the timeout, which must not have been scheduled before
+	 * @param delay   the delay
+	 * @param unit    the unit of delay
+	 * @return the timeout, for chaining
+	 */
+	public Timeout schedule(Timeout timeout, long delay, TimeUnit unit) {
+		Timeout t = timeout;
+		if (!Timeout.STATE.compareAndSet(t, Timeout.NEW, Timeout.SCHEDULING)) {
+			throw new IllegalStateException("Timeout already scheduled");
+		}
+		long elapsed = System.nanoTime() - startTime + Math.max(0, unit.toNanos(delay));
+		t.wheel = this;
+		t.deadline = (elapsed + tickNanos - 1) / tickNanos;
+		// publishes wheel and deadline, only now can cancel() see it pending
+		t.state = Timeout.PENDING;
+		Timeout head;
+		do {
+			head = scheduled.get();
+			t.nextScheduled = head;
+		} while (!scheduled.compareAndSet(head, t));
+		return timeout;
+	}
+
+	private void pushCancelled(Timeout timeout) {
+		Timeout head;
+		do {
+			head = cancelled.get();
+			timeout.nextCancelled = head;
+		} while (!cancelled.compareAndSet(head, timeout));
+	}
+
+	/**
+	 * Returns the number of timeouts held in the wheel as of the last tick.
+	 *
+	 * @return the pending count
+	 */
+	public long getPendingCount() {
+		return pending;
+	}
+
+	/**
+	 * Stops the wheel thread. Pending timeouts never expire.
+	 */
+	@Override
+	public void close() {
+		running = false;
+		LockSupport.unpark(thread);
+		if (Thread.currentThread() != thread) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void run() {
+		while (running) {
+			long wait = startTime + tick * tickNanos - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(this, wait);
+				continue;
+			}
+			processTick();
+			tick++;
+		}
+	}
+
+	private void processTick() {
+		final long t = tick;
+		long count = pending;
+
+		// move timeouts whose block has come around one level down
+		for (int level = 1; level < LEVELS; level++) {
+			int shift = LEVEL0_BITS + LEVEL_BITS * (level - 1);
+			if ((t & ((1L << shift) - 1)) != 0) {
+				break;
+			}
+			Timeout list = levels[level][(int) ((t >>> shift) & LEVEL_MASK)].takeAll();
+			while (list != null) {
+				Timeout next = list.next;
+				list.bucket = null;
+				place(list, t);
+				list = next;
+			}
+		}
+
+		for (Timeout c = cancelled.getAndSet(null); c != null;) {
+			Timeout next = c.nextCancelled;
+			c.nextCancelled = null;
+			if (c.bucket != null) {
+				c.bucket.remove(c);
+				count--;
+			}
+			c = next;
+		}
+
+		for (Timeout s = scheduled.getAndSet(null); s != null;) {
+			Timeout next = s.nextScheduled;
+			s.nextScheduled = null;
+			if (s.state == Timeout.PENDING) {
+				place(s, t);
+				count++;
+			}
+			s = next;
+		}
+
+		Bucket bucket = levels[0][(int) (t & LEVEL0_MASK)];
+		Timeout list = bucket.takeAll();
+		while (list != null) {
+			Timeout next = list.next;
+			list.bucket = null;
+			list.prev = null;
+			list.next = null;
+			if (list.deadline > t) {
+				place(list, t);
+			} else {
+				count--;
+				if (Timeout.STATE.compareAndSet(list, Timeout.PENDING, Timeout.EXPIRED)) {
+					try {
+						list.expired();
+					} catch (Throwable e) {
+						Thread.UncaughtExceptionHandler handler = thread.getUncaughtExceptionHandler();
+						if (handler != null) {
+							handler.uncaughtException(thread, e);
+						}
+					}
+				}
+			}
+			list = next;
+		}
+
+		pending = count;
+	}
+
+	private void place(Timeout timeout, long t) {
+		long deadline = Math.max(timeout.deadline, t);
+		long delta = deadline - t;
+		if (delta <= LEVEL0_MASK) {
+			levels[0][(int) (deadline & LEVEL0_MASK)].add(timeout);
+			return;
+		}
+		for (int level = 1; level < LEVELS; level++) {
+			int shift = LEVEL0_BITS + LEVEL_BITS * (level - 1);
+			if (level == LEVELS - 1 || delta < (1L << (shift + LEVEL_BITS))) {
+				if (delta >= (1L << (shift + LEVEL_BITS))) {
+					// beyond the range of the wheel, parked in the furthest bucket and
+					// cascaded again until it is in range
+					deadline = t + (1L << (shift + LEVEL_BITS)) - (1L << shift);
+				}
+				levels[level][(int) ((deadline >>> shift) & LEVEL_MASK)].add(timeout);
+				return;
+			}
+		}
+	}
+
+}
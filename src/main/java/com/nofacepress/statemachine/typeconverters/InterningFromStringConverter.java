@@ -0,0 +1,54 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.typeconverters;
+
+/**
+ * Conversion to a String "from" a String that returns the canonical instance
+ * from a SymbolTable.
+ */
+public class InterningFromStringConverter implements FromStringConverter<String> {
+
+	private final SymbolTable symbols;
+
+	/**
+	 * Creates a converter with its own SymbolTable.
+	 */
+	public InterningFromStringConverter() {
+		this(new SymbolTable());
+	}
+
+	/**
+	 * @param symbols the table to intern into
+	 */
+	public InterningFromStringConverter(SymbolTable symbols) {
+		this.symbols = symbols;
+	}
+
+	@Override
+	public String convertFromString(String text) {
+		return symbols.intern(text);
+	}
+
+	/**
+	 * Returns the table names are interned into.
+	 *
+	 * @return the symbol table
+	 */
+	public SymbolTable getSymbolTable() {
+		return symbols;
+	}
+
+}
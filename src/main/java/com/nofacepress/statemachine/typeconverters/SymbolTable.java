@@ -0,0 +1,125 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.typeconverters;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns state and event names into one canonical String instance each, and
+ * assigns every name a dense int id in the order it was first seen.
+ *
+ * Graphs built from canonical instances hit the identity check of
+ * String.equals() on every lookup, and the canonical instance carries its
+ * cached hash. Names arriving from outside (a socket, a database column) can be
+ * swapped for the canonical instance with lookup() before calling fireEvent().
+ *
+ * Interning is synchronized, lookups are lock free.
+ */
+public class SymbolTable {
+
+	private static final class Symbol {
+		final String name;
+		final int id;
+
+		Symbol(String name, int id) {
+			this.name = name;
+			this.id = id;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Symbol> symbols = new ConcurrentHashMap<String, Symbol>();
+
+	private volatile String[] names = new String[16];
+
+	private int size = 0;
+
+	/**
+	 * Returns the canonical instance of a name, adding it if needed.
+	 *
+	 * @param name the name to intern
+	 * @return the canonical instance
+	 */
+	public String intern(String name) {
+		Symbol symbol = symbols.get(name);
+		if (symbol == null) {
+			symbol = add(name);
+		}
+		return symbol.name;
+	}
+
+	private synchronized Symbol add(String name) {
+		Symbol symbol = symbols.get(name);
+		if (symbol == null) {
+			String[] n = names;
+			if (size == n.length) {
+				n = Arrays.copyOf(n, size * 2);
+			}
+			symbol = new Symbol(name, size);
+			n[size++] = name;
+			names = n;
+			symbols.put(name, symbol);
+		}
+		return symbol;
+	}
+
+	/**
+	 * Returns the canonical instance of a name without adding it.
+	 *
+	 * @param name the name to find
+	 * @return the canonical instance or null if the name was never interned
+	 */
+	public String lookup(String name) {
+		Symbol symbol = symbols.get(name);
+		return (symbol == null) ? null : symbol.name;
+	}
+
+	/**
+	 * Returns the dense id of a name.
+	 *
+	 * @param name the name to find
+	 * @return the id or -1 if the name was never interned
+	 */
+	public int getId(String name) {
+		Symbol symbol = symbols.get(name);
+		return (symbol == null) ? -1 : symbol.id;
+	}
+
+	/**
+	 * Returns the canonical instance for an id.
+	 *
+	 * @param id the id returned from getId()
+	 * @return the canonical instance
+	 * @throws IndexOutOfBoundsException if the id was never assigned
+	 */
+	public String getName(int id) {
+		String[] n = names;
+		if (id < 0 || id >= n.length || n[id] == null) {
+			throw new IndexOutOfBoundsException("Unknown symbol id " + id);
+		}
+		return n[id];
+	}
+
+	/**
+	 * Returns the number of interned names. Ids range from 0 to size() - 1.
+	 *
+	 * @return the number of names
+	 */
+	public int size() {
+		return symbols.size();
+	}
+
+}
@@ -21,7 +21,16 @@ import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
 @SuiteClasses({ StateMachineGraphBuilderTest.class, StateMachineGraphTest.class, OnStateChangedListenerTest.class,
-		AfterStateChangedListenerTest.class, ScxmlTest.class })
+		AfterStateChangedListenerTest.class, ScxmlTest.class, SymbolTableTest.class,
+		StateMachineGraphCompilerTest.class, SCXMLCodeGeneratorTest.class, StateMachineInstanceIndexTest.class,
+		EventBroadcasterTest.class, StateTimeoutTest.class, GraphAnalysisTest.class, ChartExportTest.class, SCXMLWriterTest.class,
+		PersistentStateMachineGraphTest.class, GraphMinimizationTest.class,
+		GraphTransitionTest.class, PayloadListenerTest.class,
+		TransitionListenerTest.class, TryFireEventTest.class,
+		TransitionHistoryTest.class, TransitionPublisherTest.class,
+		InstanceEventSubscriberTest.class, PartitionedEngineTest.class,
+		EventPipelineTest.class, ClusterTest.class, ReplicationTest.class,
+		WriteBehindPersisterTest.class })
 public class AllTests {
 
 }
\ No newline at end of file
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineGraphBuilder;
+import com.nofacepress.statemachine.StateMachineGraphBuilder.StateMachineGraphBuild;
+import com.nofacepress.statemachine.lucidchart.LucidChartManager;
+import com.nofacepress.statemachine.plantxml.BaseManager;
+import com.nofacepress.statemachine.plantxml.ChartBuffer;
+import com.nofacepress.statemachine.plantxml.PlantUmlManager;
+
+public class ChartExportTest {
+
+	private StateMachineGraph<String, String, Object> graph() {
+		return StateMachineGraphBuilder.<String, String, Object>builder()
+				.initial("A")
+				.transition("A", "B", "go")
+				.transition("B", "A", "back, again")
+				.transition("B", "C", "done")
+				.state("O")
+				.build();
+	}
+
+	private String export(BaseManager manager, StateMachineGraph<String, String, Object> graph, String title)
+			throws IOException {
+		StringWriter writer = new StringWriter();
+		manager.saveStringGraph(graph, title, writer);
+		return writer.toString();
+	}
+
+	@Test
+	public void test_plantUml() throws IOException {
+		assertEquals("@startuml\n" +
+				"skinparam monochrome true\n" +
+				"title Test\n" +
+				"state \"A\\n[<i>initial</i>]\" as A_1 <<initial>>\n" +
+				"state \"B\" as B_2\n" +
+				"state \"C\\n[<i>done</i>]\" as C_3 <<done>>\n" +
+				"state \"O\\n[<i>orphan</i>]\" as O_4 <<orphan>>\n" +
+				"[*] -right-> A_1\n" +
+				"A_1 -down-> B_2 : go\n" +
+				"B_2 -up-> A_1 : back, again\n" +
+				"B_2 -down-> C_3 : done\n" +
+				"C_3 -down-> [*]\n" +
+				"@enduml\n", export(new PlantUmlManager(), graph(), "Test"));
+	}
+
+	@Test
+	public void test_lucidChart() throws IOException {
+		assertEquals(
+				"Id,Name,Shape Library,Page ID,Contained B,Line Source,Line Destination,Source Arrow,Destination Arrow,Text Area 1,Text Area 2,Text Area 3\r\n"
+						+ "1,Page,,,,,,,,State Chart,,\r\n" +
+						"2,State Name,UML,1,,,,,,\"A\n<initial>\",,\r\n" +
+						"3,State Name,UML,1,,,,,,B,,\r\n" +
+						"4,State Name,UML,1,,,,,,\"C\n<done>\",,\r\n" +
+						"5,State Name,UML,1,,,,,,\"O\n<orphan>\",,\r\n" +
+						"6,Line,,1,,2,3,None,Arrow,go,,\r\n" +
+						"7,Line,,1,,3,2,None,Arrow,\"back, again\",,\r\n" +
+						"8,Line,,1,,3,4,None,Arrow,done,,\r\n",
+				export(new LucidChartManager(), graph(), null));
+	}
+
+	@Test
+	public void test_parallel() throws IOException {
+		StateMachineGraphBuild<String, String, Object> build = StateMachineGraphBuilder.<String, String, Object>builder();
+		for (int i = 0; i < 20000; i++) {
+			build.transition("S" + i, "S" + (i + 1), "next");
+			if (i % 5 == 0) {
+				build.transition("S" + i, "S" + (i / 2), "back \"" + i + "\"");
+			}
+		}
+		StateMachineGraph<String, String, Object> graph = build.build();
+
+		for (BaseManager manager : new BaseManager[] { new PlantUmlManager(), new LucidChartManager() }) {
+			String sequential = export(manager, graph, "Big");
+			manager.setParallel(true);
+			assertEquals(sequential, export(manager, graph, "Big"));
+		}
+	}
+
+	@Test
+	public void test_cachedOutput() throws IOException {
+		StateMachineGraph<String, String, Object> graph = graph();
+		PlantUmlManager manager = new PlantUmlManager();
+		manager.setCacheOutput(true);
+
+		String first = export(manager, graph, "Test");
+		assertEquals(first, export(manager, graph, "Test"));
+		assertTrue(export(manager, graph, "Other").contains("title Other\n"));
+
+		// changing the graph invalidates the cached chart
+		graph.addTransition("C", "D", "more");
+		String changed = export(manager, graph, "Test");
+		assertTrue(changed.contains("C_3 -down-> D_4 : more\n"));
+		assertEquals(changed, export(new PlantUmlManager(), graph, "Test"));
+	}
+
+	@Test
+	public void test_buffer() throws IOException {
+		StringWriter writer = new StringWriter();
+		ChartBuffer buffer = new ChartBuffer(writer, 64);
+		StringBuilder expected = new StringBuilder();
+		for (int i = -100; i < 100; i++) {
+			buffer.append(i * 1234567).append(',');
+			expected.append(i * 1234567).append(',');
+		}
+		buffer.append(Integer.MIN_VALUE).appendCsv("a\"b").appendCsv("x,y").appendCsv("plain").appendCsv(null);
+		expected.append(Integer.MIN_VALUE).append("\"a\"\"b\"").append("\"x,y\"").append("plain");
+		buffer.flush();
+		assertEquals(expected.toString(), writer.toString());
+		assertTrue(buffer.length() == 0);
+	}
+
+}
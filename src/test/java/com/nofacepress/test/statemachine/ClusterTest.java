@@ -0,0 +1,218 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineGraphBuilder;
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.cluster.ClusterNode;
+import com.nofacepress.statemachine.cluster.ClusterWorkflow;
+import com.nofacepress.statemachine.cluster.ConsistentHash;
+import com.nofacepress.statemachine.cluster.LoopbackTransport;
+import com.nofacepress.statemachine.listener.OnStateChangedListener;
+
+public class ClusterTest {
+
+	private static final int IDS = 300;
+
+	private final StateMachineGraph<TestStates, TestEvents, List<TestEvents>> graph = StateMachineGraphBuilder
+			.<TestStates, TestEvents, List<TestEvents>>builder().initial(TestStates.STATE_1)
+			.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+			.transition(TestStates.STATE_2, TestStates.STATE_3, TestEvents.EVENT_2)
+			.transition(TestStates.STATE_3, TestStates.STATE_1, TestEvents.EVENT_3)
+			.listener((OnStateChangedListener<TestStates, TestEvents, List<TestEvents>>) (instance, source, target,
+					event) -> instance.getContext().add(event))
+			.build();
+
+	private final LoopbackTransport transport = new LoopbackTransport();
+	private final Map<String, ClusterNode> nodes = new HashMap<String, ClusterNode>();
+	private final Map<String, ClusterWorkflow<Integer, TestStates, TestEvents, List<TestEvents>>> workflows = new HashMap<String, ClusterWorkflow<Integer, TestStates, TestEvents, List<TestEvents>>>();
+
+	private void start(String... ids) {
+		for (String id : ids) {
+			ClusterNode node = new ClusterNode(id, transport, 64, 0);
+			nodes.put(id, node);
+			workflows.put(id, node.register("orders", graph, k -> new ArrayList<TestEvents>()));
+		}
+	}
+
+	private void members(String... ids) {
+		for (ClusterNode node : nodes.values()) {
+			node.setMembers(Arrays.asList(ids));
+		}
+	}
+
+	private void settle() throws Exception {
+		do {
+			for (ClusterNode node : nodes.values()) {
+				node.flush();
+			}
+			assertTrue(transport.awaitIdle(10, TimeUnit.SECONDS));
+		} while (!idle());
+	}
+
+	private boolean idle() throws Exception {
+		long before = transport.getBatchCount();
+		for (ClusterNode node : nodes.values()) {
+			node.flush();
+		}
+		return transport.awaitIdle(10, TimeUnit.SECONDS) && before == transport.getBatchCount();
+	}
+
+	private void fireRounds(String via, int from, int to) {
+		ClusterWorkflow<Integer, TestStates, TestEvents, List<TestEvents>> workflow = workflows.get(via);
+		for (int round = from; round < to; round++) {
+			for (int id = 0; id < IDS; id++) {
+				workflow.fireEvent(id, TestEvents.values()[round % 3]);
+			}
+		}
+	}
+
+	/**
+	 * Checks that each id lives on exactly its owner and saw every round.
+	 */
+	private void assertPlaced(int rounds) {
+		for (int id = 0; id < IDS; id++) {
+			String owner = nodes.values().iterator().next().ownerOf(id);
+			StateMachineInstance<TestStates, TestEvents, List<TestEvents>> instance = null;
+			for (Map.Entry<String, ClusterWorkflow<Integer, TestStates, TestEvents, List<TestEvents>>> entry : workflows
+					.entrySet()) {
+				StateMachineInstance<TestStates, TestEvents, List<TestEvents>> local = entry.getValue()
+						.getLocalInstance(id);
+				if (entry.getKey().equals(owner)) {
+					assertNotNull("id " + id + " on " + owner, local);
+					instance = local;
+				} else {
+					assertNull("id " + id + " on " + entry.getKey(), local);
+				}
+			}
+			List<TestEvents> events = instance.getContext();
+			assertEquals("id " + id, rounds, events.size());
+			for (int i = 0; i < rounds; i++) {
+				assertEquals(TestEvents.values()[i % 3], events.get(i));
+			}
+		}
+	}
+
+	private void stop() {
+		for (ClusterNode node : nodes.values()) {
+			node.close();
+		}
+		transport.close();
+	}
+
+	@Test
+	public void test_consistentHash() {
+		ConsistentHash three = new ConsistentHash(Arrays.asList("a", "b", "c"), 128);
+		ConsistentHash four = new ConsistentHash(Arrays.asList("d", "c", "b", "a"), 128);
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		int moved = 0;
+		for (int id = 0; id < 10000; id++) {
+			String before = three.nodeFor(id);
+			String after = four.nodeFor(id);
+			counts.merge(after, 1, Integer::sum);
+			if (!before.equals(after)) {
+				// only ids taken over by the new node move
+				assertEquals("d", after);
+				moved++;
+			}
+		}
+		assertTrue("moved " + moved, moved > 1500 && moved < 3500);
+		for (int count : counts.values()) {
+			assertTrue("count " + count, count > 1500 && count < 3500);
+		}
+		assertEquals(three.nodeFor("x"), new ConsistentHash(Arrays.asList("c", "a", "b"), 128).nodeFor("x"));
+	}
+
+	@Test
+	public void test_forwarding() throws Exception {
+		start("a", "b", "c");
+		members("a", "b", "c");
+		try {
+			fireRounds("a", 0, 30);
+			settle();
+			assertPlaced(30);
+
+			long total = 0;
+			for (ClusterWorkflow<Integer, TestStates, TestEvents, List<TestEvents>> workflow : workflows.values()) {
+				total += workflow.getAccepted();
+				assertTrue(workflow.getLocalIds().size() > 0);
+			}
+			assertEquals(30 * IDS, total);
+			// remote events travel in batches
+			assertTrue(transport.getMessageCount() > transport.getBatchCount() * 10);
+		} finally {
+			stop();
+		}
+	}
+
+	@Test
+	public void test_join() throws Exception {
+		start("a", "b", "c");
+		members("a", "b", "c");
+		try {
+			fireRounds("b", 0, 30);
+			settle();
+
+			start("d");
+			// events fired before the transfers land are held back by the new owner
+			members("a", "b", "c", "d");
+			fireRounds("a", 30, 60);
+			settle();
+
+			assertTrue(workflows.get("d").getLocalIds().size() > 0);
+			assertPlaced(60);
+		} finally {
+			stop();
+		}
+	}
+
+	@Test
+	public void test_leave() throws Exception {
+		start("a", "b", "c");
+		members("a", "b", "c");
+		try {
+			fireRounds("a", 0, 30);
+			settle();
+
+			members("a", "b");
+			settle();
+			nodes.remove("c").close();
+			workflows.remove("c");
+
+			fireRounds("b", 30, 60);
+			settle();
+			assertPlaced(60);
+		} finally {
+			stop();
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineGraphBuilder;
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.StateMachineInstanceIndex;
+import com.nofacepress.statemachine.broadcast.BroadcastResult;
+import com.nofacepress.statemachine.broadcast.EventBroadcaster;
+import com.nofacepress.statemachine.exceptions.StateMachineException;
+import com.nofacepress.statemachine.listener.AfterStateChangedListener;
+import com.nofacepress.statemachine.listener.OnStateChangedListener;
+
+public class EventBroadcasterTest {
+
+	private StateMachineGraph<TestStates, TestEvents, Integer> graph() {
+		return StateMachineGraphBuilder.<TestStates, TestEvents, Integer>builder()
+				.initial(TestStates.STATE_1)
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.transition(TestStates.STATE_2, TestStates.STATE_3, TestEvents.EVENT_2)
+				.listener((OnStateChangedListener<TestStates, TestEvents, Integer>) (instance, source, target, event) -> {
+					if (target.getId() == TestStates.STATE_3 && instance.getContext() % 100 == 0) {
+						throw new IllegalStateException("failed " + instance.getContext());
+					}
+				})
+				.build();
+	}
+
+	@Test
+	public void test_broadcast() {
+		StateMachineGraph<TestStates, TestEvents, Integer> graph = graph();
+		List<StateMachineInstance<TestStates, TestEvents, Integer>> instances = new ArrayList<StateMachineInstance<TestStates, TestEvents, Integer>>();
+		for (int i = 0; i < 10000; i++) {
+			StateMachineInstance<TestStates, TestEvents, Integer> instance = new StateMachineInstance<TestStates, TestEvents, Integer>(
+					graph, i);
+			if (i % 2 == 0) {
+				instance.fireEvent(TestEvents.EVENT_1);
+			}
+			instances.add(instance);
+		}
+
+		EventBroadcaster broadcaster = new EventBroadcaster(new ForkJoinPool(4), 100);
+		BroadcastResult<TestStates, TestEvents, Integer> result = broadcaster.broadcast(instances, TestEvents.EVENT_2);
+
+		assertEquals(result.getAccepted(), 4900);
+		assertEquals(result.getRejected(), 5000);
+		assertEquals(result.getFailures().size(), 100);
+		assertEquals(result.getFailures().get(0).getInstance().getContext() % 100, 0);
+		assertTrue(result.getFailures().get(0).getException() instanceof StateMachineException);
+	}
+
+	@Test
+	public void test_broadcastAfterListenerFailure() {
+		StateMachineGraph<TestStates, TestEvents, Integer> graph = StateMachineGraphBuilder
+				.<TestStates, TestEvents, Integer>builder()
+				.initial(TestStates.STATE_1)
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.listener((AfterStateChangedListener<TestStates, TestEvents, Integer>) (instance, source, target, event) -> {
+					if (instance.getContext() % 10 == 0) {
+						throw new IllegalStateException("failed " + instance.getContext());
+					}
+					if (instance.getContext() % 10 == 5) {
+						throw new AssertionError("failed " + instance.getContext());
+					}
+				})
+				.build();
+		List<StateMachineInstance<TestStates, TestEvents, Integer>> instances = new ArrayList<StateMachineInstance<TestStates, TestEvents, Integer>>();
+		for (int i = 0; i < 1000; i++) {
+			instances.add(new StateMachineInstance<TestStates, TestEvents, Integer>(graph, i));
+		}
+
+		BroadcastResult<TestStates, TestEvents, Integer> result = new EventBroadcaster(new ForkJoinPool(4), 50)
+				.broadcast(instances, TestEvents.EVENT_1);
+
+		assertEquals(result.getAccepted(), 800);
+		assertEquals(result.getRejected(), 0);
+		assertEquals(result.getFailures().size(), 200);
+		int errors = 0;
+		for (BroadcastResult.Failure<TestStates, TestEvents, Integer> failure : result.getFailures()) {
+			if (failure.getException() instanceof AssertionError) {
+				assertEquals(failure.getInstance().getContext() % 10, 5);
+				errors++;
+			} else {
+				assertTrue(failure.getException() instanceof IllegalStateException);
+			}
+		}
+		assertEquals(errors, 100);
+	}
+
+	@Test
+	public void test_broadcastIndex() {
+		StateMachineGraph<TestStates, TestEvents, Integer> graph = graph();
+		StateMachineInstanceIndex<TestStates, TestEvents, Integer> index = new StateMachineInstanceIndex<TestStates, TestEvents, Integer>();
+		for (int i = 1; i <= 3000; i++) {
+			index.add(new StateMachineInstance<TestStates, TestEvents, Integer>(graph, i));
+		}
+
+		BroadcastResult<TestStates, TestEvents, Integer> result = new EventBroadcaster().broadcast(index,
+				TestStates.STATE_1, TestEvents.EVENT_1);
+
+		assertEquals(result.getAccepted(), 3000);
+		assertEquals(result.getRejected(), 0);
+		assertEquals(result.getFailures().size(), 0);
+		assertEquals(index.count(TestStates.STATE_1), 0);
+		assertEquals(index.count(TestStates.STATE_2), 3000);
+	}
+
+}
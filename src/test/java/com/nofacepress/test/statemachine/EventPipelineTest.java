@@ -0,0 +1,196 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.nofacepress.statemachine.FireOutcome;
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.ring.EventHandler;
+import com.nofacepress.statemachine.ring.EventPipeline;
+import com.nofacepress.statemachine.ring.TransitionHandler;
+
+public class EventPipelineTest {
+
+	private Map<Integer, StateMachineInstance<TestStates, TestEvents, List<TestEvents>>> instances(int count) {
+		StateMachineGraph<TestStates, TestEvents, List<TestEvents>> graph = TestGraphs.recordingCycle();
+		Map<Integer, StateMachineInstance<TestStates, TestEvents, List<TestEvents>>> instances = new HashMap<Integer, StateMachineInstance<TestStates, TestEvents, List<TestEvents>>>();
+		for (int i = 0; i < count; i++) {
+			instances.put(i, new StateMachineInstance<TestStates, TestEvents, List<TestEvents>>(graph,
+					new ArrayList<TestEvents>()));
+		}
+		return instances;
+	}
+
+	@Test
+	public void test_pipeline() throws Exception {
+		Map<Integer, StateMachineInstance<TestStates, TestEvents, List<TestEvents>>> instances = instances(10);
+		Map<FireOutcome, Integer> persisted = new HashMap<FireOutcome, Integer>();
+		int[] skipped = new int[1];
+
+		EventHandler<Integer, TestEvents> validate = (slot, sequence, endOfBatch) -> {
+			if ("bad".equals(slot.getPayload())) {
+				slot.reject();
+			}
+		};
+		EventHandler<Integer, TestEvents> persist = (slot, sequence, endOfBatch) -> {
+			if (slot.isRejected()) {
+				skipped[0]++;
+			} else {
+				persisted.merge(slot.getOutcome(), 1, Integer::sum);
+			}
+		};
+
+		try (EventPipeline<Integer, TestEvents> pipeline = new EventPipeline<Integer, TestEvents>(64, validate,
+				new TransitionHandler<Integer, TestStates, TestEvents, List<TestEvents>>(instances::get), persist)) {
+			Thread[] producers = new Thread[2];
+			for (int p = 0; p < producers.length; p++) {
+				int first = p * 5;
+				producers[p] = new Thread(() -> {
+					for (int round = 0; round < 1000; round++) {
+						for (int id = first; id < first + 5; id++) {
+							pipeline.publish(id, TestEvents.values()[round % 3], null);
+							pipeline.publish(id, TestEvents.EVENT_1, "bad");
+						}
+					}
+				});
+				producers[p].start();
+			}
+			for (Thread producer : producers) {
+				producer.join();
+			}
+			pipeline.publish(0, TestEvents.EVENT_3, null);
+			pipeline.publish(99, TestEvents.EVENT_1, null);
+		}
+
+		assertEquals(Integer.valueOf(10000), persisted.get(FireOutcome.ACCEPTED));
+		assertEquals(Integer.valueOf(1), persisted.get(FireOutcome.NO_TRANSITION));
+		assertEquals(10001, skipped[0]);
+		for (StateMachineInstance<TestStates, TestEvents, List<TestEvents>> instance : instances.values()) {
+			List<TestEvents> events = instance.getContext();
+			assertEquals(1000, events.size());
+			for (int i = 0; i < events.size(); i++) {
+				assertEquals(TestEvents.values()[i % 3], events.get(i));
+			}
+		}
+	}
+
+	@Test
+	public void test_stagesInOrder() throws Exception {
+		List<Long> first = new ArrayList<Long>();
+		List<Long> second = new ArrayList<Long>();
+		try (EventPipeline<Integer, TestEvents> pipeline = new EventPipeline<Integer, TestEvents>(8,
+				(slot, sequence, endOfBatch) -> {
+					first.add(sequence);
+					slot.setOutcome(FireOutcome.ACCEPTED);
+				}, (slot, sequence, endOfBatch) -> {
+					// the first stage is always done with the slot
+					if (slot.getOutcome() == FireOutcome.ACCEPTED) {
+						second.add(sequence);
+					}
+				})) {
+			for (int i = 0; i < 1000; i++) {
+				pipeline.publish(i, TestEvents.EVENT_1, null);
+			}
+		}
+		assertEquals(1000, first.size());
+		assertEquals(1000, second.size());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(Long.valueOf(i), first.get(i));
+			assertEquals(Long.valueOf(i), second.get(i));
+		}
+	}
+
+	@Test
+	public void test_handlerFailure() throws Exception {
+		int[] rejected = new int[1];
+		EventPipeline<Integer, TestEvents> pipeline = new EventPipeline<Integer, TestEvents>(8,
+				(slot, sequence, endOfBatch) -> {
+					if (slot.getEvent() == TestEvents.EVENT_2) {
+						throw new IllegalStateException("test");
+					}
+				}, (slot, sequence, endOfBatch) -> {
+					if (slot.isRejected()) {
+						rejected[0]++;
+					}
+				});
+		for (int i = 0; i < 30; i++) {
+			pipeline.publish(i, TestEvents.values()[i % 3], null);
+		}
+		pipeline.close();
+		assertEquals(10, pipeline.getErrors());
+		assertEquals(10, rejected[0]);
+		assertEquals(29, pipeline.getSequence(1));
+	}
+
+	@Test
+	public void test_full() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		EventPipeline<Integer, TestEvents> pipeline = new EventPipeline<Integer, TestEvents>(4,
+				(slot, sequence, endOfBatch) -> release.await());
+		for (int i = 0; i < 4; i++) {
+			assertTrue(pipeline.tryPublish(i, TestEvents.EVENT_1, null));
+		}
+		assertFalse(pipeline.tryPublish(4, TestEvents.EVENT_1, null));
+		release.countDown();
+		pipeline.publish(4, TestEvents.EVENT_1, null);
+		pipeline.close();
+		assertEquals(4, pipeline.getSequence(0));
+	}
+
+	@Test
+	public void test_noAllocation() throws Exception {
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+		Integer[] ids = new Integer[16];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = i;
+		}
+		long[] count = new long[1];
+		try (EventPipeline<Integer, TestEvents> pipeline = new EventPipeline<Integer, TestEvents>(1024,
+				(slot, sequence, endOfBatch) -> count[0]++)) {
+			for (int i = 0; i < 100000; i++) {
+				pipeline.publish(ids[i & 15], TestEvents.EVENT_1, null);
+			}
+			long id = Thread.currentThread().getId();
+			long before = threads.getThreadAllocatedBytes(id);
+			for (int i = 0; i < 100000; i++) {
+				pipeline.publish(ids[i & 15], TestEvents.EVENT_1, null);
+			}
+			long allocated = threads.getThreadAllocatedBytes(id) - before;
+			// a wrapper per event would be well over a megabyte
+			assertTrue("allocated " + allocated, allocated < 64 * 1024);
+		}
+		assertEquals(200000, count[0]);
+	}
+
+}
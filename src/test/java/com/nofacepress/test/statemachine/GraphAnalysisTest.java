@@ -0,0 +1,252 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineGraphBuilder;
+import com.nofacepress.statemachine.StateMachineGraphBuilder.StateMachineGraphBuild;
+import com.nofacepress.statemachine.StateType;
+import com.nofacepress.statemachine.analysis.GraphAnalysis;
+import com.nofacepress.statemachine.analysis.StateQualifier;
+import com.nofacepress.statemachine.impl.PersistentStateMachineGraph;
+import com.nofacepress.statemachine.listener.ListenerManager;
+import com.nofacepress.statemachine.listener.OnStateChangedListener;
+import com.nofacepress.statemachine.plantxml.PlantUmlManager;
+
+public class GraphAnalysisTest {
+
+	/**
+	 * Graph implementing only the required methods, it does not track a
+	 * version.
+	 */
+	private static class UnversionedGraph implements StateMachineGraph<String, String, Object> {
+		final StateMachineGraph<String, String, Object> graph;
+
+		UnversionedGraph(StateMachineGraph<String, String, Object> graph) {
+			this.graph = graph;
+		}
+
+		@Override
+		public StateType<String, String, Object> addState(String state) {
+			return graph.addState(state);
+		}
+
+		@Override
+		public void addTransition(String source, String target, String event) {
+			graph.addTransition(source, target, event);
+		}
+
+		@Override
+		public StateMachineGraph<String, String, Object> dup(boolean includeListeners) {
+			return new UnversionedGraph(graph.dup(includeListeners));
+		}
+
+		@Override
+		public String getInitialState() {
+			return graph.getInitialState();
+		}
+
+		@Override
+		public ListenerManager<String, String, Object> getListenerManager() {
+			return graph.getListenerManager();
+		}
+
+		@Override
+		public StateType<String, String, Object> getStateType(String state) {
+			return graph.getStateType(state);
+		}
+
+		@Override
+		public Collection<? extends StateType<String, String, Object>> getStates() {
+			return graph.getStates();
+		}
+
+		@Override
+		public void setInitialState(String state) {
+			graph.setInitialState(state);
+		}
+	}
+
+	private StateMachineGraph<String, String, Object> graph() {
+		return StateMachineGraphBuilder.<String, String, Object>builder()
+				.initial("A")
+				.transition("A", "B", "go")
+				.transition("B", "C", "next")
+				.transition("C", "A", "restart")
+				.transition("C", "D", "finish")
+				.transition("B", "E", "side")
+				.transition("E", "B", "back")
+				.transition("X", "B", "jump")
+				.state("O")
+				.build();
+	}
+
+	@Test
+	public void test_analysis() {
+		GraphAnalysis<String, String, Object> analysis = GraphAnalysis.analyze(graph());
+
+		assertEquals(7, analysis.getStateCount());
+		assertEquals(7, analysis.getTransitionCount());
+		assertEquals("A", analysis.getStateId(analysis.getInitialIndex()));
+
+		// A, B, C and E form one component through the loop back to A
+		assertEquals(analysis.getComponent("B"), analysis.getComponent("E"));
+		assertEquals(analysis.getComponent("A"), analysis.getComponent("C"));
+		assertNotEquals(analysis.getComponent("A"), analysis.getComponent("D"));
+		assertEquals(4, analysis.getComponentCount());
+
+		// the loop back to the initial state is ignored for path lengths
+
+		assertEquals(1, analysis.getPathLength("D"));
+		assertEquals(2, analysis.getPathLength("C"));
+		assertEquals(4, analysis.getPathLength("B"));
+		assertEquals(4, analysis.getPathLength("E"));
+		assertEquals(5, analysis.getPathLength("A"));
+		assertEquals(5, analysis.getPathLength("X"));
+
+		assertTrue(analysis.isReachable("D"));
+		assertFalse(analysis.isReachable("X"));
+		assertEquals(Arrays.asList("X", "O"), analysis.getUnreachableStates());
+
+		assertEquals(StateQualifier.initial, analysis.getQualifier("A"));
+		assertEquals(StateQualifier.alternate, analysis.getQualifier("X"));
+		assertEquals(StateQualifier.orphan, analysis.getQualifier("O"));
+		assertEquals(StateQualifier.done, analysis.getQualifier("D"));
+		assertNull(analysis.getQualifier("B"));
+	}
+
+	@Test
+	public void test_cycleThroughInitial() {
+		StateMachineGraph<String, String, Object> graph = StateMachineGraphBuilder.<String, String, Object>builder()
+				.initial("A")
+				.transition("A", "B", "go")
+				.transition("B", "A", "back")
+				.build();
+
+		GraphAnalysis<String, String, Object> analysis = GraphAnalysis.analyze(graph);
+		assertEquals(1, analysis.getComponentCount());
+		assertEquals(analysis.getComponent("A"), analysis.getComponent("B"));
+		assertEquals(2, analysis.getPathLength("A"));
+		assertEquals(1, analysis.getPathLength("B"));
+	}
+
+	@Test
+	public void test_cache() {
+		StateMachineGraph<String, String, Object> graph = graph();
+		long version = graph.getVersion();
+
+		GraphAnalysis<String, String, Object> analysis = GraphAnalysis.analyze(graph);
+		assertSame(analysis, GraphAnalysis.analyze(graph));
+		assertEquals(version, analysis.getVersion());
+
+		// existing states and listeners do not change the version
+		graph.addState("A");
+		graph.getListenerManager().addListener(
+				(OnStateChangedListener<String, String, Object>) (instance, source, target, event) -> {
+				});
+		assertEquals(version, graph.getVersion());
+		assertSame(analysis, GraphAnalysis.analyze(graph));
+
+		graph.addTransition("D", "F", "more");
+		assertNotEquals(version, graph.getVersion());
+		GraphAnalysis<String, String, Object> updated = GraphAnalysis.analyze(graph);
+		assertNotSame(analysis, updated);
+		assertEquals(2, updated.getPathLength("D"));
+		assertEquals(1, analysis.getPathLength("D"));
+
+		version = graph.getVersion();
+		graph.setInitialState("X");
+		assertNotEquals(version, graph.getVersion());
+		assertEquals("X", GraphAnalysis.analyze(graph).getStateId(GraphAnalysis.analyze(graph).getInitialIndex()));
+	}
+
+	@Test
+	public void test_longChain() throws Exception {
+		final int n = 200000;
+		StateMachineGraphBuild<String, String, Object> build = StateMachineGraphBuilder.<String, String, Object>builder();
+		for (int i = 0; i < n - 1; i++) {
+			build.transition("S" + i, "S" + (i + 1), "next");
+		}
+		// one big cycle back to the second state
+		build.transition("S" + (n - 1), "S1", "again");
+		StateMachineGraph<String, String, Object> graph = build.build();
+
+		GraphAnalysis<String, String, Object> analysis = GraphAnalysis.analyze(graph);
+		assertEquals(2, analysis.getComponentCount());
+		assertEquals(n, analysis.getPathLength("S0"));
+		assertEquals(n - 1, analysis.getPathLength("S" + (n - 1)));
+		assertTrue(analysis.isReachable("S" + (n - 1)));
+
+		// exporters no longer recurse
+		StringWriter writer = new StringWriter();
+		new PlantUmlManager().saveStringGraph(graph, null, writer);
+		assertTrue(writer.toString().startsWith("@startuml"));
+	}
+
+	@Test
+	public void test_cacheReleasesGraph() throws Exception {
+		// the states of a persistent graph reference the graph
+		StateMachineGraph<String, String, Object> graph = new PersistentStateMachineGraph<String, String, Object>(
+				graph(), false);
+		GraphAnalysis<String, String, Object> analysis = GraphAnalysis.analyze(graph);
+		assertEquals("A", analysis.getStateId(analysis.getInitialIndex()));
+		WeakReference<StateMachineGraph<String, String, Object>> ref = new WeakReference<StateMachineGraph<String, String, Object>>(
+				graph);
+		graph = null;
+		for (int i = 0; i < 100 && ref.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(ref.get());
+	}
+
+	@Test
+	public void test_unversionedGraph() throws Exception {
+		StateMachineGraph<String, String, Object> graph = new UnversionedGraph(graph());
+		assertEquals(-1, graph.getVersion());
+		GraphAnalysis<String, String, Object> analysis = GraphAnalysis.analyze(graph);
+		assertNotSame(analysis, GraphAnalysis.analyze(graph));
+		assertEquals(5, analysis.getPathLength("A"));
+
+		graph.addTransition("D", "F", "more");
+		assertEquals(6, GraphAnalysis.analyze(graph).getPathLength("A"));
+		StringWriter writer = new StringWriter();
+		new PlantUmlManager().saveStringGraph(graph, null, writer);
+		assertTrue(writer.toString().contains("F"));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void test_unversionedGraphTimeout() {
+		new UnversionedGraph(graph()).setTimeout("A", 1, TimeUnit.SECONDS, "go");
+	}
+
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineGraphBuilder;
+import com.nofacepress.statemachine.StateMachineGraphBuilder.StateMachineGraphBuild;
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.StateType;
+import com.nofacepress.statemachine.analysis.GraphMinimization;
+import com.nofacepress.statemachine.impl.StateMachineGraphImpl;
+import com.nofacepress.statemachine.listener.OnStateChangedListener;
+
+public class GraphMinimizationTest {
+
+	private StateMachineGraphBuild<String, String, Object> branches() {
+		return StateMachineGraphBuilder.<String, String, Object>builder()
+				.initial("A")
+				.transition("A", "B1", "left")
+				.transition("A", "B2", "right")
+				.transition("B1", "C1", "next")
+				.transition("B2", "C2", "next")
+				.transition("C1", "A", "restart")
+				.transition("C2", "A", "restart");
+	}
+
+	@Test
+	public void test_merge() {
+		StateMachineGraph<String, String, Object> source = branches().build();
+		GraphMinimization<String, String, Object> minimized = new GraphMinimization<String, String, Object>(source);
+		StateMachineGraph<String, String, Object> graph = minimized.getGraph();
+
+		assertEquals(3, graph.getStates().size());
+		assertEquals("A", graph.getInitialState());
+		assertEquals(minimized.map("B1"), minimized.map("B2"));
+		assertEquals(minimized.map("C1"), minimized.map("C2"));
+		assertEquals("A", minimized.map("A"));
+		assertNull(minimized.map("Z"));
+		assertEquals(5, minimized.getMapping().size());
+
+		// the source is untouched
+		assertEquals(5, source.getStates().size());
+
+		StateMachineInstance<String, String, Object> instance = new StateMachineInstance<String, String, Object>(graph,
+				null);
+		assertTrue(instance.fireEvent("right"));
+		assertTrue(instance.fireEvent("next"));
+		assertTrue(instance.fireEvent("restart"));
+		assertEquals("A", instance.getCurrentState().getId());
+	}
+
+	@Test
+	public void test_marks() {
+		AtomicInteger calls = new AtomicInteger();
+		OnStateChangedListener<String, String, Object> listener = (instance, source, target, event) -> calls
+				.incrementAndGet();
+
+		// a state listener keeps its state apart, and so do its predecessors
+		GraphMinimization<String, String, Object> minimized = new GraphMinimization<String, String, Object>(
+				branches().listener("C2", listener).build());
+		assertEquals(5, minimized.getGraph().getStates().size());
+		StateMachineInstance<String, String, Object> instance = new StateMachineInstance<String, String, Object>(
+				minimized.getGraph(), null);
+		instance.fireEvent("left");
+		instance.fireEvent("next");
+		assertEquals(0, calls.get());
+		instance.fireEvent("restart");
+		instance.fireEvent("right");
+		instance.fireEvent("next");
+		assertEquals(1, calls.get());
+
+		// global listeners are copied and do not prevent merging
+		minimized = new GraphMinimization<String, String, Object>(branches().listener(listener).build());
+		assertEquals(3, minimized.getGraph().getStates().size());
+		assertTrue(!minimized.getGraph().getListenerManager().isEmpty());
+
+		// timeouts must match
+		minimized = new GraphMinimization<String, String, Object>(
+				branches().timeout("B1", 1, TimeUnit.SECONDS, "next").build());
+		assertNotEquals(minimized.map("B1"), minimized.map("B2"));
+		assertEquals(minimized.map("C1"), minimized.map("C2"));
+		assertEquals(TimeUnit.SECONDS.toNanos(1), minimized.getGraph().getStateType("B1").getTimeout()
+				.getDuration(TimeUnit.NANOSECONDS));
+		minimized = new GraphMinimization<String, String, Object>(branches()
+				.timeout("B1", 1000, TimeUnit.MILLISECONDS, "next").timeout("B2", 1, TimeUnit.SECONDS, "next").build());
+		assertEquals(minimized.map("B1"), minimized.map("B2"));
+
+		// a missing transition is a difference
+		minimized = new GraphMinimization<String, String, Object>(branches().transition("C1", "A", "cancel").build());
+		assertNotEquals(minimized.map("C1"), minimized.map("C2"));
+		assertNotEquals(minimized.map("B1"), minimized.map("B2"));
+	}
+
+	@Test
+	public void test_ring() {
+		StateMachineGraph<Integer, String, Object> graph = new StateMachineGraphImpl<Integer, String, Object>();
+		final int n = 100000;
+		for (int i = 0; i < n; i++) {
+			graph.addTransition(i, (i + 1) % n, "next");
+			graph.addTransition(i, (i + 2) % n, "skip");
+		}
+		GraphMinimization<Integer, String, Object> minimized = new GraphMinimization<Integer, String, Object>(graph);
+		assertEquals(1, minimized.getGraph().getStates().size());
+		assertEquals(Integer.valueOf(0), minimized.map(n - 1));
+
+		// one marked state breaks the symmetry of the whole ring
+		graph.getStateType(n / 2).getListenerManager()
+				.addListener((OnStateChangedListener<Integer, String, Object>) (instance, source, target, event) -> {
+				});
+		assertEquals(n, new GraphMinimization<Integer, String, Object>(graph).getGraph().getStates().size());
+	}
+
+	@Test
+	public void test_random() {
+		Random random = new Random(5);
+		for (int round = 0; round < 200; round++) {
+			int n = 1 + random.nextInt(40);
+			StateMachineGraph<Integer, Integer, Object> graph = new StateMachineGraphImpl<Integer, Integer, Object>();
+			for (int i = 0; i < n; i++) {
+				graph.addState(i);
+				for (int e = 0; e < 3; e++) {
+					if (random.nextInt(4) != 0) {
+						graph.addTransition(i, random.nextInt(n), e);
+					}
+				}
+				if (random.nextInt(10) == 0) {
+					graph.setTimeout(i, 1, TimeUnit.SECONDS, 0);
+				}
+			}
+
+			GraphMinimization<Integer, Integer, Object> minimized = new GraphMinimization<Integer, Integer, Object>(
+					graph);
+			Map<Integer, Integer> expected = naive(graph);
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < n; j++) {
+					assertEquals(expected.get(i).equals(expected.get(j)),
+							minimized.map(i).equals(minimized.map(j)));
+				}
+				// every transition maps to the representative of its target
+				StateType<Integer, Integer, Object> state = graph.getStateType(i);
+				StateType<Integer, Integer, Object> rep = minimized.getGraph().getStateType(minimized.map(i));
+				assertEquals(state.getTransitions().size(), rep.getTransitions().size());
+				for (Integer e : state.getTransitions().keySet()) {
+					assertEquals(minimized.map(state.getTransition(e).getId()), rep.getTransition(e).getId());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moore's refinement, quadratic but obviously right.
+	 */
+	private Map<Integer, Integer> naive(StateMachineGraph<Integer, Integer, Object> graph) {
+		int n = graph.getStates().size();
+		int[] classes = new int[n];
+		for (int i = 0; i < n; i++) {
+			classes[i] = (graph.getStateType(i).getTimeout() == null) ? 0 : 1;
+		}
+		int count = -1;
+		while (true) {
+			Map<List<Integer>, Integer> signatures = new HashMap<List<Integer>, Integer>();
+			int[] next = new int[n];
+			for (int i = 0; i < n; i++) {
+				List<Integer> signature = new ArrayList<Integer>();
+				signature.add(classes[i]);
+				for (int e = 0; e < 3; e++) {
+					StateType<Integer, Integer, Object> target = graph.getStateType(i).getTransition(e);
+					signature.add(target == null ? -1 : classes[target.getId()]);
+				}
+				next[i] = signatures.computeIfAbsent(signature, k -> signatures.size());
+			}
+			classes = next;
+			if (signatures.size() == count) {
+				break;
+			}
+			count = signatures.size();
+		}
+		Map<Integer, Integer> result = new HashMap<Integer, Integer>();
+		for (int i = 0; i < n; i++) {
+			result.put(i, classes[i]);
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineGraphBuilder;
+import com.nofacepress.statemachine.StateMachineGraphCompiler;
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.exceptions.StateMachineException;
+import com.nofacepress.statemachine.listener.AfterStateChangedListener;
+import com.nofacepress.statemachine.listener.OnStateChangedListener;
+
+public class GraphTransitionTest {
+
+	@Test
+	public void test_transition() {
+		List<String> calls = new ArrayList<String>();
+		List<StateMachineInstance<TestStates, TestEvents, String>> instances = new ArrayList<StateMachineInstance<TestStates, TestEvents, String>>();
+		StateMachineGraph<TestStates, TestEvents, String> graph = StateMachineGraphBuilder
+				.<TestStates, TestEvents, String>builder()
+				.initial(TestStates.STATE_1)
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.transition(TestStates.STATE_2, TestStates.STATE_3, TestEvents.EVENT_2)
+				.listener((OnStateChangedListener<TestStates, TestEvents, String>) (instance, source, target,
+						event) -> {
+					calls.add("on " + instance.getContext() + " " + source.getId() + " " + target.getId());
+					instances.add(instance);
+				})
+				.listener(TestStates.STATE_2, (AfterStateChangedListener<TestStates, TestEvents, String>) (instance,
+						source, target, event) -> calls.add("after " + target.getId()))
+				.build();
+
+		assertEquals(TestStates.STATE_2, graph.transition(TestStates.STATE_1, TestEvents.EVENT_1, "a"));
+		assertEquals(TestStates.STATE_3, graph.transition(TestStates.STATE_2, TestEvents.EVENT_2, "b"));
+		assertNull(graph.transition(TestStates.STATE_3, TestEvents.EVENT_1, "c"));
+		assertEquals("[on a STATE_1 STATE_2, after STATE_2, on b STATE_2 STATE_3]", calls.toString());
+
+		// one instance per thread is reused and released
+		assertSame(instances.get(0), instances.get(1));
+		assertNull(instances.get(0).getContext());
+
+		// compiled graphs work the same way
+		StateMachineGraph<TestStates, TestEvents, String> compiled = StateMachineGraphCompiler.compile(graph);
+		assertEquals(TestStates.STATE_2, compiled.transition(TestStates.STATE_1, TestEvents.EVENT_1, "d"));
+		assertEquals(5, calls.size());
+	}
+
+	@Test(expected = StateMachineException.class)
+	public void test_invalidState() {
+		StateMachineGraph<TestStates, TestEvents, String> graph = StateMachineGraphBuilder
+				.<TestStates, TestEvents, String>builder()
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.build();
+		graph.transition(TestStates.STATE_4, TestEvents.EVENT_1, null);
+	}
+
+	@Test
+	public void test_listenerChanges() {
+		List<StateMachineInstance<TestStates, TestEvents, String>> instances = new ArrayList<StateMachineInstance<TestStates, TestEvents, String>>();
+		StateMachineGraph<TestStates, TestEvents, String> graph = StateMachineGraphBuilder
+				.<TestStates, TestEvents, String>builder()
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.transition(TestStates.STATE_2, TestStates.STATE_3, TestEvents.EVENT_2)
+				.transition(TestStates.STATE_3, TestStates.STATE_4, TestEvents.EVENT_3)
+				.build();
+
+		// an after listener moving the instance on is reported
+		graph.getStateType(TestStates.STATE_2).getListenerManager()
+				.addListener((AfterStateChangedListener<TestStates, TestEvents, String>) (instance, source, target,
+						event) -> {
+					instances.add(instance);
+					// a nested call gets its own instance
+					assertEquals(TestStates.STATE_4, instance.getStateMachineGraph()
+							.transition(TestStates.STATE_3, TestEvents.EVENT_3, "nested"));
+					instance.fireEvent(TestEvents.EVENT_2);
+				});
+		graph.getStateType(TestStates.STATE_4).getListenerManager()
+				.addListener((OnStateChangedListener<TestStates, TestEvents, String>) (instance, source, target,
+						event) -> instances.add(instance));
+		assertEquals(TestStates.STATE_3, graph.transition(TestStates.STATE_1, TestEvents.EVENT_1, "outer"));
+		assertEquals(2, instances.size());
+		assertNotSame(instances.get(0), instances.get(1));
+
+	}
+
+	@Test
+	public void test_failingListener() {
+		List<StateMachineInstance<TestStates, TestEvents, String>> instances = new ArrayList<StateMachineInstance<TestStates, TestEvents, String>>();
+		StateMachineGraph<TestStates, TestEvents, String> graph = StateMachineGraphBuilder
+				.<TestStates, TestEvents, String>builder()
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.transition(TestStates.STATE_1, TestStates.STATE_3, TestEvents.EVENT_2)
+				.listener((OnStateChangedListener<TestStates, TestEvents, String>) (instance, source, target,
+						event) -> instances.add(instance))
+				.listener(TestStates.STATE_3, (OnStateChangedListener<TestStates, TestEvents, String>) (instance,
+						source, target, event) -> instance.forceStateChange(TestStates.STATE_1, null, true))
+				.build();
+
+		// changing state from an on listener fails like it does with fireEvent()
+		try {
+			graph.transition(TestStates.STATE_1, TestEvents.EVENT_2, "fail");
+			fail();
+		} catch (StateMachineException e) {
+		}
+
+		// and the instance is released
+		assertEquals(TestStates.STATE_2, graph.transition(TestStates.STATE_1, TestEvents.EVENT_1, "ok"));
+		assertSame(instances.get(0), instances.get(1));
+		assertEquals(TestStates.STATE_2, instances.get(1).getCurrentState().getId());
+	}
+
+	@Test
+	public void test_graphNotPinnedByThread() throws Exception {
+		StateMachineGraph<TestStates, TestEvents, String> graph = StateMachineGraphBuilder
+				.<TestStates, TestEvents, String>builder()
+				.initial(TestStates.STATE_1)
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.build();
+		assertEquals(TestStates.STATE_2, graph.transition(TestStates.STATE_1, TestEvents.EVENT_1, "a"));
+
+		WeakReference<StateMachineGraph<TestStates, TestEvents, String>> ref = new WeakReference<StateMachineGraph<TestStates, TestEvents, String>>(
+				graph);
+		graph = null;
+		for (int i = 0; i < 100 && ref.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(ref.get());
+	}
+
+}
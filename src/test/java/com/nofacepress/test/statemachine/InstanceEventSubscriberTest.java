@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.flow.InstanceEvent;
+import com.nofacepress.statemachine.flow.InstanceEventSubscriber;
+
+public class InstanceEventSubscriberTest {
+
+	@Test
+	public void test_stream() throws Exception {
+		StateMachineGraph<TestStates, TestEvents, List<TestEvents>> graph = TestGraphs.recordingCycle();
+		Map<Integer, StateMachineInstance<TestStates, TestEvents, List<TestEvents>>> instances = new ConcurrentHashMap<Integer, StateMachineInstance<TestStates, TestEvents, List<TestEvents>>>();
+		for (int i = 0; i < 20; i++) {
+			instances.put(i, new StateMachineInstance<TestStates, TestEvents, List<TestEvents>>(graph,
+					new ArrayList<TestEvents>()));
+		}
+		InstanceEventSubscriber<Integer, TestStates, TestEvents, List<TestEvents>> subscriber = new InstanceEventSubscriber<Integer, TestStates, TestEvents, List<TestEvents>>(
+				instances::get, 64, 4, ForkJoinPool.commonPool());
+
+		try (SubmissionPublisher<InstanceEvent<Integer, TestEvents>> publisher = new SubmissionPublisher<InstanceEvent<Integer, TestEvents>>()) {
+			publisher.subscribe(subscriber);
+			for (int round = 0; round < 300; round++) {
+				for (int i = 0; i < 20; i++) {
+					publisher.submit(new InstanceEvent<Integer, TestEvents>(i, TestEvents.values()[round % 3]));
+				}
+			}
+			publisher.submit(new InstanceEvent<Integer, TestEvents>(0, TestEvents.EVENT_3));
+			publisher.submit(new InstanceEvent<Integer, TestEvents>(99, TestEvents.EVENT_1));
+		}
+		subscriber.getCompletion().get(10, TimeUnit.SECONDS);
+
+		// every instance saw its events in order
+		assertEquals(6000, subscriber.getAccepted());
+		assertEquals(1, subscriber.getRejected());
+		assertEquals(1, subscriber.getUnrouted());
+		assertEquals(0, subscriber.getFailed());
+		for (StateMachineInstance<TestStates, TestEvents, List<TestEvents>> instance : instances.values()) {
+			List<TestEvents> events = instance.getContext();
+			assertEquals(300, events.size());
+			for (int i = 0; i < events.size(); i++) {
+				assertEquals(TestEvents.values()[i % 3], events.get(i));
+			}
+			assertEquals(TestStates.STATE_1, instance.getCurrentState().getId());
+		}
+	}
+
+	@Test
+	public void test_backpressure() throws Exception {
+		StateMachineGraph<TestStates, TestEvents, List<TestEvents>> graph = TestGraphs.recordingCycle();
+		StateMachineInstance<TestStates, TestEvents, List<TestEvents>> instance = new StateMachineInstance<TestStates, TestEvents, List<TestEvents>>(
+				graph, new ArrayList<TestEvents>());
+		InstanceEventSubscriber<String, TestStates, TestEvents, List<TestEvents>> subscriber = new InstanceEventSubscriber<String, TestStates, TestEvents, List<TestEvents>>(
+				id -> instance, 8, 2, ForkJoinPool.commonPool());
+
+		// a source that checks it is never asked for more than the window
+		AtomicLong outstanding = new AtomicLong();
+		AtomicLong maxOutstanding = new AtomicLong();
+		AtomicLong sent = new AtomicLong();
+		Thread[] source = new Thread[1];
+		Flow.Subscription subscription = new Flow.Subscription() {
+			@Override
+			public void request(long n) {
+				maxOutstanding.accumulateAndGet(outstanding.addAndGet(n), Math::max);
+			}
+
+			@Override
+			public void cancel() {
+			}
+		};
+		subscriber.onSubscribe(subscription);
+		source[0] = new Thread(() -> {
+			while (sent.get() < 3000) {
+				if (outstanding.get() > 0) {
+					outstanding.decrementAndGet();
+					subscriber.onNext(new InstanceEvent<String, TestEvents>("a",
+							TestEvents.values()[(int) (sent.getAndIncrement() % 3)]));
+				} else {
+					Thread.yield();
+				}
+			}
+			subscriber.onComplete();
+		});
+		source[0].start();
+		subscriber.getCompletion().get(10, TimeUnit.SECONDS);
+		source[0].join();
+
+		assertTrue(maxOutstanding.get() <= 8);
+		assertEquals(3000, subscriber.getAccepted());
+		assertEquals(3000, instance.getContext().size());
+	}
+
+	@Test
+	public void test_resolverFailure() throws Exception {
+		StateMachineGraph<TestStates, TestEvents, List<TestEvents>> graph = TestGraphs.recordingCycle();
+		StateMachineInstance<TestStates, TestEvents, List<TestEvents>> instance = new StateMachineInstance<TestStates, TestEvents, List<TestEvents>>(
+				graph, new ArrayList<TestEvents>());
+		InstanceEventSubscriber<Integer, TestStates, TestEvents, List<TestEvents>> subscriber = new InstanceEventSubscriber<Integer, TestStates, TestEvents, List<TestEvents>>(
+				id -> {
+					if (id != 0) {
+						throw new IllegalStateException("no instance " + id);
+					}
+					return instance;
+				}, 4, 2, ForkJoinPool.commonPool());
+
+		try (SubmissionPublisher<InstanceEvent<Integer, TestEvents>> publisher = new SubmissionPublisher<InstanceEvent<Integer, TestEvents>>()) {
+			publisher.subscribe(subscriber);
+			for (int round = 0; round < 30; round++) {
+				publisher.submit(new InstanceEvent<Integer, TestEvents>(0, TestEvents.values()[round % 3]));
+				publisher.submit(new InstanceEvent<Integer, TestEvents>(1, TestEvents.EVENT_1));
+			}
+		}
+		// the window keeps being refilled and the stream completes
+		subscriber.getCompletion().get(10, TimeUnit.SECONDS);
+
+		assertEquals(30, subscriber.getAccepted());
+		assertEquals(30, subscriber.getFailed());
+		assertEquals(0, subscriber.getUnrouted());
+	}
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.nofacepress.statemachine.PartitionedEngine;
+import com.nofacepress.statemachine.StateMachineInstance;
+
+public class PartitionedEngineTest {
+
+	private PartitionedEngine<Integer, TestStates, TestEvents, List<TestEvents>> engine(int partitions) {
+		return new PartitionedEngine<Integer, TestStates, TestEvents, List<TestEvents>>(
+				TestGraphs.recordingCycle(), id -> new ArrayList<TestEvents>(), partitions, 256);
+	}
+
+	private void assertInOrder(PartitionedEngine<Integer, TestStates, TestEvents, List<TestEvents>> engine, int id,
+			int count) throws Exception {
+		List<TestEvents> events = engine.query(id, instance -> new ArrayList<TestEvents>(instance.getContext()))
+				.get(10, TimeUnit.SECONDS);
+		assertEquals(count, events.size());
+		for (int i = 0; i < events.size(); i++) {
+			assertEquals(TestEvents.values()[i % 3], events.get(i));
+		}
+	}
+
+	@Test
+	public void test_events() throws Exception {
+		try (PartitionedEngine<Integer, TestStates, TestEvents, List<TestEvents>> engine = engine(4)) {
+			for (int round = 0; round < 300; round++) {
+				for (int id = 0; id < 100; id++) {
+					engine.fireEvent(id, TestEvents.values()[round % 3]);
+				}
+			}
+			engine.fireEvent(0, TestEvents.EVENT_3);
+			engine.flush().get(10, TimeUnit.SECONDS);
+
+			assertEquals(30000, engine.getAccepted());
+			assertEquals(1, engine.getRejected());
+			assertEquals(0, engine.getFailed());
+			for (int id = 0; id < 100; id++) {
+				assertInOrder(engine, id, 300);
+			}
+		}
+	}
+
+	@Test
+	public void test_singleThreadPerInstance() throws Exception {
+		try (PartitionedEngine<Integer, TestStates, TestEvents, List<TestEvents>> engine = engine(4)) {
+			for (int id = 0; id < 8; id++) {
+				String name = engine.query(id, instance -> Thread.currentThread().getName()).get(10,
+						TimeUnit.SECONDS);
+				assertEquals("state-machine-partition-" + engine.partitionOf(id), name);
+			}
+		}
+	}
+
+	@Test
+	public void test_moveWhileRunning() throws Exception {
+		int producers = 4;
+		int idsPerProducer = 25;
+		int rounds = 600;
+		try (PartitionedEngine<Integer, TestStates, TestEvents, List<TestEvents>> engine = engine(4)) {
+			AtomicBoolean done = new AtomicBoolean();
+			Thread mover = new Thread(() -> {
+				Random random = new Random(1);
+				while (!done.get()) {
+					engine.moveSlot(random.nextInt(engine.getSlotCount()),
+							random.nextInt(engine.getPartitionCount()));
+				}
+			});
+			mover.start();
+
+			Thread[] threads = new Thread[producers];
+			for (int p = 0; p < producers; p++) {
+				int first = p * idsPerProducer;
+				threads[p] = new Thread(() -> {
+					for (int round = 0; round < rounds; round++) {
+						for (int id = first; id < first + idsPerProducer; id++) {
+							engine.fireEvent(id, TestEvents.values()[round % 3]);
+						}
+					}
+				});
+				threads[p].start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			done.set(true);
+			mover.join();
+			engine.flush().get(10, TimeUnit.SECONDS);
+
+			assertEquals(producers * idsPerProducer * rounds, engine.getAccepted());
+			assertEquals(0, engine.getRejected());
+			for (int id = 0; id < producers * idsPerProducer; id++) {
+				assertInOrder(engine, id, rounds);
+			}
+		}
+	}
+
+	@Test
+	public void test_rebalance() throws Exception {
+		try (PartitionedEngine<Integer, TestStates, TestEvents, List<TestEvents>> engine = engine(2)) {
+			// all the load lands on partition 0
+			List<Integer> hot = new ArrayList<Integer>();
+			for (int id = 0; hot.size() < 40; id++) {
+				if (engine.partitionOf(id) == 0) {
+					hot.add(id);
+				}
+			}
+			for (int round = 0; round < 30; round++) {
+				for (int id : hot) {
+					engine.fireEvent(id, TestEvents.values()[round % 3]);
+				}
+			}
+			engine.flush().get(10, TimeUnit.SECONDS);
+
+			assertTrue(engine.rebalance() > 0);
+			int moved = 0;
+			for (int id : hot) {
+				if (engine.partitionOf(id) == 1) {
+					moved++;
+				}
+			}
+			assertTrue(moved > 0 && moved < hot.size());
+
+			// instances keep their state on the new partition
+			for (int round = 30; round < 60; round++) {
+				for (int id : hot) {
+					engine.fireEvent(id, TestEvents.values()[round % 3]);
+				}
+			}
+			engine.flush().get(10, TimeUnit.SECONDS);
+			assertEquals(hot.size() * 60, engine.getAccepted());
+			for (int id : hot) {
+				assertInOrder(engine, id, 60);
+			}
+
+			// nothing to do when the load was even
+			assertEquals(0, engine.rebalance());
+		}
+	}
+
+	@Test
+	public void test_remove() throws Exception {
+		try (PartitionedEngine<Integer, TestStates, TestEvents, List<TestEvents>> engine = engine(2)) {
+			engine.fireEvent(7, TestEvents.EVENT_1);
+			engine.fireEvent(7, TestEvents.EVENT_2);
+			StateMachineInstance<TestStates, TestEvents, List<TestEvents>> removed = engine.remove(7).get(10,
+					TimeUnit.SECONDS);
+			assertEquals(TestStates.STATE_3, removed.getCurrentState().getId());
+			assertEquals(2, removed.getContext().size());
+			assertNull(engine.remove(7).get(10, TimeUnit.SECONDS));
+
+			// the next event starts over
+			engine.fireEvent(7, TestEvents.EVENT_1);
+			assertInOrder(engine, 7, 1);
+		}
+	}
+
+	@Test
+	public void test_close() throws Exception {
+		PartitionedEngine<Integer, TestStates, TestEvents, List<TestEvents>> engine = engine(2);
+		for (int id = 0; id < 10; id++) {
+			engine.fireEvent(id, TestEvents.EVENT_1);
+		}
+		engine.close();
+		assertEquals(10, engine.getAccepted());
+		try {
+			engine.fireEvent(0, TestEvents.EVENT_2);
+			fail("Expected IllegalStateException");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+}
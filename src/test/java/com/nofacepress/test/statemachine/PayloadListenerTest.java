@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineGraphBuilder;
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.listener.AfterStateChangedPayloadListener;
+import com.nofacepress.statemachine.listener.OnStateChangedListener;
+import com.nofacepress.statemachine.listener.OnStateChangedPayloadListener;
+
+public class PayloadListenerTest {
+
+	@Test
+	public void test_payload() {
+		List<String> calls = new ArrayList<String>();
+		StateMachineGraph<TestStates, TestEvents, String> graph = StateMachineGraphBuilder
+				.<TestStates, TestEvents, String>builder()
+				.initial(TestStates.STATE_1)
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.transition(TestStates.STATE_2, TestStates.STATE_1, TestEvents.EVENT_2)
+				.listener((OnStateChangedPayloadListener<TestStates, TestEvents, String>) (instance, source, target,
+						event, payload) -> calls.add("on " + payload))
+				.listener((OnStateChangedListener<TestStates, TestEvents, String>) (instance, source, target,
+						event) -> calls.add("plain"))
+				.listener(TestStates.STATE_2, (AfterStateChangedPayloadListener<TestStates, TestEvents, String>) (
+						instance, source, target, event, payload) -> calls.add("after " + payload))
+				.build();
+
+		StateMachineInstance<TestStates, TestEvents, String> instance = new StateMachineInstance<TestStates, TestEvents, String>(
+				graph, null);
+		assertTrue(instance.fireEvent(TestEvents.EVENT_1, 42));
+		assertTrue(instance.fireEvent(TestEvents.EVENT_2));
+		assertEquals(TestStates.STATE_2, graph.transition(TestStates.STATE_1, TestEvents.EVENT_1, null, "db"));
+		assertEquals("[on 42, plain, after 42, on null, plain, on db, plain, after db]", calls.toString());
+	}
+
+	@Test
+	public void test_concurrentPayloads() throws InterruptedException {
+		AtomicInteger mismatches = new AtomicInteger();
+		StateMachineGraph<TestStates, TestEvents, String> graph = StateMachineGraphBuilder
+				.<TestStates, TestEvents, String>builder()
+				.initial(TestStates.STATE_1)
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.transition(TestStates.STATE_2, TestStates.STATE_1, TestEvents.EVENT_2)
+				.listener((OnStateChangedPayloadListener<TestStates, TestEvents, String>) (instance, source, target,
+						event, payload) -> {
+					if (!payload.equals(instance.getContext())) {
+						mismatches.incrementAndGet();
+					}
+				})
+				.build();
+
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			String name = "thread-" + t;
+			threads[t] = new Thread(() -> {
+				StateMachineInstance<TestStates, TestEvents, String> instance = new StateMachineInstance<TestStates, TestEvents, String>(
+						graph, name);
+				for (int i = 0; i < 10000; i++) {
+					instance.fireEvent(TestEvents.EVENT_1, name);
+					instance.fireEvent(TestEvents.EVENT_2, name);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, mismatches.get());
+	}
+
+}
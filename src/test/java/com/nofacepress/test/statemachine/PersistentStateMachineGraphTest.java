@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineGraphBuilder;
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.StateType;
+import com.nofacepress.statemachine.impl.PersistentStateMachineGraph;
+import com.nofacepress.statemachine.listener.OnStateChangedListener;
+
+public class PersistentStateMachineGraphTest {
+
+	private StateMachineGraph<TestStates, TestEvents, String> base(AtomicInteger counter) {
+		return StateMachineGraphBuilder
+				.builder(new PersistentStateMachineGraph<TestStates, TestEvents, String>())
+				.initial(TestStates.STATE_1)
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.transition(TestStates.STATE_2, TestStates.STATE_3, TestEvents.EVENT_2)
+				.timeout(TestStates.STATE_2, 5, TimeUnit.MINUTES, TestEvents.EVENT_2)
+				.listener(TestStates.STATE_3, (OnStateChangedListener<TestStates, TestEvents, String>) (instance,
+						source, target, event) -> counter.incrementAndGet())
+				.build();
+	}
+
+	@Test
+	public void test_variants() {
+		AtomicInteger counter = new AtomicInteger();
+		StateMachineGraph<TestStates, TestEvents, String> base = base(counter);
+		StateMachineGraph<TestStates, TestEvents, String> variant = base.dup(true);
+		StateMachineGraph<TestStates, TestEvents, String> bare = base.dup(false);
+
+		variant.addTransition(TestStates.STATE_2, TestStates.STATE_4, TestEvents.EVENT_2);
+		variant.addTransition(TestStates.STATE_4, TestStates.STATE_1, TestEvents.EVENT_3);
+
+		// the base is untouched
+		assertNull(base.getStateType(TestStates.STATE_4));
+		assertEquals(3, base.getStates().size());
+		assertEquals(TestStates.STATE_3,
+				base.getStateType(TestStates.STATE_2).getTransition(TestEvents.EVENT_2).getId());
+		assertEquals(4, variant.getStates().size());
+		assertEquals(TestStates.STATE_4,
+				variant.getStateType(TestStates.STATE_2).getTransition(TestEvents.EVENT_2).getId());
+		assertEquals(TestEvents.EVENT_2, variant.getStateType(TestStates.STATE_2).getTimeout().getEvent());
+
+		// listeners belong to each graph
+		assertFalse(variant.getStateType(TestStates.STATE_3).getListenerManager().isEmpty());
+		assertTrue(bare.getStateType(TestStates.STATE_3).getListenerManager().isEmpty());
+
+		StateMachineInstance<TestStates, TestEvents, String> instance = new StateMachineInstance<TestStates, TestEvents, String>(
+				base, "base");
+		assertTrue(instance.fireEvent(TestEvents.EVENT_1));
+		assertTrue(instance.fireEvent(TestEvents.EVENT_2));
+		assertEquals(TestStates.STATE_3, instance.getCurrentState().getId());
+		assertEquals(1, counter.get());
+
+		instance = new StateMachineInstance<TestStates, TestEvents, String>(variant, "variant");
+		assertTrue(instance.fireEvent(TestEvents.EVENT_1));
+		assertTrue(instance.fireEvent(TestEvents.EVENT_2));
+		assertTrue(instance.fireEvent(TestEvents.EVENT_3));
+		assertEquals(TestStates.STATE_1, instance.getCurrentState().getId());
+		assertEquals(1, counter.get());
+	}
+
+	@Test
+	public void test_views() {
+		StateMachineGraph<TestStates, TestEvents, String> graph = base(new AtomicInteger());
+		StateType<TestStates, TestEvents, String> state = graph.getStateType(TestStates.STATE_1);
+		assertSame(state, graph.getStateType(TestStates.STATE_1));
+		assertSame(graph.getStateType(TestStates.STATE_2), state.getTransition(TestEvents.EVENT_1));
+
+		long version = graph.getVersion();
+		graph.addTransition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1);
+		assertEquals(version, graph.getVersion());
+
+		// views see later changes
+		graph.addTransition(TestStates.STATE_1, TestStates.STATE_3, TestEvents.EVENT_3);
+		assertTrue(version != graph.getVersion());
+		assertTrue(state.hasTransition(TestEvents.EVENT_3));
+		assertEquals(2, state.getTransitions().size());
+	}
+
+	@Test
+	public void test_randomAgainstHashMap() {
+		Random random = new Random(11);
+		PersistentStateMachineGraph<String, String, Object> graph = new PersistentStateMachineGraph<String, String, Object>();
+		Map<String, Map<String, String>> expected = new HashMap<String, Map<String, String>>();
+
+		// "Aa" and "BB" share a hash code, so collisions are covered
+		String[] prefixes = { "Aa", "BB", "s" };
+		StateMachineGraph<String, String, Object> snapshot = null;
+		Map<String, Map<String, String>> snapshotExpected = null;
+		for (int i = 0; i < 20000; i++) {
+			String source = prefixes[random.nextInt(3)] + random.nextInt(2000);
+			String target = prefixes[random.nextInt(3)] + random.nextInt(2000);
+			String event = prefixes[random.nextInt(3)] + random.nextInt(20);
+			graph.addTransition(source, target, event);
+			expected.computeIfAbsent(source, k -> new HashMap<String, String>()).put(event, target);
+			expected.computeIfAbsent(target, k -> new HashMap<String, String>());
+			if (i == 10000) {
+				snapshot = graph.dup(false);
+				snapshotExpected = new HashMap<String, Map<String, String>>();
+				for (Entry<String, Map<String, String>> entry : expected.entrySet()) {
+					snapshotExpected.put(entry.getKey(), new HashMap<String, String>(entry.getValue()));
+				}
+			}
+		}
+
+		assertGraph(expected, graph);
+		assertGraph(snapshotExpected, snapshot);
+	}
+
+	private void assertGraph(Map<String, Map<String, String>> expected, StateMachineGraph<String, String, Object> graph) {
+		assertEquals(expected.size(), graph.getStates().size());
+		for (StateType<String, String, Object> state : graph.getStates()) {
+			Map<String, String> transitions = expected.get(state.getId());
+			assertEquals(transitions.size(), state.getTransitions().size());
+			for (Entry<String, ? extends StateType<String, String, Object>> entry : state.getTransitions().entrySet()) {
+				assertEquals(transitions.get(entry.getKey()), entry.getValue().getId());
+				assertEquals(transitions.get(entry.getKey()), state.getTransition(entry.getKey()).getId());
+			}
+		}
+	}
+
+	@Test
+	public void test_copyOfGraph() {
+		AtomicInteger counter = new AtomicInteger();
+		StateMachineGraph<TestStates, TestEvents, String> source = StateMachineGraphBuilder
+				.<TestStates, TestEvents, String>builder()
+				.initial(TestStates.STATE_2)
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.transition(TestStates.STATE_2, TestStates.STATE_3, TestEvents.EVENT_2)
+				.listener((OnStateChangedListener<TestStates, TestEvents, String>) (instance, from, to,
+						event) -> counter.incrementAndGet())
+				.build();
+		StateMachineGraph<TestStates, TestEvents, String> copy = new PersistentStateMachineGraph<TestStates, TestEvents, String>(
+				source, true);
+		assertEquals(TestStates.STATE_2, copy.getInitialState());
+		StateMachineInstance<TestStates, TestEvents, String> instance = new StateMachineInstance<TestStates, TestEvents, String>(
+				copy, "copy");
+		assertTrue(instance.fireEvent(TestEvents.EVENT_2));
+		assertEquals(1, counter.get());
+	}
+
+}
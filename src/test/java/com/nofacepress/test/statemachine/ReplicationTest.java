@@ -0,0 +1,246 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.Test;
+
+import com.nofacepress.statemachine.ReplicationLog;
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.listener.OnStateChangedListener;
+import com.nofacepress.statemachine.replication.DeltaCodec;
+import com.nofacepress.statemachine.replication.IdCodec;
+import com.nofacepress.statemachine.replication.InMemoryChannel;
+import com.nofacepress.statemachine.replication.ReplicationChannel;
+import com.nofacepress.statemachine.replication.ReplicationFollower;
+import com.nofacepress.statemachine.replication.ReplicationServer;
+import com.nofacepress.statemachine.replication.ReplicationSource;
+import com.nofacepress.statemachine.replication.SocketReplicationChannel;
+
+public class ReplicationTest {
+
+	private final AtomicInteger listenerCalls = new AtomicInteger();
+
+	private StateMachineGraph<TestStates, TestEvents, Object> graph() {
+		return TestGraphs.<Object>cycle()
+				.state(TestStates.STATE_4)
+				.listener((OnStateChangedListener<TestStates, TestEvents, Object>) (instance, source, target,
+						event) -> listenerCalls.incrementAndGet())
+				.build();
+	}
+
+	private final StateMachineGraph<TestStates, TestEvents, Object> primaryGraph = graph();
+	private final StateMachineGraph<TestStates, TestEvents, Object> followerGraph = graph();
+	private final DeltaCodec<Long, TestStates> codec = new DeltaCodec<Long, TestStates>(primaryGraph,
+			IdCodec.longs());
+	private final ReplicationLog<Long, TestStates, TestEvents, Object> log = new ReplicationLog<Long, TestStates, TestEvents, Object>(
+			256);
+	private final ReplicationSource<Long, TestStates> source = new ReplicationSource<Long, TestStates>(log, codec,
+			1024);
+	private final List<StateMachineInstance<TestStates, TestEvents, Object>> primaries = new ArrayList<StateMachineInstance<TestStates, TestEvents, Object>>();
+
+	private void addPrimaries(int count) {
+		for (long id = 0; id < count; id++) {
+			StateMachineInstance<TestStates, TestEvents, Object> instance = new StateMachineInstance<TestStates, TestEvents, Object>(
+					primaryGraph, null);
+			log.add(instance, id);
+			primaries.add(instance);
+		}
+	}
+
+	private void fire(int rounds) {
+		for (int round = 0; round < rounds; round++) {
+			for (StateMachineInstance<TestStates, TestEvents, Object> instance : primaries) {
+				instance.fireEvent(TestEvents.values()[instance.getCurrentState().getId().ordinal() % 3]);
+			}
+		}
+	}
+
+	private ReplicationFollower<Long, TestStates, TestEvents, Object> follower(ReplicationChannel channel) {
+		return new ReplicationFollower<Long, TestStates, TestEvents, Object>(followerGraph, codec, channel,
+				id -> null);
+	}
+
+	private void assertReplicated(ReplicationFollower<Long, TestStates, TestEvents, Object> follower) {
+		assertEquals(primaries.size(), follower.getIds().size());
+		for (long id = 0; id < primaries.size(); id++) {
+			assertEquals(primaries.get((int) id).getCurrentState().getId(),
+					follower.getInstance(id).getCurrentState().getId());
+		}
+	}
+
+	@Test
+	public void test_followsWithoutListeners() throws Exception {
+		addPrimaries(20);
+		ReplicationFollower<Long, TestStates, TestEvents, Object> follower = follower(new InMemoryChannel(source));
+		follower.catchUp();
+		assertReplicated(follower);
+
+		fire(5);
+		primaries.get(3).forceStateChange(TestStates.STATE_4, null, false);
+		int calls = listenerCalls.get();
+		follower.catchUp();
+		assertReplicated(follower);
+		assertEquals(TestStates.STATE_4, follower.getInstance(3L).getCurrentState().getId());
+		// the copies change state quietly
+		assertEquals(calls, listenerCalls.get());
+		assertEquals(log.getCount() - 1, follower.getCheckpoint());
+
+		log.remove(primaries.get(19));
+		primaries.remove(19);
+		follower.catchUp();
+		assertNull(follower.getInstance(19L));
+		assertReplicated(follower);
+		assertEquals(0, source.getSnapshotCount());
+	}
+
+	private static byte[] deflate(int... bytes) throws IOException {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(frame))) {
+			for (int b : bytes) {
+				out.writeByte(b);
+			}
+		}
+		return frame.toByteArray();
+	}
+
+	@Test
+	public void test_corruptFrame() throws Exception {
+		byte[][] frames = {
+				// deltas, checkpoint 0, a count of -1
+				deflate(0, 0, 0, 0, 0, 0, 0, 0, 0, 0xff, 0xff, 0xff, 0xff, 0x0f),
+				// a count of Integer.MAX_VALUE without the entries
+				deflate(0, 0, 0, 0, 0, 0, 0, 0, 0, 0xff, 0xff, 0xff, 0xff, 0x07),
+				// one entry with a state ordinal of -2
+				deflate(0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 1, 0xff, 0xff, 0xff, 0xff, 0x0f) };
+		for (byte[] frame : frames) {
+			try {
+				codec.decode(frame);
+				fail("Expected IOException");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void test_coalescedAndCompressed() throws Exception {
+		addPrimaries(10);
+		fire(20);
+		// 210 deltas of 10 instances shrink to 10 entries
+		byte[] frame = source.fetch(-1);
+		DeltaCodec.Frame<Long, TestStates> decoded = codec.decode(frame);
+		assertEquals(10, decoded.getIds().size());
+		assertEquals(209, decoded.getCheckpoint());
+		assertTrue("frame of " + frame.length + " bytes", frame.length < 100);
+
+		// up to date
+		decoded = codec.decode(source.fetch(209));
+		assertEquals(0, decoded.getIds().size());
+		assertEquals(209, decoded.getCheckpoint());
+	}
+
+	@Test
+	public void test_catchUp() throws Exception {
+		addPrimaries(10);
+		InMemoryChannel channel = new InMemoryChannel(source);
+		ReplicationFollower<Long, TestStates, TestEvents, Object> follower = follower(channel);
+		follower.catchUp();
+
+		// a short outage is caught up from the log
+		channel.setConnected(false);
+		fire(3);
+		try {
+			follower.poll();
+			fail("Expected IOException");
+		} catch (IOException e) {
+			// expected
+		}
+		channel.setConnected(true);
+		follower.catchUp();
+		assertReplicated(follower);
+		assertEquals(0, source.getSnapshotCount());
+
+		// a long one from a snapshot
+		channel.setConnected(false);
+		fire(100);
+		channel.setConnected(true);
+		follower.catchUp();
+		assertReplicated(follower);
+		assertEquals(1, source.getSnapshotCount());
+		assertEquals(log.getCount() - 1, follower.getCheckpoint());
+	}
+
+	@Test
+	public void test_concurrentPrimaries() throws Exception {
+		addPrimaries(50);
+		ReplicationFollower<Long, TestStates, TestEvents, Object> follower = follower(new InMemoryChannel(source));
+		follower.start(1, TimeUnit.MILLISECONDS);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			int first = t * 10;
+			threads[t] = new Thread(() -> {
+				for (int round = 0; round < 500; round++) {
+					for (int i = first; i < first + 10; i++) {
+						StateMachineInstance<TestStates, TestEvents, Object> instance = primaries.get(i);
+						instance.fireEvent(TestEvents.values()[instance.getCurrentState().getId().ordinal() % 3]);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		follower.close();
+		follower.catchUp();
+		assertReplicated(follower);
+	}
+
+	@Test
+	public void test_socket() throws Exception {
+		addPrimaries(10);
+		try (ReplicationServer server = new ReplicationServer(source, 0);
+				SocketReplicationChannel channel = new SocketReplicationChannel("localhost", server.getPort())) {
+			ReplicationFollower<Long, TestStates, TestEvents, Object> follower = follower(channel);
+			follower.catchUp();
+			fire(7);
+			follower.catchUp();
+			assertReplicated(follower);
+
+			// reconnects after losing the connection
+			channel.close();
+			fire(2);
+			follower.catchUp();
+			assertReplicated(follower);
+		}
+	}
+
+}
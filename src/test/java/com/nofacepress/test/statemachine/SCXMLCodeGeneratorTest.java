@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateType;
+import com.nofacepress.statemachine.exceptions.StateMachineException;
+import com.nofacepress.statemachine.scxml.SCXMLCodeGenerator;
+import com.nofacepress.statemachine.scxml.SCXMLManager;
+
+public class SCXMLCodeGeneratorTest {
+
+	private StateMachineGraph<String, String, String> load(String scxml) throws XMLStreamException {
+		return SCXMLManager.loadStringGraph(new ByteArrayInputStream(scxml.getBytes()));
+	}
+
+	@Test
+	public void test_enums() throws IOException, XMLStreamException {
+		SCXMLCodeGenerator generator = new SCXMLCodeGenerator("com.example", "Test");
+		StringWriter writer = new StringWriter();
+		generator.writeStateEnum(load(new ScxmlTest().scxmlExample), "test.scxml", writer);
+
+		String source = writer.toString();
+		assertTrue(source.startsWith("package com.example;\n"));
+		assertTrue(source.contains("public enum TestState {\n\tSTATE_2,\n\tSTATE_1,\n\tSTATE_3,\n\tSTATE_4;\n}\n"));
+	}
+
+	@Test(expected = StateMachineException.class)
+	public void test_invalidIdentifier() throws IOException, XMLStreamException {
+		StateMachineGraph<String, String, String> graph = load("<scxml initial=\"a b\">"
+				+ "<state id=\"a b\"><transition event=\"go\" target=\"c\"/></state></scxml>");
+		new SCXMLCodeGenerator("com.example", "Test").writeStateEnum(graph, null, new StringWriter());
+	}
+
+	@Test
+	public void test_compileAndBuild() throws Exception {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		Assume.assumeNotNull(compiler);
+
+		StateMachineGraph<String, String, String> expected = load(new ScxmlTest().scxmlExample);
+		File dir = Files.createTempDirectory("scxml-codegen").toFile();
+		List<File> files = new SCXMLCodeGenerator("com.example.flow", "Test").generate(expected, "test.scxml",
+				dir);
+		assertEquals(files.size(), 3);
+
+		String[] args = new String[files.size() + 4];
+		args[0] = "-classpath";
+		args[1] = System.getProperty("java.class.path");
+		args[2] = "-d";
+		args[3] = dir.getPath();
+		for (int i = 0; i < files.size(); i++) {
+			args[i + 4] = files.get(i).getPath();
+		}
+		assertEquals(compiler.run(null, null, null, args), 0);
+
+		try (URLClassLoader loader = new URLClassLoader(new URL[] { dir.toURI().toURL() },
+				getClass().getClassLoader())) {
+			Class<?> graphClass = loader.loadClass("com.example.flow.TestGraph");
+			StateMachineGraph<?, ?, ?> graph = (StateMachineGraph<?, ?, ?>) graphClass.getMethod("build")
+					.invoke(null);
+
+			assertEquals(graph.getInitialState().toString(), expected.getInitialState());
+			assertEquals(graph.getStates().size(), expected.getStates().size());
+			int transitions = 0;
+			for (StateType<?, ?, ?> state : graph.getStates()) {
+				StateType<String, String, String> original = expected.getStateType(state.getId().toString());
+				assertEquals(state.getTransitions().size(), original.getTransitions().size());
+				for (java.util.Map.Entry<?, ? extends StateType<?, ?, ?>> entry : state.getTransitions()
+						.entrySet()) {
+					assertEquals(entry.getValue().getId().toString(),
+							original.getTransition(entry.getKey().toString()).getId());
+					transitions++;
+				}
+			}
+			assertEquals(transitions, 6);
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineGraphBuilder;
+import com.nofacepress.statemachine.StateMachineGraphBuilder.StateMachineGraphBuild;
+import com.nofacepress.statemachine.scxml.SCXMLManager;
+import com.nofacepress.statemachine.scxml.SCXMLWriter;
+import com.nofacepress.statemachine.typeconverters.StringToStringConverter;
+
+public class SCXMLWriterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final StringToStringConverter conv = new StringToStringConverter();
+
+	private StateMachineGraph<String, String, Object> bigGraph() {
+		StateMachineGraphBuild<String, String, Object> build = StateMachineGraphBuilder.<String, String, Object>builder();
+		for (int i = 0; i < 10000; i++) {
+			build.transition("S" + i + "é", "S" + (i + 1) + "é", "next");
+			if (i % 3 == 0) {
+				build.transition("S" + i + "é", "S" + (i / 2) + "é", "back&" + i);
+			}
+		}
+		return build.build();
+	}
+
+	@Test
+	public void test_output() throws IOException {
+		StateMachineGraph<String, String, Object> graph = StateMachineGraphBuilder.<String, String, Object>builder()
+				.initial("A")
+				.transition("A", "B", "go")
+				.state("C")
+				.build();
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		new SCXMLWriter().write(graph, stream, conv, conv);
+		assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+				"<scxml xmlns=\"http://www.w3.org/2005/07/scxml\" version=\"1.0\" initial=\"A\">\n" +
+				"  <state id=\"A\">\n" +
+				"    <transition event=\"go\" target=\"B\"></transition></state>\n" +
+				"  <state id=\"B\"></state>\n" +
+				"  <state id=\"C\"></state></scxml>\n", new String(stream.toByteArray(), "UTF-8"));
+	}
+
+	@Test
+	public void test_escaping() throws IOException, XMLStreamException {
+		String odd = "A<&>\"' é€😀\t\r\n]]>";
+		StateMachineGraph<String, String, Object> graph = StateMachineGraphBuilder.<String, String, Object>builder()
+				.initial(odd)
+				.transition(odd, "B", "eü&")
+				.build();
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		SCXMLManager.saveStringGraph(graph, stream);
+
+		StateMachineGraph<String, String, Object> copy = SCXMLManager
+				.loadStringGraph(new ByteArrayInputStream(stream.toByteArray()));
+		assertEquals(odd, copy.getInitialState());
+		assertNotNull(copy.getStateType(odd).getTransition("eü&"));
+		assertEquals("B", copy.getStateType(odd).getTransition("eü&").getId());
+	}
+
+	@Test
+	public void test_parallelFile() throws IOException, XMLStreamException {
+		StateMachineGraph<String, String, Object> graph = bigGraph();
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		SCXMLManager.saveStringGraph(graph, stream);
+
+		File file = folder.newFile("big.scxml");
+		SCXMLWriter writer = new SCXMLWriter();
+		writer.setParallel(true);
+		writer.write(graph, file.toPath(), conv, conv);
+		assertArrayEquals(stream.toByteArray(), Files.readAllBytes(file.toPath()));
+
+		StateMachineGraph<String, String, Object> copy = SCXMLManager.loadStringGraph(file.getPath());
+		assertEquals(graph.getStates().size(), copy.getStates().size());
+		assertEquals("S3334é", copy.getStateType("S6669é").getTransition("back&6669").getId());
+	}
+
+}
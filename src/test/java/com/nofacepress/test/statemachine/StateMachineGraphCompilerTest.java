@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineGraphBuilder;
+import com.nofacepress.statemachine.StateMachineGraphBuilder.StateMachineGraphBuild;
+import com.nofacepress.statemachine.StateMachineGraphCompiler;
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.StateType;
+import com.nofacepress.statemachine.listener.AfterStateChangedListener;
+import com.nofacepress.statemachine.listener.OnStateChangedListener;
+
+public class StateMachineGraphCompilerTest {
+
+	@Test
+	public void testCompile_Enums() throws IOException {
+		StateMachineGraphBuild<TestStates, TestEvents, String> build = StateMachineGraphBuilder.builder();
+
+		@SuppressWarnings("unchecked")
+		OnStateChangedListener<TestStates, TestEvents, String> listener1 = Mockito.mock(OnStateChangedListener.class);
+		@SuppressWarnings("unchecked")
+		AfterStateChangedListener<TestStates, TestEvents, String> listener2 = Mockito
+				.mock(AfterStateChangedListener.class);
+
+		StateMachineGraph<TestStates, TestEvents, String> graph = build
+				.initial(TestStates.STATE_1)
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.transition(TestStates.STATE_2, TestStates.STATE_3, TestEvents.EVENT_2)
+				.transition(TestStates.STATE_2, TestStates.STATE_1, TestEvents.EVENT_3)
+				.listener(listener1)
+				.listener(TestStates.STATE_2, listener2)
+				.compile();
+
+		assertEquals(graph.getInitialState(), TestStates.STATE_1);
+		assertEquals(graph.getStates().size(), 3);
+		assertNull(graph.getStateType(TestStates.STATE_4));
+
+		StateType<TestStates, TestEvents, String> state = graph.getStateType(TestStates.STATE_2);
+		assertEquals(state.getTransitions().size(), 2);
+		assertEquals(state.getTransition(TestEvents.EVENT_2).getId(), TestStates.STATE_3);
+		assertEquals(state.getTransition(TestEvents.EVENT_3).getId(), TestStates.STATE_1);
+		assertFalse(state.hasTransition(TestEvents.EVENT_1));
+		assertNull(state.getTransition(TestEvents.EVENT_1));
+		assertTrue(graph.getStateType(TestStates.STATE_3).isEnd());
+
+		StateMachineInstance<TestStates, TestEvents, String> instance = new StateMachineInstance<TestStates, TestEvents, String>(
+				graph, "Context");
+		assertFalse(instance.fireEvent(TestEvents.EVENT_2));
+		assertTrue(instance.fireEvent(TestEvents.EVENT_1));
+		assertEquals(instance.getCurrentState().getId(), TestStates.STATE_2);
+		verify(listener1, times(1)).onStateChanged(instance, graph.getStateType(TestStates.STATE_1),
+				graph.getStateType(TestStates.STATE_2), TestEvents.EVENT_1);
+		verify(listener2, times(1)).afterStateChanged(instance, graph.getStateType(TestStates.STATE_1),
+				graph.getStateType(TestStates.STATE_2), TestEvents.EVENT_1);
+	}
+
+	@Test
+	public void testCompile_Strings() throws IOException {
+		StateMachineGraphBuild<String, String, String> build = StateMachineGraphBuilder.builder();
+
+		StateMachineGraph<String, String, String> graph = StateMachineGraphCompiler.compile(build
+				.initial("home")
+				.transition("home", "working", "drove to work")
+				.transition("working", "home", "drove home")
+				.transition("home", "sleeping", "went to bed")
+				.build());
+
+		StateMachineInstance<String, String, String> instance = new StateMachineInstance<String, String, String>(
+				graph, "Context");
+		assertFalse(instance.fireEvent("drove home"));
+		assertFalse(instance.fireEvent("unknown"));
+		assertTrue(instance.fireEvent("drove to work"));
+		assertTrue(instance.fireEvent("drove home"));
+		assertTrue(instance.fireEvent("went to bed"));
+		assertEquals(instance.getCurrentState().getId(), "sleeping");
+		assertTrue(instance.getCurrentState().isEnd());
+	}
+
+	@Test
+	public void testCompile_Dup() throws IOException {
+		StateMachineGraphBuild<TestStates, TestEvents, String> build = StateMachineGraphBuilder.builder();
+
+		@SuppressWarnings("unchecked")
+		OnStateChangedListener<TestStates, TestEvents, String> listener = Mockito.mock(OnStateChangedListener.class);
+
+		StateMachineGraph<TestStates, TestEvents, String> graph = build
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.listener(listener)
+				.compile().dup(false);
+
+		StateMachineInstance<TestStates, TestEvents, String> instance = new StateMachineInstance<TestStates, TestEvents, String>(
+				graph, "Context");
+		assertTrue(instance.fireEvent(TestEvents.EVENT_1));
+		verify(listener, times(0)).onStateChanged(instance, graph.getStateType(TestStates.STATE_1),
+				graph.getStateType(TestStates.STATE_2), TestEvents.EVENT_1);
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testCompile_ReadOnly() throws IOException {
+		StateMachineGraphBuild<TestStates, TestEvents, String> build = StateMachineGraphBuilder.builder();
+
+		StateMachineGraph<TestStates, TestEvents, String> graph = build
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.compile();
+		graph.addTransition(TestStates.STATE_2, TestStates.STATE_3, TestEvents.EVENT_1);
+	}
+
+}
@@ -17,9 +17,12 @@ package com.nofacepress.test.statemachine;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Map;
 
 import org.junit.Test;
 
@@ -27,6 +30,8 @@ import com.nofacepress.statemachine.StateMachineGraph;
 import com.nofacepress.statemachine.StateMachineGraphBuilder;
 import com.nofacepress.statemachine.StateMachineGraphBuilder.StateMachineGraphBuild;
 import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.StateType;
+import com.nofacepress.statemachine.listener.OnStateChangedListener;
 
 public class StateMachineGraphTest {
 
@@ -85,4 +90,74 @@ public class StateMachineGraphTest {
 
 	}
 
+	@Test
+	public void testBuild_ManyTransitions() throws IOException {
+		StateMachineGraphBuild<String, String, String> build = StateMachineGraphBuilder.builder();
+
+		build.initial("start");
+		for (int i = 0; i < 40; i++) {
+			build.transition("start", "target" + i, "event" + i);
+		}
+		// replacing an existing transition keeps the count
+		build.transition("start", "target0", "event0");
+		StateMachineGraph<String, String, String> graph = build.build();
+
+		StateType<String, String, String> state = graph.getStateType("start");
+		Map<String, ? extends StateType<String, String, String>> transitions = state.getTransitions();
+		assertEquals(transitions.size(), 40);
+		for (int i = 0; i < 40; i++) {
+			assertTrue(state.hasTransition("event" + i));
+			assertEquals(state.getTransition("event" + i).getId(), "target" + i);
+			assertEquals(transitions.get("event" + i).getId(), "target" + i);
+		}
+		assertFalse(state.hasTransition("event40"));
+		assertNull(state.getTransition("event40"));
+
+		int i = 0;
+		for (String event : transitions.keySet()) {
+			assertEquals(event, "event" + i++);
+		}
+
+		StateMachineInstance<String, String, String> instance = new StateMachineInstance<String, String, String>(
+				graph, "Context");
+		assertTrue(instance.fireEvent("event33"));
+		assertEquals(instance.getCurrentState().getId(), "target33");
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	@SuppressWarnings("unchecked")
+	public void testBuild_TransitionsReadOnly() throws IOException {
+		StateMachineGraphBuild<TestStates, TestEvents, String> build = StateMachineGraphBuilder.builder();
+
+		StateMachineGraph<TestStates, TestEvents, String> graph = build
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.build();
+
+		Map<TestEvents, StateType<TestStates, TestEvents, String>> transitions = (Map<TestEvents, StateType<TestStates, TestEvents, String>>) graph
+				.getStateType(TestStates.STATE_1).getTransitions();
+		transitions.put(TestEvents.EVENT_2, graph.getStateType(TestStates.STATE_1));
+	}
+
+	@Test
+	public void testDup() {
+		OnStateChangedListener<TestStates, TestEvents, String> listener = (instance, source, target, event) -> {
+		};
+		StateMachineGraph<TestStates, TestEvents, String> graph = StateMachineGraphBuilder
+				.<TestStates, TestEvents, String>builder()
+				.initial(TestStates.STATE_1)
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.listener(TestStates.STATE_2, listener)
+				.build();
+
+		StateMachineGraph<TestStates, TestEvents, String> copy = graph.dup(true);
+		assertNotSame(graph, copy);
+		assertFalse(copy.getStateType(TestStates.STATE_2).getListenerManager().isEmpty());
+		assertTrue(graph.dup(false).getStateType(TestStates.STATE_2).getListenerManager().isEmpty());
+
+		copy.addTransition(TestStates.STATE_2, TestStates.STATE_3, TestEvents.EVENT_2);
+		assertNull(graph.getStateType(TestStates.STATE_3));
+		assertEquals(TestStates.STATE_3,
+				copy.getStateType(TestStates.STATE_2).getTransition(TestEvents.EVENT_2).getId());
+	}
+
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineGraphBuilder;
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.StateMachineInstanceIndex;
+import com.nofacepress.statemachine.exceptions.StateMachineException;
+
+public class StateMachineInstanceIndexTest {
+
+	private StateMachineGraph<TestStates, TestEvents, String> graph() {
+		return StateMachineGraphBuilder.<TestStates, TestEvents, String>builder()
+				.initial(TestStates.STATE_1)
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.transition(TestStates.STATE_2, TestStates.STATE_3, TestEvents.EVENT_2)
+				.transition(TestStates.STATE_2, TestStates.STATE_2, TestEvents.EVENT_3)
+				.state(TestStates.STATE_4)
+				.build();
+	}
+
+	@Test
+	public void test_tracking() {
+		StateMachineGraph<TestStates, TestEvents, String> graph = graph();
+		StateMachineInstanceIndex<TestStates, TestEvents, String> index = new StateMachineInstanceIndex<TestStates, TestEvents, String>();
+
+		List<StateMachineInstance<TestStates, TestEvents, String>> instances = new ArrayList<StateMachineInstance<TestStates, TestEvents, String>>();
+		for (int i = 0; i < 10; i++) {
+			StateMachineInstance<TestStates, TestEvents, String> instance = new StateMachineInstance<TestStates, TestEvents, String>(
+					graph, "Context" + i);
+			index.add(instance);
+			instances.add(instance);
+		}
+		assertEquals(index.count(TestStates.STATE_1), 10);
+		assertEquals(index.count(TestStates.STATE_2), 0);
+
+		// reads do not add states
+		assertTrue(index.getInstances(TestStates.STATE_3).isEmpty());
+		assertFalse(index.getStates().contains(TestStates.STATE_3));
+
+		for (int i = 0; i < 4; i++) {
+			assertTrue(instances.get(i).fireEvent(TestEvents.EVENT_1));
+		}
+		assertTrue(instances.get(0).fireEvent(TestEvents.EVENT_3));
+		assertEquals(index.count(TestStates.STATE_1), 6);
+		assertEquals(index.count(TestStates.STATE_2), 4);
+		assertTrue(index.getInstances(TestStates.STATE_2).contains(instances.get(3)));
+		assertFalse(index.getInstances(TestStates.STATE_1).contains(instances.get(3)));
+
+		// forced changes without listeners are tracked as well
+		instances.get(9).forceStateChange(TestStates.STATE_4, null, false);
+		assertEquals(index.count(TestStates.STATE_4), 1);
+		assertTrue(index.getInstances(TestStates.STATE_4).contains(instances.get(9)));
+
+		index.remove(instances.get(9));
+		assertEquals(index.count(TestStates.STATE_4), 0);
+		instances.get(9).forceStateChange(TestStates.STATE_1, null, false);
+		assertEquals(index.count(TestStates.STATE_1), 5);
+	}
+
+	@Test(expected = StateMachineException.class)
+	public void test_oneIndexPerInstance() {
+		StateMachineInstance<TestStates, TestEvents, String> instance = new StateMachineInstance<TestStates, TestEvents, String>(
+				graph(), "Context");
+		new StateMachineInstanceIndex<TestStates, TestEvents, String>().add(instance);
+		new StateMachineInstanceIndex<TestStates, TestEvents, String>().add(instance);
+	}
+
+}
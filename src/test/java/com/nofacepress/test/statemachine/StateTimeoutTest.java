@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineGraphBuilder;
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.StateTimeoutManager;
+import com.nofacepress.statemachine.exceptions.StateMachineException;
+import com.nofacepress.statemachine.listener.OnStateChangedListener;
+import com.nofacepress.statemachine.timer.HierarchicalTimingWheel;
+
+public class StateTimeoutTest {
+
+	private static void waitFor(StateMachineInstance<TestStates, TestEvents, String> instance, TestStates state)
+			throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+		while (instance.getCurrentState().getId() != state && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		assertEquals(state, instance.getCurrentState().getId());
+	}
+
+	@Test
+	public void test_timeout() throws InterruptedException {
+		AtomicInteger timeouts = new AtomicInteger();
+		StateMachineGraph<TestStates, TestEvents, String> graph = StateMachineGraphBuilder
+				.<TestStates, TestEvents, String>builder()
+				.initial(TestStates.STATE_1)
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.transition(TestStates.STATE_2, TestStates.STATE_3, TestEvents.EVENT_2)
+				.transition(TestStates.STATE_2, TestStates.STATE_4, TestEvents.EVENT_3)
+				.timeout(TestStates.STATE_2, 20, TimeUnit.MILLISECONDS, TestEvents.EVENT_3)
+				.listener(TestStates.STATE_4, (OnStateChangedListener<TestStates, TestEvents, String>) (instance,
+						source, target, event) -> timeouts.incrementAndGet())
+				.build();
+
+		assertEquals(TestEvents.EVENT_3, graph.getStateType(TestStates.STATE_2).getTimeout().getEvent());
+		assertNull(graph.getStateType(TestStates.STATE_1).getTimeout());
+
+		try (HierarchicalTimingWheel wheel = new HierarchicalTimingWheel(1, TimeUnit.MILLISECONDS)) {
+			StateTimeoutManager<TestStates, TestEvents, String> manager = new StateTimeoutManager<TestStates, TestEvents, String>(
+					wheel);
+
+			StateMachineInstance<TestStates, TestEvents, String> expires = new StateMachineInstance<TestStates, TestEvents, String>(
+					graph, "expires");
+			StateMachineInstance<TestStates, TestEvents, String> leaves = new StateMachineInstance<TestStates, TestEvents, String>(
+					graph, "leaves");
+			manager.attach(expires);
+			manager.attach(leaves);
+
+			assertTrue(expires.fireEvent(TestEvents.EVENT_1));
+			assertTrue(leaves.fireEvent(TestEvents.EVENT_1));
+			assertTrue(leaves.fireEvent(TestEvents.EVENT_2));
+
+			waitFor(expires, TestStates.STATE_4);
+			Thread.sleep(50);
+			assertEquals(TestStates.STATE_3, leaves.getCurrentState().getId());
+			assertEquals(1, timeouts.get());
+
+			// attaching arms the current state, compiled graphs keep timeouts
+			StateMachineInstance<TestStates, TestEvents, String> compiled = new StateMachineInstance<TestStates, TestEvents, String>(
+					StateMachineGraphBuilder.<TestStates, TestEvents, String>builder()
+							.transition(TestStates.STATE_2, TestStates.STATE_4, TestEvents.EVENT_3)
+							.timeout(TestStates.STATE_2, 10, TimeUnit.MILLISECONDS, TestEvents.EVENT_3).compile(),
+					"compiled");
+			manager.attach(compiled);
+			waitFor(compiled, TestStates.STATE_4);
+		}
+	}
+
+	@Test
+	public void test_detach() throws InterruptedException {
+		StateMachineGraph<TestStates, TestEvents, String> graph = StateMachineGraphBuilder
+				.<TestStates, TestEvents, String>builder()
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.timeout(TestStates.STATE_1, 10, TimeUnit.MILLISECONDS, TestEvents.EVENT_1)
+				.build();
+		try (HierarchicalTimingWheel wheel = new HierarchicalTimingWheel(1, TimeUnit.MILLISECONDS)) {
+			StateTimeoutManager<TestStates, TestEvents, String> manager = new StateTimeoutManager<TestStates, TestEvents, String>(
+					wheel);
+			StateMachineInstance<TestStates, TestEvents, String> instance = new StateMachineInstance<TestStates, TestEvents, String>(
+					graph, "detached");
+			manager.attach(instance);
+			manager.detach(instance);
+			Thread.sleep(50);
+			assertEquals(TestStates.STATE_1, instance.getCurrentState().getId());
+		}
+	}
+
+	@Test(expected = StateMachineException.class)
+	public void test_attachTwice() {
+		StateMachineGraph<TestStates, TestEvents, String> graph = StateMachineGraphBuilder
+				.<TestStates, TestEvents, String>builder().state(TestStates.STATE_1).build();
+		try (HierarchicalTimingWheel wheel = new HierarchicalTimingWheel(1, TimeUnit.MILLISECONDS)) {
+			StateMachineInstance<TestStates, TestEvents, String> instance = new StateMachineInstance<TestStates, TestEvents, String>(
+					graph, "twice");
+			new StateTimeoutManager<TestStates, TestEvents, String>(wheel).attach(instance);
+			new StateTimeoutManager<TestStates, TestEvents, String>(wheel).attach(instance);
+		}
+	}
+
+	@Test
+	public void test_wheel() throws InterruptedException {
+		final int count = 20000;
+		final long[] fired = new long[count];
+		final long[] due = new long[count];
+		final CountDownLatch latch = new CountDownLatch(count / 2);
+		Random random = new Random(7);
+
+		try (HierarchicalTimingWheel wheel = new HierarchicalTimingWheel(1, TimeUnit.MILLISECONDS)) {
+			HierarchicalTimingWheel.Timeout[] timeouts = new HierarchicalTimingWheel.Timeout[count];
+			for (int i = 0; i < count; i++) {
+				final int n = i;
+				// spread past the first level so cascading is exercised, the ones
+				// cancelled below are far enough out to still be pending
+				long delay = ((i & 1) == 0) ? random.nextInt(700) : 200 + random.nextInt(500);
+				due[i] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+				timeouts[i] = wheel.schedule(() -> {
+					fired[n] = System.nanoTime();
+					latch.countDown();
+				}, delay, TimeUnit.MILLISECONDS);
+			}
+			for (int i = 1; i < count; i += 2) {
+				assertTrue(timeouts[i].cancel());
+			}
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			Thread.sleep(20);
+
+			for (int i = 0; i < count; i++) {
+				if ((i & 1) == 0) {
+					assertTrue(timeouts[i].isExpired());
+					assertTrue(fired[i] >= due[i]);
+					assertFalse(timeouts[i].cancel());
+				} else {
+					assertTrue(timeouts[i].isCancelled());
+					assertEquals(0, fired[i]);
+				}
+			}
+			assertEquals(0, wheel.getPendingCount());
+		}
+	}
+
+}
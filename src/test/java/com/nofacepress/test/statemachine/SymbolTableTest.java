@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.Test;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateType;
+import com.nofacepress.statemachine.scxml.SCXMLManager;
+import com.nofacepress.statemachine.typeconverters.SymbolTable;
+
+public class SymbolTableTest {
+
+	@Test
+	public void test_intern() {
+		SymbolTable symbols = new SymbolTable();
+
+		String a = symbols.intern(new String("STATE_1"));
+		String b = symbols.intern(new String("STATE_2"));
+
+		assertSame(a, symbols.intern(new String("STATE_1")));
+		assertSame(b, symbols.lookup(new String("STATE_2")));
+		assertNull(symbols.lookup("STATE_3"));
+
+		assertEquals(symbols.size(), 2);
+		assertEquals(symbols.getId("STATE_1"), 0);
+		assertEquals(symbols.getId("STATE_2"), 1);
+		assertEquals(symbols.getId("STATE_3"), -1);
+		assertSame(symbols.getName(0), a);
+		assertSame(symbols.getName(1), b);
+	}
+
+	@Test
+	public void test_grow() {
+		SymbolTable symbols = new SymbolTable();
+		for (int i = 0; i < 100; i++) {
+			symbols.intern("S" + i);
+		}
+		assertEquals(symbols.size(), 100);
+		for (int i = 0; i < 100; i++) {
+			assertEquals(symbols.getId("S" + i), i);
+			assertEquals(symbols.getName(i), "S" + i);
+		}
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void test_unknownId() {
+		new SymbolTable().getName(0);
+	}
+
+	@Test
+	public void test_loadStrings() throws IOException, XMLStreamException {
+		SymbolTable symbols = new SymbolTable();
+		ByteArrayInputStream stream = new ByteArrayInputStream(new ScxmlTest().scxmlExample.getBytes());
+		StateMachineGraph<String, String, String> graph = SCXMLManager.loadStringGraph(stream, symbols);
+
+		assertEquals(symbols.size(), 7);
+		assertSame(graph.getInitialState(), symbols.lookup("STATE_2"));
+		for (StateType<String, String, String> state : graph.getStates()) {
+			assertSame(state.getId(), symbols.lookup(state.getId()));
+			for (String event : state.getTransitions().keySet()) {
+				assertSame(event, symbols.lookup(event));
+			}
+		}
+	}
+
+}
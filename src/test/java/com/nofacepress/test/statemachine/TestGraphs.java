@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import java.util.List;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineGraphBuilder;
+import com.nofacepress.statemachine.StateMachineGraphBuilder.StateMachineGraphBuild;
+import com.nofacepress.statemachine.listener.OnStateChangedListener;
+
+/**
+ * Graphs shared by the tests.
+ */
+public final class TestGraphs {
+
+	private TestGraphs() {
+	}
+
+	/**
+	 * Returns a build of the cycle STATE_1 -EVENT_1-> STATE_2 -EVENT_2-> STATE_3
+	 * -EVENT_3-> STATE_1 starting at STATE_1, for further states and listeners.
+	 */
+	public static <C> StateMachineGraphBuild<TestStates, TestEvents, C> cycle() {
+		return StateMachineGraphBuilder.<TestStates, TestEvents, C>builder()
+				.initial(TestStates.STATE_1)
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.transition(TestStates.STATE_2, TestStates.STATE_3, TestEvents.EVENT_2)
+				.transition(TestStates.STATE_3, TestStates.STATE_1, TestEvents.EVENT_3);
+	}
+
+	/**
+	 * Returns the cycle with a listener adding every event that changed the state
+	 * to the list of the instance.
+	 */
+	public static StateMachineGraph<TestStates, TestEvents, List<TestEvents>> recordingCycle() {
+		return TestGraphs.<List<TestEvents>>cycle()
+				.listener((OnStateChangedListener<TestStates, TestEvents, List<TestEvents>>) (instance, source,
+						target, event) -> instance.getContext().add(event))
+				.build();
+	}
+
+}
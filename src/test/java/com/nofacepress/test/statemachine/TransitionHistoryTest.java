@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.TransitionHistory;
+import com.nofacepress.statemachine.TransitionHistory.Entry;
+
+public class TransitionHistoryTest {
+
+	@Test
+	public void test_history() {
+		StateMachineInstance<TestStates, TestEvents, String> instance = new StateMachineInstance<TestStates, TestEvents, String>(
+				TestGraphs.<String>cycle().state(TestStates.STATE_4).build(), null);
+		TransitionHistory<TestStates, TestEvents> history = new TransitionHistory<TestStates, TestEvents>(3);
+		assertEquals(4, history.getCapacity());
+		instance.setHistory(history);
+
+		instance.fireEvent(TestEvents.EVENT_1);
+		instance.fireEvent(TestEvents.EVENT_3);
+		instance.forceStateChange(TestStates.STATE_4, null, false);
+		List<Entry<TestStates, TestEvents>> entries = history.getEntries();
+		assertEquals(2, entries.size());
+		assertEquals(TestStates.STATE_1, entries.get(0).getSource());
+		assertEquals(TestEvents.EVENT_1, entries.get(0).getEvent());
+		assertEquals(TestStates.STATE_2, entries.get(0).getTarget());
+		assertNull(entries.get(1).getEvent());
+		assertEquals(TestStates.STATE_4, entries.get(1).getTarget());
+		assertTrue(entries.get(1).getNanoTime() >= entries.get(0).getNanoTime());
+
+		// only the last four are kept
+		instance.forceStateChange(TestStates.STATE_1, null, false);
+		for (int i = 0; i < 3; i++) {
+			instance.fireEvent(TestEvents.EVENT_1);
+			instance.fireEvent(TestEvents.EVENT_2);
+			instance.fireEvent(TestEvents.EVENT_3);
+		}
+		assertEquals(12, history.getCount());
+		entries = history.getEntries();
+		assertEquals(4, entries.size());
+		assertEquals(8, entries.get(0).getSequence());
+		assertEquals(TestStates.STATE_3, entries.get(3).getSource());
+		String[] lines = history.toString().split("\n");
+		assertEquals(4, lines.length);
+		assertTrue(lines[3], lines[3].startsWith("11 ") && lines[3].endsWith(" STATE_3 -[EVENT_3]-> STATE_1"));
+
+		instance.setHistory(null);
+		instance.fireEvent(TestEvents.EVENT_1);
+		assertEquals(12, history.getCount());
+	}
+
+	@Test
+	public void test_concurrentReader() throws InterruptedException {
+		StateMachineInstance<TestStates, TestEvents, String> instance = new StateMachineInstance<TestStates, TestEvents, String>(
+				TestGraphs.<String>cycle().state(TestStates.STATE_4).build(), null);
+		TransitionHistory<TestStates, TestEvents> history = new TransitionHistory<TestStates, TestEvents>(16);
+		instance.setHistory(history);
+		AtomicBoolean done = new AtomicBoolean();
+		Thread writer = new Thread(() -> {
+			for (int i = 0; i < 200000; i++) {
+				instance.fireEvent(TestEvents.EVENT_1);
+				instance.fireEvent(TestEvents.EVENT_2);
+				instance.fireEvent(TestEvents.EVENT_3);
+			}
+			done.set(true);
+		});
+		writer.start();
+		while (!done.get()) {
+			List<Entry<TestStates, TestEvents>> entries = history.getEntries();
+			assertTrue(entries.size() <= 16);
+			for (int i = 0; i < entries.size(); i++) {
+				Entry<TestStates, TestEvents> entry = entries.get(i);
+				// sequences are consecutive and every entry is a real transition
+				assertEquals(entries.get(0).getSequence() + i, entry.getSequence());
+				assertEquals(TestEvents.values()[(int) (entry.getSequence() % 3)], entry.getEvent());
+			}
+		}
+		writer.join();
+		assertEquals(600000, history.getCount());
+	}
+
+}
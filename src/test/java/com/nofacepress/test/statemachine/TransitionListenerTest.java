@@ -0,0 +1,208 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineGraphBuilder;
+import com.nofacepress.statemachine.StateMachineGraphCompiler;
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.StateType;
+import com.nofacepress.statemachine.analysis.GraphMinimization;
+import com.nofacepress.statemachine.exceptions.StateMachineException;
+import com.nofacepress.statemachine.impl.PersistentStateMachineGraph;
+import com.nofacepress.statemachine.listener.AfterStateChangedListener;
+import com.nofacepress.statemachine.listener.ListenerManager;
+import com.nofacepress.statemachine.listener.OnStateChangedListener;
+
+public class TransitionListenerTest {
+
+	private final List<String> calls = new ArrayList<String>();
+
+	private OnStateChangedListener<TestStates, TestEvents, String> on(String name) {
+		return (instance, source, target, event) -> calls.add("on " + name);
+	}
+
+	private AfterStateChangedListener<TestStates, TestEvents, String> after(String name) {
+		return (instance, source, target, event) -> calls.add("after " + name);
+	}
+
+	private StateMachineGraph<TestStates, TestEvents, String> graph() {
+		return StateMachineGraphBuilder.<TestStates, TestEvents, String>builder()
+				.initial(TestStates.STATE_1)
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_2)
+				.transition(TestStates.STATE_2, TestStates.STATE_1, TestEvents.EVENT_3)
+				.listener(on("graph"))
+				.listener(after("graph"))
+				.listener(TestStates.STATE_2, on("state"))
+				.listener(TestStates.STATE_2, after("state"))
+				.exitListener(TestStates.STATE_1, on("exit"))
+				.exitListener(TestStates.STATE_1, after("exit"))
+				.transitionListener(TestStates.STATE_1, TestEvents.EVENT_1, on("edge"))
+				.transitionListener(TestStates.STATE_1, TestEvents.EVENT_1, after("edge"))
+				.build();
+	}
+
+	private void run(StateMachineGraph<TestStates, TestEvents, String> graph) {
+		calls.clear();
+		StateMachineInstance<TestStates, TestEvents, String> instance = new StateMachineInstance<TestStates, TestEvents, String>(
+				graph, null);
+
+		instance.fireEvent(TestEvents.EVENT_1);
+		assertEquals(Arrays.asList("on graph", "on exit", "on edge", "on state", "after graph", "after exit",
+				"after edge", "after state"), calls);
+
+		// the other transition into the same state skips the edge listeners
+		calls.clear();
+		instance.fireEvent(TestEvents.EVENT_3);
+		instance.fireEvent(TestEvents.EVENT_2);
+		assertEquals(Arrays.asList("on graph", "after graph", "on graph", "on exit", "on state", "after graph",
+				"after exit", "after state"), calls);
+
+		// forced changes leave the state but take no transition
+		calls.clear();
+		instance.forceStateChange(TestStates.STATE_1, null, true);
+		instance.forceStateChange(TestStates.STATE_2, TestEvents.EVENT_1, true);
+		assertEquals(Arrays.asList("on graph", "after graph", "on graph", "on exit", "on state", "after graph",
+				"after exit", "after state"), calls);
+	}
+
+	@Test
+	public void test_order() {
+		StateMachineGraph<TestStates, TestEvents, String> graph = graph();
+		run(graph);
+		assertNull(graph.getStateType(TestStates.STATE_1).getTransitionListenerManager(TestEvents.EVENT_2));
+		assertNull(graph.getStateType(TestStates.STATE_1).getTransitionListenerManager(TestEvents.EVENT_3));
+
+		calls.clear();
+		assertEquals(TestStates.STATE_2, graph.transition(TestStates.STATE_1, TestEvents.EVENT_1, null));
+		assertEquals(8, calls.size());
+	}
+
+	@Test
+	public void test_copies() {
+		StateMachineGraph<TestStates, TestEvents, String> graph = graph();
+		run(graph.dup(true));
+		run(StateMachineGraphCompiler.compile(graph));
+		run(StateMachineGraphCompiler.compile(graph).dup(true));
+		StateMachineGraph<TestStates, TestEvents, String> persistent = new PersistentStateMachineGraph<TestStates, TestEvents, String>(
+				graph, true);
+		run(persistent);
+		run(persistent.dup(true));
+
+		calls.clear();
+		StateMachineInstance<TestStates, TestEvents, String> instance = new StateMachineInstance<TestStates, TestEvents, String>(
+				persistent.dup(false), null);
+		instance.fireEvent(TestEvents.EVENT_1);
+		assertEquals(0, calls.size());
+	}
+
+	@Test
+	public void test_minimization() {
+		StateMachineGraph<TestStates, TestEvents, String> graph = StateMachineGraphBuilder
+				.<TestStates, TestEvents, String>builder()
+				.transition(TestStates.STATE_1, TestStates.STATE_3, TestEvents.EVENT_1)
+				.transition(TestStates.STATE_2, TestStates.STATE_3, TestEvents.EVENT_1)
+				.build();
+		GraphMinimization<TestStates, TestEvents, String> minimized = new GraphMinimization<TestStates, TestEvents, String>(
+				graph);
+		assertEquals(minimized.map(TestStates.STATE_1), minimized.map(TestStates.STATE_2));
+
+		graph.getTransitionListenerManager(TestStates.STATE_2, TestEvents.EVENT_1).addListener(on("edge"));
+		minimized = new GraphMinimization<TestStates, TestEvents, String>(graph);
+		assertNotEquals(minimized.map(TestStates.STATE_1), minimized.map(TestStates.STATE_2));
+		run2(minimized.getGraph());
+		assertEquals(Arrays.asList("on edge"), calls);
+	}
+
+	private void run2(StateMachineGraph<TestStates, TestEvents, String> graph) {
+		new StateMachineInstance<TestStates, TestEvents, String>(graph, TestStates.STATE_2, null)
+				.fireEvent(TestEvents.EVENT_1);
+	}
+
+	@Test(expected = StateMachineException.class)
+	public void test_invalidTransition() {
+		graph().getTransitionListenerManager(TestStates.STATE_2, TestEvents.EVENT_1);
+	}
+
+	@Test
+	public void test_stateTypeDefaults() {
+		// a state written before timeouts, exit and transition listeners existed
+		StateType<TestStates, TestEvents, String> state = new StateType<TestStates, TestEvents, String>() {
+			private final ListenerManager<TestStates, TestEvents, String> listenerManager = new ListenerManager<TestStates, TestEvents, String>();
+
+			@Override
+			public TestStates getId() {
+				return TestStates.STATE_1;
+			}
+
+			@Override
+			public ListenerManager<TestStates, TestEvents, String> getListenerManager() {
+				return listenerManager;
+			}
+
+			@Override
+			public StateType<TestStates, TestEvents, String> getTransition(TestEvents event) {
+				return null;
+			}
+
+			@Override
+			public Map<TestEvents, ? extends StateType<TestStates, TestEvents, String>> getTransitions() {
+				return Collections.emptyMap();
+			}
+
+			@Override
+			public boolean hasTransition(TestEvents event) {
+				return false;
+			}
+
+			@Override
+			public boolean isEnd() {
+				return true;
+			}
+		};
+		assertTrue(state.getExitListenerManager().isEmpty());
+		assertSame(state.getExitListenerManager(), state.getExitListenerManager());
+		assertNull(state.getTransitionListenerManager(TestEvents.EVENT_1));
+		assertNull(state.getTimeout());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void test_emptyListenerManager() {
+		ListenerManager.<TestStates, TestEvents, String>empty().addListener(on("lost"));
+	}
+
+	@Test(expected = StateMachineException.class)
+	public void test_invalidCompiledTransition() {
+		StateMachineGraphCompiler.compile(graph()).getTransitionListenerManager(TestStates.STATE_1,
+				TestEvents.EVENT_3);
+	}
+
+}
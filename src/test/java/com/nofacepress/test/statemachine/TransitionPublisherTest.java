@@ -0,0 +1,245 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.flow.OverflowStrategy;
+import com.nofacepress.statemachine.flow.TransitionPublisher;
+import com.nofacepress.statemachine.flow.TransitionRecord;
+
+public class TransitionPublisherTest {
+
+	private static class TestSubscriber implements Flow.Subscriber<List<TransitionRecord<String, TestStates, TestEvents>>> {
+		final List<List<TransitionRecord<String, TestStates, TestEvents>>> batches = new ArrayList<List<TransitionRecord<String, TestStates, TestEvents>>>();
+		final List<TransitionRecord<String, TestStates, TestEvents>> records = new ArrayList<TransitionRecord<String, TestStates, TestEvents>>();
+		final CountDownLatch finished = new CountDownLatch(1);
+		final long initialRequest;
+		volatile Flow.Subscription subscription;
+		volatile Throwable error;
+		volatile boolean completed;
+
+		TestSubscriber(long initialRequest) {
+			this.initialRequest = initialRequest;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			if (initialRequest > 0) {
+				subscription.request(initialRequest);
+			}
+		}
+
+		@Override
+		public synchronized void onNext(List<TransitionRecord<String, TestStates, TestEvents>> batch) {
+			batches.add(batch);
+			records.addAll(batch);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			error = throwable;
+			finished.countDown();
+		}
+
+		@Override
+		public void onComplete() {
+			completed = true;
+			finished.countDown();
+		}
+
+		synchronized int count() {
+			return records.size();
+		}
+	}
+
+	private void cycle(StateMachineInstance<TestStates, TestEvents, String> instance, int times) {
+		for (int i = 0; i < times; i++) {
+			instance.fireEvent(TestEvents.EVENT_1);
+			instance.fireEvent(TestEvents.EVENT_2);
+			instance.fireEvent(TestEvents.EVENT_3);
+		}
+	}
+
+	@Test
+	public void test_drop() {
+		StateMachineGraph<TestStates, TestEvents, String> graph = TestGraphs.<String>cycle().build();
+		TransitionPublisher<String, TestStates, TestEvents, String> publisher = new TransitionPublisher<String, TestStates, TestEvents, String>(
+				StateMachineInstance::getContext, 4, 3, OverflowStrategy.DROP, Runnable::run);
+		publisher.attach(graph);
+		TestSubscriber subscriber = new TestSubscriber(0);
+		publisher.subscribe(subscriber);
+		assertEquals(1, publisher.getSubscriberCount());
+
+		StateMachineInstance<TestStates, TestEvents, String> instance = new StateMachineInstance<TestStates, TestEvents, String>(
+				graph, "a");
+		cycle(instance, 2);
+		assertEquals(0, subscriber.count());
+		assertEquals(2, publisher.getDroppedCount());
+
+		// one batch per request, at most three records each
+		subscriber.subscription.request(1);
+		assertEquals(1, subscriber.batches.size());
+		assertEquals(3, subscriber.count());
+		subscriber.subscription.request(5);
+		assertEquals(2, subscriber.batches.size());
+		assertEquals(4, subscriber.count());
+		assertEquals(TestStates.STATE_1, subscriber.records.get(0).getSource());
+		assertEquals(TestEvents.EVENT_1, subscriber.records.get(3).getEvent());
+		assertEquals("a", subscriber.records.get(0).getId());
+
+		// outstanding demand is used as records arrive
+		instance.fireEvent(TestEvents.EVENT_1);
+		assertEquals(5, subscriber.count());
+
+		publisher.close();
+		assertTrue(subscriber.completed);
+		assertEquals(0, publisher.getSubscriberCount());
+		instance.fireEvent(TestEvents.EVENT_2);
+		assertEquals(5, subscriber.count());
+	}
+
+	@Test
+	public void test_coalesce() {
+		StateMachineGraph<TestStates, TestEvents, String> graph = TestGraphs.<String>cycle().build();
+		TransitionPublisher<String, TestStates, TestEvents, String> publisher = new TransitionPublisher<String, TestStates, TestEvents, String>(
+				StateMachineInstance::getContext, 2, 10, OverflowStrategy.COALESCE, Runnable::run);
+		publisher.attach(graph);
+		TestSubscriber subscriber = new TestSubscriber(0);
+		publisher.subscribe(subscriber);
+
+		StateMachineInstance<TestStates, TestEvents, String> a = new StateMachineInstance<TestStates, TestEvents, String>(
+				graph, "a");
+		StateMachineInstance<TestStates, TestEvents, String> b = new StateMachineInstance<TestStates, TestEvents, String>(
+				graph, "b");
+		StateMachineInstance<TestStates, TestEvents, String> c = new StateMachineInstance<TestStates, TestEvents, String>(
+				graph, "c");
+		a.fireEvent(TestEvents.EVENT_1);
+		b.fireEvent(TestEvents.EVENT_1);
+		a.fireEvent(TestEvents.EVENT_2);
+		c.fireEvent(TestEvents.EVENT_1);
+		assertEquals(1, publisher.getDroppedCount());
+
+		subscriber.subscription.request(1);
+		assertEquals(2, subscriber.count());
+		TransitionRecord<String, TestStates, TestEvents> first = subscriber.records.get(0);
+		assertEquals("a", first.getId());
+		assertEquals(TestStates.STATE_1, first.getSource());
+		assertEquals(TestEvents.EVENT_2, first.getEvent());
+		assertEquals(TestStates.STATE_3, first.getTarget());
+		assertEquals("b", subscriber.records.get(1).getId());
+
+		// nothing is merged while there is room
+		a.fireEvent(TestEvents.EVENT_3);
+		a.fireEvent(TestEvents.EVENT_1);
+		a.fireEvent(TestEvents.EVENT_2);
+		subscriber.subscription.request(1);
+		assertEquals(4, subscriber.count());
+		assertEquals(TestStates.STATE_3, subscriber.records.get(2).getSource());
+		assertEquals(TestStates.STATE_1, subscriber.records.get(2).getTarget());
+		assertEquals(TestStates.STATE_1, subscriber.records.get(3).getSource());
+		assertEquals(TestStates.STATE_3, subscriber.records.get(3).getTarget());
+		assertEquals(1, publisher.getDroppedCount());
+
+		publisher.detach(graph);
+		a.fireEvent(TestEvents.EVENT_3);
+		subscriber.subscription.request(1);
+		assertEquals(4, subscriber.count());
+	}
+
+	@Test
+	public void test_block() throws InterruptedException {
+		StateMachineGraph<TestStates, TestEvents, String> graph = TestGraphs.<String>cycle().build();
+		TransitionPublisher<String, TestStates, TestEvents, String> publisher = new TransitionPublisher<String, TestStates, TestEvents, String>(
+				StateMachineInstance::getContext, 8, OverflowStrategy.BLOCK);
+		publisher.attach(graph);
+		TestSubscriber subscriber = new TestSubscriber(0);
+		publisher.subscribe(subscriber);
+
+		Thread producer = new Thread(() -> {
+			cycle(new StateMachineInstance<TestStates, TestEvents, String>(graph, "p"), 1000);
+			publisher.close();
+		});
+		producer.start();
+
+		// the producer cannot get ahead by more than the buffer
+		while (subscriber.subscription == null) {
+			Thread.sleep(1);
+		}
+		Thread.sleep(50);
+		assertEquals(0, subscriber.count());
+		assertTrue(producer.isAlive());
+
+		while (subscriber.finished.getCount() > 0) {
+			subscriber.subscription.request(1);
+			Thread.sleep(0, 100000);
+		}
+		producer.join();
+		assertTrue(subscriber.completed);
+		assertEquals(3000, subscriber.count());
+		assertEquals(0, publisher.getDroppedCount());
+		for (int i = 0; i < 3000; i++) {
+			assertEquals(TestEvents.values()[i % 3], subscriber.records.get(i).getEvent());
+		}
+	}
+
+	@Test
+	public void test_protocol() throws InterruptedException {
+		TransitionPublisher<String, TestStates, TestEvents, String> publisher = new TransitionPublisher<String, TestStates, TestEvents, String>(
+				StateMachineInstance::getContext, 8, OverflowStrategy.DROP);
+		TestSubscriber subscriber = new TestSubscriber(0);
+		publisher.subscribe(subscriber);
+		while (subscriber.subscription == null) {
+			Thread.sleep(1);
+		}
+
+		// subscribing twice fails the second subscription only
+		publisher.subscribe(subscriber);
+		assertTrue(subscriber.finished.await(5, TimeUnit.SECONDS));
+		assertTrue(subscriber.error instanceof IllegalStateException);
+		assertEquals(1, publisher.getSubscriberCount());
+
+		TestSubscriber invalid = new TestSubscriber(0);
+		publisher.subscribe(invalid);
+		while (invalid.subscription == null) {
+			Thread.sleep(1);
+		}
+		invalid.subscription.request(0);
+		assertTrue(invalid.finished.await(5, TimeUnit.SECONDS));
+		assertTrue(invalid.error instanceof IllegalArgumentException);
+
+		publisher.closeExceptionally(new RuntimeException("stop"));
+		TestSubscriber late = new TestSubscriber(1);
+		publisher.subscribe(late);
+		assertTrue(late.finished.await(5, TimeUnit.SECONDS));
+		assertTrue(late.completed);
+		assertNull(late.error);
+	}
+
+}
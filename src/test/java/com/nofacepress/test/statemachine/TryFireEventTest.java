@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.nofacepress.statemachine.FireOutcome;
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineGraphBuilder;
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.exceptions.StateMachineException;
+import com.nofacepress.statemachine.listener.AfterStateChangedListener;
+import com.nofacepress.statemachine.listener.OnStateChangedListener;
+
+public class TryFireEventTest {
+
+	private static final IllegalStateException BOOM = new IllegalStateException("boom");
+
+	@Test
+	public void test_outcomes() {
+		List<FireOutcome> nested = new ArrayList<FireOutcome>();
+		StateMachineGraph<TestStates, TestEvents, String> graph = StateMachineGraphBuilder
+				.<TestStates, TestEvents, String>builder()
+				.initial(TestStates.STATE_1)
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.transition(TestStates.STATE_2, TestStates.STATE_3, TestEvents.EVENT_2)
+				.transition(TestStates.STATE_3, TestStates.STATE_4, TestEvents.EVENT_3)
+				.listener(TestStates.STATE_2, (OnStateChangedListener<TestStates, TestEvents, String>) (instance,
+						source, target, event) -> nested.add(instance.tryFireEvent(TestEvents.EVENT_2)))
+				.listener(TestStates.STATE_3, (OnStateChangedListener<TestStates, TestEvents, String>) (instance,
+						source, target, event) -> {
+					throw BOOM;
+				})
+				.listener(TestStates.STATE_4, (AfterStateChangedListener<TestStates, TestEvents, String>) (instance,
+						source, target, event) -> {
+					throw BOOM;
+				})
+				.build();
+
+		StateMachineInstance<TestStates, TestEvents, String> instance = new StateMachineInstance<TestStates, TestEvents, String>(
+				graph, null);
+		assertSame(FireOutcome.NO_TRANSITION, instance.tryFireEvent(TestEvents.EVENT_3));
+
+		assertSame(FireOutcome.ACCEPTED, instance.tryFireEvent(TestEvents.EVENT_1));
+		assertEquals(1, nested.size());
+		assertSame(FireOutcome.REENTRANT, nested.get(0));
+		assertEquals(TestStates.STATE_2, instance.getCurrentState().getId());
+		assertNull(instance.getFailureCause());
+
+		// on and after listener failures, the state has changed either way
+		assertSame(FireOutcome.LISTENER_FAILED, instance.tryFireEvent(TestEvents.EVENT_2, "payload"));
+		assertSame(BOOM, instance.getFailureCause());
+		assertEquals(TestStates.STATE_3, instance.getCurrentState().getId());
+		assertSame(FireOutcome.LISTENER_FAILED, instance.tryFireEvent(TestEvents.EVENT_3));
+		assertSame(BOOM, instance.getFailureCause());
+		assertEquals(TestStates.STATE_4, instance.getCurrentState().getId());
+
+		// fireEvent() still throws as before
+		instance.forceStateChange(TestStates.STATE_2, null, false);
+		try {
+			instance.fireEvent(TestEvents.EVENT_2);
+			fail();
+		} catch (StateMachineException e) {
+			assertSame(BOOM, e.getCause());
+		}
+		try {
+			instance.fireEvent(TestEvents.EVENT_3);
+			fail();
+		} catch (IllegalStateException e) {
+			assertSame(BOOM, e);
+		}
+	}
+
+	@Test
+	public void test_stackless() {
+		assertTrue(StateMachineException.isStackTraceEnabled());
+		assertTrue(new StateMachineException("traced").getStackTrace().length > 0);
+		StateMachineException.setStackTraceEnabled(false);
+		try {
+			assertEquals(0, new StateMachineException("cheap").getStackTrace().length);
+			assertEquals(0, new StateMachineException("cheap", BOOM).getStackTrace().length);
+			StateMachineException e = new StateMachineException(BOOM);
+			assertEquals(0, e.getStackTrace().length);
+			assertEquals(BOOM.toString(), e.getMessage());
+			assertTrue(new StateMachineException("explicit", null, true, true).getStackTrace().length > 0);
+		} finally {
+			StateMachineException.setStackTraceEnabled(true);
+		}
+	}
+
+}
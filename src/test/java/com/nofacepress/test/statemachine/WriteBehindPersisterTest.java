@@ -0,0 +1,302 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.test.statemachine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.nofacepress.statemachine.StateMachineGraph;
+import com.nofacepress.statemachine.StateMachineGraphBuilder;
+import com.nofacepress.statemachine.StateMachineInstance;
+import com.nofacepress.statemachine.persistence.JdbcStateStore;
+import com.nofacepress.statemachine.persistence.StateStore;
+import com.nofacepress.statemachine.persistence.WriteBehindPersister;
+import com.nofacepress.statemachine.typeconverters.EnumFromStringConverter;
+import com.nofacepress.statemachine.typeconverters.EnumToStringConverter;
+import com.nofacepress.statemachine.typeconverters.ObjectToStringConverter;
+
+public class WriteBehindPersisterTest {
+
+	private static final AtomicInteger DATABASES = new AtomicInteger();
+
+	private StateMachineGraph<TestStates, TestEvents, Integer> graph;
+	private JdbcDataSource dataSource;
+	private JdbcStateStore<Integer, TestStates> store;
+
+	@Before
+	public void setUp() throws SQLException {
+		graph = StateMachineGraphBuilder.<TestStates, TestEvents, Integer>builder()
+				.initial(TestStates.STATE_1)
+				.transition(TestStates.STATE_1, TestStates.STATE_2, TestEvents.EVENT_1)
+				.transition(TestStates.STATE_2, TestStates.STATE_3, TestEvents.EVENT_2)
+				.transition(TestStates.STATE_3, TestStates.STATE_1, TestEvents.EVENT_3)
+				.build();
+
+		dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:writebehind" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+		store = new JdbcStateStore<Integer, TestStates>(dataSource, "machine_state",
+				new ObjectToStringConverter<Integer>(), new EnumToStringConverter<TestStates>(),
+				new EnumFromStringConverter<TestStates>(TestStates.class));
+		store.createTable();
+	}
+
+	private List<StateMachineInstance<TestStates, TestEvents, Integer>> instances(int count) {
+		List<StateMachineInstance<TestStates, TestEvents, Integer>> instances = new ArrayList<StateMachineInstance<TestStates, TestEvents, Integer>>();
+		for (int id = 0; id < count; id++) {
+			instances.add(new StateMachineInstance<TestStates, TestEvents, Integer>(graph, id));
+		}
+		return instances;
+	}
+
+	private void fire(List<StateMachineInstance<TestStates, TestEvents, Integer>> instances, int rounds) {
+		for (int round = 0; round < rounds; round++) {
+			for (StateMachineInstance<TestStates, TestEvents, Integer> instance : instances) {
+				instance.fireEvent(TestEvents.values()[instance.getCurrentState().getId().ordinal() % 3]);
+			}
+		}
+	}
+
+	private void assertStored(List<StateMachineInstance<TestStates, TestEvents, Integer>> instances)
+			throws SQLException {
+		for (StateMachineInstance<TestStates, TestEvents, Integer> instance : instances) {
+			assertEquals(instance.getCurrentState().getId(), store.read(instance.getContext()));
+		}
+	}
+
+	@Test
+	public void test_coalesced() throws Exception {
+		List<StateMachineInstance<TestStates, TestEvents, Integer>> instances = instances(100);
+		try (WriteBehindPersister<Integer, TestStates, TestEvents, Integer> persister = new WriteBehindPersister<Integer, TestStates, TestEvents, Integer>(
+				store, StateMachineInstance::getContext, 1000, 10, TimeUnit.SECONDS)) {
+			persister.attach(graph);
+			fire(instances, 31);
+			assertNull(store.read(0));
+			assertEquals(TestStates.STATE_2, persister.getState(0));
+
+			assertTrue(persister.awaitDurable(10, TimeUnit.SECONDS));
+			assertStored(instances);
+			// 3100 transitions, one write per instance
+			assertEquals(100, persister.getWriteCount());
+			assertEquals(1, persister.getBatchCount());
+			assertEquals(3000, persister.getCoalescedCount());
+			assertEquals(TestStates.STATE_2, persister.getState(0));
+		}
+	}
+
+	@Test
+	public void test_batches() throws Exception {
+		List<StateMachineInstance<TestStates, TestEvents, Integer>> instances = instances(35);
+		try (WriteBehindPersister<Integer, TestStates, TestEvents, Integer> persister = new WriteBehindPersister<Integer, TestStates, TestEvents, Integer>(
+				store, StateMachineInstance::getContext, 10, 10, TimeUnit.SECONDS)) {
+			persister.attach(graph);
+			fire(instances, 1);
+			assertTrue(persister.awaitDurable(10, TimeUnit.SECONDS));
+			assertStored(instances);
+			assertEquals(35, persister.getWriteCount());
+			assertEquals(4, persister.getBatchCount());
+
+			// updates replace the stored rows
+			fire(instances, 2);
+			assertTrue(persister.awaitDurable(10, TimeUnit.SECONDS));
+			assertStored(instances);
+		}
+	}
+
+	@Test
+	public void test_interval() throws Exception {
+		List<StateMachineInstance<TestStates, TestEvents, Integer>> instances = instances(3);
+		try (WriteBehindPersister<Integer, TestStates, TestEvents, Integer> persister = new WriteBehindPersister<Integer, TestStates, TestEvents, Integer>(
+				store, StateMachineInstance::getContext, 1000, 20, TimeUnit.MILLISECONDS)) {
+			persister.attach(graph);
+			fire(instances, 1);
+			long deadline = System.currentTimeMillis() + 10000;
+			while (persister.getWriteCount() < 3 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			assertStored(instances);
+		}
+	}
+
+	@Test
+	public void test_retry() throws Exception {
+		AtomicInteger failuresLeft = new AtomicInteger(2);
+		StateStore<Integer, TestStates> flaky = new StateStore<Integer, TestStates>() {
+			@Override
+			public void write(Map<Integer, TestStates> states) throws Exception {
+				if (failuresLeft.getAndDecrement() > 0) {
+					throw new SQLException("unavailable");
+				}
+				store.write(states);
+			}
+
+			@Override
+			public TestStates read(Integer id) throws Exception {
+				return store.read(id);
+			}
+		};
+		List<StateMachineInstance<TestStates, TestEvents, Integer>> instances = instances(5);
+		try (WriteBehindPersister<Integer, TestStates, TestEvents, Integer> persister = new WriteBehindPersister<Integer, TestStates, TestEvents, Integer>(
+				flaky, StateMachineInstance::getContext, 1000, 10, TimeUnit.MILLISECONDS)) {
+			persister.attach(graph);
+			fire(instances, 1);
+			assertTrue(persister.awaitDurable(10, TimeUnit.SECONDS));
+			assertStored(instances);
+			assertEquals(2, persister.getFailureCount());
+			assertEquals("unavailable", persister.getLastFailure().getMessage());
+		}
+	}
+
+	@Test
+	public void test_readWhileWriting() throws Exception {
+		CountDownLatch writing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		StateStore<Integer, TestStates> slow = new StateStore<Integer, TestStates>() {
+			@Override
+			public void write(Map<Integer, TestStates> states) throws Exception {
+				writing.countDown();
+				release.await();
+				store.write(states);
+			}
+
+			@Override
+			public TestStates read(Integer id) throws Exception {
+				return store.read(id);
+			}
+		};
+		List<StateMachineInstance<TestStates, TestEvents, Integer>> instances = instances(1);
+		try (WriteBehindPersister<Integer, TestStates, TestEvents, Integer> persister = new WriteBehindPersister<Integer, TestStates, TestEvents, Integer>(
+				slow, StateMachineInstance::getContext, 1000, 1, TimeUnit.MILLISECONDS)) {
+			persister.attach(graph);
+			fire(instances, 1);
+			assertTrue(writing.await(10, TimeUnit.SECONDS));
+
+			// neither buffered nor stored yet
+			assertNull(store.read(0));
+			assertEquals(TestStates.STATE_2, persister.getState(0));
+			release.countDown();
+			assertTrue(persister.awaitDurable(10, TimeUnit.SECONDS));
+			assertEquals(TestStates.STATE_2, persister.getState(0));
+		}
+	}
+
+	@Test
+	public void test_barrierTimesOut() throws Exception {
+		StateStore<Integer, TestStates> down = new StateStore<Integer, TestStates>() {
+			@Override
+			public void write(Map<Integer, TestStates> states) throws Exception {
+				throw new SQLException("down");
+			}
+
+			@Override
+			public TestStates read(Integer id) {
+				return null;
+			}
+		};
+		List<StateMachineInstance<TestStates, TestEvents, Integer>> instances = instances(1);
+		WriteBehindPersister<Integer, TestStates, TestEvents, Integer> persister = new WriteBehindPersister<Integer, TestStates, TestEvents, Integer>(
+				down, StateMachineInstance::getContext, 1000, 5, TimeUnit.MILLISECONDS);
+		persister.attach(graph);
+		fire(instances, 1);
+		assertFalse(persister.awaitDurable(50, TimeUnit.MILLISECONDS));
+		persister.close();
+		assertTrue(persister.getFailureCount() > 0);
+	}
+
+	@Test
+	public void test_closeFlushes() throws Exception {
+		List<StateMachineInstance<TestStates, TestEvents, Integer>> instances = instances(20);
+		WriteBehindPersister<Integer, TestStates, TestEvents, Integer> persister = new WriteBehindPersister<Integer, TestStates, TestEvents, Integer>(
+				store, StateMachineInstance::getContext, 1000, 10, TimeUnit.SECONDS);
+		persister.attach(graph);
+		fire(instances, 4);
+		persister.close();
+		assertStored(instances);
+	}
+
+	private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	@Test
+	public void test_batchWithoutCounts() throws Exception {
+		// a driver that reports every batched statement as SUCCESS_NO_INFO
+		DataSource noInfo = (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { DataSource.class }, (p, m, a) -> {
+					Object result = invoke(dataSource, m, a);
+					if (!(result instanceof Connection)) {
+						return result;
+					}
+					return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class },
+							(pc, mc, ac) -> {
+								Object r = invoke(result, mc, ac);
+								if (!(r instanceof PreparedStatement)) {
+									return r;
+								}
+								return Proxy.newProxyInstance(getClass().getClassLoader(),
+										new Class<?>[] { PreparedStatement.class }, (ps, ms, as) -> {
+											Object counts = invoke(r, ms, as);
+											if (ms.getName().equals("executeBatch")) {
+												Arrays.fill((int[]) counts, Statement.SUCCESS_NO_INFO);
+											}
+											return counts;
+										});
+							});
+				});
+		JdbcStateStore<Integer, TestStates> vague = new JdbcStateStore<Integer, TestStates>(noInfo, "machine_state",
+				new ObjectToStringConverter<Integer>(), new EnumToStringConverter<TestStates>(),
+				new EnumFromStringConverter<TestStates>(TestStates.class));
+
+		Map<Integer, TestStates> states = new HashMap<Integer, TestStates>();
+		states.put(1, TestStates.STATE_1);
+		vague.write(states);
+		assertEquals(TestStates.STATE_1, store.read(1));
+
+		states.put(1, TestStates.STATE_2);
+		states.put(2, TestStates.STATE_3);
+		vague.write(states);
+		assertEquals(TestStates.STATE_2, store.read(1));
+		assertEquals(TestStates.STATE_3, store.read(2));
+	}
+
+}
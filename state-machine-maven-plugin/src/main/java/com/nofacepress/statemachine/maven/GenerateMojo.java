@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 No Face Press, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nofacepress.statemachine.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+
+import com.nofacepress.statemachine.exceptions.StateMachineException;
+import com.nofacepress.statemachine.scxml.SCXMLCodeGenerator;
+
+/**
+ * Generates the state enum, event enum and prebuilt graph class for every
+ * .scxml file in the source directory. A file named order-flow.scxml produces
+ * OrderFlowState, OrderFlowEvent and OrderFlowGraph.
+ */
+@Mojo(name = "generate", defaultPhase = LifecyclePhase.GENERATE_SOURCES, threadSafe = true)
+public class GenerateMojo extends AbstractMojo {
+
+	/**
+	 * Directory containing the .scxml files.
+	 */
+	@Parameter(defaultValue = "${basedir}/src/main/scxml", required = true)
+	private File sourceDirectory;
+
+	/**
+	 * Directory the Java sources are generated into.
+	 */
+	@Parameter(defaultValue = "${project.build.directory}/generated-sources/state-machine", required = true)
+	private File outputDirectory;
+
+	/**
+	 * Package of the generated classes.
+	 */
+	@Parameter(required = true)
+	private String packageName;
+
+	@Parameter(defaultValue = "${project}", readonly = true, required = true)
+	private MavenProject project;
+
+	@Override
+	public void execute() throws MojoExecutionException {
+
+		project.addCompileSourceRoot(outputDirectory.getPath());
+
+		File[] files = sourceDirectory.listFiles((dir, name) -> name.endsWith(".scxml"));
+		if (files == null || files.length == 0) {
+			getLog().info("No SCXML files found in " + sourceDirectory);
+			return;
+		}
+		Arrays.sort(files);
+
+		for (File file : files) {
+			try {
+				SCXMLCodeGenerator generator = new SCXMLCodeGenerator(packageName, baseName(file));
+				File graphFile = new File(new File(outputDirectory, packageName.replace('.', '/')),
+						generator.getGraphClassName() + ".java");
+				if (graphFile.lastModified() >= file.lastModified()) {
+					getLog().debug(graphFile + " is up to date");
+					continue;
+				}
+				getLog().info("Generating " + generator.getGraphClassName() + " from " + file.getName());
+				generator.generate(file.getPath(), outputDirectory);
+			} catch (XMLStreamException | IOException | StateMachineException e) {
+				throw new MojoExecutionException("Unable to generate sources from " + file, e);
+			}
+		}
+	}
+
+	private static String baseName(File file) {
+		String name = file.getName();
+		name = name.substring(0, name.length() - ".scxml".length());
+		StringBuilder sb = new StringBuilder(name.length());
+		boolean upper = true;
+		for (int i = 0; i < name.length(); i++) {
+			char ch = name.charAt(i);
+			if (Character.isJavaIdentifierPart(ch) && ch != '_' && ch != '$') {
+				sb.append(upper ? Character.toUpperCase(ch) : ch);
+				upper = false;
+			} else {
+				upper = true;
+			}
+		}
+		return sb.toString();
+	}
+
+}